@@ -0,0 +1,28 @@
+package com.hypertube.streaming.config;
+
+import com.hypertube.streaming.service.AsyncStreamDelivery;
+import lombok.RequiredArgsConstructor;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.web.servlet.config.annotation.AsyncSupportConfigurer;
+import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
+
+/**
+ * Servlet async configuration for video delivery: response bodies returned as
+ * StreamingResponseBody are written on the streaming I/O executor (on the container thread when
+ * async delivery is disabled), each with a timeout covering its paced duration.
+ */
+@Configuration
+@RequiredArgsConstructor
+public class StreamingAsyncConfig implements WebMvcConfigurer {
+
+    private final StreamingConfig streamingConfig;
+    private final AsyncStreamDelivery asyncStreamDelivery;
+
+    @Override
+    public void configureAsyncSupport(AsyncSupportConfigurer configurer) {
+        configurer.setTaskExecutor(asyncStreamDelivery.getExecutor());
+        configurer.setDefaultTimeout(streamingConfig.getDelivery().getAsyncTimeoutMs());
+        configurer.registerDeferredResultInterceptors(asyncStreamDelivery.getBodyTimeoutInterceptor());
+        configurer.registerCallableInterceptors(asyncStreamDelivery.getBodyTimeoutInterceptor());
+    }
+}
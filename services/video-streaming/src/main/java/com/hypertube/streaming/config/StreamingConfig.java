@@ -1,9 +1,14 @@
 package com.hypertube.streaming.config;
 
+import lombok.AllArgsConstructor;
 import lombok.Data;
+import lombok.NoArgsConstructor;
 import org.springframework.boot.context.properties.ConfigurationProperties;
 import org.springframework.context.annotation.Configuration;
 
+import java.util.ArrayList;
+import java.util.List;
+
 @Configuration
 @ConfigurationProperties(prefix = "streaming")
 @Data
@@ -14,6 +19,12 @@ public class StreamingConfig {
     private Conversion conversion = new Conversion();
     private Cache cache = new Cache();
     private Subtitle subtitle = new Subtitle();
+    private Delivery delivery = new Delivery();
+    private BlockCache blockCache = new BlockCache();
+    private Pacing pacing = new Pacing();
+    private Trickplay trickplay = new Trickplay();
+    private KeyframeIndex keyframeIndex = new KeyframeIndex();
+    private Abr abr = new Abr();
 
     @Data
     public static class Storage {
@@ -32,6 +43,21 @@ public class StreamingConfig {
         private boolean dhtEnabled = true;
         private int portRangeStart = 6881;
         private int portRangeEnd = 6889;
+        private long streamingBufferBytes = 16L * 1024 * 1024; // contiguous head needed before playback
+        private int maxPeersPerTorrent = 50;
+        private int uploadSlots = 4; // peers unchoked at a time
+        private int requestPipelineDepth = 32; // outstanding 16 KB block requests per peer
+        private long tailPriorityBytes = 4L * 1024 * 1024; // end of the file (MP4 moov, MKV cues) fetched early
+        private long readaheadBytes = 64L * 1024 * 1024; // in-order window after the playback position
+        private long deadlineWindowBytes = 16L * 1024 * 1024; // pieces after the playback position with deadlines
+        private long deadlineMarginMs = 3000; // pieces this close to their deadline are requested twice
+        private int assumedBitrateKbps = 8000; // playback rate for deadlines when the bitrate is unknown
+        private int verifyThreads = 0; // piece hashing threads, 0: available processors
+        private int maxPendingVerifications = 16; // pieces waiting for hashing before block requests pause
+        private long pieceBufferBytes = 64L * 1024 * 1024; // write-back buffer shared by all torrents
+        private int resumeSaveIntervalSeconds = 30; // fast-resume checkpoints of running downloads
+        private String instanceId = ""; // owner of this node's downloads; stable across restarts, host name if blank
+        private int leaseSeconds = 120; // other instances take over a download its owner stopped renewing for this long
     }
 
     @Data
@@ -41,6 +67,25 @@ public class StreamingConfig {
         private String targetCodec = "h264";
         private String ffmpegPath = "ffmpeg";
         private String ffprobePath = "ffprobe";
+        private String outputMode = "mp4"; // mp4 (single faststart file) or hls (playlist + segments)
+        private int hlsSegmentSeconds = 6;
+        private String hlsSegmentType = "fmp4"; // fmp4 or mpegts
+        private boolean liveEnabled = false; // transcode to HLS while the download is still running
+        private String livePreset = "veryfast"; // must keep up with real time
+        private int maxLiveTranscodes = 2;
+        private int liveStallTimeoutSeconds = 300; // give up if the download frontier stops moving
+        private boolean faststartEnabled = true; // move the trailing moov of downloaded MP4s to the front
+        private boolean segmentedEnabled = true; // encode long videos as parallel keyframe-aligned chunks
+        private int segmentedMinDurationSeconds = 600; // shorter videos use a single FFmpeg process
+        private int segmentedChunkSeconds = 60; // target chunk length; also the resume granularity
+        private int segmentedParallelism = 0; // concurrent chunk encodes, 0 for cores / threads per chunk
+        private int segmentedThreadsPerChunk = 2; // encoder threads of one chunk
+        private double schedulerCpuShare = 0.75; // share of cores encoders may use; the rest serves streams
+        private int threadsPerConversion = 4; // encoder threads of a single-process transcode
+        private int listenerConcurrency = 16; // conversions taken from the queue and ordered by demand
+        private String presets = "medium,fast,faster,veryfast"; // slower to faster, stepped by backlog
+        private int presetBacklogStep = 3; // waiting conversions per step to a faster preset
+        private long progressUpdateIntervalMs = 2000; // conversion progress is written at most this often
     }
 
     @Data
@@ -55,4 +100,79 @@ public class StreamingConfig {
         private String autoDownloadLanguages = "en";
         private String opensubtitlesApiKey;
     }
+
+    @Data
+    public static class Delivery {
+        private long maxRangeChunkSize = 8L * 1024 * 1024; // cap for open-ended ranges (bytes=N-)
+        private int transferSliceSize = 1024 * 1024; // bytes handed to transferTo per call
+        private long availabilityWaitTimeoutMs = 15000; // wait for bytes past the download frontier
+        private int maxRanges = 8; // ranges accepted in one multi-range request
+        private int descriptorCacheMaxEntries = 10000;
+        private int descriptorCacheTtlSeconds = 300; // bounds staleness for out-of-band file changes
+        private long fileHandleIdleTimeoutMs = 60000; // shared channels close after this long without leases
+        private boolean asyncEnabled = true; // write video bodies on the I/O executor, not request threads
+        private int maxConcurrentStreams = 512; // stream budget; requests beyond it get 503
+        private int maxConcurrentQueries = 64; // seek lookups resolved at once; more get 503
+        private int ioThreads = 32; // I/O threads kept warm; grows up to max-concurrent-streams
+        private long asyncTimeoutMs = 3600000; // budget for writing one response body, on top of its paced duration
+        private int cacheMaxAgeSeconds = 3600; // max-age for completed videos and subtitles
+    }
+
+    @Data
+    public static class BlockCache {
+        private boolean enabled = true;
+        private int blockSizeBytes = 1024 * 1024; // fixed block size shared by all viewers
+        private int capacityMb = 256; // off-heap (direct) memory held by cached blocks
+    }
+
+    @Data
+    public static class Trickplay {
+        private boolean enabled = true;
+        private int intervalSeconds = 10; // one thumbnail per interval
+        private int thumbnailWidth = 160;
+        private int thumbnailHeight = 90;
+        private int columns = 10; // thumbnails per sprite sheet row
+        private int rows = 10; // rows per sprite sheet
+        private int niceness = 19; // OS scheduling priority of FFmpeg (nice), 0 to run at normal priority
+    }
+
+    @Data
+    public static class KeyframeIndex {
+        private boolean enabled = true;
+        private int cacheEntries = 512; // indexes kept in memory (a few KB to a few hundred KB each)
+        private long partialRebuildBytes = 32L * 1024 * 1024; // re-index a growing file after this much progress
+        private long seekWaitMs = 10000; // how long a seek request waits for an index being built
+        private int readyPlayableSeconds = 30; // a download is ready once this much is playable
+    }
+
+    @Data
+    public static class Abr {
+        private boolean enabled = false; // HLS output only: lower renditions plus a master playlist
+        private long upgradeIntervalMs = 1800000; // how often finished titles are checked for new rungs
+        // Rungs below the source resolution; a rung is built once minViewers users requested the title
+        private List<Rendition> renditions = new ArrayList<>(List.of(
+                new Rendition(360, 800, 0),
+                new Rendition(480, 1400, 2),
+                new Rendition(720, 2800, 5),
+                new Rendition(1080, 5000, 10)
+        ));
+
+        @Data
+        @NoArgsConstructor
+        @AllArgsConstructor
+        public static class Rendition {
+            private int height;
+            private int videoBitrateKbps; // cap (maxrate) of the rung
+            private int minViewers; // distinct users who requested the title
+        }
+    }
+
+    @Data
+    public static class Pacing {
+        private boolean enabled = true;
+        private int initialBurstSeconds = 10; // playback seconds sent unpaced at the start of a response
+        private long minBurstBytes = 2L * 1024 * 1024;
+        private double rateMultiplier = 1.5; // pace at this multiple of the video bitrate
+        private int nodeEgressLimitMbps = 0; // aggregate limit for all streams, 0 for unlimited
+    }
 }
@@ -1,15 +1,21 @@
 package com.hypertube.streaming.controller;
 
+import com.hypertube.streaming.config.StreamingConfig;
 import com.hypertube.streaming.dto.DownloadJobDTO;
 import com.hypertube.streaming.dto.DownloadMessage;
 import com.hypertube.streaming.entity.DownloadJob;
 import com.hypertube.streaming.entity.Subtitle;
 import com.hypertube.streaming.repository.DownloadJobRepository;
 import com.hypertube.streaming.repository.VideoTorrentRepository;
+import com.hypertube.streaming.service.AsyncStreamDelivery;
 import com.hypertube.streaming.service.CacheManagementService;
+import com.hypertube.streaming.service.HlsService;
+import com.hypertube.streaming.service.LiveTranscodeService;
 import com.hypertube.streaming.service.SubtitleService;
 import com.hypertube.streaming.service.TorrentService;
+import com.hypertube.streaming.service.TrickplayService;
 import com.hypertube.streaming.service.VideoStreamingService;
+import com.hypertube.streaming.util.CacheValidators;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.amqp.rabbit.core.RabbitTemplate;
@@ -21,6 +27,8 @@ import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.async.DeferredResult;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
 import java.io.File;
 import java.time.LocalDateTime;
@@ -42,6 +50,11 @@ public class StreamingController {
     private final VideoStreamingService videoStreamingService;
     private final SubtitleService subtitleService;
     private final CacheManagementService cacheManagementService;
+    private final AsyncStreamDelivery asyncStreamDelivery;
+    private final StreamingConfig streamingConfig;
+    private final HlsService hlsService;
+    private final LiveTranscodeService liveTranscodeService;
+    private final TrickplayService trickplayService;
     private final RabbitTemplate rabbitTemplate;
 
     @Value("${rabbitmq.queues.download}")
@@ -134,6 +147,12 @@ public class StreamingController {
             boolean isReady = (job.getStatus() == DownloadJob.DownloadStatus.COMPLETED && job.getFilePath() != null)
                     || torrentService.isReadyForStreaming(jobId);
 
+            // Seconds playable from the download frontier, from the keyframe index (-1 if unknown)
+            double playableSeconds = videoStreamingService.getPlayableSeconds(jobId);
+            if (playableSeconds >= streamingConfig.getKeyframeIndex().getReadyPlayableSeconds()) {
+                isReady = true;
+            }
+
             String filePath = job.getFilePath() != null ? job.getFilePath() : torrentService.getFilePath(jobId);
 
             Map<String, Object> response = new HashMap<>();
@@ -142,6 +161,14 @@ public class StreamingController {
             response.put("status", job.getStatus());
             response.put("progress", job.getProgress());
             response.put("filePath", filePath);
+            if (playableSeconds >= 0) {
+                response.put("playableSeconds", playableSeconds);
+            }
+
+            LiveTranscodeService.Status liveTranscode = liveTranscodeService.getStatus(jobId);
+            if (liveTranscode != null) {
+                response.put("liveTranscode", liveTranscode);
+            }
 
             return ResponseEntity.ok(response);
 
@@ -158,6 +185,7 @@ public class StreamingController {
     public ResponseEntity<Void> cancelDownload(@PathVariable UUID jobId) {
         try {
             torrentService.cancelDownload(jobId);
+            liveTranscodeService.cancel(jobId);
             return ResponseEntity.ok().build();
         } catch (Exception e) {
             log.error("Error cancelling download for job: {}", jobId, e);
@@ -173,19 +201,127 @@ public class StreamingController {
      * - Partial content streaming (Range header present)
      * - Video seeking during active downloads
      * - Progressive playback in browsers
+     * - Asynchronous resolution and body delivery, so waiting for downloaded bytes and slow
+     *   clients do not hold request threads
+     * - Conditional requests (ETag, Last-Modified, If-Range) for completed files
      *
      * @param jobId The download job ID
-     * @param rangeHeader Optional Range header for partial content requests
-     * @return Video content with appropriate status code (200 or 206)
+     * @param requestHeaders Request headers, including the optional Range header
+     * @return Video content with appropriate status code (200, 206 or 304)
      */
     @GetMapping("/video/{jobId}")
-    public ResponseEntity<Resource> streamVideo(
+    public DeferredResult<ResponseEntity<StreamingResponseBody>> streamVideo(
             @PathVariable UUID jobId,
-            @RequestHeader(value = HttpHeaders.RANGE, required = false) String rangeHeader) {
+            @RequestHeader HttpHeaders requestHeaders) {
 
+        String rangeHeader = requestHeaders.getFirst(HttpHeaders.RANGE);
         log.info("Streaming video for job: {} (Range: {})", jobId, rangeHeader != null ? rangeHeader : "none");
 
-        return videoStreamingService.streamVideo(jobId, rangeHeader);
+        return asyncStreamDelivery.deliver(() -> videoStreamingService.streamVideo(jobId, requestHeaders));
+    }
+
+    /**
+     * Maps a playback time to the byte range of the preceding keyframe in the file served by
+     * {@code /video/{jobId}}.
+     *
+     * The lookup may wait for the keyframe index of a file still downloading, so it runs off the
+     * request thread like the video body.
+     *
+     * @param jobId The download job ID
+     * @param t Playback time in seconds
+     * @return The keyframe time and its byte range (503 with Retry-After while the file is indexed)
+     */
+    @GetMapping("/video/{jobId}/seek")
+    public DeferredResult<ResponseEntity<Map<String, Object>>> seekVideo(@PathVariable UUID jobId,
+                                                                         @RequestParam("t") double t) {
+        if (!(t >= 0)) {
+            DeferredResult<ResponseEntity<Map<String, Object>>> badRequest = new DeferredResult<>();
+            badRequest.setResult(ResponseEntity.badRequest().build());
+            return badRequest;
+        }
+        return asyncStreamDelivery.resolve(() -> {
+            try {
+                return videoStreamingService.findSeekPoint(jobId, t);
+            } catch (Exception e) {
+                log.error("Error finding seek point for job: {} at {}s", jobId, t, e);
+                return ResponseEntity.internalServerError().build();
+            }
+        });
+    }
+
+    /**
+     * Serves the HLS playlist of a job.
+     *
+     * While the conversion is running the playlist grows with every finished segment; players
+     * reload it until it carries #EXT-X-ENDLIST.
+     *
+     * @param jobId The download job ID
+     * @param requestHeaders Request headers, for If-None-Match / If-Modified-Since
+     * @return The .m3u8 playlist (503 with Retry-After until the first segment exists)
+     */
+    @GetMapping("/hls/{jobId}/playlist.m3u8")
+    public ResponseEntity<Resource> getHlsPlaylist(@PathVariable UUID jobId,
+                                                   @RequestHeader HttpHeaders requestHeaders) {
+        return hlsService.getPlaylist(jobId, requestHeaders);
+    }
+
+    /**
+     * Serves an HLS segment (or the fMP4 init segment) referenced by the playlist.
+     * Segments are revalidated on every use, since a job's output can be rewritten under the
+     * same names.
+     *
+     * @param jobId The download job ID
+     * @param segmentName The segment file name
+     * @param requestHeaders Request headers, for If-None-Match / If-Modified-Since
+     * @return The segment content, or 304 if the client's copy is current
+     */
+    @GetMapping("/hls/{jobId}/{segmentName}")
+    public ResponseEntity<Resource> getHlsSegment(@PathVariable UUID jobId, @PathVariable String segmentName,
+                                                  @RequestHeader HttpHeaders requestHeaders) {
+        return hlsService.getSegment(jobId, segmentName, requestHeaders);
+    }
+
+    /**
+     * Serves the playlist or a segment of one rendition of an adaptive bitrate ladder; the
+     * job's playlist.m3u8 is then the master playlist referencing "{rendition}/playlist.m3u8".
+     *
+     * @param jobId The download job ID
+     * @param rendition The rendition (e.g. "360p" or "source")
+     * @param fileName The rendition playlist or segment file name
+     * @param requestHeaders Request headers, for If-None-Match / If-Modified-Since
+     * @return The file (503 with Retry-After until the rendition playlist exists)
+     */
+    @GetMapping("/hls/{jobId}/{rendition}/{fileName}")
+    public ResponseEntity<Resource> getHlsRenditionFile(@PathVariable UUID jobId, @PathVariable String rendition,
+                                                        @PathVariable String fileName,
+                                                        @RequestHeader HttpHeaders requestHeaders) {
+        return hlsService.getRenditionFile(jobId, rendition, fileName, requestHeaders);
+    }
+
+    /**
+     * Serves the WebVTT thumbnails track used for seek previews. Cues point at regions of the
+     * sprite sheets ("sprite_001.jpg#xywh=x,y,w,h"). Returns 404 (and queues generation) until
+     * the thumbnails exist.
+     *
+     * @param jobId The download job ID
+     * @return The thumbnails track
+     */
+    @GetMapping("/trickplay/{jobId}/thumbnails.vtt")
+    public ResponseEntity<Resource> getTrickplayTrack(@PathVariable UUID jobId) {
+        return trickplayService.getTrack(jobId);
+    }
+
+    /**
+     * Serves a thumbnail sprite sheet referenced by the thumbnails track.
+     * Sprite sheets are immutable and cached for a year.
+     *
+     * @param jobId The download job ID
+     * @param spriteName The sprite sheet file name
+     * @return The JPEG sprite sheet
+     */
+    @GetMapping("/trickplay/{jobId}/{spriteName}")
+    public ResponseEntity<Resource> getTrickplaySprite(@PathVariable UUID jobId, @PathVariable String spriteName) {
+        return trickplayService.getSprite(jobId, spriteName);
     }
 
     /**
@@ -223,12 +359,14 @@ public class StreamingController {
      *
      * @param videoId The video ID
      * @param languageCode The language code (e.g., "en", "pt", "es")
-     * @return The subtitle file in WebVTT format
+     * @param requestHeaders Request headers, for If-None-Match / If-Modified-Since
+     * @return The subtitle file in WebVTT format, or 304 if the client's copy is current
      */
     @GetMapping("/subtitles/{videoId}/{languageCode}")
     public ResponseEntity<Resource> getSubtitleFile(
             @PathVariable UUID videoId,
-            @PathVariable String languageCode) {
+            @PathVariable String languageCode,
+            @RequestHeader HttpHeaders requestHeaders) {
 
         try {
             Subtitle subtitle = subtitleService.getSubtitleByLanguage(videoId, languageCode);
@@ -244,12 +382,22 @@ public class StreamingController {
                 return ResponseEntity.notFound().build();
             }
 
-            Resource resource = new FileSystemResource(subtitleFile);
+            long lastModified = subtitleFile.lastModified();
+            String etag = CacheValidators.strongEtag(subtitleFile.toPath(), subtitleFile.length(), lastModified);
 
             HttpHeaders headers = new HttpHeaders();
+            CacheValidators.applyValidators(headers, etag, lastModified);
+            headers.set(HttpHeaders.CACHE_CONTROL,
+                    "public, max-age=" + streamingConfig.getDelivery().getCacheMaxAgeSeconds());
+
+            if (CacheValidators.isNotModified(requestHeaders, etag, lastModified)) {
+                return ResponseEntity.status(HttpStatus.NOT_MODIFIED).headers(headers).build();
+            }
+
+            Resource resource = new FileSystemResource(subtitleFile);
+
             headers.setContentType(MediaType.parseMediaType("text/vtt"));
             headers.setContentLength(subtitleFile.length());
-            headers.set(HttpHeaders.CACHE_CONTROL, "no-cache, no-store, must-revalidate");
 
             log.info("Serving subtitle for video: {}, language: {}", videoId, languageCode);
 
@@ -343,6 +491,8 @@ public class StreamingController {
                 .etaSeconds(job.getEtaSeconds())
                 .filePath(job.getFilePath())
                 .errorMessage(job.getErrorMessage())
+                .conversionStrategy(job.getConversionStrategy())
+                .conversionDurationMs(job.getConversionDurationMs())
                 .createdAt(job.getCreatedAt())
                 .startedAt(job.getStartedAt())
                 .completedAt(job.getCompletedAt())
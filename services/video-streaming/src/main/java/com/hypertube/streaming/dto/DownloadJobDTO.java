@@ -1,5 +1,6 @@
 package com.hypertube.streaming.dto;
 
+import com.hypertube.streaming.entity.DownloadJob.ConversionStrategy;
 import com.hypertube.streaming.entity.DownloadJob.DownloadStatus;
 import lombok.AllArgsConstructor;
 import lombok.Builder;
@@ -24,6 +25,8 @@ public class DownloadJobDTO {
     private Integer etaSeconds;
     private String filePath;
     private String errorMessage;
+    private ConversionStrategy conversionStrategy;
+    private Long conversionDurationMs;
     private LocalDateTime createdAt;
     private LocalDateTime startedAt;
     private LocalDateTime completedAt;
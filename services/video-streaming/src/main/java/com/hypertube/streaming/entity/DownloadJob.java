@@ -51,6 +51,20 @@ public class DownloadJob {
     @Column(name = "error_message", columnDefinition = "TEXT")
     private String errorMessage;
 
+    @Enumerated(EnumType.STRING)
+    @Column(name = "conversion_strategy", length = 20)
+    private ConversionStrategy conversionStrategy; // how the video was made browser-playable
+
+    @Column(name = "conversion_duration_ms")
+    private Long conversionDurationMs; // wall-clock time of the conversion
+
+    // Written only by the lease queries of DownloadJobRepository, never by saving the entity
+    @Column(name = "owner_instance", insertable = false, updatable = false)
+    private String ownerInstance; // instance running the download
+
+    @Column(name = "lease_expires_at", insertable = false, updatable = false)
+    private LocalDateTime leaseExpiresAt; // renewed by the owner while the download runs
+
     @CreationTimestamp
     @Column(name = "created_at", nullable = false, updatable = false)
     private LocalDateTime createdAt;
@@ -73,4 +87,11 @@ public class DownloadJob {
         FAILED,
         CANCELLED
     }
+
+    public enum ConversionStrategy {
+        FASTSTART, // MP4 served as-is after moving its moov to the front (no FFmpeg)
+        REMUX,
+        AUDIO_TRANSCODE,
+        FULL_TRANSCODE
+    }
 }
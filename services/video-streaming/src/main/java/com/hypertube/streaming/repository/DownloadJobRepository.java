@@ -3,11 +3,14 @@ package com.hypertube.streaming.repository;
 import com.hypertube.streaming.entity.DownloadJob;
 import com.hypertube.streaming.entity.DownloadJob.DownloadStatus;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
 import org.springframework.data.jpa.repository.Query;
 import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
 
 import java.time.LocalDateTime;
+import java.util.Collection;
 import java.util.List;
 import java.util.Optional;
 import java.util.UUID;
@@ -36,4 +39,76 @@ public interface DownloadJobRepository extends JpaRepository<DownloadJob, UUID>
 
     @Query("SELECT COUNT(dj) FROM DownloadJob dj WHERE dj.status IN :activeStatuses")
     long countActiveJobs(@Param("activeStatuses") List<DownloadStatus> activeStatuses);
+
+    @Query("SELECT COUNT(DISTINCT dj.userId) FROM DownloadJob dj " +
+           "WHERE dj.videoId = :videoId AND dj.status IN :activeStatuses")
+    long countWaitingUsers(@Param("videoId") UUID videoId,
+                           @Param("activeStatuses") List<DownloadStatus> activeStatuses);
+
+    @Query("SELECT COUNT(DISTINCT dj.userId) FROM DownloadJob dj WHERE dj.videoId = :videoId")
+    long countUsers(@Param("videoId") UUID videoId);
+
+    @Modifying
+    @Transactional
+    @Query("UPDATE DownloadJob dj SET dj.progress = :progress, dj.etaSeconds = :etaSeconds " +
+           "WHERE dj.id = :jobId AND dj.status = :status")
+    int updateProgress(@Param("jobId") UUID jobId,
+                       @Param("status") DownloadStatus status,
+                       @Param("progress") Integer progress,
+                       @Param("etaSeconds") Integer etaSeconds);
+
+    /**
+     * Takes a queued job in the given status for an instance unless another instance holds a
+     * live lease on it.
+     *
+     * @return 1 if the job is now leased to the owner
+     */
+    @Modifying
+    @Transactional
+    @Query("UPDATE DownloadJob dj SET dj.ownerInstance = :owner, dj.leaseExpiresAt = :leaseUntil " +
+           "WHERE dj.id = :jobId AND dj.status = :status AND (dj.ownerInstance IS NULL " +
+           "OR dj.ownerInstance = :owner OR dj.leaseExpiresAt < :now)")
+    int claimQueued(@Param("jobId") UUID jobId,
+                    @Param("status") DownloadStatus status,
+                    @Param("owner") String owner,
+                    @Param("now") LocalDateTime now,
+                    @Param("leaseUntil") LocalDateTime leaseUntil);
+
+    /**
+     * Takes an interrupted download for an instance: its own, one whose owner stopped renewing
+     * the lease, or one started before leases existed that has not been updated since
+     * unownedBefore. Conditional, so only one instance wins a job.
+     *
+     * @return 1 if the job is now leased to the owner
+     */
+    @Modifying
+    @Transactional
+    @Query("UPDATE DownloadJob dj SET dj.ownerInstance = :owner, dj.leaseExpiresAt = :leaseUntil " +
+           "WHERE dj.id = :jobId AND dj.status = :status AND (dj.ownerInstance = :owner " +
+           "OR dj.leaseExpiresAt < :now OR (dj.ownerInstance IS NULL AND dj.updatedAt < :unownedBefore))")
+    int claimInterrupted(@Param("jobId") UUID jobId,
+                         @Param("status") DownloadStatus status,
+                         @Param("owner") String owner,
+                         @Param("now") LocalDateTime now,
+                         @Param("leaseUntil") LocalDateTime leaseUntil,
+                         @Param("unownedBefore") LocalDateTime unownedBefore);
+
+    /**
+     * Finds the jobs in a status that {@link #claimInterrupted} could take for the owner.
+     */
+    @Query("SELECT dj FROM DownloadJob dj WHERE dj.status = :status AND (dj.ownerInstance = :owner " +
+           "OR dj.leaseExpiresAt < :now OR (dj.ownerInstance IS NULL AND dj.updatedAt < :unownedBefore)) " +
+           "ORDER BY dj.createdAt ASC")
+    List<DownloadJob> findClaimable(@Param("status") DownloadStatus status,
+                                    @Param("owner") String owner,
+                                    @Param("now") LocalDateTime now,
+                                    @Param("unownedBefore") LocalDateTime unownedBefore);
+
+    @Modifying
+    @Transactional
+    @Query("UPDATE DownloadJob dj SET dj.leaseExpiresAt = :leaseUntil " +
+           "WHERE dj.id IN :jobIds AND dj.ownerInstance = :owner")
+    int renewLeases(@Param("jobIds") Collection<UUID> jobIds,
+                    @Param("owner") String owner,
+                    @Param("leaseUntil") LocalDateTime leaseUntil);
 }
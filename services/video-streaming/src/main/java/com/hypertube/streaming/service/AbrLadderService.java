@@ -0,0 +1,445 @@
+package com.hypertube.streaming.service;
+
+import com.hypertube.streaming.config.StreamingConfig;
+import com.hypertube.streaming.entity.DownloadJob;
+import com.hypertube.streaming.entity.DownloadJob.ConversionStrategy;
+import com.hypertube.streaming.repository.DownloadJobRepository;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+/**
+ * Adaptive bitrate (ABR) ladders for HLS output: the source rendition plus scaled-down rungs,
+ * tied together by a master playlist.
+ *
+ * Layout of a job's HLS directory with a ladder:
+ * - playlist.m3u8: master playlist (the URL players already use)
+ * - source/: the source resolution, stream-copied when the strategy allows it
+ * - 360p/, 480p/, ...: H.264 rungs with capped bitrates and keyframes on the segment boundaries
+ *
+ * Features:
+ * - Only rungs below the source height, and only those whose streaming.abr.renditions
+ *   min-viewers is reached by the number of users who requested the title
+ * - The rendition that can be played soonest is produced first (a stream-copied source, else
+ *   the lowest rung) and is listed in the master playlist while it is still being produced;
+ *   further renditions are added once complete
+ * - Titles that become popular later get their missing rungs in the background
+ *   (streaming.abr.upgrade-interval-ms)
+ * - Bandwidths in the master playlist are measured from the finished segments
+ */
+@Service
+@Slf4j
+public class AbrLadderService {
+
+    public static final String SOURCE_RENDITION = "source";
+
+    private static final String END_LIST_TAG = "#EXT-X-ENDLIST";
+    private static final int AUDIO_BITRATE_KBPS = 128; // see FFmpegService#aacArguments
+    private static final int UNKNOWN_SOURCE_KBPS = 8000;
+
+    private final StreamingConfig streamingConfig;
+    private final FFmpegService ffmpegService;
+    private final MediaAnalysisService mediaAnalysisService;
+    private final TranscodeScheduler transcodeScheduler;
+    private final DownloadJobRepository downloadJobRepository;
+
+    private final ExecutorService upgradeExecutor;
+    private final Set<UUID> upgrading = new HashSet<>(); // guarded by itself
+    // Source heights of probed jobs, so rungs at or above them are not retried every cycle
+    private final Map<UUID, Integer> sourceHeights = new ConcurrentHashMap<>();
+
+    /**
+     * One rendition of a ladder.
+     *
+     * @param name Directory (and playlist URI prefix) of the rendition
+     * @param height Output height, or 0 for the source resolution
+     * @param videoKbps Video bitrate cap, or 0 for the source
+     */
+    private record Variant(String name, int height, int videoKbps) {
+
+        private static Variant source() {
+            return new Variant(SOURCE_RENDITION, 0, 0);
+        }
+
+        private static Variant rung(StreamingConfig.Abr.Rendition rendition) {
+            return new Variant(rendition.getHeight() + "p", rendition.getHeight(), rendition.getVideoBitrateKbps());
+        }
+
+        private boolean isSource() {
+            return height == 0;
+        }
+    }
+
+    public AbrLadderService(StreamingConfig streamingConfig,
+                            FFmpegService ffmpegService,
+                            MediaAnalysisService mediaAnalysisService,
+                            TranscodeScheduler transcodeScheduler,
+                            DownloadJobRepository downloadJobRepository) {
+        this.streamingConfig = streamingConfig;
+        this.ffmpegService = ffmpegService;
+        this.mediaAnalysisService = mediaAnalysisService;
+        this.transcodeScheduler = transcodeScheduler;
+        this.downloadJobRepository = downloadJobRepository;
+        this.upgradeExecutor = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "abr-upgrade");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        upgradeExecutor.shutdownNow();
+    }
+
+    /**
+     * Whether conversions produce a ladder (requires HLS output).
+     */
+    public boolean isEnabled() {
+        return streamingConfig.getAbr().isEnabled() && ffmpegService.isHlsOutput();
+    }
+
+    /**
+     * Produces the ladder of a video into a job's HLS directory.
+     *
+     * @param jobId The download job ID
+     * @param videoId The video ID (popularity is counted per video)
+     * @param inputPath The input video file
+     * @param outputDirectory The job's HLS directory
+     * @param strategy Strategy for the source rendition; rungs are always encoded
+     * @param durationSeconds Duration of the input (for progress)
+     * @param progressListener Receives the progress of the whole ladder (may be null)
+     * @return true if at least the source rendition was produced
+     * @throws InterruptedException if interrupted while waiting for encoder threads
+     */
+    public boolean transcode(UUID jobId, UUID videoId, String inputPath, Path outputDirectory,
+                             ConversionStrategy strategy, double durationSeconds,
+                             Consumer<FFmpegService.Progress> progressListener) throws InterruptedException {
+        MediaAnalysisService.MediaInfo info = mediaAnalysisService.analyze(inputPath);
+        rememberSourceHeight(jobId, info);
+        List<Variant> rungs = selectRungs(info, countViewers(videoId));
+
+        // A stream-copied source is ready in seconds; otherwise the smallest rung comes first
+        List<Variant> plan = new ArrayList<>(rungs);
+        if (strategy == ConversionStrategy.FULL_TRANSCODE) {
+            plan.add(Variant.source());
+        } else {
+            plan.add(0, Variant.source());
+        }
+        log.info("ABR ladder for job {}: {}", jobId, plan.stream().map(Variant::name).toList());
+
+        boolean sourceProduced = false;
+        List<Variant> finished = new ArrayList<>();
+        for (int i = 0; i < plan.size(); i++) {
+            Variant variant = plan.get(i);
+            try {
+                Files.createDirectories(outputDirectory.resolve(variant.name()));
+                // Until a rendition is finished, the one in progress is advertised so playback can start
+                writeMaster(outputDirectory, finished.isEmpty() ? List.of(variant) : finished,
+                        info, inputPath, durationSeconds);
+            } catch (IOException e) {
+                log.error("Failed to prepare ABR rendition {} of job {}: {}", variant.name(), jobId, e.getMessage());
+                return false;
+            }
+
+            boolean success = encode(jobId, videoId, inputPath, outputDirectory, strategy, variant,
+                    partProgress(progressListener, i, plan.size(), durationSeconds));
+            if (success) {
+                finished.add(variant);
+                sourceProduced |= variant.isSource();
+            } else if (variant.isSource()) {
+                return false;
+            } else {
+                log.warn("ABR rendition {} of job {} failed, leaving it out of the ladder", variant.name(), jobId);
+            }
+        }
+
+        try {
+            writeMaster(outputDirectory, finished, info, inputPath, durationSeconds);
+        } catch (IOException e) {
+            log.error("Failed to write the master playlist of job {}: {}", jobId, e.getMessage());
+            return false;
+        }
+        return sourceProduced;
+    }
+
+    /**
+     * Adds the rungs that finished titles have become popular enough for.
+     */
+    @Scheduled(fixedDelayString = "${streaming.abr.upgrade-interval-ms:1800000}",
+            initialDelayString = "${streaming.abr.upgrade-interval-ms:1800000}")
+    public void upgradeLadders() {
+        if (!isEnabled()) {
+            return;
+        }
+        for (DownloadJob job : downloadJobRepository.findByStatus(DownloadJob.DownloadStatus.COMPLETED)) {
+            Path outputDirectory = ffmpegService.generateHlsOutputDirectory(job.getId());
+            // Only ladders; single-rendition output (e.g. live transcodes) has no source/ directory
+            if (job.getFilePath() == null || !Files.isDirectory(outputDirectory.resolve(SOURCE_RENDITION))) {
+                continue;
+            }
+            long viewers = countViewers(job.getVideoId());
+            int sourceHeight = sourceHeights.getOrDefault(job.getId(), Integer.MAX_VALUE);
+            boolean candidate = streamingConfig.getAbr().getRenditions().stream()
+                    .filter(rendition -> viewers >= rendition.getMinViewers() && rendition.getHeight() < sourceHeight)
+                    .map(Variant::rung)
+                    .anyMatch(variant -> !isComplete(outputDirectory.resolve(variant.name())));
+            if (candidate) {
+                scheduleUpgrade(job, outputDirectory);
+            }
+        }
+    }
+
+    private void scheduleUpgrade(DownloadJob job, Path outputDirectory) {
+        synchronized (upgrading) {
+            if (!upgrading.add(job.getId())) {
+                return;
+            }
+        }
+        upgradeExecutor.execute(() -> {
+            try {
+                upgrade(job, outputDirectory);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (Exception e) {
+                log.error("ABR upgrade failed for job {}: {}", job.getId(), e.getMessage(), e);
+            } finally {
+                synchronized (upgrading) {
+                    upgrading.remove(job.getId());
+                }
+            }
+        });
+    }
+
+    private void upgrade(DownloadJob job, Path outputDirectory) throws InterruptedException, IOException {
+        String inputPath = job.getFilePath();
+        MediaAnalysisService.MediaInfo info = mediaAnalysisService.analyze(inputPath);
+        rememberSourceHeight(job.getId(), info);
+        long viewers = countViewers(job.getVideoId());
+
+        double durationSeconds = ffmpegService.getVideoDuration(inputPath);
+        for (Variant variant : selectRungs(info, viewers)) {
+            if (isComplete(outputDirectory.resolve(variant.name()))) {
+                continue;
+            }
+            log.info("Adding ABR rendition {} to job {} ({} viewers)", variant.name(), job.getId(), viewers);
+            deleteRendition(outputDirectory, variant);
+            Files.createDirectories(outputDirectory.resolve(variant.name()));
+            if (encode(job.getId(), job.getVideoId(), inputPath, outputDirectory,
+                    ConversionStrategy.FULL_TRANSCODE, variant, null)) {
+                writeMaster(outputDirectory, completeVariants(outputDirectory), info, inputPath, durationSeconds);
+            } else {
+                deleteRendition(outputDirectory, variant);
+            }
+        }
+    }
+
+    private boolean encode(UUID jobId, UUID videoId, String inputPath, Path outputDirectory,
+                           ConversionStrategy strategy, Variant variant,
+                           Consumer<FFmpegService.Progress> progressListener) throws InterruptedException {
+        // Rungs are scaled, so always encoded; the source follows the conversion strategy
+        ConversionStrategy variantStrategy = variant.isSource() ? strategy : ConversionStrategy.FULL_TRANSCODE;
+        int threads = variantStrategy == ConversionStrategy.FULL_TRANSCODE
+                ? streamingConfig.getConversion().getThreadsPerConversion()
+                : 1;
+        try (TranscodeScheduler.Grant grant = transcodeScheduler.acquire(jobId, videoId, threads)) {
+            return ffmpegService.convertToHls(inputPath, outputDirectory.resolve(variant.name()), variantStrategy,
+                    grant.preset(), grant.threads(), variant.height(), variant.videoKbps(), progressListener);
+        }
+    }
+
+    /**
+     * Picks the rungs a title gets: below the source height and popular enough.
+     */
+    private List<Variant> selectRungs(MediaAnalysisService.MediaInfo info, long viewers) {
+        if (info == null || info.height() <= 0) {
+            // Without the source height a rung could be an upscale
+            return List.of();
+        }
+        return streamingConfig.getAbr().getRenditions().stream()
+                .filter(rendition -> rendition.getHeight() > 0 && rendition.getHeight() < info.height())
+                .filter(rendition -> viewers >= rendition.getMinViewers())
+                .sorted(Comparator.comparingInt(StreamingConfig.Abr.Rendition::getHeight))
+                .map(Variant::rung)
+                .toList();
+    }
+
+    private void rememberSourceHeight(UUID jobId, MediaAnalysisService.MediaInfo info) {
+        // Unknown heights get no rungs at all (see selectRungs)
+        sourceHeights.put(jobId, info != null && info.height() > 0 ? info.height() : 0);
+    }
+
+    private long countViewers(UUID videoId) {
+        if (videoId == null) {
+            return 0;
+        }
+        try {
+            return downloadJobRepository.countUsers(videoId);
+        } catch (Exception e) {
+            log.warn("Failed to count viewers of video {}: {}", videoId, e.getMessage());
+            return 0;
+        }
+    }
+
+    private List<Variant> completeVariants(Path outputDirectory) {
+        List<Variant> variants = new ArrayList<>();
+        variants.add(Variant.source());
+        streamingConfig.getAbr().getRenditions().stream()
+                .map(Variant::rung)
+                .forEach(variants::add);
+        return variants.stream()
+                .filter(variant -> isComplete(outputDirectory.resolve(variant.name())))
+                .toList();
+    }
+
+    /**
+     * Whether a rendition's playlist is final (FFmpeg appends #EXT-X-ENDLIST when it finishes).
+     */
+    private boolean isComplete(Path renditionDirectory) {
+        Path playlist = renditionDirectory.resolve(FFmpegService.HLS_PLAYLIST_NAME);
+        try {
+            return Files.isRegularFile(playlist) && Files.readString(playlist, StandardCharsets.US_ASCII).contains(END_LIST_TAG);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private void deleteRendition(Path outputDirectory, Variant variant) {
+        Path directory = outputDirectory.resolve(variant.name());
+        if (!Files.isDirectory(directory)) {
+            return;
+        }
+        try (Stream<Path> files = Files.list(directory)) {
+            for (Path file : files.toList()) {
+                Files.deleteIfExists(file);
+            }
+            Files.deleteIfExists(directory);
+        } catch (IOException e) {
+            log.warn("Failed to delete ABR rendition {}: {}", directory, e.getMessage());
+        }
+    }
+
+    /**
+     * Writes the master playlist, lowest bandwidth first (players that do not measure bandwidth
+     * start with the first entry). The file is replaced atomically.
+     */
+    private void writeMaster(Path outputDirectory, List<Variant> variants, MediaAnalysisService.MediaInfo info,
+                             String inputPath, double durationSeconds) throws IOException {
+        boolean fmp4 = !"mpegts".equalsIgnoreCase(streamingConfig.getConversion().getHlsSegmentType());
+
+        record Entry(Variant variant, long averageBps, long peakBps) {
+        }
+        List<Entry> entries = new ArrayList<>();
+        for (Variant variant : variants) {
+            long[] measured = measureBandwidth(outputDirectory.resolve(variant.name()), durationSeconds);
+            if (measured == null) {
+                // Not finished yet: the cap of a rung, or the bitrate of the source file
+                long nominal = variant.isSource() ? sourceKbps(inputPath) : variant.videoKbps() + AUDIO_BITRATE_KBPS;
+                measured = new long[]{nominal * 1000, nominal * 1000};
+            }
+            entries.add(new Entry(variant, measured[0], measured[1]));
+        }
+        entries.sort(Comparator.comparingLong(Entry::peakBps));
+
+        StringBuilder master = new StringBuilder()
+                .append("#EXTM3U\n")
+                .append("#EXT-X-VERSION:").append(fmp4 ? 7 : 3).append('\n')
+                .append("#EXT-X-INDEPENDENT-SEGMENTS\n");
+        for (Entry entry : entries) {
+            master.append("#EXT-X-STREAM-INF:BANDWIDTH=").append(entry.peakBps())
+                    .append(",AVERAGE-BANDWIDTH=").append(entry.averageBps());
+            String resolution = resolution(info, entry.variant());
+            if (resolution != null) {
+                master.append(",RESOLUTION=").append(resolution);
+            }
+            master.append('\n')
+                    .append(entry.variant().name()).append('/').append(FFmpegService.HLS_PLAYLIST_NAME).append('\n');
+        }
+
+        Path target = outputDirectory.resolve(FFmpegService.HLS_PLAYLIST_NAME);
+        Path temp = outputDirectory.resolve(FFmpegService.HLS_PLAYLIST_NAME + ".tmp");
+        Files.writeString(temp, master, StandardCharsets.US_ASCII);
+        Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Measures a finished rendition: average bitrate over the duration and peak bitrate of the
+     * largest segment.
+     *
+     * @return {average, peak} in bits per second, or null if the rendition is not finished
+     */
+    private long[] measureBandwidth(Path directory, double durationSeconds) {
+        if (durationSeconds <= 0 || !isComplete(directory)) {
+            return null;
+        }
+        long total = 0;
+        long largest = 0;
+        try (Stream<Path> files = Files.list(directory)) {
+            for (Path file : files.toList()) {
+                String name = file.getFileName().toString().toLowerCase(Locale.ROOT);
+                if (name.endsWith(".m4s") || name.endsWith(".ts") || name.endsWith(".mp4")) {
+                    long size = Files.size(file);
+                    total += size;
+                    if (!name.endsWith(".mp4")) {
+                        largest = Math.max(largest, size);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            return null;
+        }
+        long average = (long) (total * 8 / durationSeconds);
+        long peak = largest * 8 / Math.max(1, streamingConfig.getConversion().getHlsSegmentSeconds());
+        return new long[]{average, Math.max(average, peak)};
+    }
+
+    private long sourceKbps(String inputPath) {
+        long size = new File(inputPath).length();
+        int kbps = ffmpegService.estimateBitrateKbps(inputPath, size);
+        return kbps > 0 ? kbps : UNKNOWN_SOURCE_KBPS;
+    }
+
+    private String resolution(MediaAnalysisService.MediaInfo info, Variant variant) {
+        if (info == null || info.width() <= 0 || info.height() <= 0) {
+            return null;
+        }
+        if (variant.isSource()) {
+            return info.width() + "x" + info.height();
+        }
+        // scale=-2:H keeps the aspect ratio and rounds the width to an even number
+        long width = Math.round((double) info.width() * variant.height() / info.height() / 2) * 2;
+        return width + "x" + variant.height();
+    }
+
+    private static Consumer<FFmpegService.Progress> partProgress(Consumer<FFmpegService.Progress> listener,
+                                                               int index, int count, double durationSeconds) {
+        if (listener == null) {
+            return null;
+        }
+        // Each rendition is an equal share of the whole ladder
+        return progress -> listener.accept(new FFmpegService.Progress(
+                (index * durationSeconds + progress.outTimeSeconds()) / count,
+                progress.speed() / count));
+    }
+}
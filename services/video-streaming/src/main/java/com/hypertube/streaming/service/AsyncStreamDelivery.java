@@ -0,0 +1,307 @@
+package com.hypertube.streaming.service;
+
+import com.hypertube.streaming.config.StreamingConfig;
+import com.hypertube.streaming.util.FileRegionResource;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.core.io.Resource;
+import org.springframework.core.task.AsyncTaskExecutor;
+import org.springframework.core.task.SyncTaskExecutor;
+import org.springframework.core.task.TaskRejectedException;
+import org.springframework.core.task.support.TaskExecutorAdapter;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+import org.springframework.stereotype.Component;
+import org.springframework.web.context.request.NativeWebRequest;
+import org.springframework.web.context.request.RequestAttributes;
+import org.springframework.web.context.request.async.AsyncWebRequest;
+import org.springframework.web.context.request.async.CallableProcessingInterceptor;
+import org.springframework.web.context.request.async.DeferredResult;
+import org.springframework.web.context.request.async.DeferredResultProcessingInterceptor;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
+
+/**
+ * Asynchronous delivery of video response bodies.
+ *
+ * Writing a video body to a slow client can take minutes. Done on the request thread, a few
+ * hundred slow viewers exhaust the Tomcat worker pool and every other endpoint (including
+ * health checks) stops answering. In async mode the request thread returns at once: the response
+ * (status, headers, file region) is resolved on a resolver executor, including any wait for
+ * bytes still downloading and a possible ffprobe run, and the body is then written on the I/O
+ * executor as a {@link StreamingResponseBody}.
+ *
+ * Concurrent streams are limited by a configurable budget (streaming.delivery.max-concurrent-streams)
+ * instead of the request thread pool, and seek lookups by a budget of their own
+ * (streaming.delivery.max-concurrent-queries). Both executors are sized for their budgets; requests
+ * over budget, or finding no free thread, get 503 with Retry-After and never run on the caller.
+ *
+ * Metrics: streaming.async.active, streaming.async.rejected
+ */
+@Component
+@Slf4j
+public class AsyncStreamDelivery {
+
+    private final boolean enabled;
+    private final long asyncTimeoutMs;
+    private final BodyTimeoutInterceptor bodyTimeoutInterceptor = new BodyTimeoutInterceptor();
+    private final Semaphore budget;
+    private final Semaphore queryBudget;
+    private final ThreadPoolTaskExecutor executor;
+    private final ThreadPoolTaskExecutor resolver;
+    private final Counter rejected;
+
+    public AsyncStreamDelivery(StreamingConfig streamingConfig, MeterRegistry meterRegistry) {
+        StreamingConfig.Delivery delivery = streamingConfig.getDelivery();
+        int maxStreams = delivery.getMaxConcurrentStreams();
+        int maxQueries = delivery.getMaxConcurrentQueries();
+        int ioThreads = delivery.getIoThreads();
+
+        this.enabled = delivery.isAsyncEnabled();
+        this.asyncTimeoutMs = delivery.getAsyncTimeoutMs();
+        this.budget = new Semaphore(maxStreams);
+        this.queryBudget = new Semaphore(maxQueries);
+
+        // A permit is released just before its thread returns to the pool, so each pool keeps
+        // io-threads of headroom over its budget for threads still on their way back
+        this.executor = newExecutor("stream-io-", Math.min(maxStreams, ioThreads), maxStreams + ioThreads);
+        this.resolver = newExecutor("stream-resolve-", Math.min(maxStreams + maxQueries, ioThreads),
+                maxStreams + maxQueries + ioThreads);
+
+        this.rejected = Counter.builder("streaming.async.rejected")
+                .description("Stream and seek requests refused because their budget or executor was exhausted")
+                .register(meterRegistry);
+        meterRegistry.gauge("streaming.async.active", budget,
+                b -> maxStreams - b.availablePermits());
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Executor writing the response bodies, registered for MVC async processing. With async
+     * delivery disabled, bodies are written on the calling container thread.
+     */
+    public AsyncTaskExecutor getExecutor() {
+        return enabled ? executor : new TaskExecutorAdapter(new SyncTaskExecutor());
+    }
+
+    /**
+     * Resolves a video response and hands its body to the I/O executor.
+     *
+     * In async mode neither step runs on the request thread: resolving may wait for downloaded
+     * bytes or probe the file with ffprobe, and runs on the resolver executor; the body is then
+     * written on the I/O executor. A stream permit is taken up front and held until the body has
+     * been written or the request ends; responses without a body (404, 416, 503, ...) release it
+     * as soon as they are resolved.
+     *
+     * @param response Resolves the response
+     * @return The pending response, with a {@link StreamingResponseBody} body
+     */
+    public DeferredResult<ResponseEntity<StreamingResponseBody>> deliver(Supplier<ResponseEntity<Resource>> response) {
+        DeferredResult<ResponseEntity<StreamingResponseBody>> result = new DeferredResult<>();
+        if (!enabled) {
+            result.setResult(toStreamingBody(response.get(), () -> { }));
+            return result;
+        }
+
+        if (!budget.tryAcquire()) {
+            rejected.increment();
+            log.warn("Concurrent stream budget exhausted, refusing stream request");
+            result.setResult(serviceUnavailable());
+            return result;
+        }
+
+        AtomicBoolean held = new AtomicBoolean(true);
+        Runnable release = () -> {
+            if (held.compareAndSet(true, false)) {
+                budget.release();
+            }
+        };
+        try {
+            resolver.execute(() -> {
+                ResponseEntity<StreamingResponseBody> resolved;
+                try {
+                    resolved = toStreamingBody(response.get(), release);
+                } catch (RuntimeException e) {
+                    release.run();
+                    result.setErrorResult(e);
+                    return;
+                }
+                boolean accepted = result.setResult(resolved);
+                // No body to write, or the request timed out or was dropped meanwhile
+                if (!accepted || resolved.getBody() == null) {
+                    release.run();
+                }
+            });
+        } catch (TaskRejectedException e) {
+            release.run();
+            rejected.increment();
+            log.warn("No stream resolver thread free, refusing stream request");
+            result.setResult(serviceUnavailable());
+        }
+        return result;
+    }
+
+    /**
+     * Runs a short query (seek lookups and the like) on the resolver executor in async mode,
+     * since it may wait for an index being built from a file still downloading. Queries hold a
+     * permit of their own budget while they run; over budget they get 503.
+     *
+     * @param query Computes the response
+     * @return The pending response
+     */
+    public <T> DeferredResult<ResponseEntity<T>> resolve(Supplier<ResponseEntity<T>> query) {
+        DeferredResult<ResponseEntity<T>> result = new DeferredResult<>();
+        if (!enabled) {
+            result.setResult(query.get());
+            return result;
+        }
+
+        if (!queryBudget.tryAcquire()) {
+            rejected.increment();
+            log.warn("Concurrent query budget exhausted, refusing seek request");
+            result.setResult(serviceUnavailable());
+            return result;
+        }
+        try {
+            resolver.execute(() -> {
+                try {
+                    result.setResult(query.get());
+                } catch (RuntimeException e) {
+                    result.setErrorResult(e);
+                } finally {
+                    queryBudget.release();
+                }
+            });
+        } catch (TaskRejectedException e) {
+            queryBudget.release();
+            rejected.increment();
+            log.warn("No stream resolver thread free, refusing seek request");
+            result.setResult(serviceUnavailable());
+        }
+        return result;
+    }
+
+    /**
+     * Interceptor applying the timeout of each video body to the async request that writes it.
+     * Must be registered for both DeferredResult and Callable processing.
+     */
+    public BodyTimeoutInterceptor getBodyTimeoutInterceptor() {
+        return bodyTimeoutInterceptor;
+    }
+
+    private ResponseEntity<StreamingResponseBody> toStreamingBody(ResponseEntity<Resource> resolved,
+                                                                  Runnable onWritten) {
+        Resource resource = resolved.getBody();
+        if (resource == null) {
+            return ResponseEntity.status(resolved.getStatusCode())
+                    .headers(resolved.getHeaders())
+                    .build();
+        }
+
+        // A paced body cannot finish before its paced duration; the configured timeout is the
+        // budget on top of it, so long titles are not cut mid-body
+        long pacedMillis = resource instanceof FileRegionResource region ? region.getMinTransferMillis() : 0;
+        TimedBody body = new TimedBody(asyncTimeoutMs + pacedMillis, onWritten, out -> {
+            try (InputStream in = resource.getInputStream()) {
+                in.transferTo(out);
+            } finally {
+                onWritten.run();
+            }
+        });
+        return ResponseEntity.status(resolved.getStatusCode())
+                .headers(resolved.getHeaders())
+                .body(body);
+    }
+
+    private static <T> ResponseEntity<T> serviceUnavailable() {
+        return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE)
+                .header(HttpHeaders.RETRY_AFTER, "1")
+                .build();
+    }
+
+    private static ThreadPoolTaskExecutor newExecutor(String threadNamePrefix, int coreThreads, int maxThreads) {
+        // Deliberately not a bean: it must not become the default executor for @Async
+        ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+        executor.setThreadNamePrefix(threadNamePrefix);
+        executor.setCorePoolSize(coreThreads);
+        executor.setMaxPoolSize(maxThreads);
+        executor.setQueueCapacity(0);
+        executor.setAllowCoreThreadTimeOut(true);
+        executor.initialize();
+        return executor;
+    }
+
+    /**
+     * Video body carrying the timeout of the async request writing it, and the release of its
+     * stream permit in case the body is never written.
+     */
+    private record TimedBody(long timeoutMillis, Runnable release, StreamingResponseBody body)
+            implements StreamingResponseBody {
+
+        @Override
+        public void writeTo(OutputStream out) throws IOException {
+            body.writeTo(out);
+        }
+    }
+
+    /**
+     * Carries the timeout of a {@link TimedBody} from the resolved DeferredResult to the async
+     * processing that writes the body, which otherwise gets the default timeout. Also returns the
+     * stream permit when that processing ends without writing the body (executor full, client
+     * gone before the body started).
+     */
+    public static class BodyTimeoutInterceptor implements DeferredResultProcessingInterceptor,
+            CallableProcessingInterceptor {
+
+        private static final String TIMEOUT_ATTRIBUTE = BodyTimeoutInterceptor.class.getName() + ".timeout";
+        private static final String RELEASE_ATTRIBUTE = BodyTimeoutInterceptor.class.getName() + ".release";
+
+        @Override
+        public <T> void postProcess(NativeWebRequest request, DeferredResult<T> deferredResult,
+                                    Object concurrentResult) {
+            // Runs before the dispatch that writes the body
+            if (concurrentResult instanceof ResponseEntity<?> entity && entity.getBody() instanceof TimedBody body) {
+                request.setAttribute(TIMEOUT_ATTRIBUTE, body.timeoutMillis(), RequestAttributes.SCOPE_REQUEST);
+                request.setAttribute(RELEASE_ATTRIBUTE, body.release(), RequestAttributes.SCOPE_REQUEST);
+            }
+        }
+
+        @Override
+        public <T> void beforeConcurrentHandling(NativeWebRequest request, Callable<T> task) {
+            Object timeout = request.getAttribute(TIMEOUT_ATTRIBUTE, RequestAttributes.SCOPE_REQUEST);
+            if (timeout instanceof Long millis && request instanceof AsyncWebRequest asyncRequest) {
+                request.removeAttribute(TIMEOUT_ATTRIBUTE, RequestAttributes.SCOPE_REQUEST);
+                asyncRequest.setTimeout(millis);
+            }
+        }
+
+        @Override
+        public <T> void afterCompletion(NativeWebRequest request, Callable<T> task) {
+            // Idempotent: a body that was written has released its permit already
+            if (request.getAttribute(RELEASE_ATTRIBUTE, RequestAttributes.SCOPE_REQUEST) instanceof Runnable release) {
+                request.removeAttribute(RELEASE_ATTRIBUTE, RequestAttributes.SCOPE_REQUEST);
+                release.run();
+            }
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        resolver.shutdown();
+        executor.shutdown();
+    }
+}
@@ -8,8 +8,11 @@ import lombok.extern.slf4j.Slf4j;
 import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.util.FileSystemUtils;
 
 import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.time.LocalDateTime;
 import java.util.HashMap;
 import java.util.List;
@@ -23,6 +26,7 @@ import java.util.Map;
  * - LRU eviction when storage is full
  * - Cache statistics and monitoring
  * - Disk space management
+ * - Videos being streamed (see {@link FileHandleRegistry}) are never expired or evicted
  */
 @Service
 @RequiredArgsConstructor
@@ -32,6 +36,9 @@ public class CacheManagementService {
     private final CachedVideoRepository cachedVideoRepository;
     private final SubtitleService subtitleService;
     private final StreamingConfig streamingConfig;
+    private final StreamDescriptorCache streamDescriptorCache;
+    private final VideoBlockCache videoBlockCache;
+    private final FileHandleRegistry fileHandleRegistry;
 
     private static final long ONE_MONTH_DAYS = 30;
     private static final long CLEANUP_INTERVAL_MS = 3600000; // 1 hour
@@ -60,7 +67,14 @@ public class CacheManagementService {
             int successCount = 0;
             int failCount = 0;
 
+            int skippedCount = 0;
+
             for (CachedVideo video : expiredVideos) {
+                if (isBeingStreamed(video)) {
+                    log.info("Skipping expired video still being streamed: {}", video.getId());
+                    skippedCount++;
+                    continue;
+                }
                 try {
                     deleteVideo(video);
                     successCount++;
@@ -70,7 +84,8 @@ public class CacheManagementService {
                 }
             }
 
-            log.info("Expired video cleanup completed: {} deleted, {} failed", successCount, failCount);
+            log.info("Expired video cleanup completed: {} deleted, {} failed, {} in use",
+                    successCount, failCount, skippedCount);
 
         } catch (Exception e) {
             log.error("Error during scheduled cleanup", e);
@@ -143,6 +158,11 @@ public class CacheManagementService {
                     break;
                 }
 
+                if (isBeingStreamed(video)) {
+                    log.debug("Skipping LRU eviction of video being streamed: {}", video.getId());
+                    continue;
+                }
+
                 try {
                     log.info("Evicting LRU video: {} (last accessed: {})",
                             video.getId(),
@@ -184,6 +204,24 @@ public class CacheManagementService {
                 log.warn("Video file not found: {}", video.getFilePath());
             }
 
+            streamDescriptorCache.invalidateByPath(video.getFilePath());
+            videoBlockCache.invalidate(Path.of(video.getFilePath()));
+            fileHandleRegistry.invalidate(Path.of(video.getFilePath()));
+
+            // Delete seek preview thumbnails stored next to the video
+            try {
+                FileSystemUtils.deleteRecursively(TrickplayService.getTrickplayDirectory(video.getFilePath()));
+            } catch (Exception e) {
+                log.error("Error deleting trickplay thumbnails for video: {}", video.getId(), e);
+            }
+
+            // Delete the keyframe index stored next to the video
+            try {
+                Files.deleteIfExists(KeyframeIndexService.getIndexPath(video.getFilePath()));
+            } catch (Exception e) {
+                log.error("Error deleting keyframe index for video: {}", video.getId(), e);
+            }
+
             // Delete associated subtitles
             try {
                 subtitleService.deleteSubtitlesForVideo(video.getVideoId());
@@ -201,6 +239,13 @@ public class CacheManagementService {
         }
     }
 
+    /**
+     * Whether a cached video's file currently has (or very recently had) active stream leases.
+     */
+    private boolean isBeingStreamed(CachedVideo video) {
+        return video.getFilePath() != null && fileHandleRegistry.isInUse(Path.of(video.getFilePath()));
+    }
+
     /**
      * Gets cache statistics.
      *
@@ -268,6 +313,10 @@ public class CacheManagementService {
 
         int deleteCount = 0;
         for (CachedVideo video : expiredVideos) {
+            if (isBeingStreamed(video)) {
+                log.info("Skipping expired video still being streamed: {}", video.getId());
+                continue;
+            }
             try {
                 deleteVideo(video);
                 deleteCount++;
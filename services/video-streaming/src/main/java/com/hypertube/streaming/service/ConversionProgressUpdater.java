@@ -0,0 +1,87 @@
+package com.hypertube.streaming.service;
+
+import com.hypertube.streaming.entity.DownloadJob;
+import com.hypertube.streaming.repository.DownloadJobRepository;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+/**
+ * Turns FFmpeg progress into conversion progress and ETA on the download job.
+ *
+ * FFmpeg reports progress about twice a second per process. Reports only replace the latest
+ * value of their job in memory; a scheduled flush writes the latest value of every job with one
+ * targeted UPDATE each (streaming.conversion.progress-update-interval-ms), and only while the
+ * job is still CONVERTING, so a late flush never overwrites a completed or failed job.
+ */
+@Service
+@RequiredArgsConstructor
+@Slf4j
+public class ConversionProgressUpdater {
+
+    private final DownloadJobRepository downloadJobRepository;
+
+    private record Update(int progress, Integer etaSeconds) {
+    }
+
+    private final Map<UUID, Update> pending = new ConcurrentHashMap<>();
+
+    /**
+     * Creates a listener for the FFmpeg runs of a job.
+     *
+     * @param jobId The download job ID
+     * @param durationSeconds Duration of the input from FFprobe (progress is unknown if not positive)
+     * @return The listener, to be passed to {@link FFmpegService}
+     */
+    public Consumer<FFmpegService.Progress> listener(UUID jobId, double durationSeconds) {
+        return progress -> report(jobId, durationSeconds, progress.outTimeSeconds(), progress.speed());
+    }
+
+    /**
+     * Records the progress of a job's conversion.
+     *
+     * @param jobId The download job ID
+     * @param durationSeconds Duration of the input in seconds
+     * @param doneSeconds Media seconds converted so far
+     * @param speed Media seconds converted per wall-clock second (0 if unknown)
+     */
+    public void report(UUID jobId, double durationSeconds, double doneSeconds, double speed) {
+        if (durationSeconds <= 0) {
+            return;
+        }
+        double remaining = Math.max(0, durationSeconds - doneSeconds);
+        // 99 at most: 100 is set together with COMPLETED once the output is verified
+        int percent = (int) Math.min(99, Math.max(0, doneSeconds * 100 / durationSeconds));
+        Integer eta = speed > 0 ? (int) Math.ceil(remaining / speed) : null;
+        pending.put(jobId, new Update(percent, eta));
+    }
+
+    /**
+     * Drops an unwritten update, e.g. when the conversion ended.
+     */
+    public void discard(UUID jobId) {
+        pending.remove(jobId);
+    }
+
+    @Scheduled(fixedDelayString = "${streaming.conversion.progress-update-interval-ms:2000}")
+    public void flush() {
+        for (UUID jobId : pending.keySet()) {
+            Update update = pending.remove(jobId);
+            if (update == null) {
+                continue;
+            }
+            try {
+                downloadJobRepository.updateProgress(jobId, DownloadJob.DownloadStatus.CONVERTING,
+                        update.progress(), update.etaSeconds());
+            } catch (Exception e) {
+                log.warn("Failed to update conversion progress of job {}: {}", jobId, e.getMessage());
+            }
+        }
+    }
+}
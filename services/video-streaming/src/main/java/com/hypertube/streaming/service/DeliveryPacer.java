@@ -0,0 +1,221 @@
+package com.hypertube.streaming.service;
+
+import com.hypertube.streaming.config.StreamingConfig;
+import com.hypertube.streaming.util.PositionalReader;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bitrate-aware pacing of video response bodies.
+ *
+ * Browsers typically request "bytes=N-", read as fast as the network allows and abandon the
+ * session a few seconds later (seek, tab closed, next episode). Every byte sent past what the
+ * player actually consumed costs a disk read and egress for nothing.
+ *
+ * Features:
+ * - Initial burst of a few seconds of playback so startup and seeks stay instant
+ * - After the burst, delivery is paced at a configurable multiple of the video bitrate
+ * - Per-node aggregate egress limit shared by all streams (paced or not)
+ * - Streams of unknown bitrate are only subject to the node limit
+ *
+ * Metrics: streaming.pacing.abandoned.sessions, streaming.pacing.saved.bytes (bytes of paced
+ * responses never sent because the client went away), streaming.egress.bytes
+ */
+@Component
+@Slf4j
+public class DeliveryPacer {
+
+    private static final long MIN_PACING_QUANTUM = 64 * 1024;
+
+    private final StreamingConfig.Pacing config;
+    private final double nodeBytesPerSecond;
+
+    // Guarded by this: theoretical arrival time of the next byte at the node limit
+    private long nodeNextFreeNanos;
+
+    private final Counter abandonedSessions;
+    private final Counter savedBytes;
+    private final Counter egressBytes;
+
+    public DeliveryPacer(StreamingConfig streamingConfig, MeterRegistry meterRegistry) {
+        this.config = streamingConfig.getPacing();
+        this.nodeBytesPerSecond = config.getNodeEgressLimitMbps() * 1_000_000.0 / 8;
+
+        this.abandonedSessions = Counter.builder("streaming.pacing.abandoned.sessions")
+                .description("Paced responses closed by the client before completion")
+                .register(meterRegistry);
+        this.savedBytes = Counter.builder("streaming.pacing.saved.bytes")
+                .baseUnit("bytes")
+                .description("Bytes of abandoned paced responses that were never read or sent")
+                .register(meterRegistry);
+        this.egressBytes = Counter.builder("streaming.egress.bytes")
+                .baseUnit("bytes")
+                .description("Video bytes handed to clients")
+                .register(meterRegistry);
+    }
+
+    public boolean isEnabled() {
+        return config.isEnabled();
+    }
+
+    /**
+     * Wraps a reader source so that one response body is paced.
+     *
+     * @param source The underlying source
+     * @param bitrateKbps Playback bitrate of the video, or 0 if unknown
+     * @param length Number of bytes the response will send
+     * @return The paced source (or the source itself if no limit applies)
+     */
+    public PositionalReader.Source pace(PositionalReader.Source source, int bitrateKbps, long length) {
+        double sessionBytesPerSecond = config.isEnabled() && bitrateKbps > 0
+                ? bitrateKbps * 1000.0 / 8 * config.getRateMultiplier()
+                : 0;
+        if (sessionBytesPerSecond <= 0 && nodeBytesPerSecond <= 0) {
+            return source;
+        }
+
+        long burstBytes = Math.max(config.getMinBurstBytes(),
+                (long) (bitrateKbps * 1000.0 / 8 * config.getInitialBurstSeconds()));
+        return new PositionalReader.Source() {
+            @Override
+            public PositionalReader open() throws IOException {
+                return new PacedReader(source.open(), sessionBytesPerSecond, burstBytes, length);
+            }
+
+            @Override
+            public long minReadMillis(long count) {
+                // The node limit is shared with other streams and gives no per-response bound
+                if (sessionBytesPerSecond <= 0 || count <= burstBytes) {
+                    return 0;
+                }
+                return (long) ((count - burstBytes) * 1000.0 / sessionBytesPerSecond);
+            }
+        };
+    }
+
+    /**
+     * Reserves bytes against the node egress limit.
+     *
+     * @return Nanoseconds to wait before sending them
+     */
+    private synchronized long reserveNodeEgress(long bytes) {
+        long now = System.nanoTime();
+        if (nodeNextFreeNanos - now < 0) {
+            nodeNextFreeNanos = now;
+        }
+        long wait = nodeNextFreeNanos - now;
+        nodeNextFreeNanos += (long) (bytes * 1_000_000_000.0 / nodeBytesPerSecond);
+        return wait;
+    }
+
+    private static void sleepNanos(long nanos) throws InterruptedIOException {
+        if (nanos <= 0) {
+            return;
+        }
+        try {
+            TimeUnit.NANOSECONDS.sleep(nanos);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while pacing video delivery");
+        }
+    }
+
+    /**
+     * Reader enforcing the session pace and the node limit before each read.
+     */
+    private class PacedReader implements PositionalReader {
+
+        private final PositionalReader delegate;
+        private final double bytesPerSecond;
+        private final long burstBytes;
+        private final long length;
+        private final long quantum;
+
+        private long startNanos;
+        private long sent;
+        private boolean delayed;
+
+        private PacedReader(PositionalReader delegate, double bytesPerSecond, long burstBytes, long length) {
+            this.delegate = delegate;
+            this.bytesPerSecond = bytesPerSecond;
+            this.burstBytes = burstBytes;
+            this.length = length;
+            this.quantum = Math.max(MIN_PACING_QUANTUM, (long) (bytesPerSecond / 4));
+        }
+
+        /**
+         * Waits until up to wanted bytes may be sent and returns how many.
+         */
+        private long admit(long wanted) throws InterruptedIOException {
+            long now = System.nanoTime();
+            if (startNanos == 0) {
+                startNanos = now;
+            }
+
+            long allowed = wanted;
+            if (bytesPerSecond > 0 && sent + wanted > burstBytes) {
+                // Past the burst: send in small quanta so the pace stays smooth
+                allowed = Math.max(1, Math.min(wanted, Math.max(burstBytes - sent, quantum)));
+                long dueNanos = startNanos + (long) ((sent + allowed - burstBytes) * 1_000_000_000.0 / bytesPerSecond);
+                if (dueNanos - now > 0) {
+                    delayed = true;
+                    sleepNanos(dueNanos - now);
+                }
+            }
+            if (nodeBytesPerSecond > 0) {
+                sleepNanos(reserveNodeEgress(allowed));
+            }
+            return allowed;
+        }
+
+        @Override
+        public int read(ByteBuffer dst, long position) throws IOException {
+            int wanted = dst.remaining();
+            int allowed = (int) admit(wanted);
+            int read;
+            if (allowed < wanted) {
+                ByteBuffer slice = dst.slice();
+                slice.limit(allowed);
+                read = delegate.read(slice, position);
+                if (read > 0) {
+                    dst.position(dst.position() + read);
+                }
+            } else {
+                read = delegate.read(dst, position);
+            }
+            if (read > 0) {
+                sent += read;
+                egressBytes.increment(read);
+            }
+            return read;
+        }
+
+        @Override
+        public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+            long transferred = delegate.transferTo(position, admit(count), target);
+            if (transferred > 0) {
+                sent += transferred;
+                egressBytes.increment(transferred);
+            }
+            return transferred;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (delayed && sent < length) {
+                abandonedSessions.increment();
+                savedBytes.increment(length - sent);
+                log.debug("Paced response abandoned after {} of {} bytes", sent, length);
+            }
+            delegate.close();
+        }
+    }
+}
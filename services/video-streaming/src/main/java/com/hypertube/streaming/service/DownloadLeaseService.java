@@ -0,0 +1,117 @@
+package com.hypertube.streaming.service;
+
+import com.hypertube.streaming.config.StreamingConfig;
+import com.hypertube.streaming.entity.DownloadJob;
+import com.hypertube.streaming.repository.DownloadJobRepository;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * Ownership of running downloads when several instances share the job table (replicas, or old
+ * and new nodes during a rolling deploy).
+ *
+ * Features:
+ * - Every download is leased to the instance running it (streaming.torrent.instance-id)
+ * - The owner renews the leases of its running downloads in the background
+ * - Claims are conditional updates, so exactly one instance wins a job
+ * - After a restart an instance resumes its own downloads at once; downloads of an instance
+ *   that stopped renewing are taken over once their lease has expired
+ */
+@Service
+@Slf4j
+public class DownloadLeaseService {
+
+    private static final long RENEW_INTERVAL_MS = 30000;
+
+    private final DownloadJobRepository downloadJobRepository;
+    private final TorrentService torrentService;
+    private final String instanceId;
+    private final long leaseSeconds;
+
+    public DownloadLeaseService(StreamingConfig streamingConfig,
+                                DownloadJobRepository downloadJobRepository,
+                                TorrentService torrentService) {
+        this.downloadJobRepository = downloadJobRepository;
+        this.torrentService = torrentService;
+        String configured = streamingConfig.getTorrent().getInstanceId();
+        this.instanceId = configured == null || configured.isBlank() ? hostName() : configured;
+        // A lease must survive a few missed renewals
+        this.leaseSeconds = Math.max(streamingConfig.getTorrent().getLeaseSeconds(), 3 * RENEW_INTERVAL_MS / 1000);
+        log.info("Download leases held as instance '{}' ({}s)", instanceId, leaseSeconds);
+    }
+
+    public String getInstanceId() {
+        return instanceId;
+    }
+
+    /**
+     * Takes a job received from the download queue.
+     *
+     * @return false if the job is no longer pending (e.g. a redelivered message for a job that
+     *         started or finished already) or another instance holds a live lease on it
+     */
+    public boolean claimQueued(UUID jobId) {
+        LocalDateTime now = LocalDateTime.now();
+        return downloadJobRepository.claimQueued(jobId, DownloadJob.DownloadStatus.PENDING, instanceId,
+                now, now.plusSeconds(leaseSeconds)) == 1;
+    }
+
+    /**
+     * Finds the downloads this instance may resume: its own and those whose lease expired.
+     * Each must still be taken with {@link #claimInterrupted} before it is touched.
+     */
+    public List<DownloadJob> findInterrupted() {
+        LocalDateTime now = LocalDateTime.now();
+        return downloadJobRepository.findClaimable(DownloadJob.DownloadStatus.DOWNLOADING, instanceId, now,
+                now.minusSeconds(leaseSeconds));
+    }
+
+    /**
+     * Takes an interrupted download, unless another instance got it first or still renews it.
+     */
+    public boolean claimInterrupted(UUID jobId) {
+        LocalDateTime now = LocalDateTime.now();
+        // Jobs started before leases existed count as abandoned once they stop progressing
+        return downloadJobRepository.claimInterrupted(jobId, DownloadJob.DownloadStatus.DOWNLOADING, instanceId,
+                now, now.plusSeconds(leaseSeconds), now.minusSeconds(leaseSeconds)) == 1;
+    }
+
+    /**
+     * Renews the leases of the downloads running on this instance.
+     */
+    @Scheduled(fixedDelay = RENEW_INTERVAL_MS)
+    public void renewLeases() {
+        Set<UUID> running = torrentService.getRunningJobIds();
+        if (running.isEmpty()) {
+            return;
+        }
+        try {
+            int renewed = downloadJobRepository.renewLeases(running, instanceId,
+                    LocalDateTime.now().plusSeconds(leaseSeconds));
+            if (renewed < running.size()) {
+                log.warn("Renewed {} of {} download leases; the others are no longer owned by this instance",
+                        renewed, running.size());
+            }
+        } catch (Exception e) {
+            log.error("Error renewing download leases", e);
+        }
+    }
+
+    private static String hostName() {
+        try {
+            return InetAddress.getLocalHost().getHostName();
+        } catch (UnknownHostException e) {
+            String fallback = UUID.randomUUID().toString();
+            log.warn("Cannot determine the host name, downloads are owned by {} until restart", fallback);
+            return fallback;
+        }
+    }
+}
@@ -1,6 +1,9 @@
 package com.hypertube.streaming.service;
 
 import com.hypertube.streaming.config.StreamingConfig;
+import com.hypertube.streaming.entity.DownloadJob.ConversionStrategy;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.stereotype.Service;
@@ -9,16 +12,26 @@ import java.io.BufferedReader;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Comparator;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
+import java.util.UUID;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.regex.Pattern;
 
 /**
  * Service for video format conversion using FFmpeg.
  *
  * Converts non-browser-compatible formats (MKV, AVI, etc.) to MP4
- * for seamless playback in HTML5 video players.
+ * for seamless playback in HTML5 video players, or packages them as
+ * HLS (playlist + short segments) when the output mode is "hls".
  */
 @Service
 @RequiredArgsConstructor
@@ -26,6 +39,31 @@ import java.util.concurrent.TimeUnit;
 public class FFmpegService {
 
     private final StreamingConfig streamingConfig;
+    private final MeterRegistry meterRegistry;
+
+    public static final String HLS_PLAYLIST_NAME = "playlist.m3u8";
+    public static final String HLS_INIT_SEGMENT_NAME = "init.mp4";
+
+    // A line of -progress output, e.g. "out_time_us=81234000" or "speed=2.31x"
+    private static final Pattern PROGRESS_LINE = Pattern.compile("[a-z_0-9]+=\\S*");
+
+    /**
+     * Progress of an FFmpeg run.
+     *
+     * @param outTimeSeconds Media time written so far
+     * @param speed Media seconds encoded per wall-clock second (0 if not known yet)
+     */
+    public record Progress(double outTimeSeconds, double speed) {
+    }
+
+    /**
+     * A keyframe of the first video stream.
+     *
+     * @param timeSeconds Presentation time relative to the start of the file
+     * @param offset Byte position of the keyframe packet, or -1 if the demuxer does not know it
+     */
+    public record Keyframe(double timeSeconds, long offset) {
+    }
 
     // Browser-compatible video formats
     private static final Set<String> BROWSER_COMPATIBLE_FORMATS = new HashSet<>(Arrays.asList(
@@ -75,9 +113,14 @@ public class FFmpegService {
      *
      * @param inputPath The input video file path
      * @param outputPath The output MP4 file path
+     * @param strategy Which streams are copied and which are encoded
+     * @param preset The libx264 preset
+     * @param threads Encoder threads, or 0 to let FFmpeg decide
+     * @param progressListener Receives progress updates (may be null)
      * @return true if conversion succeeded, false otherwise
      */
-    public boolean convertToMp4(String inputPath, String outputPath) {
+    public boolean convertToMp4(String inputPath, String outputPath, ConversionStrategy strategy,
+                                String preset, int threads, Consumer<Progress> progressListener) {
         try {
             File inputFile = new File(inputPath);
             if (!inputFile.exists()) {
@@ -97,85 +140,335 @@ public class FFmpegService {
                 outputDir.mkdirs();
             }
 
-            log.info("Starting FFmpeg conversion: {} -> {}", inputPath, outputPath);
+            log.info("Starting FFmpeg conversion ({}): {} -> {}", strategy, inputPath, outputPath);
 
             // Build FFmpeg command
             // -i: input file
-            // -c:v libx264: use H.264 video codec
-            // -preset medium: balance between speed and quality
-            // -crf 23: constant rate factor (quality: 0=lossless, 51=worst, 23=default)
-            // -c:a aac: use AAC audio codec
-            // -b:a 128k: audio bitrate
+            // -map: first video and first audio stream (subtitle tracks cannot be copied into MP4)
+            // codec arguments: see codecArguments
             // -movflags +faststart: optimize for web streaming (move metadata to beginning)
             // -y: overwrite output file without asking
-            ProcessBuilder processBuilder = new ProcessBuilder(
-                    "ffmpeg",
+            List<String> command = new ArrayList<>(List.of(
+                    streamingConfig.getConversion().getFfmpegPath(),
                     "-i", inputPath,
-                    "-c:v", "libx264",
-                    "-preset", "medium",
-                    "-crf", "23",
-                    "-c:a", "aac",
-                    "-b:a", "128k",
+                    "-map", "0:v:0",
+                    "-map", "0:a:0?"
+            ));
+            command.addAll(codecArguments(strategy, preset, threads));
+            command.addAll(List.of(
                     "-movflags", "+faststart",
                     "-y",
                     outputPath
-            );
+            ));
 
-            processBuilder.redirectErrorStream(true);
-            Process process = processBuilder.start();
+            if (!runFfmpeg(command, progressListener)) {
+                return false;
+            }
 
-            // Read and log FFmpeg output
-            StringBuilder output = new StringBuilder();
-            try (BufferedReader reader = new BufferedReader(
-                    new InputStreamReader(process.getInputStream()))) {
-                String line;
-                while ((line = reader.readLine()) != null) {
-                    output.append(line).append("\n");
-                    // Log progress lines
-                    if (line.contains("frame=") || line.contains("time=")) {
-                        log.debug("FFmpeg: {}", line.trim());
-                    }
-                }
+            log.info("FFmpeg conversion completed successfully: {}", outputPath);
+
+            // Verify output file exists and has content
+            if (outputFile.exists() && outputFile.length() > 0) {
+                log.info("Output file size: {} bytes", outputFile.length());
+                return true;
+            } else {
+                log.error("Output file is missing or empty: {}", outputPath);
+                return false;
             }
 
-            // Wait for conversion to complete (max 1 hour)
-            boolean finished = process.waitFor(1, TimeUnit.HOURS);
+        } catch (IOException e) {
+            log.error("IO error during FFmpeg conversion: {}", e.getMessage(), e);
+            return false;
+        } catch (InterruptedException e) {
+            log.error("FFmpeg conversion was interrupted: {}", e.getMessage(), e);
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
 
-            if (!finished) {
-                log.error("FFmpeg conversion timed out after 1 hour");
-                process.destroyForcibly();
+    /**
+     * Packages a video as HLS: short fMP4 (or MPEG-TS) segments plus an .m3u8 playlist.
+     *
+     * The playlist is an EVENT playlist that FFmpeg rewrites after every finished segment, so
+     * players can start while the conversion is still running; #EXT-X-ENDLIST is appended when
+     * it completes. Segments and playlist are written to temporary files and renamed, so a
+     * reader never sees a partial segment.
+     *
+     * @param inputPath The input video file path
+     * @param outputDirectory The directory receiving the playlist and segments
+     * @param strategy Which streams are copied and which are encoded
+     * @param preset The libx264 preset
+     * @param threads Encoder threads, or 0 to let FFmpeg decide
+     * @param progressListener Receives progress updates (may be null)
+     * @return true if packaging succeeded, false otherwise
+     */
+    public boolean convertToHls(String inputPath, Path outputDirectory, ConversionStrategy strategy,
+                                String preset, int threads, Consumer<Progress> progressListener) {
+        return convertToHls(inputPath, outputDirectory, strategy, preset, threads, 0, 0, progressListener);
+    }
+
+    /**
+     * Packages a video as one HLS rendition, optionally scaled down and bitrate-capped (a rung of
+     * an adaptive bitrate ladder, see {@link AbrLadderService}).
+     *
+     * @param inputPath The input video file path
+     * @param outputDirectory The directory receiving the playlist and segments
+     * @param strategy Which streams are copied and which are encoded (FULL_TRANSCODE when scaling)
+     * @param preset The libx264 preset
+     * @param threads Encoder threads, or 0 to let FFmpeg decide
+     * @param height Output height in pixels, or 0 to keep the source resolution
+     * @param maxrateKbps Video bitrate cap in kbps, or 0 for quality-based rate control only
+     * @param progressListener Receives progress updates (may be null)
+     * @return true if packaging succeeded, false otherwise
+     */
+    public boolean convertToHls(String inputPath, Path outputDirectory, ConversionStrategy strategy,
+                                String preset, int threads, int height, int maxrateKbps,
+                                Consumer<Progress> progressListener) {
+        try {
+            if (!new File(inputPath).exists()) {
+                log.error("Input file not found: {}", inputPath);
                 return false;
             }
 
-            int exitCode = process.exitValue();
+            Files.createDirectories(outputDirectory);
 
-            if (exitCode == 0) {
-                log.info("FFmpeg conversion completed successfully: {}", outputPath);
+            Path playlist = outputDirectory.resolve(HLS_PLAYLIST_NAME);
 
-                // Verify output file exists and has content
-                if (outputFile.exists() && outputFile.length() > 0) {
-                    log.info("Output file size: {} bytes", outputFile.length());
-                    return true;
-                } else {
-                    log.error("Output file is missing or empty: {}", outputPath);
-                    return false;
-                }
-            } else {
-                log.error("FFmpeg conversion failed with exit code: {}", exitCode);
-                log.error("FFmpeg output:\n{}", output.toString());
+            log.info("Starting HLS packaging ({}): {} -> {}", strategy, inputPath, playlist);
+
+            List<String> command = buildHlsCommand(inputPath, outputDirectory, preset, threads, strategy,
+                    height, maxrateKbps);
+
+            if (!runFfmpeg(command, progressListener)) {
+                return false;
+            }
+
+            if (!Files.isRegularFile(playlist)) {
+                log.error("HLS playlist is missing: {}", playlist);
                 return false;
             }
 
+            log.info("HLS packaging completed successfully: {}", playlist);
+            return true;
+
         } catch (IOException e) {
-            log.error("IO error during FFmpeg conversion: {}", e.getMessage(), e);
+            log.error("IO error during HLS packaging: {}", e.getMessage(), e);
             return false;
         } catch (InterruptedException e) {
-            log.error("FFmpeg conversion was interrupted: {}", e.getMessage(), e);
+            log.error("HLS packaging was interrupted: {}", e.getMessage(), e);
             Thread.currentThread().interrupt();
             return false;
         }
     }
 
+    /**
+     * Builds the FFmpeg command line packaging an input as HLS into a directory.
+     *
+     * @param input The input file path, or "pipe:0" to read from standard input
+     * @param outputDirectory The directory receiving the playlist and segments
+     * @param preset The libx264 preset (e.g. "medium", or "veryfast" for live transcoding)
+     * @param threads Encoder threads, or 0 to let FFmpeg decide
+     * @param strategy Which streams are copied and which are encoded
+     * @return The command line
+     */
+    public List<String> buildHlsCommand(String input, Path outputDirectory, String preset, int threads,
+                                        ConversionStrategy strategy) {
+        return buildHlsCommand(input, outputDirectory, preset, threads, strategy, 0, 0);
+    }
+
+    /**
+     * Builds the FFmpeg command line packaging an input as one HLS rendition.
+     *
+     * -vf scale=-2:H: scale to height H, width follows the aspect ratio (rounded to even)
+     * -maxrate / -bufsize: capped CRF, so a rung never exceeds its advertised bandwidth by much
+     *
+     * Encoded renditions all get keyframes at the same segment boundaries, so the segments of
+     * different rungs are aligned and players can switch between them at any segment.
+     *
+     * @param height Output height in pixels, or 0 to keep the source resolution
+     * @param maxrateKbps Video bitrate cap in kbps, or 0 for none
+     */
+    public List<String> buildHlsCommand(String input, Path outputDirectory, String preset, int threads,
+                                        ConversionStrategy strategy, int height, int maxrateKbps) {
+        StreamingConfig.Conversion conversion = streamingConfig.getConversion();
+        boolean fmp4 = !"mpegts".equalsIgnoreCase(conversion.getHlsSegmentType());
+        int segmentSeconds = conversion.getHlsSegmentSeconds();
+
+        List<String> command = new ArrayList<>(List.of(
+                conversion.getFfmpegPath(),
+                "-i", input,
+                "-map", "0:v:0",
+                "-map", "0:a:0?"
+        ));
+        command.addAll(codecArguments(strategy, preset, threads));
+        if (strategy == ConversionStrategy.FULL_TRANSCODE && height > 0) {
+            command.addAll(List.of("-vf", "scale=-2:" + height));
+        }
+        if (strategy == ConversionStrategy.FULL_TRANSCODE && maxrateKbps > 0) {
+            command.addAll(List.of("-maxrate", maxrateKbps + "k", "-bufsize", (2 * maxrateKbps) + "k"));
+        }
+        if (strategy == ConversionStrategy.FULL_TRANSCODE) {
+            // Keyframe at every segment boundary, so segments have equal length. Copied video
+            // keeps its own keyframes and segments are cut at the first one after hls_time.
+            command.addAll(List.of("-force_key_frames", "expr:gte(t,n_forced*" + segmentSeconds + ")"));
+        }
+        // -hls_playlist_type event: playlist only grows, and gets #EXT-X-ENDLIST at the end
+        // -hls_flags temp_file: segments and playlist become visible only once complete
+        command.addAll(List.of(
+                "-f", "hls",
+                "-hls_time", String.valueOf(segmentSeconds),
+                "-hls_playlist_type", "event",
+                "-hls_flags", "independent_segments+temp_file"
+        ));
+        if (fmp4) {
+            command.addAll(List.of(
+                    "-hls_segment_type", "fmp4",
+                    "-hls_fmp4_init_filename", HLS_INIT_SEGMENT_NAME,
+                    "-hls_segment_filename", outputDirectory.resolve("segment_%05d.m4s").toString()));
+        } else {
+            command.addAll(List.of(
+                    "-hls_segment_type", "mpegts",
+                    "-hls_segment_filename", outputDirectory.resolve("segment_%05d.ts").toString()));
+        }
+        command.addAll(List.of("-y", outputDirectory.resolve(HLS_PLAYLIST_NAME).toString()));
+        return command;
+    }
+
+    /**
+     * Codec arguments for a conversion strategy.
+     *
+     * -c:v libx264 -preset P -crf 23: H.264 video (crf quality: 0=lossless, 51=worst, 23=default)
+     * -c:a aac -b:a 128k -ac 2: stereo AAC audio
+     * -threads N: encoder threads granted by the {@link TranscodeScheduler}
+     * copy: stream copied without decoding
+     */
+    private List<String> codecArguments(ConversionStrategy strategy, String preset, int threads) {
+        List<String> video = new ArrayList<>();
+        if (strategy == ConversionStrategy.FULL_TRANSCODE) {
+            video.addAll(h264Arguments(preset));
+            if (threads > 0) {
+                video.addAll(List.of("-threads", String.valueOf(threads)));
+            }
+        } else {
+            video.addAll(List.of("-c:v", "copy"));
+        }
+        List<String> audio = strategy == ConversionStrategy.REMUX
+                ? List.of("-c:a", "copy")
+                : aacArguments();
+
+        List<String> arguments = new ArrayList<>(video);
+        arguments.addAll(audio);
+        return arguments;
+    }
+
+    List<String> h264Arguments(String preset) {
+        return List.of("-c:v", "libx264", "-preset", preset, "-crf", "23");
+    }
+
+    List<String> aacArguments() {
+        return List.of("-c:a", "aac", "-b:a", "128k", "-ac", "2");
+    }
+
+    /**
+     * Runs an FFmpeg command to completion, logging its progress.
+     *
+     * @param command The command line
+     * @param progressListener Receives progress updates (may be null)
+     * @return true if FFmpeg exited with status 0 within the time limit
+     */
+    private boolean runFfmpeg(List<String> command, Consumer<Progress> progressListener)
+            throws IOException, InterruptedException {
+        return runFfmpeg(command, 60, progressListener);
+    }
+
+    /**
+     * Runs an FFmpeg command to completion, reporting its progress.
+     *
+     * FFmpeg is started with -progress pipe:1, which writes blocks of key=value lines
+     * (out_time_us, fps, speed, ..., progress=continue|end) about twice a second; each
+     * block is handed to the listener. Other output is kept for the error log.
+     *
+     * @param command The command line
+     * @param timeoutMinutes Time limit for the whole run
+     * @param progressListener Receives progress updates (may be null)
+     * @return true if FFmpeg exited with status 0 within the time limit
+     */
+    boolean runFfmpeg(List<String> command, long timeoutMinutes, Consumer<Progress> progressListener)
+            throws IOException, InterruptedException {
+        // Global options go first: machine-readable progress on stdout, no stats lines on stderr.
+        // The command may be prefixed (e.g. by "nice"), so they go right after the executable.
+        List<String> commandWithProgress = new ArrayList<>(command);
+        int executable = Math.max(0, command.indexOf(streamingConfig.getConversion().getFfmpegPath()));
+        commandWithProgress.addAll(executable + 1, List.of("-progress", "pipe:1", "-nostats"));
+
+        ProcessBuilder processBuilder = new ProcessBuilder(commandWithProgress);
+        processBuilder.redirectErrorStream(true);
+        Process process = processBuilder.start();
+
+        // Read FFmpeg output
+        StringBuilder output = new StringBuilder();
+        double outTimeSeconds = 0;
+        double speed = 0;
+        double fps = -1;
+        try (BufferedReader reader = new BufferedReader(
+                new InputStreamReader(process.getInputStream()))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!PROGRESS_LINE.matcher(line).matches()) {
+                    output.append(line).append("\n");
+                    continue;
+                }
+
+                int separator = line.indexOf('=');
+                String key = line.substring(0, separator);
+                String value = line.substring(separator + 1);
+                switch (key) {
+                    // out_time_ms is microseconds as well (long-standing FFmpeg naming bug)
+                    case "out_time_us", "out_time_ms" ->
+                            outTimeSeconds = Math.max(outTimeSeconds, parseLongOrDefault(value, 0) / 1_000_000.0);
+                    case "speed" -> speed = parseDoubleOrDefault(value.replace("x", ""), 0);
+                    case "fps" -> fps = parseDoubleOrDefault(value, fps);
+                    case "progress" -> {
+                        log.debug("FFmpeg: out_time={}s speed={}x fps={}", outTimeSeconds, speed, fps);
+                        if (progressListener != null) {
+                            progressListener.accept(new Progress(outTimeSeconds, speed));
+                        }
+                    }
+                    default -> {
+                    }
+                }
+            }
+        }
+
+        // Wait for conversion to complete
+        boolean finished = process.waitFor(timeoutMinutes, TimeUnit.MINUTES);
+
+        if (!finished) {
+            log.error("FFmpeg conversion timed out after {} minutes", timeoutMinutes);
+            process.destroyForcibly();
+            return false;
+        }
+
+        int exitCode = process.exitValue();
+        if (exitCode != 0) {
+            log.error("FFmpeg conversion failed with exit code: {}", exitCode);
+            log.error("FFmpeg output:\n{}", output.toString());
+            return false;
+        }
+
+        // The last progress block carries the average frame rate of the whole run
+        if (fps > 0) {
+            int codecIndex = command.indexOf("-c:v");
+            String encoder = codecIndex >= 0 && codecIndex + 1 < command.size() ? command.get(codecIndex + 1) : "none";
+            DistributionSummary.builder("streaming.transcode.encode.fps")
+                    .description("Average frames per second of finished FFmpeg runs")
+                    .tag("encoder", encoder)
+                    .register(meterRegistry)
+                    .record(fps);
+        }
+        return true;
+    }
+
     /**
      * Gets the duration of a video file in seconds using FFprobe.
      *
@@ -185,7 +478,7 @@ public class FFmpegService {
     public long getVideoDuration(String filePath) {
         try {
             ProcessBuilder processBuilder = new ProcessBuilder(
-                    "ffprobe",
+                    streamingConfig.getConversion().getFfprobePath(),
                     "-v", "error",
                     "-show_entries", "format=duration",
                     "-of", "default=noprint_wrappers=1:nokey=1",
@@ -218,6 +511,157 @@ public class FFmpegService {
         return -1;
     }
 
+    /**
+     * Lists the keyframe timestamps of the first video stream using FFprobe.
+     *
+     * Times are relative to the start of the file (container start_time subtracted), which is
+     * what FFmpeg's input -ss option expects.
+     *
+     * @param filePath The path to the video file
+     * @return Keyframe times in seconds, ascending; empty if unable to determine
+     */
+    public List<Double> getKeyframeTimes(String filePath) {
+        return getKeyframes(filePath).stream()
+                .map(Keyframe::timeSeconds)
+                .toList();
+    }
+
+    /**
+     * Lists the keyframes of the first video stream with their byte positions using FFprobe.
+     *
+     * Reads packet flags only, so nothing is decoded and a feature film is indexed in seconds.
+     * The input may be any FFmpeg URL, e.g. "subfile,,start,0,end,N,,:path" to index only the
+     * first N bytes of a file that is still being downloaded.
+     *
+     * @param input The path (or FFmpeg URL) of the video file
+     * @return Keyframes in presentation order; empty if unable to determine
+     */
+    public List<Keyframe> getKeyframes(String input) {
+        List<Keyframe> keyframes = new ArrayList<>();
+        try {
+            // -of csv: "packet,12.512000,1048576,K_" per packet and "format,1.400000" for the start time
+            ProcessBuilder processBuilder = new ProcessBuilder(
+                    streamingConfig.getConversion().getFfprobePath(),
+                    "-v", "error",
+                    "-select_streams", "v:0",
+                    "-show_entries", "packet=pts_time,pos,flags:format=start_time",
+                    "-of", "csv",
+                    input
+            );
+
+            processBuilder.redirectError(ProcessBuilder.Redirect.DISCARD);
+            Process process = processBuilder.start();
+
+            double startTime = 0;
+            try (BufferedReader reader = new BufferedReader(
+                    new InputStreamReader(process.getInputStream()))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    String[] fields = line.split(",");
+                    if (fields.length >= 4 && "packet".equals(fields[0]) && fields[3].indexOf('K') >= 0) {
+                        double time = parseDoubleOrDefault(fields[1], -1);
+                        if (time >= 0) {
+                            keyframes.add(new Keyframe(time, parseLongOrDefault(fields[2], -1)));
+                        }
+                    } else if (fields.length >= 2 && "format".equals(fields[0])) {
+                        startTime = Math.max(0, parseDoubleOrDefault(fields[1], 0));
+                    }
+                }
+            }
+
+            boolean finished = process.waitFor(5, TimeUnit.MINUTES);
+
+            if (finished && process.exitValue() == 0) {
+                // Packets are in decode order; sort to be safe with unusual muxers
+                double offset = startTime;
+                return keyframes.stream()
+                        .map(keyframe -> new Keyframe(Math.max(0, keyframe.timeSeconds() - offset), keyframe.offset()))
+                        .sorted(Comparator.comparingDouble(Keyframe::timeSeconds))
+                        .toList();
+            }
+
+            if (!finished) {
+                process.destroyForcibly();
+            }
+
+        } catch (Exception e) {
+            log.warn("Failed to list keyframes for {}: {}", input, e.getMessage());
+        }
+
+        return List.of();
+    }
+
+    /**
+     * Estimates the overall bitrate of a video file using FFprobe.
+     *
+     * Uses the container bit_rate when present, otherwise derives it from the total size and
+     * duration. Works on partially downloaded files as long as the container header is on disk.
+     *
+     * @param filePath The path to the video file
+     * @param totalSize The complete file size in bytes
+     * @return The bitrate in kbps, or 0 if unable to determine
+     */
+    public int estimateBitrateKbps(String filePath, long totalSize) {
+        try {
+            ProcessBuilder processBuilder = new ProcessBuilder(
+                    streamingConfig.getConversion().getFfprobePath(),
+                    "-v", "error",
+                    "-show_entries", "format=bit_rate,duration",
+                    "-of", "default=noprint_wrappers=1",
+                    filePath
+            );
+
+            processBuilder.redirectErrorStream(true);
+            Process process = processBuilder.start();
+
+            long bitRate = -1;
+            double duration = -1;
+            try (BufferedReader reader = new BufferedReader(
+                    new InputStreamReader(process.getInputStream()))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (line.startsWith("bit_rate=")) {
+                        bitRate = parseLongOrDefault(line.substring("bit_rate=".length()), -1);
+                    } else if (line.startsWith("duration=")) {
+                        duration = parseDoubleOrDefault(line.substring("duration=".length()), -1);
+                    }
+                }
+            }
+
+            boolean finished = process.waitFor(30, TimeUnit.SECONDS);
+
+            if (finished && process.exitValue() == 0) {
+                if (bitRate > 0) {
+                    return (int) (bitRate / 1000);
+                }
+                if (duration > 0) {
+                    return (int) (totalSize * 8 / duration / 1000);
+                }
+            }
+
+        } catch (Exception e) {
+            log.warn("Failed to estimate bitrate for {}: {}", filePath, e.getMessage());
+        }
+
+        return 0;
+    }
+
+    private static long parseLongOrDefault(String value, long defaultValue) {
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    private static double parseDoubleOrDefault(String value, double defaultValue) {
+        try {
+            return Double.parseDouble(value.trim());
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
     /**
      * Generates an output file path for the converted video.
      *
@@ -237,6 +681,23 @@ public class FFmpegService {
         return basePath + File.separator + "converted" + File.separator + outputFileName;
     }
 
+    /**
+     * Returns the directory holding the HLS output of a job.
+     *
+     * @param jobId The download job ID
+     * @return The directory for the playlist and segments
+     */
+    public Path generateHlsOutputDirectory(UUID jobId) {
+        return Paths.get(streamingConfig.getStorage().getBasePath(), "hls", jobId.toString());
+    }
+
+    /**
+     * Whether conversions produce HLS output instead of a single MP4.
+     */
+    public boolean isHlsOutput() {
+        return "hls".equalsIgnoreCase(streamingConfig.getConversion().getOutputMode());
+    }
+
     /**
      * Gets the file extension from a file path.
      *
@@ -263,7 +724,7 @@ public class FFmpegService {
      */
     public boolean isFFmpegAvailable() {
         try {
-            Process process = new ProcessBuilder("ffmpeg", "-version").start();
+            Process process = new ProcessBuilder(streamingConfig.getConversion().getFfmpegPath(), "-version").start();
             boolean finished = process.waitFor(5, TimeUnit.SECONDS);
             return finished && process.exitValue() == 0;
         } catch (Exception e) {
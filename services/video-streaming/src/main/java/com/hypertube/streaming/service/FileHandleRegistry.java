@@ -0,0 +1,251 @@
+package com.hypertube.streaming.service;
+
+import com.hypertube.streaming.config.StreamingConfig;
+import com.hypertube.streaming.util.PositionalReader;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Registry of shared, reference-counted file channels for video files being streamed.
+ *
+ * Features:
+ * - One FileChannel per open video, shared by all concurrent responses (positional reads are
+ *   thread-safe), so range requests no longer open and close the file
+ * - Lease counting: every response body holds a lease while it is written
+ * - A channel closed under its readers (FileChannel closes itself when any reading thread is
+ *   interrupted, e.g. a cancelled async body) is reopened, and the other leases retry their read
+ * - Channels close only after they have been idle (no leases) for the configured timeout
+ * - Files with an open channel are reported as in use, so cache eviction and expiry cleanup
+ *   skip them; this also covers the short gaps between consecutive range requests of a player
+ *
+ * Metrics: streaming.file.handles.open, streaming.file.handles.leases
+ */
+@Component
+@Slf4j
+public class FileHandleRegistry {
+
+    private static final long IDLE_SWEEP_INTERVAL_MS = 15000;
+
+    private static final class Handle {
+        private final Path path;
+        private FileChannel channel;
+        private int leases;
+        private long idleSinceMillis;
+
+        private Handle(Path path) {
+            this.path = path;
+        }
+    }
+
+    private final StreamingConfig streamingConfig;
+
+    // Guarded by this
+    private final Map<Path, Handle> handles = new HashMap<>();
+    private int activeLeases;
+
+    public FileHandleRegistry(StreamingConfig streamingConfig, MeterRegistry meterRegistry) {
+        this.streamingConfig = streamingConfig;
+        meterRegistry.gauge("streaming.file.handles.open", this, FileHandleRegistry::getOpenHandles);
+        meterRegistry.gauge("streaming.file.handles.leases", this, FileHandleRegistry::getActiveLeases);
+    }
+
+    /**
+     * Source whose readers lease the shared channel of a file.
+     *
+     * @param path The video file
+     * @return A source to hand to {@link com.hypertube.streaming.util.FileRegionResource}
+     */
+    public PositionalReader.Source source(Path path) {
+        Path key = path.toAbsolutePath().normalize();
+        return () -> acquire(key);
+    }
+
+    /**
+     * Leases the shared channel of a file, opening it if needed. Closing the returned reader
+     * releases the lease; the channel stays open for reuse.
+     *
+     * @param path The video file
+     * @return A reader backed by the shared channel
+     * @throws IOException if the file cannot be opened
+     */
+    public synchronized PositionalReader acquire(Path path) throws IOException {
+        Handle handle = handles.computeIfAbsent(path.toAbsolutePath().normalize(), Handle::new);
+        try {
+            openChannel(handle);
+        } catch (IOException e) {
+            if (handle.leases == 0) {
+                handles.remove(handle.path);
+            }
+            throw e;
+        }
+        handle.leases++;
+        activeLeases++;
+        return new Lease(handle, handle.channel);
+    }
+
+    /**
+     * Whether a file is being streamed: it has active leases, or was read recently enough that
+     * its channel has not idled out yet.
+     *
+     * @param path The video file
+     * @return true if the file must not be deleted
+     */
+    public synchronized boolean isInUse(Path path) {
+        return handles.containsKey(path.toAbsolutePath().normalize());
+    }
+
+    /**
+     * Closes the channel of a deleted file right away, or at the next idle sweep if responses
+     * still hold leases on it.
+     *
+     * @param path The deleted file
+     */
+    public synchronized void invalidate(Path path) {
+        Handle handle = handles.get(path.toAbsolutePath().normalize());
+        if (handle != null && handle.leases == 0) {
+            handles.remove(handle.path);
+            closeQuietly(handle);
+        }
+    }
+
+    public synchronized int getOpenHandles() {
+        return handles.size();
+    }
+
+    public synchronized int getActiveLeases() {
+        return activeLeases;
+    }
+
+    /**
+     * Closes channels that have had no lease for longer than the idle timeout.
+     */
+    @Scheduled(fixedDelay = IDLE_SWEEP_INTERVAL_MS)
+    public synchronized void closeIdleHandles() {
+        long idleTimeout = streamingConfig.getDelivery().getFileHandleIdleTimeoutMs();
+        long now = System.currentTimeMillis();
+
+        Iterator<Handle> iterator = handles.values().iterator();
+        while (iterator.hasNext()) {
+            Handle handle = iterator.next();
+            if (handle.leases == 0 && now - handle.idleSinceMillis >= idleTimeout) {
+                iterator.remove();
+                closeQuietly(handle);
+                log.debug("Closed idle channel for {}", handle.path);
+            }
+        }
+    }
+
+    @PreDestroy
+    public synchronized void closeAll() {
+        handles.values().forEach(this::closeQuietly);
+        handles.clear();
+    }
+
+    /**
+     * Returns the current channel of a leased handle after a read found the lease's channel
+     * closed, reopening it unless another lease already has.
+     */
+    private synchronized FileChannel reopen(Handle handle) throws IOException {
+        if (handles.get(handle.path) != handle) {
+            throw new ClosedChannelException(); // closed by shutdown
+        }
+        openChannel(handle);
+        return handle.channel;
+    }
+
+    private void openChannel(Handle handle) throws IOException {
+        if (handle.channel == null || !handle.channel.isOpen()) {
+            handle.channel = FileChannel.open(handle.path, StandardOpenOption.READ);
+            log.debug("Opened shared channel for {}", handle.path);
+        }
+    }
+
+    private synchronized void release(Handle handle) {
+        handle.leases--;
+        activeLeases--;
+        if (handle.leases == 0) {
+            handle.idleSinceMillis = System.currentTimeMillis();
+        }
+    }
+
+    private void closeQuietly(Handle handle) {
+        if (handle.channel == null) {
+            return;
+        }
+        try {
+            handle.channel.close();
+        } catch (IOException e) {
+            log.warn("Error closing channel for {}: {}", handle.path, e.getMessage());
+        }
+    }
+
+    /**
+     * One response's hold on a shared channel.
+     */
+    private class Lease implements PositionalReader {
+
+        private final Handle handle;
+        private FileChannel channel;
+        private boolean released;
+
+        private Lease(Handle handle, FileChannel channel) {
+            this.handle = handle;
+            this.channel = channel;
+        }
+
+        @Override
+        public int read(ByteBuffer dst, long position) throws IOException {
+            try {
+                return channel.read(dst, position);
+            } catch (ClosedChannelException e) {
+                recover(e);
+                return channel.read(dst, position);
+            }
+        }
+
+        @Override
+        public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+            try {
+                return channel.transferTo(position, count, target);
+            } catch (ClosedChannelException e) {
+                recover(e);
+                return channel.transferTo(position, count, target);
+            }
+        }
+
+        /**
+         * Switches to a reopened channel if the shared one was closed by another thread (an
+         * interrupted reader); an interrupt of this thread, or a closed target, is rethrown.
+         */
+        private void recover(ClosedChannelException e) throws IOException {
+            if (e instanceof ClosedByInterruptException || Thread.currentThread().isInterrupted()
+                    || channel.isOpen()) {
+                throw e;
+            }
+            channel = reopen(handle);
+        }
+
+        @Override
+        public void close() {
+            if (!released) {
+                released = true;
+                release(handle);
+            }
+        }
+    }
+}
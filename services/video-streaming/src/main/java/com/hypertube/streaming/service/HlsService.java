@@ -0,0 +1,192 @@
+package com.hypertube.streaming.service;
+
+import com.hypertube.streaming.entity.DownloadJob;
+import com.hypertube.streaming.repository.DownloadJobRepository;
+import com.hypertube.streaming.util.CacheValidators;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.core.io.ByteArrayResource;
+import org.springframework.core.io.FileSystemResource;
+import org.springframework.core.io.Resource;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.UUID;
+import java.util.regex.Pattern;
+
+/**
+ * Serves HLS playlists and segments produced by {@link FFmpegService#convertToHls}.
+ *
+ * Features:
+ * - Playlists are served while FFmpeg is still appending segments (live EVENT playlist)
+ * - Playlists and segments carry a strong ETag and Last-Modified and are revalidated on every
+ *   use (304 while unchanged): segment names repeat across runs, and a job's output is
+ *   rewritten by retried and fallback conversions and by ABR upgrades
+ * - Adaptive bitrate ladders: the job playlist is a master playlist and each rendition has its
+ *   own playlist and segments in a subdirectory (see {@link AbrLadderService})
+ */
+@Service
+@RequiredArgsConstructor
+@Slf4j
+public class HlsService {
+
+    private static final String PLAYLIST_CONTENT_TYPE = "application/vnd.apple.mpegurl";
+    private static final String END_LIST_TAG = "#EXT-X-ENDLIST";
+    private static final String REVALIDATE_CACHE_CONTROL = "public, no-cache";
+
+    // Segment names as written by FFmpeg; anything else (including path traversal) is refused
+    private static final Pattern SEGMENT_NAME = Pattern.compile("[A-Za-z0-9_\\-]{1,64}\\.(m4s|ts|mp4)");
+    private static final Pattern RENDITION_NAME = Pattern.compile("[a-z0-9]{1,16}");
+
+    private final DownloadJobRepository downloadJobRepository;
+    private final FFmpegService ffmpegService;
+
+    /**
+     * Returns the playlist of a job.
+     *
+     * @param jobId The download job ID
+     * @param requestHeaders The request headers (If-None-Match, If-Modified-Since)
+     * @return The playlist, 304 if the client's copy is current, 503 while conversion has not
+     *         produced it yet, or 404
+     */
+    public ResponseEntity<Resource> getPlaylist(UUID jobId, HttpHeaders requestHeaders) {
+        return servePlaylist(jobId, ffmpegService.generateHlsOutputDirectory(jobId), requestHeaders);
+    }
+
+    /**
+     * Returns the playlist or a segment of one rendition of an adaptive bitrate ladder.
+     *
+     * @param jobId The download job ID
+     * @param rendition The rendition directory, as referenced by the master playlist
+     * @param fileName The rendition playlist or a segment name
+     * @param requestHeaders The request headers (If-None-Match, If-Modified-Since)
+     * @return The file, 304 if the client's copy is current, 503 while the rendition has not
+     *         produced its playlist yet, or 404
+     */
+    public ResponseEntity<Resource> getRenditionFile(UUID jobId, String rendition, String fileName,
+                                                     HttpHeaders requestHeaders) {
+        if (!RENDITION_NAME.matcher(rendition).matches()) {
+            log.warn("Rejecting invalid HLS rendition name for job {}: {}", jobId, rendition);
+            return ResponseEntity.badRequest().build();
+        }
+        Path renditionDirectory = ffmpegService.generateHlsOutputDirectory(jobId).resolve(rendition);
+        if (FFmpegService.HLS_PLAYLIST_NAME.equals(fileName)) {
+            return servePlaylist(jobId, renditionDirectory, requestHeaders);
+        }
+        return serveSegment(jobId, renditionDirectory, fileName, requestHeaders);
+    }
+
+    private ResponseEntity<Resource> servePlaylist(UUID jobId, Path outputDirectory, HttpHeaders requestHeaders) {
+        Path playlist = outputDirectory.resolve(FFmpegService.HLS_PLAYLIST_NAME);
+        try {
+            long lastModified = Files.getLastModifiedTime(playlist).toMillis();
+            byte[] content = Files.readAllBytes(playlist);
+
+            // A live playlist changes with every segment (players reload it each target
+            // duration), and a finished one is replaced when the job's output is rewritten
+            HttpHeaders headers = new HttpHeaders();
+            String etag = CacheValidators.strongEtag(playlist, content.length, lastModified);
+            CacheValidators.applyValidators(headers, etag, lastModified);
+            headers.set(HttpHeaders.CACHE_CONTROL, REVALIDATE_CACHE_CONTROL);
+            if (CacheValidators.isNotModified(requestHeaders, etag, lastModified)) {
+                return ResponseEntity.status(HttpStatus.NOT_MODIFIED).headers(headers).build();
+            }
+            headers.setContentType(MediaType.parseMediaType(PLAYLIST_CONTENT_TYPE));
+            headers.setContentLength(content.length);
+
+            return ResponseEntity.ok()
+                    .headers(headers)
+                    .body(new ByteArrayResource(content));
+
+        } catch (NoSuchFileException e) {
+            return isPackaging(jobId, outputDirectory) ? retryLater() : ResponseEntity.notFound().build();
+        } catch (IOException e) {
+            log.error("Error reading HLS playlist for job: {}", jobId, e);
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).build();
+        }
+    }
+
+    /**
+     * Returns one segment (or the fMP4 init segment) of a job.
+     *
+     * @param jobId The download job ID
+     * @param segmentName The segment file name, as referenced by the playlist
+     * @param requestHeaders The request headers (If-None-Match, If-Modified-Since)
+     * @return The segment, 304 if the client's copy is current, or 404 if it does not exist (yet)
+     */
+    public ResponseEntity<Resource> getSegment(UUID jobId, String segmentName, HttpHeaders requestHeaders) {
+        return serveSegment(jobId, ffmpegService.generateHlsOutputDirectory(jobId), segmentName, requestHeaders);
+    }
+
+    private ResponseEntity<Resource> serveSegment(UUID jobId, Path outputDirectory, String segmentName,
+                                                  HttpHeaders requestHeaders) {
+        if (!SEGMENT_NAME.matcher(segmentName).matches()) {
+            log.warn("Rejecting invalid HLS segment name for job {}: {}", jobId, segmentName);
+            return ResponseEntity.badRequest().build();
+        }
+
+        Path segment = outputDirectory.resolve(segmentName);
+        BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(segment, BasicFileAttributes.class);
+        } catch (IOException e) {
+            return ResponseEntity.notFound().build();
+        }
+        if (!attributes.isRegularFile()) {
+            return ResponseEntity.notFound().build();
+        }
+
+        // Segment names repeat across runs: a client's copy may be from output since replaced
+        long lastModified = attributes.lastModifiedTime().toMillis();
+        String etag = CacheValidators.strongEtag(segment, attributes.size(), lastModified);
+        HttpHeaders headers = new HttpHeaders();
+        CacheValidators.applyValidators(headers, etag, lastModified);
+        headers.set(HttpHeaders.CACHE_CONTROL, REVALIDATE_CACHE_CONTROL);
+        if (CacheValidators.isNotModified(requestHeaders, etag, lastModified)) {
+            return ResponseEntity.status(HttpStatus.NOT_MODIFIED).headers(headers).build();
+        }
+
+        headers.setContentType(MediaType.parseMediaType(segmentContentType(segmentName)));
+        headers.setContentLength(attributes.size());
+
+        return ResponseEntity.ok()
+                .headers(headers)
+                .body(new FileSystemResource(segment));
+    }
+
+    /**
+     * Whether packaging has started but not produced a playlist yet. The output directory is
+     * created before FFmpeg starts; the job status alone is not enough because the conversion
+     * worker only commits it when the conversion ends.
+     */
+    private boolean isPackaging(UUID jobId, Path outputDirectory) {
+        return Files.isDirectory(outputDirectory) && downloadJobRepository.findById(jobId)
+                .map(job -> job.getStatus() != DownloadJob.DownloadStatus.FAILED)
+                .orElse(false);
+    }
+
+    private ResponseEntity<Resource> retryLater() {
+        return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE)
+                .header(HttpHeaders.RETRY_AFTER, "2")
+                .header(HttpHeaders.CACHE_CONTROL, "no-cache")
+                .build();
+    }
+
+    private String segmentContentType(String segmentName) {
+        if (segmentName.endsWith(".ts")) {
+            return "video/mp2t";
+        } else if (segmentName.endsWith(".m4s")) {
+            return "video/iso.segment";
+        }
+        return "video/mp4";
+    }
+}
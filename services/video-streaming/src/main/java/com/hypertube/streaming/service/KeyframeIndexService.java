@@ -0,0 +1,271 @@
+package com.hypertube.streaming.service;
+
+import com.hypertube.streaming.config.StreamingConfig;
+import com.hypertube.streaming.util.AvailabilityMap;
+import com.hypertube.streaming.util.KeyframeIndex;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Persistent keyframe indexes (time to byte offset) of cached video files.
+ *
+ * Seeking by byte offset makes the player probe with several range requests until it lands on
+ * a decodable position. With an index the server answers "where is the keyframe before 01:12:30"
+ * directly, and for a download in progress it knows how many seconds are playable from the
+ * contiguous download frontier.
+ *
+ * Features:
+ * - Built from FFprobe packet flags and positions (no decoding), in the background, once per file
+ * - Complete files: stored next to the video ("movie.mkv.keyframes") and reloaded after restarts;
+ *   stale indexes (file size or modification time changed) are rebuilt
+ * - Growing files: only the contiguous prefix is indexed (FFmpeg subfile protocol), in memory, and
+ *   re-indexed after streaming.keyframe-index.partial-rebuild-bytes of progress
+ * - Bounded LRU of indexes in memory
+ *
+ * Metrics: streaming.keyframe.index.build{file=complete|partial}, streaming.keyframe.index.loaded
+ */
+@Service
+@Slf4j
+public class KeyframeIndexService {
+
+    private static final String INDEX_SUFFIX = ".keyframes";
+
+    private final StreamingConfig streamingConfig;
+    private final FFmpegService ffmpegService;
+    private final Timer completeBuilds;
+    private final Timer partialBuilds;
+    private final Counter loaded;
+
+    private final Map<Path, Entry> entries;
+    private final Map<BuildKey, CompletableFuture<Entry>> building = new ConcurrentHashMap<>();
+    private final ExecutorService executor;
+
+    /**
+     * An index together with the file version it was built from.
+     *
+     * @param frontier Contiguous bytes indexed for a growing file, -1 for a complete file
+     */
+    private record Entry(KeyframeIndex index, long size, long lastModified, long frontier) {
+
+        private boolean isComplete() {
+            return frontier < 0;
+        }
+    }
+
+    /**
+     * Identifies a build, so a request only joins one that yields the index it asked for: a
+     * complete file by its version, a growing file by path (its frontier moves on anyway).
+     */
+    private record BuildKey(Path path, long size, long lastModified, boolean complete) {
+    }
+
+    public KeyframeIndexService(StreamingConfig streamingConfig,
+                                FFmpegService ffmpegService,
+                                MeterRegistry meterRegistry) {
+        this.streamingConfig = streamingConfig;
+        this.ffmpegService = ffmpegService;
+        this.completeBuilds = Timer.builder("streaming.keyframe.index.build")
+                .description("Time spent indexing keyframes with FFprobe")
+                .tag("file", "complete")
+                .register(meterRegistry);
+        this.partialBuilds = Timer.builder("streaming.keyframe.index.build")
+                .description("Time spent indexing keyframes with FFprobe")
+                .tag("file", "partial")
+                .register(meterRegistry);
+        this.loaded = Counter.builder("streaming.keyframe.index.loaded")
+                .description("Keyframe indexes read from disk instead of rebuilt")
+                .register(meterRegistry);
+
+        int maxEntries = Math.max(1, streamingConfig.getKeyframeIndex().getCacheEntries());
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Path, Entry> eldest) {
+                return size() > maxEntries;
+            }
+        };
+
+        AtomicInteger threadNumber = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(2, runnable -> {
+            Thread thread = new Thread(runnable, "keyframe-index-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    public boolean isEnabled() {
+        return streamingConfig.getKeyframeIndex().isEnabled();
+    }
+
+    /**
+     * Returns the file holding the persisted keyframe index of a video file.
+     */
+    public static Path getIndexPath(String videoPath) {
+        return Paths.get(videoPath + INDEX_SUFFIX);
+    }
+
+    /**
+     * Gets the keyframe index of a video file, building it if needed.
+     *
+     * @param path The video file
+     * @param size Size of the file in bytes (the final size while still downloading)
+     * @param lastModified Modification time of the file in epoch milliseconds
+     * @param availability Downloaded ranges of a growing file, or null for a complete file
+     * @param waitMillis How long to wait for a build; 0 returns immediately
+     * @return The index; for a growing file possibly one built from an earlier frontier; null if
+     *         none is available yet or the file has no indexable video stream
+     */
+    public KeyframeIndex getIndex(Path path, long size, long lastModified,
+                                  AvailabilityMap availability, long waitMillis) {
+        if (!isEnabled()) {
+            return null;
+        }
+
+        Entry cached;
+        synchronized (entries) {
+            cached = entries.get(path);
+        }
+        if (cached != null && isFresh(cached, size, lastModified, availability)) {
+            return cached.index();
+        }
+
+        boolean complete = availability == null;
+        BuildKey buildKey = new BuildKey(path, size, complete ? lastModified : 0, complete);
+        CompletableFuture<Entry> future = building.computeIfAbsent(buildKey, key -> {
+            CompletableFuture<Entry> build = CompletableFuture.supplyAsync(
+                    () -> load(path, size, lastModified, availability), executor);
+            build.whenComplete((entry, error) -> {
+                building.remove(key);
+                if (entry != null) {
+                    cache(path, entry);
+                } else if (error != null) {
+                    log.warn("Keyframe indexing failed for {}: {}", path, error.getMessage());
+                }
+            });
+            return build;
+        });
+
+        if (waitMillis > 0) {
+            try {
+                Entry entry = future.get(waitMillis, TimeUnit.MILLISECONDS);
+                if (entry != null) {
+                    return entry.index();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException | TimeoutException e) {
+                // Fall back to what we have
+            }
+        }
+
+        // A stale index of a growing file is still correct for the part it covers
+        return cached != null && !cached.isComplete() && availability != null ? cached.index() : null;
+    }
+
+    /**
+     * Computes the seconds playable from the start of a file that is still being downloaded.
+     * Never blocks; triggers indexing when the index is missing or stale.
+     *
+     * @return Playable seconds, or -1 if unknown (no index yet)
+     */
+    public double getPlayableSeconds(Path path, long size, long lastModified, AvailabilityMap availability) {
+        KeyframeIndex index = getIndex(path, size, lastModified, availability, 0);
+        if (index == null || index.isEmpty()) {
+            return -1;
+        }
+        return index.playableMs(availability.getContiguousPrefix()) / 1000.0;
+    }
+
+    private void cache(Path path, Entry entry) {
+        synchronized (entries) {
+            Entry current = entries.get(path);
+            // A partial build finishing after the download completed must not replace the full index
+            if (!entry.isComplete() && current != null && current.isComplete() && current.size() == entry.size()) {
+                return;
+            }
+            entries.put(path, entry);
+        }
+    }
+
+    private boolean isFresh(Entry entry, long size, long lastModified, AvailabilityMap availability) {
+        if (availability == null) {
+            return entry.isComplete() && entry.size() == size && entry.lastModified() == lastModified;
+        }
+        // A growing file changes all the time; only the download progress matters
+        return !entry.isComplete() && entry.size() == size
+                && availability.getContiguousPrefix() - entry.frontier()
+                        < streamingConfig.getKeyframeIndex().getPartialRebuildBytes();
+    }
+
+    private Entry load(Path path, long size, long lastModified, AvailabilityMap availability) {
+        if (availability == null) {
+            Path indexPath = getIndexPath(path.toString());
+            KeyframeIndex stored = KeyframeIndex.read(indexPath, size, lastModified);
+            if (stored != null) {
+                loaded.increment();
+                return new Entry(stored, size, lastModified, -1);
+            }
+
+            long start = System.nanoTime();
+            KeyframeIndex index = build(path.toString());
+            completeBuilds.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+            if (!index.isEmpty()) {
+                try {
+                    index.write(indexPath, size, lastModified);
+                } catch (IOException e) {
+                    log.warn("Failed to store keyframe index {}: {}", indexPath, e.getMessage());
+                }
+            }
+            log.info("Indexed {} keyframes of {} in {} ms", index.size(), path,
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+            return new Entry(index, size, lastModified, -1);
+        }
+
+        long frontier = availability.getContiguousPrefix();
+        if (frontier <= 0) {
+            return null;
+        }
+        long start = System.nanoTime();
+        // subfile keeps FFprobe inside the downloaded prefix of a preallocated file
+        KeyframeIndex index = build("subfile,,start,0,end," + frontier + ",,:" + path);
+        partialBuilds.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        log.debug("Indexed {} keyframes in the first {} bytes of {}", index.size(), frontier, path);
+        return new Entry(index, size, lastModified, frontier);
+    }
+
+    private KeyframeIndex build(String input) {
+        List<FFmpegService.Keyframe> keyframes = ffmpegService.getKeyframes(input).stream()
+                .filter(keyframe -> keyframe.offset() >= 0)
+                .toList();
+        long[] timesMs = new long[keyframes.size()];
+        long[] offsets = new long[keyframes.size()];
+        for (int i = 0; i < keyframes.size(); i++) {
+            timesMs[i] = Math.round(keyframes.get(i).timeSeconds() * 1000);
+            offsets[i] = keyframes.get(i).offset();
+        }
+        return new KeyframeIndex(timesMs, offsets);
+    }
+}
@@ -0,0 +1,479 @@
+package com.hypertube.streaming.service;
+
+import com.hypertube.streaming.config.StreamingConfig;
+import com.hypertube.streaming.dto.ConversionMessage;
+import com.hypertube.streaming.entity.DownloadJob;
+import com.hypertube.streaming.entity.DownloadJob.ConversionStrategy;
+import com.hypertube.streaming.repository.DownloadJobRepository;
+import com.hypertube.streaming.util.AvailabilityMap;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.amqp.rabbit.core.RabbitTemplate;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.util.FileSystemUtils;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Live transcoding of non-browser formats while the torrent is still downloading.
+ *
+ * Instead of waiting for the full download and a full conversion pass, FFmpeg is started as
+ * soon as the head of the file is on disk. A feeder thread reads the growing file sequentially,
+ * waiting at the download frontier via the {@link AvailabilityMap}, and pipes it into FFmpeg,
+ * which writes HLS with fragmented MP4 segments (see {@link HlsService}). Players can start on
+ * the first segment seconds after the download begins.
+ *
+ * Features:
+ * - Bounded number of concurrent live transcodes; others fall back to post-download conversion
+ * - Each run writes into its own rendition directory ({@code hls/{jobId}/live...}) behind a
+ *   one-entry master playlist, so a failed or cancelled run is removed without touching the
+ *   output of the conversion that replaces it
+ * - Lag tracking: bytes between the download frontier and what FFmpeg has consumed
+ * - Falls back to the regular conversion queue if the live pipeline fails after the download
+ *
+ * Metrics: streaming.live.transcodes.active, streaming.live.transcode.max.lag.bytes
+ */
+@Service
+@Slf4j
+public class LiveTranscodeService {
+
+    private static final int FEED_CHUNK_SIZE = 256 * 1024;
+    private static final long FRONTIER_POLL_MS = 1000;
+    private static final String RUN_DIRECTORY_PREFIX = "live";
+    private static final int UNKNOWN_SOURCE_KBPS = 8000;
+
+    public enum State {
+        RUNNING, COMPLETED, FAILED
+    }
+
+    /**
+     * Snapshot of a live transcode.
+     *
+     * @param jobId The download job ID
+     * @param state Current state
+     * @param fedBytes Input bytes handed to FFmpeg so far
+     * @param frontierBytes Contiguous bytes downloaded so far
+     * @param lagBytes How far FFmpeg is behind the download frontier
+     * @param totalBytes Total input size
+     * @param strategy Conversion strategy chosen from the head of the file (null until probed)
+     * @param elapsedMs Time since the transcode started, or its total duration once it ended
+     */
+    public record Status(UUID jobId, State state, long fedBytes, long frontierBytes,
+                         long lagBytes, long totalBytes, ConversionStrategy strategy, long elapsedMs) {
+    }
+
+    private static final class Session {
+        private final UUID jobId;
+        private final String inputPath;
+        private final AvailabilityMap availability;
+        private volatile State state = State.RUNNING;
+        private volatile long fedBytes;
+        private volatile Process process; // started under the session lock, see cancel
+        private volatile Path runDirectory;
+        private volatile ConversionStrategy strategy;
+        private final long startNanos = System.nanoTime();
+        private volatile long endNanos;
+        private boolean downloadCompleted; // guarded by the session
+
+        private Session(UUID jobId, String inputPath, AvailabilityMap availability) {
+            this.jobId = jobId;
+            this.inputPath = inputPath;
+            this.availability = availability;
+        }
+
+        private long lagBytes() {
+            return Math.max(0, availability.getContiguousPrefix() - fedBytes);
+        }
+
+        private long elapsedMs() {
+            long end = endNanos != 0 ? endNanos : System.nanoTime();
+            return TimeUnit.NANOSECONDS.toMillis(end - startNanos);
+        }
+    }
+
+    private final StreamingConfig streamingConfig;
+    private final FFmpegService ffmpegService;
+    private final MediaAnalysisService mediaAnalysisService;
+    private final TorrentService torrentService;
+    private final DownloadJobRepository downloadJobRepository;
+    private final StreamDescriptorCache streamDescriptorCache;
+    private final TrickplayService trickplayService;
+    private final RabbitTemplate rabbitTemplate;
+
+    @Value("${rabbitmq.queues.conversion}")
+    private String conversionQueue;
+
+    private final Map<UUID, Session> sessions = new ConcurrentHashMap<>();
+    private final AtomicInteger active = new AtomicInteger();
+    private final ExecutorService executor;
+
+    public LiveTranscodeService(StreamingConfig streamingConfig,
+                                FFmpegService ffmpegService,
+                                MediaAnalysisService mediaAnalysisService,
+                                TorrentService torrentService,
+                                DownloadJobRepository downloadJobRepository,
+                                StreamDescriptorCache streamDescriptorCache,
+                                TrickplayService trickplayService,
+                                RabbitTemplate rabbitTemplate,
+                                MeterRegistry meterRegistry) {
+        this.streamingConfig = streamingConfig;
+        this.ffmpegService = ffmpegService;
+        this.mediaAnalysisService = mediaAnalysisService;
+        this.torrentService = torrentService;
+        this.downloadJobRepository = downloadJobRepository;
+        this.streamDescriptorCache = streamDescriptorCache;
+        this.trickplayService = trickplayService;
+        this.rabbitTemplate = rabbitTemplate;
+
+        AtomicInteger threadCount = new AtomicInteger();
+        this.executor = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "live-transcode-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        meterRegistry.gauge("streaming.live.transcodes.active", active);
+        meterRegistry.gauge("streaming.live.transcode.max.lag.bytes", sessions,
+                s -> s.values().stream()
+                        .filter(session -> session.state == State.RUNNING)
+                        .mapToLong(Session::lagBytes)
+                        .max()
+                        .orElse(0));
+    }
+
+    public boolean isEnabled() {
+        return streamingConfig.getConversion().isLiveEnabled();
+    }
+
+    /**
+     * Starts a live transcode for a job if live mode is enabled, the file needs conversion and
+     * enough of its head is on disk. Safe to call repeatedly (e.g. on every progress update).
+     *
+     * @param jobId The download job ID
+     * @return true if a live transcode is running or was started
+     */
+    public boolean startIfEligible(UUID jobId) {
+        if (!isEnabled()) {
+            return false;
+        }
+        Session existing = sessions.get(jobId);
+        if (existing != null) {
+            return existing.state == State.RUNNING;
+        }
+
+        String inputPath = torrentService.getFilePath(jobId);
+        AvailabilityMap availability = torrentService.getAvailability(jobId);
+        if (inputPath == null || availability == null || availability.isComplete()) {
+            return false;
+        }
+        long head = Math.min(availability.getTotalLength(), streamingConfig.getTorrent().getStreamingBufferBytes());
+        if (availability.getContiguousPrefix() < head || !ffmpegService.needsConversion(inputPath)) {
+            return false;
+        }
+
+        if (active.incrementAndGet() > streamingConfig.getConversion().getMaxLiveTranscodes()) {
+            active.decrementAndGet();
+            log.debug("Live transcode limit reached, job {} will be converted after download", jobId);
+            return false;
+        }
+
+        Session session = new Session(jobId, inputPath, availability);
+        if (sessions.putIfAbsent(jobId, session) != null) {
+            active.decrementAndGet();
+            return true;
+        }
+
+        log.info("Starting live transcode for job {} from growing file {}", jobId, inputPath);
+        executor.execute(() -> run(session));
+        return true;
+    }
+
+    /**
+     * Records that the download of a job finished and applies the caller's job update while
+     * the live transcode cannot change the job concurrently.
+     *
+     * @param jobId The download job ID
+     * @param jobUpdate Receives the live transcode state (null if there is none) and saves the job
+     */
+    public void completeDownload(UUID jobId, Consumer<State> jobUpdate) {
+        Session session = sessions.get(jobId);
+        if (session == null) {
+            jobUpdate.accept(null);
+            return;
+        }
+        synchronized (session) {
+            session.downloadCompleted = true;
+            jobUpdate.accept(session.state);
+            if (session.state != State.RUNNING) {
+                sessions.remove(jobId, session);
+            }
+        }
+    }
+
+    /**
+     * Returns the status of a job's live transcode, or null if there is none.
+     */
+    public Status getStatus(UUID jobId) {
+        Session session = sessions.get(jobId);
+        if (session == null) {
+            return null;
+        }
+        long frontier = session.availability.getContiguousPrefix();
+        return new Status(jobId, session.state, session.fedBytes, frontier,
+                session.lagBytes(), session.availability.getTotalLength(),
+                session.strategy, session.elapsedMs());
+    }
+
+    /**
+     * Number of live transcodes currently running.
+     */
+    public int getActiveCount() {
+        return active.get();
+    }
+
+    /**
+     * Stops a running live transcode (e.g. when the download is cancelled).
+     */
+    public void cancel(UUID jobId) {
+        Session session = sessions.remove(jobId);
+        if (session == null) {
+            return;
+        }
+        synchronized (session) {
+            // Also before FFmpeg started: run() checks the state before starting it
+            session.state = State.FAILED;
+            if (session.process != null) {
+                session.process.destroyForcibly();
+            }
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        sessions.values().forEach(session -> {
+            if (session.process != null) {
+                session.process.destroyForcibly();
+            }
+        });
+        executor.shutdownNow();
+    }
+
+    private void run(Session session) {
+        boolean success = false;
+        try {
+            // A directory of its own: the conversion queued if this run fails writes hls/{jobId}
+            Path runDirectory = ffmpegService.generateHlsOutputDirectory(session.jobId)
+                    .resolve(RUN_DIRECTORY_PREFIX + Long.toString(System.currentTimeMillis(), 36));
+            session.runDirectory = runDirectory;
+            Files.createDirectories(runDirectory);
+
+            // The container header is in the head of the file, so the growing file can be probed
+            session.strategy = mediaAnalysisService.chooseStrategy(session.inputPath);
+            writeMasterPlaylist(session);
+
+            List<String> command = ffmpegService.buildHlsCommand("pipe:0", runDirectory,
+                    streamingConfig.getConversion().getLivePreset(), 0, session.strategy);
+            ProcessBuilder processBuilder = new ProcessBuilder(command);
+            processBuilder.redirectErrorStream(true);
+            synchronized (session) {
+                if (session.state != State.RUNNING) {
+                    log.info("Live transcode for job {} cancelled before FFmpeg started", session.jobId);
+                    return;
+                }
+                session.process = processBuilder.start();
+            }
+
+            executor.execute(() -> drainOutput(session));
+            feed(session);
+
+            success = session.process.waitFor() == 0 && session.state == State.RUNNING;
+            if (!success) {
+                log.error("Live transcode for job {} failed (exit code {})",
+                        session.jobId, session.process.exitValue());
+            }
+        } catch (IOException e) {
+            log.error("Live transcode for job {} failed: {}", session.jobId, e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            if (session.process != null && session.process.isAlive()) {
+                session.process.destroyForcibly();
+            }
+            session.endNanos = System.nanoTime();
+            active.decrementAndGet();
+            finish(session, success);
+        }
+    }
+
+    /**
+     * Points hls/{jobId}/playlist.m3u8 at the run directory with a one-entry master playlist,
+     * written like the ABR ladder's (see {@link AbrLadderService}).
+     */
+    private void writeMasterPlaylist(Session session) throws IOException {
+        int kbps = ffmpegService.estimateBitrateKbps(session.inputPath, session.availability.getTotalLength());
+        long bandwidth = (kbps > 0 ? kbps : UNKNOWN_SOURCE_KBPS) * 1000L;
+        boolean fmp4 = !"mpegts".equalsIgnoreCase(streamingConfig.getConversion().getHlsSegmentType());
+
+        String master = "#EXTM3U\n"
+                + "#EXT-X-VERSION:" + (fmp4 ? 7 : 3) + "\n"
+                + "#EXT-X-INDEPENDENT-SEGMENTS\n"
+                + "#EXT-X-STREAM-INF:BANDWIDTH=" + bandwidth + "\n"
+                + session.runDirectory.getFileName() + "/" + FFmpegService.HLS_PLAYLIST_NAME + "\n";
+
+        Path outputDirectory = session.runDirectory.getParent();
+        Path target = outputDirectory.resolve(FFmpegService.HLS_PLAYLIST_NAME);
+        Path temp = outputDirectory.resolve(FFmpegService.HLS_PLAYLIST_NAME + ".tmp");
+        Files.writeString(temp, master, StandardCharsets.US_ASCII);
+        Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Removes the output of a failed or cancelled run: its directory, and the master playlist
+     * unless a later run or conversion has replaced it already.
+     */
+    private void deleteOutput(Session session) {
+        Path runDirectory = session.runDirectory;
+        if (runDirectory == null) {
+            return;
+        }
+        Path outputDirectory = runDirectory.getParent();
+        Path master = outputDirectory.resolve(FFmpegService.HLS_PLAYLIST_NAME);
+        try {
+            String entry = runDirectory.getFileName() + "/" + FFmpegService.HLS_PLAYLIST_NAME;
+            if (Files.readString(master, StandardCharsets.US_ASCII).contains(entry)) {
+                Files.delete(master);
+            }
+        } catch (IOException e) {
+            log.debug("No live master playlist to remove for job {}", session.jobId);
+        }
+        FileSystemUtils.deleteRecursively(runDirectory.toFile());
+        try {
+            // An empty hls/{jobId} would make HlsService answer 503 for a playlist that never comes
+            Files.deleteIfExists(outputDirectory);
+        } catch (IOException e) {
+            log.debug("HLS output directory of job {} still in use", session.jobId);
+        }
+    }
+
+    /**
+     * Pipes the growing file into FFmpeg, waiting at the download frontier.
+     */
+    private void feed(Session session) throws IOException, InterruptedException {
+        long total = session.availability.getTotalLength();
+        long stallTimeoutMs = streamingConfig.getConversion().getLiveStallTimeoutSeconds() * 1000L;
+        long stalledSince = 0;
+
+        ByteBuffer buffer = ByteBuffer.allocate(FEED_CHUNK_SIZE);
+        try (FileChannel channel = FileChannel.open(Path.of(session.inputPath), StandardOpenOption.READ);
+             OutputStream stdin = session.process.getOutputStream()) {
+            long offset = 0;
+            while (offset < total && session.state == State.RUNNING) {
+                long available = session.availability.awaitAvailable(offset, FRONTIER_POLL_MS);
+                if (available == 0) {
+                    if (session.availability.isAbandoned()) {
+                        throw new IOException("Download stopped at byte " + offset);
+                    }
+                    long now = System.currentTimeMillis();
+                    stalledSince = stalledSince == 0 ? now : stalledSince;
+                    if (now - stalledSince > stallTimeoutMs) {
+                        throw new IOException("Download stalled at byte " + offset);
+                    }
+                    continue;
+                }
+                stalledSince = 0;
+
+                buffer.clear().limit((int) Math.min(buffer.capacity(), available));
+                while (buffer.hasRemaining()) {
+                    if (channel.read(buffer, offset + buffer.position()) < 0) {
+                        throw new IOException("Unexpected end of file at byte " + (offset + buffer.position()));
+                    }
+                }
+                // Blocks while FFmpeg is busy encoding: that is the lag behind the frontier
+                stdin.write(buffer.array(), 0, buffer.limit());
+                offset += buffer.limit();
+                session.fedBytes = offset;
+            }
+        }
+    }
+
+    private void drainOutput(Session session) {
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(session.process.getInputStream()))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.contains("frame=") || line.contains("time=")) {
+                    log.debug("FFmpeg live [{}]: {}", session.jobId, line.trim());
+                }
+            }
+        } catch (IOException e) {
+            log.debug("Live transcode output closed for job {}", session.jobId);
+        }
+    }
+
+    /**
+     * Records the outcome. A successful transcode completes the job if the download already
+     * finished; a failed one falls back to the conversion queue once the file is complete.
+     */
+    private void finish(Session session, boolean success) {
+        synchronized (session) {
+            if (session.state != State.RUNNING) {
+                deleteOutput(session); // cancelled
+                return;
+            }
+            session.state = success ? State.COMPLETED : State.FAILED;
+            if (!success) {
+                // Drop the partial playlist so players do not get stuck on it
+                deleteOutput(session);
+            }
+            if (!session.downloadCompleted) {
+                // DownloadWorker.markJobCompleted will act on the final state
+                return;
+            }
+
+            sessions.remove(session.jobId, session);
+            if (success) {
+                downloadJobRepository.findById(session.jobId).ifPresent(job -> {
+                    job.setStatus(DownloadJob.DownloadStatus.COMPLETED);
+                    job.setConversionStrategy(session.strategy);
+                    job.setConversionDurationMs(session.elapsedMs());
+                    job.setCompletedAt(LocalDateTime.now());
+                    job.setUpdatedAt(LocalDateTime.now());
+                    downloadJobRepository.save(job);
+                });
+                streamDescriptorCache.invalidate(session.jobId);
+                trickplayService.schedule(session.jobId);
+                log.info("Live transcode completed for job: {}", session.jobId);
+            } else {
+                log.warn("Falling back to regular conversion for job: {}", session.jobId);
+                downloadJobRepository.findById(session.jobId).ifPresent(job ->
+                        rabbitTemplate.convertAndSend(conversionQueue, ConversionMessage.builder()
+                                .jobId(job.getId())
+                                .videoId(job.getVideoId())
+                                .inputFilePath(session.inputPath)
+                                .outputFilePath(ffmpegService.generateOutputPath(session.inputPath))
+                                .build()));
+            }
+        }
+    }
+}
@@ -0,0 +1,188 @@
+package com.hypertube.streaming.service;
+
+import com.hypertube.streaming.config.StreamingConfig;
+import com.hypertube.streaming.entity.DownloadJob.ConversionStrategy;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Service;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * FFprobe-based media analysis choosing the cheapest way to make a video browser-playable.
+ *
+ * The file extension only says which container a video is in; an MKV very often already holds
+ * H.264 and AAC, which browsers play as soon as they are put into an MP4 (or fMP4 HLS) container.
+ * Stream copy takes seconds and almost no CPU, against minutes of full CPU for a re-encode.
+ *
+ * Strategies, cheapest first:
+ * - REMUX: browser-compatible video and audio, streams are copied into the new container
+ * - AUDIO_TRANSCODE: compatible video is copied, only the audio (AC-3, DTS, FLAC, ...) is encoded to AAC
+ * - FULL_TRANSCODE: video is encoded to H.264 (and audio to AAC)
+ */
+@Service
+@RequiredArgsConstructor
+@Slf4j
+public class MediaAnalysisService {
+
+    // H.264 profiles every browser decodes; High 10 / 4:2:2 / 4:4:4 are not among them
+    private static final Set<String> COMPATIBLE_H264_PROFILES = Set.of(
+            "baseline", "constrained baseline", "main", "high"
+    );
+
+    private static final Set<String> COMPATIBLE_PIXEL_FORMATS = Set.of("yuv420p", "yuvj420p");
+
+    private static final Set<String> COMPATIBLE_AUDIO_CODECS = Set.of("aac", "mp3");
+
+    // Containers with reliable timestamps; AVI, MPEG-PS and ASF streams are re-encoded instead
+    private static final Set<String> COPYABLE_CONTAINERS = Set.of(
+            "matroska", "webm", "mov", "mp4", "m4a", "3gp", "flv", "mpegts"
+    );
+
+    private final StreamingConfig streamingConfig;
+
+    /**
+     * Stream properties relevant to browser compatibility.
+     *
+     * @param container FFprobe format name (e.g. "matroska,webm")
+     * @param videoCodec Codec of the first video stream
+     * @param videoProfile Profile of the first video stream (e.g. "High")
+     * @param pixelFormat Pixel format of the first video stream
+     * @param audioCodec Codec of the first audio stream, or null if there is none
+     * @param width Width of the first video stream in pixels (0 if unknown)
+     * @param height Height of the first video stream in pixels (0 if unknown)
+     */
+    public record MediaInfo(String container, String videoCodec, String videoProfile,
+                            String pixelFormat, String audioCodec, int width, int height) {
+    }
+
+    /**
+     * Probes a video file. Works on partially downloaded files once the container header is on disk.
+     *
+     * @param filePath The path to the video file
+     * @return The media information, or null if FFprobe failed or found no video stream
+     */
+    public MediaInfo analyze(String filePath) {
+        try {
+            // -of compact: one line per section, e.g. "stream|codec_type=video|codec_name=h264|..."
+            ProcessBuilder processBuilder = new ProcessBuilder(
+                    streamingConfig.getConversion().getFfprobePath(),
+                    "-v", "error",
+                    "-show_entries", "format=format_name:stream=codec_type,codec_name,profile,pix_fmt,width,height",
+                    "-of", "compact",
+                    filePath
+            );
+
+            processBuilder.redirectErrorStream(true);
+            Process process = processBuilder.start();
+
+            String container = null;
+            Map<String, String> video = null;
+            Map<String, String> audio = null;
+            try (BufferedReader reader = new BufferedReader(
+                    new InputStreamReader(process.getInputStream()))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    Map<String, String> fields = parseCompactLine(line);
+                    if (line.startsWith("format|")) {
+                        container = fields.get("format_name");
+                    } else if (line.startsWith("stream|")) {
+                        String type = fields.get("codec_type");
+                        if (video == null && "video".equals(type)) {
+                            video = fields;
+                        } else if (audio == null && "audio".equals(type)) {
+                            audio = fields;
+                        }
+                    }
+                }
+            }
+
+            boolean finished = process.waitFor(30, TimeUnit.SECONDS);
+
+            if (finished && process.exitValue() == 0 && video != null) {
+                MediaInfo info = new MediaInfo(container, video.get("codec_name"), video.get("profile"),
+                        video.get("pix_fmt"), audio != null ? audio.get("codec_name") : null,
+                        parseDimension(video.get("width")), parseDimension(video.get("height")));
+                log.debug("Media analysis of {}: {}", filePath, info);
+                return info;
+            }
+
+            if (!finished) {
+                process.destroyForcibly();
+            }
+
+        } catch (Exception e) {
+            log.warn("Failed to analyze media {}: {}", filePath, e.getMessage());
+        }
+
+        return null;
+    }
+
+    /**
+     * Chooses the cheapest conversion producing browser-playable H.264/AAC.
+     *
+     * @param info The media information (null if analysis failed)
+     * @return The conversion strategy; FULL_TRANSCODE when nothing is known
+     */
+    public ConversionStrategy chooseStrategy(MediaInfo info) {
+        if (info == null || !isCopyableContainer(info.container()) || !isCompatibleVideo(info)) {
+            return ConversionStrategy.FULL_TRANSCODE;
+        }
+        if (info.audioCodec() != null && !COMPATIBLE_AUDIO_CODECS.contains(info.audioCodec().toLowerCase())) {
+            return ConversionStrategy.AUDIO_TRANSCODE;
+        }
+        return ConversionStrategy.REMUX;
+    }
+
+    /**
+     * Analyzes a video file and chooses its conversion strategy.
+     *
+     * @param filePath The path to the video file
+     * @return The conversion strategy
+     */
+    public ConversionStrategy chooseStrategy(String filePath) {
+        MediaInfo info = analyze(filePath);
+        ConversionStrategy strategy = chooseStrategy(info);
+        log.info("Conversion strategy for {}: {} ({})", filePath, strategy, info);
+        return strategy;
+    }
+
+    private boolean isCompatibleVideo(MediaInfo info) {
+        return "h264".equalsIgnoreCase(info.videoCodec())
+                && info.videoProfile() != null
+                && COMPATIBLE_H264_PROFILES.contains(info.videoProfile().toLowerCase())
+                && info.pixelFormat() != null
+                && COMPATIBLE_PIXEL_FORMATS.contains(info.pixelFormat().toLowerCase());
+    }
+
+    private boolean isCopyableContainer(String container) {
+        // FFprobe reports demuxer aliases as a list, e.g. "mov,mp4,m4a,3gp,3g2,mj2"
+        return container != null && Arrays.stream(container.split(","))
+                .anyMatch(name -> COPYABLE_CONTAINERS.contains(name.trim()));
+    }
+
+    private static int parseDimension(String value) {
+        try {
+            return value != null ? Math.max(0, Integer.parseInt(value.trim())) : 0;
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private static Map<String, String> parseCompactLine(String line) {
+        Map<String, String> fields = new HashMap<>();
+        for (String part : line.split("\\|")) {
+            int separator = part.indexOf('=');
+            if (separator > 0) {
+                fields.put(part.substring(0, separator), part.substring(separator + 1));
+            }
+        }
+        return fields;
+    }
+}
@@ -0,0 +1,101 @@
+package com.hypertube.streaming.service;
+
+import com.hypertube.streaming.config.StreamingConfig;
+import com.hypertube.streaming.util.Mp4Faststart;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Conversion-free completion step for downloaded MP4s whose moov is at the end of the file.
+ *
+ * MP4s are served as-is (see {@link FFmpegService#needsConversion}), but with a trailing moov the
+ * browser must fetch the tail of the file before it can play anything. Such files get a
+ * faststart copy written by {@link Mp4Faststart}: a sequential copy with the sample tables moved
+ * to the front, without FFmpeg and without re-encoding.
+ *
+ * Metrics: streaming.faststart.duration (tagged by outcome)
+ */
+@Service
+@RequiredArgsConstructor
+@Slf4j
+public class Mp4FaststartService {
+
+    private final StreamingConfig streamingConfig;
+    private final MeterRegistry meterRegistry;
+
+    /**
+     * Checks if a file is an MP4 with its moov after the media data. Only the box headers of
+     * the top level are read.
+     *
+     * @param filePath The path to the video file
+     * @return true if a faststart copy should be made
+     */
+    public boolean needsFaststart(String filePath) {
+        if (!streamingConfig.getConversion().isFaststartEnabled() || filePath == null) {
+            return false;
+        }
+        // Other ISO BMFF extensions (mov, m4v) are remuxed by FFmpeg, which writes faststart anyway
+        if (!filePath.toLowerCase(Locale.ROOT).endsWith(".mp4")) {
+            return false;
+        }
+        try {
+            boolean needed = Mp4Faststart.needsFaststart(Paths.get(filePath));
+            if (needed) {
+                log.info("MP4 {} has its moov at the end of the file", filePath);
+            }
+            return needed;
+        } catch (IOException e) {
+            log.warn("Unable to read the MP4 structure of {}: {}", filePath, e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Writes a faststart copy of an MP4. The copy is written next to the output and renamed, so
+     * the output path never holds a partial file.
+     *
+     * @param inputPath The MP4 with a trailing moov
+     * @param outputPath Where to write the faststart copy
+     * @return true if successful, false otherwise
+     */
+    public boolean relocate(String inputPath, String outputPath) {
+        long startNanos = System.nanoTime();
+        Path output = Paths.get(outputPath);
+        Path temp = output.resolveSibling(output.getFileName().toString().replaceFirst("(\\.\\w+)$", ".part$1"));
+        boolean success = false;
+        try {
+            Path parent = output.toAbsolutePath().getParent();
+            if (parent != null) {
+                Files.createDirectories(parent);
+            }
+            Mp4Faststart.relocate(Paths.get(inputPath), temp);
+            Files.move(temp, output, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            success = true;
+
+            log.info("Moved moov to the front of {} ({} MB in {} ms)", outputPath,
+                    Files.size(output) / (1024 * 1024),
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos));
+        } catch (IOException e) {
+            log.error("Faststart rewrite of {} failed: {}", inputPath, e.getMessage(), e);
+            try {
+                Files.deleteIfExists(temp);
+            } catch (IOException cleanup) {
+                log.warn("Failed to delete {}: {}", temp, cleanup.getMessage());
+            }
+        } finally {
+            meterRegistry.timer("streaming.faststart.duration", "outcome", success ? "success" : "failure")
+                    .record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+        }
+        return success;
+    }
+}
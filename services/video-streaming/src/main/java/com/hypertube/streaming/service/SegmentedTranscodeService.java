@@ -0,0 +1,430 @@
+package com.hypertube.streaming.service;
+
+import com.hypertube.streaming.config.StreamingConfig;
+import com.hypertube.streaming.entity.DownloadJob.ConversionStrategy;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Service;
+import org.springframework.util.FileSystemUtils;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Parallel segmented transcoding of long videos.
+ *
+ * One FFmpeg process encodes a feature film serially on a handful of cores. Here the video is
+ * split at keyframes into chunks of about a minute, the chunks are encoded in parallel on a
+ * bounded pool shared by all conversions, and the encoded chunks are concatenated without
+ * re-encoding. Audio is encoded once as a separate task so chunk boundaries cause no gaps.
+ *
+ * Features:
+ * - Chunk boundaries on source keyframes, so every chunk decodes independently
+ * - Wall-clock time scales with the pool size (streaming.conversion.segmented-parallelism)
+ * - Every chunk takes its encoder threads from the {@link TranscodeScheduler} budget; the preset
+ *   is picked once per video so all chunks share the same encoder settings
+ * - Checkpointing: the chunk plan (keyed to the input's size and modification time) and every
+ *   finished chunk are kept on disk (written to a temporary file, then renamed); a restarted,
+ *   redelivered or retried conversion only encodes the missing chunks. A failed chunk or concat
+ *   only loses its own output
+ *
+ * Metrics: streaming.segmented.chunks.encoded, streaming.segmented.chunks.resumed,
+ * streaming.segmented.pool.active
+ */
+@Service
+@Slf4j
+public class SegmentedTranscodeService {
+
+    private static final String PLAN_FILE = "plan.txt";
+    private static final String AUDIO_FILE = "audio.m4a";
+    private static final String CONCAT_LIST_FILE = "chunks.txt";
+    private static final long CHUNK_TIMEOUT_MINUTES = 60;
+    private static final long CONCAT_TIMEOUT_MINUTES = 60;
+
+    private final StreamingConfig streamingConfig;
+    private final FFmpegService ffmpegService;
+    private final MediaAnalysisService mediaAnalysisService;
+    private final TranscodeScheduler transcodeScheduler;
+    private final ThreadPoolExecutor executor;
+    private final int threadsPerChunk;
+
+    private final Counter chunksEncoded;
+    private final Counter chunksResumed;
+
+    public SegmentedTranscodeService(StreamingConfig streamingConfig,
+                                     FFmpegService ffmpegService,
+                                     MediaAnalysisService mediaAnalysisService,
+                                     TranscodeScheduler transcodeScheduler,
+                                     MeterRegistry meterRegistry) {
+        this.streamingConfig = streamingConfig;
+        this.ffmpegService = ffmpegService;
+        this.mediaAnalysisService = mediaAnalysisService;
+        this.transcodeScheduler = transcodeScheduler;
+
+        StreamingConfig.Conversion conversion = streamingConfig.getConversion();
+        this.threadsPerChunk = Math.max(1, conversion.getSegmentedThreadsPerChunk());
+        int parallelism = conversion.getSegmentedParallelism() > 0
+                ? conversion.getSegmentedParallelism()
+                : Math.max(1, Runtime.getRuntime().availableProcessors() / threadsPerChunk);
+
+        AtomicInteger threadCount = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(parallelism, parallelism, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), runnable -> {
+                    Thread thread = new Thread(runnable, "segment-encode-" + threadCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        executor.allowCoreThreadTimeOut(true);
+
+        this.chunksEncoded = Counter.builder("streaming.segmented.chunks.encoded")
+                .description("Video chunks encoded by segmented transcoding")
+                .register(meterRegistry);
+        this.chunksResumed = Counter.builder("streaming.segmented.chunks.resumed")
+                .description("Video chunks reused from a checkpoint instead of being encoded again")
+                .register(meterRegistry);
+        meterRegistry.gauge("streaming.segmented.pool.active", executor, ThreadPoolExecutor::getActiveCount);
+
+        log.info("Segmented transcoding: {} parallel chunks, {} threads each", parallelism, threadsPerChunk);
+    }
+
+    /**
+     * Whether a conversion should use segmented transcoding: only full transcodes to MP4 of
+     * videos long enough for the split to pay off.
+     *
+     * @param durationSeconds The input duration from FFprobe
+     * @param strategy The conversion strategy
+     * @return true if {@link #transcode} should be used
+     */
+    public boolean shouldSegment(long durationSeconds, ConversionStrategy strategy) {
+        StreamingConfig.Conversion conversion = streamingConfig.getConversion();
+        return conversion.isSegmentedEnabled()
+                && strategy == ConversionStrategy.FULL_TRANSCODE
+                && durationSeconds >= conversion.getSegmentedMinDurationSeconds();
+    }
+
+    /**
+     * Transcodes a video to MP4 as parallel chunks, resuming from a previous checkpoint of the
+     * same job if there is one.
+     *
+     * @param jobId The download job ID (names the checkpoint directory)
+     * @param videoId The video ID (scheduling demand)
+     * @param inputPath The input video file path
+     * @param outputPath The output MP4 file path
+     * @param durationSeconds The input duration from FFprobe
+     * @param progressListener Receives the combined progress of all chunks (may be null)
+     * @return true if the conversion succeeded, false otherwise
+     */
+    public boolean transcode(UUID jobId, UUID videoId, String inputPath, String outputPath,
+                             double durationSeconds, Consumer<FFmpegService.Progress> progressListener) {
+        Path workDirectory = getWorkDirectory(jobId);
+        try {
+            List<Double> boundaries = loadOrCreatePlan(workDirectory, inputPath);
+            if (boundaries.isEmpty()) {
+                log.warn("No keyframes found in {}, cannot split", inputPath);
+                return false;
+            }
+
+            MediaAnalysisService.MediaInfo info = mediaAnalysisService.analyze(inputPath);
+            boolean hasAudio = info != null && info.audioCodec() != null;
+
+            String preset = transcodeScheduler.selectPreset();
+            log.info("Segmented transcode of job {}: {} chunks from {}, preset {}",
+                    jobId, boundaries.size(), inputPath, preset);
+
+            AtomicBoolean failed = new AtomicBoolean();
+            ProgressTracker tracker = new ProgressTracker(boundaries, durationSeconds, progressListener);
+            List<Future<Boolean>> tasks = new ArrayList<>();
+            if (hasAudio) {
+                tasks.add(executor.submit(() -> !failed.get()
+                        && encodeOnce(jobId, videoId, 1, workDirectory.resolve(AUDIO_FILE),
+                        audioCommand(inputPath), failed, null, -1)));
+            }
+            for (int i = 0; i < boundaries.size(); i++) {
+                int index = i;
+                double start = boundaries.get(i);
+                Double end = i + 1 < boundaries.size() ? boundaries.get(i + 1) : null;
+                Path chunk = workDirectory.resolve(chunkName(i));
+                tasks.add(executor.submit(() -> !failed.get()
+                        && encodeOnce(jobId, videoId, threadsPerChunk, chunk,
+                        chunkCommand(inputPath, start, end, preset), failed, tracker, index)));
+            }
+
+            boolean success = true;
+            for (Future<Boolean> task : tasks) {
+                success &= task.get();
+            }
+            if (!success) {
+                // Finished chunks stay on disk: the next attempt only encodes the missing ones
+                log.error("Segmented transcode of job {} failed, keeping checkpoint {}", jobId, workDirectory);
+                return false;
+            }
+
+            if (!concatenate(workDirectory, boundaries.size(), hasAudio, outputPath)) {
+                log.error("Concatenating the chunks of job {} failed, keeping checkpoint {}", jobId, workDirectory);
+                Files.deleteIfExists(Paths.get(outputPath));
+                return false;
+            }
+
+            FileSystemUtils.deleteRecursively(workDirectory);
+            log.info("Segmented transcode of job {} completed: {}", jobId, outputPath);
+            return true;
+
+        } catch (IOException | ExecutionException e) {
+            log.error("Segmented transcode of job {} failed: {}", jobId, e.getMessage(), e);
+            return false;
+        } catch (InterruptedException e) {
+            // Finished chunks stay on disk: the redelivered conversion resumes from them
+            log.warn("Segmented transcode of job {} was interrupted", jobId);
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Returns the chunk boundaries (start times in seconds) of a checkpoint, or plans them from
+     * the input keyframes. A checkpoint of a different input is discarded.
+     */
+    private List<Double> loadOrCreatePlan(Path workDirectory, String inputPath) throws IOException {
+        Path planFile = workDirectory.resolve(PLAN_FILE);
+        Path input = Paths.get(inputPath);
+        // Same check as the keyframe index: a replaced file of the same size is a different input
+        String inputSignature = "input=" + Files.size(input) + "," + Files.getLastModifiedTime(input).toMillis();
+
+        if (Files.isRegularFile(planFile)) {
+            List<String> lines = Files.readAllLines(planFile, StandardCharsets.UTF_8);
+            if (!lines.isEmpty() && lines.get(0).equals(inputSignature)) {
+                List<Double> boundaries = new ArrayList<>();
+                for (String line : lines.subList(1, lines.size())) {
+                    boundaries.add(Double.parseDouble(line));
+                }
+                log.info("Resuming segmented transcode from checkpoint {}", workDirectory);
+                return boundaries;
+            }
+            log.info("Discarding checkpoint of a different input: {}", workDirectory);
+            FileSystemUtils.deleteRecursively(workDirectory);
+        }
+
+        List<Double> boundaries = planChunks(ffmpegService.getKeyframeTimes(inputPath));
+        if (boundaries.isEmpty()) {
+            return boundaries;
+        }
+
+        Files.createDirectories(workDirectory);
+        List<String> lines = new ArrayList<>();
+        lines.add(inputSignature);
+        boundaries.forEach(boundary -> lines.add(String.format(Locale.ROOT, "%.6f", boundary)));
+        Path temporary = workDirectory.resolve(PLAN_FILE + ".tmp");
+        Files.write(temporary, lines, StandardCharsets.UTF_8);
+        Files.move(temporary, planFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return boundaries;
+    }
+
+    /**
+     * Picks the first keyframe at least one chunk length after the previous boundary.
+     */
+    private List<Double> planChunks(List<Double> keyframes) {
+        List<Double> boundaries = new ArrayList<>();
+        if (keyframes.isEmpty()) {
+            return boundaries;
+        }
+        double chunkSeconds = streamingConfig.getConversion().getSegmentedChunkSeconds();
+        double last = keyframes.get(keyframes.size() - 1);
+
+        // The first chunk starts at the beginning so it lines up with the separately encoded audio
+        boundaries.add(0.0);
+        for (double keyframe : keyframes) {
+            // Avoid a tiny last chunk: its fixed encoder startup cost outweighs the parallelism
+            if (keyframe - boundaries.get(boundaries.size() - 1) >= chunkSeconds
+                    && last - keyframe >= chunkSeconds / 2) {
+                boundaries.add(keyframe);
+            }
+        }
+        return boundaries;
+    }
+
+    /**
+     * Runs an FFmpeg command writing to a temporary file that is renamed to the target on
+     * success. An existing target is a finished checkpoint and is not encoded again.
+     * Chunk progress is reported to the tracker (null for the audio track).
+     */
+    private boolean encodeOnce(UUID jobId, UUID videoId, int threads, Path target,
+                               List<String> commandWithoutOutput, AtomicBoolean failed,
+                               ProgressTracker tracker, int chunk)
+            throws IOException, InterruptedException {
+        if (Files.isRegularFile(target)) {
+            chunksResumed.increment();
+            if (tracker != null) {
+                tracker.resumed(chunk);
+            }
+            return true;
+        }
+
+        // chunk_00001.mp4 -> chunk_00001.part.mp4
+        Path temporary = target.resolveSibling(target.getFileName().toString().replaceFirst("(\\.\\w+)$", ".part$1"));
+        List<String> command = new ArrayList<>(commandWithoutOutput);
+        command.addAll(List.of("-f", "mp4", "-y", temporary.toString()));
+
+        // The chunk command carries its own thread count; the grant only reserves the budget
+        TranscodeScheduler.Grant grant = transcodeScheduler.acquire(jobId, videoId, threads);
+        try {
+            if (failed.get()) {
+                return false;
+            }
+            Consumer<FFmpegService.Progress> chunkListener = tracker == null
+                    ? null
+                    : progress -> tracker.update(chunk, progress.outTimeSeconds());
+            if (!ffmpegService.runFfmpeg(command, CHUNK_TIMEOUT_MINUTES, chunkListener)) {
+                failed.set(true);
+                Files.deleteIfExists(temporary);
+                return false;
+            }
+        } finally {
+            grant.close();
+        }
+        Files.move(temporary, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        chunksEncoded.increment();
+        if (tracker != null) {
+            tracker.finished(chunk);
+        }
+        return true;
+    }
+
+    private List<String> chunkCommand(String inputPath, double start, Double end, String preset) {
+        // -ss before -i: fast input seek; start is a keyframe, so decoding starts exactly there
+        List<String> command = new ArrayList<>(List.of(
+                streamingConfig.getConversion().getFfmpegPath(),
+                "-ss", String.format(Locale.ROOT, "%.6f", start)
+        ));
+        if (end != null) {
+            command.addAll(List.of("-t", String.format(Locale.ROOT, "%.6f", end - start)));
+        }
+        command.addAll(List.of("-i", inputPath, "-map", "0:v:0", "-an", "-sn"));
+        command.addAll(ffmpegService.h264Arguments(preset));
+        command.addAll(List.of("-threads", String.valueOf(threadsPerChunk)));
+        return command;
+    }
+
+    private List<String> audioCommand(String inputPath) {
+        List<String> command = new ArrayList<>(List.of(
+                streamingConfig.getConversion().getFfmpegPath(),
+                "-i", inputPath,
+                "-map", "0:a:0", "-vn", "-sn"
+        ));
+        command.addAll(ffmpegService.aacArguments());
+        return command;
+    }
+
+    /**
+     * Joins the encoded chunks (and the audio track) with the concat demuxer; streams are copied.
+     */
+    private boolean concatenate(Path workDirectory, int chunkCount, boolean hasAudio, String outputPath)
+            throws IOException, InterruptedException {
+        List<String> entries = new ArrayList<>();
+        for (int i = 0; i < chunkCount; i++) {
+            // Concat list syntax: single quotes inside a quoted path are written as '\''
+            entries.add("file '" + workDirectory.resolve(chunkName(i)).toString().replace("'", "'\\''") + "'");
+        }
+        Path listFile = workDirectory.resolve(CONCAT_LIST_FILE);
+        Files.write(listFile, entries, StandardCharsets.UTF_8);
+
+        Path output = Paths.get(outputPath);
+        if (output.getParent() != null) {
+            Files.createDirectories(output.getParent());
+        }
+
+        List<String> command = new ArrayList<>(List.of(
+                streamingConfig.getConversion().getFfmpegPath(),
+                "-f", "concat", "-safe", "0", "-i", listFile.toString()
+        ));
+        if (hasAudio) {
+            command.addAll(List.of("-i", workDirectory.resolve(AUDIO_FILE).toString(), "-map", "0:v:0", "-map", "1:a:0"));
+        }
+        command.addAll(List.of("-c", "copy", "-movflags", "+faststart", "-y", outputPath));
+
+        return ffmpegService.runFfmpeg(command, CONCAT_TIMEOUT_MINUTES, null) && Files.size(output) > 0;
+    }
+
+    private Path getWorkDirectory(UUID jobId) {
+        return Paths.get(streamingConfig.getStorage().getTempPath(), "segments", jobId.toString());
+    }
+
+    /**
+     * Combines the progress of parallel chunks into progress of the whole video. The speed is
+     * measured over this run only, so chunks resumed from a checkpoint do not inflate it.
+     */
+    private static final class ProgressTracker {
+
+        private final double[] lengths;
+        private final double[] done;
+        private final double durationSeconds;
+        private final Consumer<FFmpegService.Progress> listener;
+        private final long startNanos = System.nanoTime();
+        private double resumedSeconds;
+
+        private ProgressTracker(List<Double> boundaries, double durationSeconds,
+                                Consumer<FFmpegService.Progress> listener) {
+            int count = boundaries.size();
+            this.lengths = new double[count];
+            this.done = new double[count];
+            this.durationSeconds = durationSeconds;
+            this.listener = listener;
+            for (int i = 0; i < count; i++) {
+                double end = i + 1 < count ? boundaries.get(i + 1) : durationSeconds;
+                lengths[i] = Math.max(0, end - boundaries.get(i));
+            }
+        }
+
+        private synchronized void resumed(int chunk) {
+            done[chunk] = lengths[chunk];
+            resumedSeconds += lengths[chunk];
+        }
+
+        private void finished(int chunk) {
+            update(chunk, lengths[chunk]);
+        }
+
+        private void update(int chunk, double outTimeSeconds) {
+            FFmpegService.Progress progress;
+            synchronized (this) {
+                done[chunk] = Math.min(lengths[chunk], outTimeSeconds);
+                double total = 0;
+                for (double seconds : done) {
+                    total += seconds;
+                }
+                double elapsed = (System.nanoTime() - startNanos) / 1_000_000_000.0;
+                double speed = elapsed > 0 ? (total - resumedSeconds) / elapsed : 0;
+                progress = new FFmpegService.Progress(Math.min(total, durationSeconds), speed);
+            }
+            if (listener != null) {
+                listener.accept(progress);
+            }
+        }
+    }
+
+    private static String chunkName(int index) {
+        return String.format(Locale.ROOT, "chunk_%05d.mp4", index);
+    }
+}
@@ -0,0 +1,136 @@
+package com.hypertube.streaming.service;
+
+import com.hypertube.streaming.config.StreamingConfig;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * In-memory cache of resolved stream descriptors, keyed by download job ID.
+ *
+ * A playback session issues hundreds of range requests for the same job. Resolving the job
+ * (database lookup, torrent/cache fallbacks, File.exists/length, content type probing) once and
+ * reusing the result removes all of that from the per-request path.
+ *
+ * Entries are invalidated on job state transitions (download completed or failed, conversion
+ * finished, cancellation, cache eviction). Invalidations issued inside a transaction are
+ * repeated after commit, so a concurrent request cannot re-cache the pre-commit state. A TTL
+ * bounds staleness for changes that bypass the service (e.g. files removed by hand).
+ *
+ * Metrics: streaming.descriptor.cache.requests{result=hit|miss}, streaming.descriptor.cache.size
+ */
+@Component
+@Slf4j
+public class StreamDescriptorCache {
+
+    /**
+     * Everything the streaming path needs to know about a job's video file.
+     *
+     * @param jobId The download job ID
+     * @param path Resolved video file path
+     * @param size Final file size in bytes (the expected size while still downloading)
+     * @param contentType MIME type of the file
+     * @param lastModified File modification time in epoch milliseconds
+     * @param complete Whether the file is fully downloaded and no longer changes
+     * @param etag Strong ETag of a complete file, or null while it is still growing
+     * @param bitrateKbps Playback bitrate used for pacing, or 0 if unknown
+     */
+    public record StreamDescriptor(UUID jobId, Path path, long size, String contentType,
+                                   long lastModified, boolean complete, String etag, int bitrateKbps) {
+    }
+
+    private record Entry(StreamDescriptor descriptor, long expiresAtMillis) {
+    }
+
+    private final StreamingConfig streamingConfig;
+    private final Map<UUID, Entry> entries = new ConcurrentHashMap<>();
+    private final Counter hits;
+    private final Counter misses;
+
+    public StreamDescriptorCache(StreamingConfig streamingConfig, MeterRegistry meterRegistry) {
+        this.streamingConfig = streamingConfig;
+        this.hits = Counter.builder("streaming.descriptor.cache.requests")
+                .tag("result", "hit")
+                .description("Stream descriptor lookups served from memory")
+                .register(meterRegistry);
+        this.misses = Counter.builder("streaming.descriptor.cache.requests")
+                .tag("result", "miss")
+                .description("Stream descriptor lookups that had to resolve the job")
+                .register(meterRegistry);
+        meterRegistry.gauge("streaming.descriptor.cache.size", entries, Map::size);
+    }
+
+    /**
+     * Returns the cached descriptor for a job, resolving and caching it on a miss.
+     *
+     * @param jobId The download job ID
+     * @param resolver Resolves the descriptor; may return null (not cached)
+     * @return The descriptor, or null if the job cannot be streamed
+     */
+    public StreamDescriptor get(UUID jobId, Function<UUID, StreamDescriptor> resolver) {
+        long now = System.currentTimeMillis();
+        Entry entry = entries.get(jobId);
+        if (entry != null && entry.expiresAtMillis() > now) {
+            hits.increment();
+            return entry.descriptor();
+        }
+
+        misses.increment();
+        StreamDescriptor descriptor = resolver.apply(jobId);
+        if (descriptor != null) {
+            StreamingConfig.Delivery delivery = streamingConfig.getDelivery();
+            if (entries.size() >= delivery.getDescriptorCacheMaxEntries()) {
+                entries.values().removeIf(e -> e.expiresAtMillis() <= now);
+                if (entries.size() >= delivery.getDescriptorCacheMaxEntries()) {
+                    log.debug("Stream descriptor cache full, clearing {} entries", entries.size());
+                    entries.clear();
+                }
+            }
+            entries.put(jobId, new Entry(descriptor, now + delivery.getDescriptorCacheTtlSeconds() * 1000L));
+        }
+        return descriptor;
+    }
+
+    /**
+     * Drops the descriptor of a job whose state changed.
+     *
+     * @param jobId The download job ID
+     */
+    public void invalidate(UUID jobId) {
+        entries.remove(jobId);
+        afterCommit(() -> entries.remove(jobId));
+        log.debug("Invalidated stream descriptor for job: {}", jobId);
+    }
+
+    /**
+     * Drops every descriptor pointing at a file (used when a cached video is deleted).
+     *
+     * @param filePath The deleted file path
+     */
+    public void invalidateByPath(String filePath) {
+        Path path = Path.of(filePath);
+        Runnable removal = () -> entries.values().removeIf(e -> e.descriptor().path().equals(path));
+        removal.run();
+        afterCommit(removal);
+    }
+
+    private void afterCommit(Runnable action) {
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    action.run();
+                }
+            });
+        }
+    }
+}
@@ -4,88 +4,143 @@ import com.hypertube.streaming.config.StreamingConfig;
 import com.hypertube.streaming.entity.DownloadJob;
 import com.hypertube.streaming.repository.CachedVideoRepository;
 import com.hypertube.streaming.repository.DownloadJobRepository;
+import com.hypertube.streaming.torrent.MagnetLink;
+import com.hypertube.streaming.torrent.ResumeStore;
+import com.hypertube.streaming.torrent.TorrentDownload;
+import com.hypertube.streaming.torrent.TorrentEngine;
+import com.hypertube.streaming.torrent.TorrentMetainfo;
+import com.hypertube.streaming.util.AvailabilityMap;
+import com.hypertube.streaming.util.PositionalReader;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
 import jakarta.annotation.PostConstruct;
 import jakarta.annotation.PreDestroy;
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
 import java.time.LocalDateTime;
+import java.util.Comparator;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
 
 /**
  * TorrentService - Handles BitTorrent downloads for video streaming with progressive streaming support.
  *
- * IMPORTANT: This is currently a placeholder implementation.
+ * Downloads run on an embedded pure-Java engine ({@link TorrentEngine}). Each job downloads into
+ * its own directory below streaming.torrent.download-path, and only the pieces of the torrent's
+ * main video file are fetched.
  *
- * The full implementation requires libtorrent4j which needs to be built from source
- * or obtained separately. See: https://github.com/aldenml/libtorrent4j
- *
- * Key features to be implemented when libtorrent4j is available:
- * - Sequential piece downloading (not rarest-first) for streaming optimization
- * - Buffer threshold (5-10% minimum) before streaming begins
- * - Progress tracking and callbacks
- * - Partial file serving during active downloads
- *
- * Implementation notes for when libtorrent4j is integrated:
- * 1. Initialize SessionManager with sequential download settings
- * 2. Configure DHT for magnet link support
- * 3. Set connection limits from StreamingConfig
- * 4. Implement alert processor thread for torrent events
- * 5. Handle TORRENT_FINISHED, TORRENT_ERROR, STATE_UPDATE, METADATA_RECEIVED alerts
- * 6. Track active torrents with ConcurrentHashMap<UUID, TorrentHandle>
- * 7. Implement buffer threshold check (10% default)
- * 8. Provide progress callbacks to DownloadWorker
+ * Features:
+ * - Magnet links and .torrent URLs (HTTP/HTTPS)
+ * - Streaming-first piece order: the first piece and the end of the file (container header and
+ *   index) first, then by deadline and in order after the position players read from (see
+ *   {@link #reportPlaybackPosition})
+ * - Partial file serving during active downloads: verified pieces are marked on the job's
+ *   {@link AvailabilityMap} (see {@link #trackPartialFile}), which VideoStreamingService uses to
+ *   serve ranges while the download is running
+ * - Reads of pieces still in the engine's write-back buffer served from memory
+ *   (see {@link #bufferedSource})
+ * - Fast resume: running downloads checkpoint their state next to their directory, and
+ *   {@link #resumeDownload} continues them after a restart without rehashing what they had
+ * - At most one download per job: a job is reserved from the moment its start is requested
+ *   (before the claiming transaction commits) until it is registered, and counts as running
+ *   meanwhile, so a resume scan cannot start it a second time
+ * - Progress, completion and failure reported through {@link ProgressCallback}
  */
 @Service
 @Slf4j
 public class TorrentService {
 
-    private static final double BUFFER_THRESHOLD_PERCENT = 10.0; // 10% buffer before streaming
+    private static final Duration TORRENT_FETCH_TIMEOUT = Duration.ofSeconds(30);
+    private static final int MAX_TORRENT_FILE_BYTES = 10 * 1024 * 1024;
 
     private final StreamingConfig streamingConfig;
     private final DownloadJobRepository downloadJobRepository;
     private final CachedVideoRepository cachedVideoRepository;
+    private final StreamDescriptorCache streamDescriptorCache;
 
-    private final Map<UUID, Integer> mockProgress = new ConcurrentHashMap<>();
+    private final Map<UUID, PartialFile> partialFiles = new ConcurrentHashMap<>();
+    private final Map<UUID, TorrentDownload> downloads = new ConcurrentHashMap<>();
+    private final Set<UUID> starting = ConcurrentHashMap.newKeySet(); // reserved, not registered yet
+    private final HttpClient httpClient = HttpClient.newBuilder()
+            .connectTimeout(TORRENT_FETCH_TIMEOUT)
+            .followRedirects(HttpClient.Redirect.NORMAL)
+            .build();
+    private TorrentEngine engine;
 
+    /**
+     * A file that is still being downloaded together with the ranges already on disk.
+     */
+    private record PartialFile(String filePath, AvailabilityMap availability) {
+    }
+
+    /**
+     * Receives the progress of a download. Completion and failure have no-op defaults, so a
+     * lambda can be used where only progress matters.
+     */
     @FunctionalInterface
     public interface ProgressCallback {
         void onProgress(UUID jobId, int progress, long downloadSpeed, int etaSeconds);
+
+        /**
+         * The video file is completely downloaded and verified.
+         */
+        default void onCompleted(UUID jobId, String filePath) {
+        }
+
+        default void onFailed(UUID jobId, String errorMessage) {
+        }
     }
 
     public TorrentService(StreamingConfig streamingConfig,
                          DownloadJobRepository downloadJobRepository,
-                         CachedVideoRepository cachedVideoRepository) {
+                         CachedVideoRepository cachedVideoRepository,
+                         StreamDescriptorCache streamDescriptorCache) {
         this.streamingConfig = streamingConfig;
         this.downloadJobRepository = downloadJobRepository;
         this.cachedVideoRepository = cachedVideoRepository;
+        this.streamDescriptorCache = streamDescriptorCache;
     }
 
     @PostConstruct
     public void init() {
-        log.warn("=================================================================");
-        log.warn("TorrentService initialized with PLACEHOLDER implementation");
-        log.warn("libtorrent4j is required for actual torrent download functionality");
-        log.warn("See: https://github.com/aldenml/libtorrent4j");
-        log.warn("=================================================================");
-        log.info("Service configuration:");
+        engine = new TorrentEngine(streamingConfig.getTorrent());
+        engine.start();
+        log.info("Torrent engine started:");
         log.info("- Download path: {}", streamingConfig.getTorrent().getDownloadPath());
+        log.info("- Listening port: {}", engine.getPort());
         log.info("- Max connections: {}", streamingConfig.getTorrent().getMaxConnections());
-        log.info("- Buffer threshold: {}%", BUFFER_THRESHOLD_PERCENT);
+        log.info("- Streaming buffer: {} MB", streamingConfig.getTorrent().getStreamingBufferBytes() / (1024 * 1024));
     }
 
     @PreDestroy
     public void shutdown() {
         log.info("Shutting down TorrentService");
-        mockProgress.clear();
+        engine.close();
+        downloads.clear();
+        partialFiles.clear();
     }
 
     /**
-     * Starts a torrent download with sequential piece downloading.
-     *
-     * PLACEHOLDER: This method logs the request but doesn't perform actual downloads.
+     * Starts a torrent download with streaming-first piece ordering. Returns once the download
+     * is queued; progress, completion and failure are reported through the callback. Called
+     * inside a transaction, the download starts after commit, so callbacks see the committed job.
      *
      * @param jobId The download job ID
      * @param videoId The video ID
@@ -95,26 +150,49 @@ public class TorrentService {
      */
     public void startDownload(UUID jobId, UUID videoId, UUID torrentId,
                             String magnetOrUrl, ProgressCallback progressCallback) {
-        log.warn("PLACEHOLDER: startDownload called for job: {}", jobId);
-        log.info("Video ID: {}, Torrent ID: {}", videoId, torrentId);
-        log.info("Magnet/URL: {}", magnetOrUrl);
-        log.warn("Actual download requires libtorrent4j integration");
+        log.info("Starting download for job: {} (video: {}, torrent: {})", jobId, videoId, torrentId);
+        if (!reserve(jobId)) {
+            log.warn("Download for job {} is already running, not starting it again", jobId);
+            return;
+        }
 
+        boolean deferred = false;
         try {
-            // Update job status
-            downloadJobRepository.findById(jobId).ifPresent(job -> {
-                job.setStatus(DownloadJob.DownloadStatus.PENDING);
-                job.setProgress(0);
-                job.setErrorMessage("Torrent download not yet implemented - requires libtorrent4j");
-                job.setUpdatedAt(LocalDateTime.now());
-                downloadJobRepository.save(job);
-            });
+            if (magnetOrUrl == null || magnetOrUrl.isBlank()) {
+                throw new IllegalArgumentException("No magnet link or torrent URL");
+            }
+            Path directory = Paths.get(streamingConfig.getTorrent().getDownloadPath(), jobId.toString());
+            TorrentDownload.Listener listener = new JobListener(jobId, progressCallback);
+            ResumeStore resume = ResumeStore.create(resumePath(jobId), magnetOrUrl);
+
+            Runnable start;
+            if (MagnetLink.isMagnet(magnetOrUrl)) {
+                MagnetLink magnet = MagnetLink.parse(magnetOrUrl);
+                start = () -> register(jobId, engine.add(magnet, directory, resume, listener));
+            } else {
+                TorrentMetainfo metainfo = TorrentMetainfo.parse(fetchTorrentFile(magnetOrUrl));
+                start = () -> register(jobId, engine.add(metainfo, directory, resume, listener));
+            }
+
+            if (TransactionSynchronizationManager.isSynchronizationActive()) {
+                TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                    @Override
+                    public void afterCommit() {
+                        start.run();
+                    }
 
-            // Store mock progress
-            mockProgress.put(jobId, 0);
+                    @Override
+                    public void afterCompletion(int status) {
+                        starting.remove(jobId); // also on rollback
+                    }
+                });
+                deferred = true;
+            } else {
+                start.run();
+            }
 
         } catch (Exception e) {
-            log.error("Error in placeholder startDownload for job: {}", jobId, e);
+            log.error("Failed to start download for job: {}", jobId, e);
 
             downloadJobRepository.findById(jobId).ifPresent(job -> {
                 job.setStatus(DownloadJob.DownloadStatus.FAILED);
@@ -122,69 +200,372 @@ public class TorrentService {
                 job.setUpdatedAt(LocalDateTime.now());
                 downloadJobRepository.save(job);
             });
+        } finally {
+            if (!deferred) {
+                starting.remove(jobId);
+            }
+        }
+    }
+
+    /**
+     * Continues a download interrupted by a restart from its fast-resume data. Pieces the last
+     * checkpoint recorded are taken as they are; only pieces written after it are verified.
+     *
+     * @param jobId The download job ID
+     * @param progressCallback Callback for progress updates
+     * @return false if the job has no usable resume data; true if it was resumed or is running
+     *         already
+     */
+    public boolean resumeDownload(UUID jobId, ProgressCallback progressCallback) {
+        if (!reserve(jobId)) {
+            log.info("Download for job {} is already running, nothing to resume", jobId);
+            return true;
+        }
+        try {
+            return resume(jobId, progressCallback);
+        } finally {
+            starting.remove(jobId);
+        }
+    }
+
+    private boolean resume(UUID jobId, ProgressCallback progressCallback) {
+        ResumeStore resume;
+        try {
+            resume = ResumeStore.load(resumePath(jobId));
+        } catch (NoSuchFileException e) {
+            log.warn("No resume data for job: {}", jobId);
+            return false;
+        } catch (IOException e) {
+            log.warn("Unreadable resume data for job {}: {}", jobId, e.getMessage());
+            return false;
+        }
+
+        try {
+            Path directory = Paths.get(streamingConfig.getTorrent().getDownloadPath(), jobId.toString());
+            TorrentDownload.Listener listener = new JobListener(jobId, progressCallback);
+            if (resume.getInfoBytes() != null) {
+                // No need to fetch the .torrent or the metadata again
+                TorrentMetainfo metainfo = TorrentMetainfo.fromInfo(resume.getInfoBytes(), resume.getTrackers());
+                register(jobId, engine.add(metainfo, directory, resume, listener));
+            } else if (MagnetLink.isMagnet(resume.getSource())) {
+                register(jobId, engine.add(MagnetLink.parse(resume.getSource()), directory, resume, listener));
+            } else {
+                TorrentMetainfo metainfo = TorrentMetainfo.parse(fetchTorrentFile(resume.getSource()));
+                register(jobId, engine.add(metainfo, directory, resume, listener));
+            }
+            log.info("Resumed download for job: {}", jobId);
+            return true;
+        } catch (Exception e) {
+            log.warn("Cannot resume download for job {}: {}", jobId, e.getMessage());
+            resume.close();
+            return false;
+        }
+    }
+
+    private Path resumePath(UUID jobId) {
+        return Paths.get(streamingConfig.getTorrent().getDownloadPath(), jobId + ".resume");
+    }
+
+    /**
+     * Reserves a job for a download about to be added to the engine.
+     *
+     * @return false if the job is running or being started already
+     */
+    private boolean reserve(UUID jobId) {
+        if (!starting.add(jobId)) {
+            return false;
+        }
+        if (downloads.containsKey(jobId)) {
+            starting.remove(jobId);
+            return false;
+        }
+        return true;
+    }
+
+    private void register(UUID jobId, TorrentDownload download) {
+        TorrentDownload running = downloads.putIfAbsent(jobId, download);
+        if (running != null) {
+            // Not expected while the job is reserved; never leave two downloads writing one directory
+            engine.remove(download);
+            throw new IllegalStateException("Download for job " + jobId + " is already running");
+        }
+        TorrentDownload.State state = download.getState();
+        if (state == TorrentDownload.State.COMPLETED || state == TorrentDownload.State.FAILED) {
+            downloads.remove(jobId, download); // finished before it was registered
+        }
+    }
+
+    private byte[] fetchTorrentFile(String url) throws IOException, InterruptedException {
+        URI uri = URI.create(url);
+        if (uri.getScheme() == null || !uri.getScheme().matches("(?i)https?")) {
+            throw new IllegalArgumentException("Unsupported torrent source: " + url);
+        }
+        HttpRequest request = HttpRequest.newBuilder(uri).timeout(TORRENT_FETCH_TIMEOUT).GET().build();
+        HttpResponse<byte[]> response = httpClient.send(request, HttpResponse.BodyHandlers.ofByteArray());
+        if (response.statusCode() != 200) {
+            throw new IOException("Fetching " + url + " returned HTTP " + response.statusCode());
+        }
+        if (response.body().length > MAX_TORRENT_FILE_BYTES) {
+            throw new IOException("Torrent file too large: " + response.body().length + " bytes");
+        }
+        return response.body();
+    }
+
+    /**
+     * Forwards the events of a download to the partial file registry and the job's callback.
+     */
+    private class JobListener implements TorrentDownload.Listener {
+
+        private final UUID jobId;
+        private final ProgressCallback callback;
+
+        private JobListener(UUID jobId, ProgressCallback callback) {
+            this.jobId = jobId;
+            this.callback = callback;
+        }
+
+        @Override
+        public void onMetadata(TorrentDownload download) {
+            trackPartialFile(jobId, download.getFilePath().toString(), download.getFileLength());
+            streamDescriptorCache.invalidate(jobId);
+        }
+
+        @Override
+        public void onDataAvailable(TorrentDownload download, long start, long endExclusive) {
+            AvailabilityMap availability = getAvailability(jobId);
+            if (availability != null) {
+                availability.markAvailable(start, endExclusive);
+            }
+        }
+
+        @Override
+        public void onProgress(TorrentDownload download) {
+            long length = download.getFileLength();
+            if (length <= 0) {
+                return;
+            }
+            long verified = download.getVerifiedBytes();
+            long speed = download.getDownloadRate();
+            int progress = (int) Math.min(99, verified * 100 / length);
+            int eta = speed > 0 ? (int) Math.min(Integer.MAX_VALUE, (length - verified) / speed) : -1;
+            callback.onProgress(jobId, progress, speed, eta);
+        }
+
+        @Override
+        public void onCompleted(TorrentDownload download) {
+            downloads.remove(jobId, download);
+            log.info("Download completed for job: {}", jobId);
+            callback.onProgress(jobId, 100, 0, 0);
+            callback.onCompleted(jobId, download.getFilePath().toString());
+            // The job records the file from here on
+            partialFiles.remove(jobId);
+        }
+
+        @Override
+        public void onFailed(TorrentDownload download, String message) {
+            downloads.remove(jobId, download);
+            callback.onFailed(jobId, message);
+            releasePartialFile(jobId);
         }
     }
 
     /**
      * Checks if a download has reached the buffer threshold and is ready for streaming.
      *
-     * PLACEHOLDER: Always returns false until libtorrent4j is integrated.
+     * The job is ready once a contiguous head of {@code streaming.torrent.streaming-buffer-bytes}
+     * (or the whole file, if smaller) is on disk.
      *
      * @param jobId The download job ID
      * @return true if ready for streaming, false otherwise
      */
     public boolean isReadyForStreaming(UUID jobId) {
-        Integer progress = mockProgress.get(jobId);
-        if (progress == null) {
+        PartialFile partialFile = partialFiles.get(jobId);
+        if (partialFile == null) {
             return false;
         }
+        AvailabilityMap availability = partialFile.availability();
+        long required = Math.min(availability.getTotalLength(),
+                streamingConfig.getTorrent().getStreamingBufferBytes());
+        return availability.getContiguousPrefix() >= required;
+    }
+
+    /**
+     * Tells a running download where a player reads its file, so the pieces after that position
+     * are fetched first (and a seek redirects the download). Does nothing for finished jobs.
+     *
+     * @param jobId The download job ID
+     * @param offset Read position in the video file
+     * @param bitrateKbps Bitrate of the video, or 0 if unknown (streaming.torrent.assumed-bitrate-kbps
+     *                    is used)
+     */
+    public void reportPlaybackPosition(UUID jobId, long offset, int bitrateKbps) {
+        TorrentDownload download = downloads.get(jobId);
+        if (download == null) {
+            return;
+        }
+        int kbps = bitrateKbps > 0 ? bitrateKbps : streamingConfig.getTorrent().getAssumedBitrateKbps();
+        download.setPlaybackPosition(offset, kbps * 1000L / 8);
+    }
+
+    /**
+     * Wraps a source of a download's file so that bytes still held in the torrent's write-back
+     * buffer are read from memory; everything else, and everything once the download has
+     * finished, is read through the given source.
+     *
+     * @param jobId The download job ID
+     * @param fileSource Source reading the file from disk
+     * @return The wrapping source
+     */
+    public PositionalReader.Source bufferedSource(UUID jobId, PositionalReader.Source fileSource) {
+        return () -> new WriteBackReader(jobId, fileSource.open());
+    }
+
+    /**
+     * Reads from the write-back buffer of a running download, falling back to the file.
+     */
+    private class WriteBackReader implements PositionalReader {
+
+        private static final int TRANSFER_CHUNK_SIZE = 64 * 1024;
+
+        private final UUID jobId;
+        private final PositionalReader file;
+        private ByteBuffer chunk;
+
+        private WriteBackReader(UUID jobId, PositionalReader file) {
+            this.jobId = jobId;
+            this.file = file;
+        }
+
+        @Override
+        public int read(ByteBuffer dst, long position) throws IOException {
+            TorrentDownload download = downloads.get(jobId);
+            int buffered = download != null ? download.readBuffered(position, dst) : 0;
+            return buffered > 0 ? buffered : file.read(dst, position);
+        }
+
+        @Override
+        public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+            TorrentDownload download = downloads.get(jobId);
+            if (download != null) {
+                if (chunk == null) {
+                    chunk = ByteBuffer.allocate(TRANSFER_CHUNK_SIZE);
+                }
+                chunk.clear().limit((int) Math.min(TRANSFER_CHUNK_SIZE, count));
+                if (download.readBuffered(position, chunk) > 0) {
+                    chunk.flip();
+                    return target.write(chunk);
+                }
+            }
+            return file.transferTo(position, count, target);
+        }
 
-        // In real implementation, check if progress >= BUFFER_THRESHOLD_PERCENT
-        return progress >= BUFFER_THRESHOLD_PERCENT;
+        @Override
+        public void close() throws IOException {
+            file.close();
+        }
+    }
+
+    /**
+     * Registers the file a download is writing to and returns the map on which the download
+     * layer marks the byte ranges that have landed on disk.
+     *
+     * @param jobId The download job ID
+     * @param filePath Path of the (possibly preallocated) file being written
+     * @param totalLength Final size of the file in bytes
+     * @return The availability map for the file
+     */
+    public AvailabilityMap trackPartialFile(UUID jobId, String filePath, long totalLength) {
+        return partialFiles.computeIfAbsent(jobId,
+                id -> new PartialFile(filePath, new AvailabilityMap(totalLength))).availability();
+    }
+
+    /**
+     * Forgets the partial file of a download that stopped before completing; readers waiting
+     * for its missing ranges give up.
+     */
+    private void releasePartialFile(UUID jobId) {
+        PartialFile partialFile = partialFiles.remove(jobId);
+        if (partialFile != null) {
+            partialFile.availability().abandon();
+        }
+    }
+
+    /**
+     * Gets the availability map of a download that is still in progress.
+     *
+     * @param jobId The download job ID
+     * @return The availability map, or null if the job has no partial file registered
+     */
+    public AvailabilityMap getAvailability(UUID jobId) {
+        PartialFile partialFile = partialFiles.get(jobId);
+        return partialFile != null ? partialFile.availability() : null;
     }
 
     /**
      * Gets the file path for a download job.
      *
-     * PLACEHOLDER: Returns null until libtorrent4j is integrated.
+     * Returns the video file of the torrent once its metadata is known, including while the
+     * download is still running.
      *
      * @param jobId The download job ID
      * @return The file path, or null if not available
      */
     public String getFilePath(UUID jobId) {
-        log.debug("PLACEHOLDER: getFilePath called for job: {}", jobId);
-
-        // In real implementation:
-        // 1. Get TorrentHandle from activeTorrents map
-        // 2. Get TorrentInfo from handle
-        // 3. Combine savePath + fileName
-        // 4. Return full file path
+        PartialFile partialFile = partialFiles.get(jobId);
+        return partialFile != null ? partialFile.filePath() : null;
+    }
 
-        return null;
+    /**
+     * Returns the jobs whose download runs on this instance, including those being started.
+     */
+    public Set<UUID> getRunningJobIds() {
+        Set<UUID> running = new HashSet<>(starting);
+        running.addAll(downloads.keySet());
+        return Set.copyOf(running);
     }
 
     /**
-     * Cancels a download job.
-     *
-     * PLACEHOLDER: Updates database status but doesn't stop actual downloads.
+     * Cancels a download job: stops the torrent and deletes what was downloaded.
      *
      * @param jobId The download job ID
      */
     public void cancelDownload(UUID jobId) {
-        log.info("PLACEHOLDER: cancelDownload called for job: {}", jobId);
+        log.info("Cancelling download for job: {}", jobId);
 
-        mockProgress.remove(jobId);
+        TorrentDownload download = downloads.remove(jobId);
+        if (download != null) {
+            engine.remove(download);
+            deleteDirectory(Paths.get(streamingConfig.getTorrent().getDownloadPath(), jobId.toString()));
+        }
+        try {
+            ResumeStore.delete(resumePath(jobId));
+        } catch (IOException e) {
+            log.warn("Failed to delete resume data of job {}: {}", jobId, e.getMessage());
+        }
+        releasePartialFile(jobId);
+        streamDescriptorCache.invalidate(jobId);
 
         downloadJobRepository.findById(jobId).ifPresent(job -> {
             job.setStatus(DownloadJob.DownloadStatus.CANCELLED);
             job.setUpdatedAt(LocalDateTime.now());
             downloadJobRepository.save(job);
         });
+    }
 
-        // In real implementation:
-        // 1. Remove torrent handle from SessionManager
-        // 2. Remove from activeTorrents map
-        // 3. Remove progress callback
-        // 4. Clean up partial download files if needed
+    private void deleteDirectory(Path directory) {
+        if (!Files.isDirectory(directory)) {
+            return;
+        }
+        try (Stream<Path> paths = Files.walk(directory)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> {
+                try {
+                    Files.deleteIfExists(path);
+                } catch (IOException e) {
+                    log.warn("Failed to delete {}: {}", path, e.getMessage());
+                }
+            });
+        } catch (IOException e) {
+            log.warn("Failed to delete partial download {}: {}", directory, e.getMessage());
+        }
     }
 }
@@ -0,0 +1,250 @@
+package com.hypertube.streaming.service;
+
+import com.hypertube.streaming.config.StreamingConfig;
+import com.hypertube.streaming.entity.DownloadJob;
+import com.hypertube.streaming.repository.DownloadJobRepository;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * CPU-aware scheduling of FFmpeg encodes.
+ *
+ * Encoders are granted threads from a budget of a share of the available cores
+ * (streaming.conversion.scheduler-cpu-share), so concurrent conversions cannot oversubscribe the
+ * CPU and starve the threads serving streams. Conversions waiting for threads are served by
+ * viewer demand instead of arrival order.
+ *
+ * Features:
+ * - Encoder thread budget shared by single-process conversions and segmented chunks
+ * - Waiting encodes ordered by the number of users waiting for the same video, with aging so
+ *   unpopular videos are not starved
+ * - Faster x264 presets as the backlog of waiting conversions grows
+ *
+ * Metrics: streaming.transcode.queue.depth, streaming.transcode.queue.wait,
+ * streaming.transcode.threads.used (encode fps: streaming.transcode.encode.fps, see FFmpegService)
+ */
+@Service
+@Slf4j
+public class TranscodeScheduler {
+
+    private static final List<DownloadJob.DownloadStatus> WAITING_STATUSES = List.of(
+            DownloadJob.DownloadStatus.PENDING,
+            DownloadJob.DownloadStatus.DOWNLOADING,
+            DownloadJob.DownloadStatus.CONVERTING
+    );
+
+    // A waiter gains one demand point per this many seconds of waiting
+    private static final long AGING_SECONDS_PER_POINT = 600;
+    private static final long DEMAND_REFRESH_MS = 10000;
+
+    private final DownloadJobRepository downloadJobRepository;
+    private final int capacity;
+    private final List<String> presets;
+    private final int presetBacklogStep;
+    private final Timer queueWait;
+
+    // Guarded by this
+    private final List<Waiter> waiters = new ArrayList<>();
+    private int threadsInUse;
+    private long sequence;
+
+    public TranscodeScheduler(StreamingConfig streamingConfig,
+                              DownloadJobRepository downloadJobRepository,
+                              MeterRegistry meterRegistry) {
+        this.downloadJobRepository = downloadJobRepository;
+
+        StreamingConfig.Conversion conversion = streamingConfig.getConversion();
+        this.capacity = Math.max(1,
+                (int) (Runtime.getRuntime().availableProcessors() * conversion.getSchedulerCpuShare()));
+        this.presets = Arrays.stream(conversion.getPresets().split(","))
+                .map(String::trim)
+                .filter(preset -> !preset.isEmpty())
+                .toList();
+        this.presetBacklogStep = Math.max(1, conversion.getPresetBacklogStep());
+
+        this.queueWait = Timer.builder("streaming.transcode.queue.wait")
+                .description("Time encodes waited for encoder threads")
+                .register(meterRegistry);
+        meterRegistry.gauge("streaming.transcode.queue.depth", this, TranscodeScheduler::getQueueDepth);
+        meterRegistry.gauge("streaming.transcode.threads.used", this, TranscodeScheduler::getThreadsInUse);
+
+        log.info("Transcode scheduler: {} encoder threads, presets {}", capacity, presets);
+    }
+
+    /**
+     * Threads granted to one encode.
+     */
+    public final class Grant implements AutoCloseable {
+
+        private final int threads;
+        private final String preset;
+        private boolean released;
+
+        private Grant(int threads, String preset) {
+            this.threads = threads;
+            this.preset = preset;
+        }
+
+        /**
+         * Encoder threads the encode may use (FFmpeg -threads).
+         */
+        public int threads() {
+            return threads;
+        }
+
+        /**
+         * x264 preset chosen for the backlog at the time of the grant.
+         */
+        public String preset() {
+            return preset;
+        }
+
+        @Override
+        public void close() {
+            synchronized (TranscodeScheduler.this) {
+                if (!released) {
+                    released = true;
+                    threadsInUse -= threads;
+                    TranscodeScheduler.this.notifyAll();
+                }
+            }
+        }
+    }
+
+    private static final class Waiter {
+        private final UUID jobId;
+        private final UUID videoId;
+        private final int threads;
+        private final long sequence;
+        private final long enqueuedNanos = System.nanoTime();
+        private volatile long demand;
+
+        private Waiter(UUID jobId, UUID videoId, int threads, long sequence, long demand) {
+            this.jobId = jobId;
+            this.videoId = videoId;
+            this.threads = threads;
+            this.sequence = sequence;
+            this.demand = demand;
+        }
+
+        private long priority(long nowNanos) {
+            long waitedSeconds = TimeUnit.NANOSECONDS.toSeconds(nowNanos - enqueuedNanos);
+            return demand + waitedSeconds / AGING_SECONDS_PER_POINT;
+        }
+    }
+
+    /**
+     * Waits until encoder threads are available and it is this job's turn.
+     *
+     * @param jobId The download job ID
+     * @param videoId The video ID (demand is counted per video)
+     * @param threads Encoder threads wanted (capped at the whole budget)
+     * @return The grant; close it when the encode ends
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public Grant acquire(UUID jobId, UUID videoId, int threads) throws InterruptedException {
+        int wanted = Math.max(1, Math.min(threads, capacity));
+        long demand = countDemand(videoId);
+        long start = System.nanoTime();
+
+        synchronized (this) {
+            Waiter waiter = new Waiter(jobId, videoId, wanted, sequence++, demand);
+            waiters.add(waiter);
+            try {
+                // Head-of-line: a large encode is not overtaken forever by small ones
+                while (next() != waiter || threadsInUse + wanted > capacity) {
+                    wait();
+                }
+            } finally {
+                waiters.remove(waiter);
+                notifyAll();
+            }
+            threadsInUse += wanted;
+        }
+
+        long waited = System.nanoTime() - start;
+        queueWait.record(waited, TimeUnit.NANOSECONDS);
+        String preset = selectPreset();
+        if (waited > TimeUnit.SECONDS.toNanos(1)) {
+            log.info("Encode of job {} waited {} ms for {} threads, preset {}",
+                    jobId, TimeUnit.NANOSECONDS.toMillis(waited), wanted, preset);
+        }
+        return new Grant(wanted, preset);
+    }
+
+    /**
+     * Picks the x264 preset for the current backlog: one step faster per
+     * streaming.conversion.preset-backlog-step waiting conversions.
+     */
+    public synchronized String selectPreset() {
+        if (presets.isEmpty()) {
+            return "medium";
+        }
+        long waitingJobs = waiters.stream().map(waiter -> waiter.jobId).distinct().count();
+        int step = (int) Math.min(presets.size() - 1, waitingJobs / presetBacklogStep);
+        return presets.get(step);
+    }
+
+    public synchronized int getQueueDepth() {
+        return waiters.size();
+    }
+
+    public synchronized int getThreadsInUse() {
+        return threadsInUse;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Re-counts the demand of waiting encodes, so a video many users asked for in the meantime
+     * moves up.
+     */
+    @Scheduled(fixedDelay = DEMAND_REFRESH_MS)
+    public void refreshDemand() {
+        List<Waiter> snapshot;
+        synchronized (this) {
+            if (waiters.isEmpty()) {
+                return;
+            }
+            snapshot = new ArrayList<>(waiters);
+        }
+        for (Waiter waiter : snapshot) {
+            waiter.demand = countDemand(waiter.videoId);
+        }
+        synchronized (this) {
+            notifyAll();
+        }
+    }
+
+    private Waiter next() {
+        long now = System.nanoTime();
+        return waiters.stream()
+                .max(Comparator.<Waiter>comparingLong(waiter -> waiter.priority(now))
+                        .thenComparing(Comparator.<Waiter>comparingLong(waiter -> waiter.sequence).reversed()))
+                .orElse(null);
+    }
+
+    private long countDemand(UUID videoId) {
+        if (videoId == null) {
+            return 0;
+        }
+        try {
+            return downloadJobRepository.countWaitingUsers(videoId, WAITING_STATUSES);
+        } catch (Exception e) {
+            log.warn("Failed to count demand for video {}: {}", videoId, e.getMessage());
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,308 @@
+package com.hypertube.streaming.service;
+
+import com.hypertube.streaming.config.StreamingConfig;
+import com.hypertube.streaming.entity.DownloadJob;
+import com.hypertube.streaming.repository.DownloadJobRepository;
+import com.hypertube.streaming.util.CacheValidators;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.core.io.FileSystemResource;
+import org.springframework.core.io.Resource;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.util.FileSystemUtils;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.regex.Pattern;
+
+/**
+ * Trickplay (seek preview) thumbnails: JPEG sprite sheets plus a WebVTT thumbnails track.
+ *
+ * Without previews every scrub in the player becomes a speculative range request against the
+ * full video. Once a video is complete, a background job extracts one small frame per interval,
+ * tiles them into sprite sheets and writes a WebVTT track whose cues point at regions of the
+ * sheets ("sprite_001.jpg#xywh=160,0,160,90"). The files live next to the video file
+ * ("movie.mp4.trickplay/") and are removed with it.
+ *
+ * Features:
+ * - Only keyframes are decoded, so a feature film takes seconds of CPU
+ * - Low priority: one job at a time on a minimum-priority thread, FFmpeg under "nice" with a
+ *   single thread, and generation waits while live transcodes are running
+ * - Files are generated in a temporary directory and renamed, so they are immutable once served
+ * - Cached videos generated before this feature get their previews on first request
+ */
+@Service
+@Slf4j
+public class TrickplayService {
+
+    public static final String TRACK_NAME = "thumbnails.vtt";
+
+    private static final String DIRECTORY_SUFFIX = ".trickplay";
+    private static final String IMMUTABLE_CACHE_CONTROL = "public, max-age=31536000, immutable";
+    private static final Pattern SPRITE_NAME = Pattern.compile("sprite_\\d{3,5}\\.jpg");
+    private static final long LIVE_TRANSCODE_BACKOFF_MS = 5000;
+    private static final long GENERATION_TIMEOUT_MINUTES = 60;
+
+    private final StreamingConfig streamingConfig;
+    private final DownloadJobRepository downloadJobRepository;
+    private final FFmpegService ffmpegService;
+    // Looked up lazily: LiveTranscodeService schedules trickplay generation itself
+    private final ObjectProvider<LiveTranscodeService> liveTranscodeService;
+
+    private final ExecutorService executor;
+    private final Set<UUID> queued = new LinkedHashSet<>(); // guarded by itself
+
+    public TrickplayService(StreamingConfig streamingConfig,
+                            DownloadJobRepository downloadJobRepository,
+                            FFmpegService ffmpegService,
+                            ObjectProvider<LiveTranscodeService> liveTranscodeService) {
+        this.streamingConfig = streamingConfig;
+        this.downloadJobRepository = downloadJobRepository;
+        this.ffmpegService = ffmpegService;
+        this.liveTranscodeService = liveTranscodeService;
+        this.executor = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "trickplay");
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        });
+    }
+
+    /**
+     * Returns the directory holding the trickplay files of a video file.
+     */
+    public static Path getTrickplayDirectory(String videoPath) {
+        return Paths.get(videoPath + DIRECTORY_SUFFIX);
+    }
+
+    /**
+     * Queues generation for a completed job. Jobs already queued or generated are ignored.
+     * Called inside a transaction, the job is queued once it commits, so the worker sees the
+     * COMPLETED status.
+     *
+     * @param jobId The download job ID
+     */
+    public void schedule(UUID jobId) {
+        if (!streamingConfig.getTrickplay().isEnabled()) {
+            return;
+        }
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    enqueue(jobId);
+                }
+            });
+        } else {
+            enqueue(jobId);
+        }
+    }
+
+    private void enqueue(UUID jobId) {
+        synchronized (queued) {
+            if (!queued.add(jobId)) {
+                return;
+            }
+        }
+        executor.execute(() -> {
+            try {
+                generate(jobId);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (Exception e) {
+                log.error("Trickplay generation failed for job {}: {}", jobId, e.getMessage(), e);
+            } finally {
+                synchronized (queued) {
+                    queued.remove(jobId);
+                }
+            }
+        });
+    }
+
+    /**
+     * Returns the WebVTT thumbnails track of a job, queueing its generation if it does not exist.
+     *
+     * @param jobId The download job ID
+     * @return The track, or 404 while it does not exist
+     */
+    public ResponseEntity<Resource> getTrack(UUID jobId) {
+        Path directory = resolveDirectory(jobId);
+        if (directory == null) {
+            return ResponseEntity.notFound().build();
+        }
+        Path track = directory.resolve(TRACK_NAME);
+        if (!Files.isRegularFile(track)) {
+            schedule(jobId);
+            return ResponseEntity.notFound().build();
+        }
+        return serveImmutable(track, "text/vtt");
+    }
+
+    /**
+     * Returns a sprite sheet referenced by the thumbnails track.
+     *
+     * @param jobId The download job ID
+     * @param spriteName The sprite sheet file name
+     * @return The sprite sheet, or 404
+     */
+    public ResponseEntity<Resource> getSprite(UUID jobId, String spriteName) {
+        if (!SPRITE_NAME.matcher(spriteName).matches()) {
+            log.warn("Rejecting invalid trickplay sprite name for job {}: {}", jobId, spriteName);
+            return ResponseEntity.badRequest().build();
+        }
+        Path directory = resolveDirectory(jobId);
+        if (directory == null || !Files.isRegularFile(directory.resolve(spriteName))) {
+            return ResponseEntity.notFound().build();
+        }
+        return serveImmutable(directory.resolve(spriteName), MediaType.IMAGE_JPEG_VALUE);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    private void generate(UUID jobId) throws IOException, InterruptedException {
+        DownloadJob job = downloadJobRepository.findById(jobId).orElse(null);
+        if (job == null || job.getStatus() != DownloadJob.DownloadStatus.COMPLETED || job.getFilePath() == null) {
+            return;
+        }
+        String videoPath = job.getFilePath();
+        Path directory = getTrickplayDirectory(videoPath);
+        if (!Files.isRegularFile(Paths.get(videoPath)) || Files.isRegularFile(directory.resolve(TRACK_NAME))) {
+            return;
+        }
+
+        // Never compete with live transcodes: they must keep up with real time
+        LiveTranscodeService live = liveTranscodeService.getIfAvailable();
+        while (live != null && live.getActiveCount() > 0) {
+            Thread.sleep(LIVE_TRANSCODE_BACKOFF_MS);
+        }
+
+        long duration = ffmpegService.getVideoDuration(videoPath);
+        if (duration <= 0) {
+            log.warn("Unknown duration, skipping trickplay for job {}", jobId);
+            return;
+        }
+
+        StreamingConfig.Trickplay config = streamingConfig.getTrickplay();
+        Path temporary = Paths.get(directory + ".tmp");
+        FileSystemUtils.deleteRecursively(temporary);
+        Files.createDirectories(temporary);
+
+        log.info("Generating trickplay thumbnails for job {}: {}", jobId, videoPath);
+        long start = System.currentTimeMillis();
+
+        if (!ffmpegService.runFfmpeg(buildCommand(videoPath, temporary, config), GENERATION_TIMEOUT_MINUTES, null)) {
+            FileSystemUtils.deleteRecursively(temporary);
+            return;
+        }
+
+        int thumbnails = (int) Math.ceil((double) duration / config.getIntervalSeconds());
+        Files.writeString(temporary.resolve(TRACK_NAME), buildTrack(thumbnails, duration, config),
+                StandardCharsets.UTF_8);
+
+        FileSystemUtils.deleteRecursively(directory);
+        Files.move(temporary, directory, StandardCopyOption.ATOMIC_MOVE);
+        log.info("Trickplay thumbnails for job {} generated in {} ms", jobId, System.currentTimeMillis() - start);
+    }
+
+    /**
+     * FFmpeg command writing sprite sheets sprite_001.jpg, sprite_002.jpg, ...
+     *
+     * -skip_frame nokey: decode keyframes only; thumbnails snap to the nearest keyframe
+     * fps=1/N: one frame per interval
+     * scale+pad: fixed thumbnail size whatever the aspect ratio, so cue regions are uniform
+     * tile=CxR: pack C x R thumbnails per sheet
+     */
+    private List<String> buildCommand(String videoPath, Path outputDirectory, StreamingConfig.Trickplay config) {
+        int width = config.getThumbnailWidth();
+        int height = config.getThumbnailHeight();
+        String filter = String.format(Locale.ROOT,
+                "fps=1/%d,scale=%d:%d:force_original_aspect_ratio=decrease,pad=%d:%d:(ow-iw)/2:(oh-ih)/2,tile=%dx%d",
+                config.getIntervalSeconds(), width, height, width, height, config.getColumns(), config.getRows());
+
+        List<String> command = new ArrayList<>();
+        if (config.getNiceness() > 0) {
+            command.addAll(List.of("nice", "-n", String.valueOf(config.getNiceness())));
+        }
+        command.addAll(List.of(
+                streamingConfig.getConversion().getFfmpegPath(),
+                "-skip_frame", "nokey",
+                "-threads", "1",
+                "-i", videoPath,
+                "-an", "-sn",
+                "-vf", filter,
+                "-threads", "1",
+                "-q:v", "5",
+                "-f", "image2",
+                "-y", outputDirectory.resolve("sprite_%03d.jpg").toString()
+        ));
+        return command;
+    }
+
+    /**
+     * WebVTT track with one cue per thumbnail pointing at its region of a sprite sheet.
+     */
+    private String buildTrack(int thumbnails, long durationSeconds, StreamingConfig.Trickplay config) {
+        int perSheet = config.getColumns() * config.getRows();
+        StringBuilder track = new StringBuilder("WEBVTT\n\n");
+        for (int i = 0; i < thumbnails; i++) {
+            long start = (long) i * config.getIntervalSeconds();
+            long end = Math.min(start + config.getIntervalSeconds(), durationSeconds);
+            int sheet = i / perSheet + 1;
+            int x = (i % perSheet) % config.getColumns() * config.getThumbnailWidth();
+            int y = (i % perSheet) / config.getColumns() * config.getThumbnailHeight();
+            track.append(formatTimestamp(start)).append(" --> ").append(formatTimestamp(end)).append('\n')
+                    .append(String.format(Locale.ROOT, "sprite_%03d.jpg#xywh=%d,%d,%d,%d",
+                            sheet, x, y, config.getThumbnailWidth(), config.getThumbnailHeight()))
+                    .append("\n\n");
+        }
+        return track.toString();
+    }
+
+    private static String formatTimestamp(long seconds) {
+        return String.format(Locale.ROOT, "%02d:%02d:%02d.000", seconds / 3600, seconds / 60 % 60, seconds % 60);
+    }
+
+    private Path resolveDirectory(UUID jobId) {
+        return downloadJobRepository.findById(jobId)
+                .filter(job -> job.getStatus() == DownloadJob.DownloadStatus.COMPLETED)
+                .map(DownloadJob::getFilePath)
+                .map(TrickplayService::getTrickplayDirectory)
+                .orElse(null);
+    }
+
+    private ResponseEntity<Resource> serveImmutable(Path file, String contentType) {
+        long size = file.toFile().length();
+        long lastModified = file.toFile().lastModified();
+
+        HttpHeaders headers = new HttpHeaders();
+        headers.setContentType(MediaType.parseMediaType(contentType));
+        headers.setContentLength(size);
+        headers.set(HttpHeaders.CACHE_CONTROL, IMMUTABLE_CACHE_CONTROL);
+        CacheValidators.applyValidators(headers, CacheValidators.strongEtag(file, size, lastModified), lastModified);
+
+        return ResponseEntity.ok()
+                .headers(headers)
+                .body(new FileSystemResource(file));
+    }
+}
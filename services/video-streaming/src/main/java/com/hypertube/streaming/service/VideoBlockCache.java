@@ -0,0 +1,376 @@
+package com.hypertube.streaming.service;
+
+import com.hypertube.streaming.config.StreamingConfig;
+import com.hypertube.streaming.util.AvailabilityMap;
+import com.hypertube.streaming.util.PositionalReader;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Shared, size-bounded cache of fixed-size video blocks held off-heap.
+ *
+ * When many viewers watch the same title from one node, their range requests hit the same
+ * regions of the same file. Blocks (1MB by default) are keyed by file identity (path, size,
+ * mtime) and block index, stored in direct ByteBuffers and evicted in LRU order. Concurrent
+ * misses on the same block are collapsed into a single disk read; the readers that wait for it
+ * are counted as coalesced, not as hits, since they still wait for the disk.
+ *
+ * Blocks are pinned while a reader copies from them, so a buffer is never recycled underneath
+ * an in-flight response. If every block is pinned, reads bypass the cache instead of waiting.
+ *
+ * Metrics: streaming.block.cache.requests{result=hit|miss|coalesced|bypass}, streaming.block.cache.evictions,
+ * streaming.block.cache.resident.bytes, streaming.block.cache.hit.ratio
+ */
+@Component
+@Slf4j
+public class VideoBlockCache {
+
+    /**
+     * Identity of a file version. A file that is replaced or modified gets a new key, so stale
+     * blocks are never served; they simply age out.
+     */
+    public record FileKey(Path path, long size, long lastModified) {
+    }
+
+    private record BlockKey(FileKey file, long index) {
+    }
+
+    private static final class Block {
+        private final BlockKey key;
+        private final ByteBuffer buffer;
+        private int pins;
+        private boolean evicted;
+
+        private Block(BlockKey key, ByteBuffer buffer) {
+            this.key = key;
+            this.buffer = buffer;
+        }
+    }
+
+    private final boolean enabled;
+    private final int blockSize;
+    private final long capacityBytes;
+
+    // Guarded by this
+    private final LinkedHashMap<BlockKey, Block> blocks = new LinkedHashMap<>(256, 0.75f, true);
+    private final ArrayDeque<ByteBuffer> freeBuffers = new ArrayDeque<>();
+    private long allocatedBytes;
+    private long residentBytes;
+
+    private final Map<BlockKey, CompletableFuture<Block>> loading = new ConcurrentHashMap<>();
+
+    private final Counter hits;
+    private final Counter misses;
+    private final Counter coalesced;
+    private final Counter bypasses;
+    private final Counter evictions;
+
+    public VideoBlockCache(StreamingConfig streamingConfig, MeterRegistry meterRegistry) {
+        StreamingConfig.BlockCache config = streamingConfig.getBlockCache();
+        this.enabled = config.isEnabled() && config.getCapacityMb() > 0;
+        this.blockSize = config.getBlockSizeBytes();
+        this.capacityBytes = config.getCapacityMb() * 1024L * 1024L;
+
+        this.hits = requestCounter(meterRegistry, "hit");
+        this.misses = requestCounter(meterRegistry, "miss");
+        this.coalesced = requestCounter(meterRegistry, "coalesced");
+        this.bypasses = requestCounter(meterRegistry, "bypass");
+        this.evictions = Counter.builder("streaming.block.cache.evictions")
+                .description("Blocks evicted to make room for new ones")
+                .register(meterRegistry);
+        Gauge.builder("streaming.block.cache.resident.bytes", this, VideoBlockCache::getResidentBytes)
+                .baseUnit("bytes")
+                .description("Bytes of video data currently held in the block cache")
+                .register(meterRegistry);
+        Gauge.builder("streaming.block.cache.hit.ratio", this, VideoBlockCache::getHitRatio)
+                .description("Share of block lookups served from memory")
+                .register(meterRegistry);
+
+        if (enabled) {
+            log.info("Video block cache enabled: {} MB in {} KB blocks",
+                    config.getCapacityMb(), blockSize / 1024);
+        }
+    }
+
+    private static Counter requestCounter(MeterRegistry meterRegistry, String result) {
+        return Counter.builder("streaming.block.cache.requests")
+                .tag("result", result)
+                .description("Block cache lookups")
+                .register(meterRegistry);
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Wraps a reader source so that reads go through the cache.
+     *
+     * @param file Identity of the file being read
+     * @param availability Downloaded ranges of a growing file, or null for a complete file;
+     *                     only blocks that are fully on disk are cached
+     * @param backing Source used to load missing blocks
+     * @return A source whose readers serve from cached blocks
+     */
+    public PositionalReader.Source source(FileKey file, AvailabilityMap availability,
+                                          PositionalReader.Source backing) {
+        return () -> new CachedReader(file, availability, backing.open());
+    }
+
+    /**
+     * Drops all blocks of a file, e.g. when it is deleted from disk.
+     *
+     * @param path The file path
+     */
+    public synchronized void invalidate(Path path) {
+        Iterator<Block> iterator = blocks.values().iterator();
+        while (iterator.hasNext()) {
+            Block block = iterator.next();
+            if (block.key.file().path().equals(path)) {
+                iterator.remove();
+                discard(block);
+            }
+        }
+    }
+
+    public synchronized long getResidentBytes() {
+        return residentBytes;
+    }
+
+    public double getHitRatio() {
+        double total = hits.count() + misses.count() + coalesced.count();
+        return total == 0 ? 0.0 : hits.count() / total;
+    }
+
+    /**
+     * Returns the block pinned, loading it on a miss. Returns null if the cache cannot hold
+     * the block right now (everything pinned, direct memory exhausted, short read).
+     */
+    private Block acquire(BlockKey key, PositionalReader backing, long blockStart, int blockLength)
+            throws IOException {
+        Block cached = pin(key);
+        if (cached != null) {
+            hits.increment();
+            return cached;
+        }
+
+        CompletableFuture<Block> load = new CompletableFuture<>();
+        CompletableFuture<Block> inFlight = loading.putIfAbsent(key, load);
+        if (inFlight != null) {
+            // Another reader is loading this block; wait for it instead of reading twice
+            coalesced.increment();
+            return inFlight.join() != null ? pin(key) : null;
+        }
+
+        misses.increment();
+        Block block = null;
+        try {
+            block = load(key, backing, blockStart, blockLength);
+            return block;
+        } finally {
+            load.complete(block);
+            loading.remove(key, load);
+        }
+    }
+
+    private Block load(BlockKey key, PositionalReader backing, long blockStart, int blockLength)
+            throws IOException {
+        ByteBuffer buffer = allocate();
+        if (buffer == null) {
+            return null;
+        }
+
+        boolean stored = false;
+        try {
+            buffer.clear().limit(blockLength);
+            while (buffer.hasRemaining()) {
+                int read = backing.read(buffer, blockStart + buffer.position());
+                if (read < 0) {
+                    return null;
+                }
+            }
+            buffer.flip();
+
+            Block block = new Block(key, buffer);
+            block.pins = 1;
+            synchronized (this) {
+                blocks.put(key, block);
+                residentBytes += blockLength;
+            }
+            stored = true;
+            return block;
+        } finally {
+            if (!stored) {
+                recycle(buffer);
+            }
+        }
+    }
+
+    private synchronized Block pin(BlockKey key) {
+        Block block = blocks.get(key);
+        if (block != null) {
+            block.pins++;
+        }
+        return block;
+    }
+
+    private synchronized void unpin(Block block) {
+        block.pins--;
+        if (block.evicted && block.pins == 0) {
+            freeBuffers.push(block.buffer);
+        }
+    }
+
+    /**
+     * Takes a buffer from the free list, allocates a new one within capacity, or evicts the
+     * least recently used unpinned block.
+     */
+    private synchronized ByteBuffer allocate() {
+        ByteBuffer buffer = freeBuffers.poll();
+        if (buffer != null) {
+            return buffer;
+        }
+
+        if (allocatedBytes + blockSize <= capacityBytes) {
+            try {
+                buffer = ByteBuffer.allocateDirect(blockSize);
+                allocatedBytes += blockSize;
+                return buffer;
+            } catch (OutOfMemoryError e) {
+                log.warn("Direct memory exhausted at {} MB of block cache, evicting instead",
+                        allocatedBytes / (1024 * 1024));
+            }
+        }
+
+        Iterator<Block> iterator = blocks.values().iterator();
+        while (iterator.hasNext()) {
+            Block block = iterator.next();
+            if (block.pins == 0) {
+                iterator.remove();
+                residentBytes -= block.buffer.limit();
+                evictions.increment();
+                return block.buffer;
+            }
+        }
+        return null;
+    }
+
+    private synchronized void recycle(ByteBuffer buffer) {
+        freeBuffers.push(buffer);
+    }
+
+    private void discard(Block block) {
+        residentBytes -= block.buffer.limit();
+        block.evicted = true;
+        if (block.pins == 0) {
+            freeBuffers.push(block.buffer);
+        }
+    }
+
+    /**
+     * Reader serving positional reads from cached blocks, falling back to the backing reader
+     * for blocks that cannot be cached.
+     */
+    private class CachedReader implements PositionalReader {
+
+        private final FileKey file;
+        private final AvailabilityMap availability;
+        private final PositionalReader backing;
+
+        private CachedReader(FileKey file, AvailabilityMap availability, PositionalReader backing) {
+            this.file = file;
+            this.availability = availability;
+            this.backing = backing;
+        }
+
+        /**
+         * Pins the block containing position, or returns null to read from the backing reader.
+         */
+        private Block blockAt(long position) throws IOException {
+            long index = position / blockSize;
+            long blockStart = index * blockSize;
+            int blockLength = (int) Math.min(blockSize, file.size() - blockStart);
+
+            // Blocks of a growing file are only cached once completely on disk
+            if (availability != null && availability.contiguousFrom(blockStart) < blockLength) {
+                bypasses.increment();
+                return null;
+            }
+
+            Block block = acquire(new BlockKey(file, index), backing, blockStart, blockLength);
+            if (block == null) {
+                bypasses.increment();
+            }
+            return block;
+        }
+
+        /**
+         * View of the block starting at position, limited to at most max bytes.
+         */
+        private ByteBuffer view(Block block, long position, long max) {
+            ByteBuffer view = block.buffer.duplicate();
+            view.position((int) (position - block.key.index() * blockSize));
+            view.limit((int) Math.min(view.limit(), view.position() + max));
+            return view;
+        }
+
+        @Override
+        public int read(ByteBuffer dst, long position) throws IOException {
+            if (position >= file.size()) {
+                return -1;
+            }
+            Block block = blockAt(position);
+            if (block == null) {
+                return backing.read(dst, position);
+            }
+            try {
+                ByteBuffer view = view(block, position, dst.remaining());
+                int length = view.remaining();
+                dst.put(view);
+                return length;
+            } finally {
+                unpin(block);
+            }
+        }
+
+        @Override
+        public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+            if (position >= file.size()) {
+                return 0;
+            }
+            Block block = blockAt(position);
+            if (block == null) {
+                return backing.transferTo(position, count, target);
+            }
+            try {
+                ByteBuffer view = view(block, position, count);
+                int length = view.remaining();
+                while (view.hasRemaining()) {
+                    target.write(view);
+                }
+                return length;
+            } finally {
+                unpin(block);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            backing.close();
+        }
+    }
+}
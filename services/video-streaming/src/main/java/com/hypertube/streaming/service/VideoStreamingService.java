@@ -1,28 +1,37 @@
 package com.hypertube.streaming.service;
 
+import com.hypertube.streaming.config.StreamingConfig;
 import com.hypertube.streaming.entity.CachedVideo;
 import com.hypertube.streaming.entity.DownloadJob;
 import com.hypertube.streaming.repository.CachedVideoRepository;
 import com.hypertube.streaming.repository.DownloadJobRepository;
+import com.hypertube.streaming.service.StreamDescriptorCache.StreamDescriptor;
+import com.hypertube.streaming.util.AvailabilityMap;
+import com.hypertube.streaming.util.CacheValidators;
+import com.hypertube.streaming.util.FileRegionResource;
 import com.hypertube.streaming.util.HttpRangeParser;
+import com.hypertube.streaming.util.KeyframeIndex;
+import com.hypertube.streaming.util.MultipartByteRangesResource;
+import com.hypertube.streaming.util.PositionalReader;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
-import org.springframework.core.io.InputStreamResource;
 import org.springframework.core.io.Resource;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.stereotype.Service;
+import org.springframework.util.MimeTypeUtils;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.RandomAccessFile;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.UUID;
 
 /**
@@ -32,6 +41,16 @@ import java.util.UUID;
  * - Progressive video playback in browsers
  * - Video seeking during active downloads
  * - Efficient bandwidth usage with partial content delivery
+ *
+ * Job and file resolution is cached per job in {@link StreamDescriptorCache}, so repeated range
+ * requests of a playback session do not touch the database or the filesystem metadata.
+ * File bytes are read through the shared {@link VideoBlockCache} when it is enabled.
+ *
+ * Completed files carry a strong ETag and Last-Modified and may be cached by browsers and
+ * proxies (304 on If-None-Match / If-Modified-Since, If-Range for resumed ranges). Files that
+ * are still downloading are sent with no-store and no validators.
+ *
+ * Seeks by time are answered from the file's keyframe index ({@link KeyframeIndexService}).
  */
 @Service
 @RequiredArgsConstructor
@@ -41,49 +60,66 @@ public class VideoStreamingService {
     private final DownloadJobRepository downloadJobRepository;
     private final CachedVideoRepository cachedVideoRepository;
     private final TorrentService torrentService;
+    private final StreamingConfig streamingConfig;
+    private final StreamDescriptorCache streamDescriptorCache;
+    private final VideoBlockCache videoBlockCache;
+    private final FileHandleRegistry fileHandleRegistry;
+    private final DeliveryPacer deliveryPacer;
+    private final FFmpegService ffmpegService;
+    private final KeyframeIndexService keyframeIndexService;
 
-    private static final int DEFAULT_CHUNK_SIZE = 1024 * 1024; // 1MB chunks
+    // Per-thread scratch for parsed range bounds; its capacity is the max-ranges limit
+    private final ThreadLocal<long[]> rangeBounds = new ThreadLocal<>();
 
     /**
-     * Streams a video file with support for HTTP Range requests.
+     * Streams a video file with support for HTTP Range and conditional requests.
      *
      * @param jobId The download job ID
-     * @param rangeHeader The HTTP Range header value (optional)
+     * @param requestHeaders The request headers (Range, If-Range, If-None-Match, If-Modified-Since)
      * @return ResponseEntity with video content and appropriate headers
      */
-    public ResponseEntity<Resource> streamVideo(UUID jobId, String rangeHeader) {
+    public ResponseEntity<Resource> streamVideo(UUID jobId, HttpHeaders requestHeaders) {
         try {
-            // Find the download job
-            DownloadJob job = downloadJobRepository.findById(jobId)
-                    .orElse(null);
-
-            if (job == null) {
-                log.warn("Download job not found: {}", jobId);
+            StreamDescriptor descriptor = streamDescriptorCache.get(jobId, this::resolveDescriptor);
+            if (descriptor == null) {
                 return ResponseEntity.notFound().build();
             }
 
-            // Get file path
-            String filePath = getVideoFilePath(job);
-            if (filePath == null || filePath.isEmpty()) {
-                log.warn("File path not available for job: {}", jobId);
-                return ResponseEntity.status(HttpStatus.NOT_FOUND)
-                        .body(null);
+            // Conditional requests are evaluated before Range (RFC 7233 section 3.1)
+            if (descriptor.etag() != null
+                    && CacheValidators.isNotModified(requestHeaders, descriptor.etag(), descriptor.lastModified())) {
+                HttpHeaders headers = new HttpHeaders();
+                applyCacheHeaders(headers, descriptor);
+                return ResponseEntity.status(HttpStatus.NOT_MODIFIED).headers(headers).build();
             }
 
-            File videoFile = new File(filePath);
-            if (!videoFile.exists()) {
-                log.warn("Video file not found: {}", filePath);
-                return ResponseEntity.notFound().build();
+            String rangeHeader = requestHeaders.getFirst(HttpHeaders.RANGE);
+            if (rangeHeader != null && !CacheValidators.ifRangeMatches(requestHeaders.getFirst(HttpHeaders.IF_RANGE),
+                    descriptor.etag(), descriptor.lastModified())) {
+                log.debug("If-Range does not match current version of job {}, sending full file", jobId);
+                rangeHeader = null;
             }
 
-            long fileSize = videoFile.length();
-            String contentType = detectContentType(videoFile);
+            // Downloads in progress are served from the bytes already on disk
+            AvailabilityMap availability = null;
+            if (!descriptor.complete()) {
+                AvailabilityMap partial = torrentService.getAvailability(jobId);
+                if (partial == null) {
+                    // The download finished or stopped since the descriptor was cached
+                    streamDescriptorCache.invalidate(jobId);
+                    return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE)
+                            .header(HttpHeaders.RETRY_AFTER, "1")
+                            .build();
+                }
+                availability = partial.isComplete() ? null : partial;
+            }
+            PositionalReader.Source source = readerSource(descriptor, availability);
 
             // Handle range request
             if (rangeHeader != null && !rangeHeader.isEmpty()) {
-                return handleRangeRequest(videoFile, rangeHeader, fileSize, contentType);
+                return handleRangeRequest(descriptor, source, rangeHeader, availability);
             } else {
-                return handleFullRequest(videoFile, fileSize, contentType);
+                return handleFullRequest(descriptor, source, availability);
             }
 
         } catch (Exception e) {
@@ -93,76 +129,208 @@ public class VideoStreamingService {
     }
 
     /**
-     * Handles a full file request (no Range header).
+     * Maps a playback time to the byte range of the nearest preceding keyframe's GOP in the file
+     * served by {@link #streamVideo}, so a player can seek with a single range request.
+     *
+     * @param jobId The download job ID
+     * @param timeSeconds Playback time in seconds
+     * @return 200 with the keyframe and its range, 404 if the job or file does not exist, 422 if
+     *         the file has no indexable video stream, 503 with Retry-After while it is being indexed
      */
-    private ResponseEntity<Resource> handleFullRequest(File videoFile, long fileSize, String contentType) {
-        try {
-            InputStreamResource resource = new InputStreamResource(new FileInputStream(videoFile));
+    public ResponseEntity<Map<String, Object>> findSeekPoint(UUID jobId, double timeSeconds) {
+        StreamDescriptor descriptor = streamDescriptorCache.get(jobId, this::resolveDescriptor);
+        if (descriptor == null) {
+            return ResponseEntity.notFound().build();
+        }
 
-            HttpHeaders headers = new HttpHeaders();
-            headers.setContentType(MediaType.parseMediaType(contentType));
-            headers.setContentLength(fileSize);
-            headers.set(HttpHeaders.ACCEPT_RANGES, "bytes");
-            headers.set(HttpHeaders.CACHE_CONTROL, "no-cache, no-store, must-revalidate");
+        AvailabilityMap availability = descriptor.complete() ? null : getPartialAvailability(jobId);
+        KeyframeIndex index = keyframeIndexService.getIndex(descriptor.path(), descriptor.size(),
+                descriptor.lastModified(), availability, streamingConfig.getKeyframeIndex().getSeekWaitMs());
+        if (index == null) {
+            return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE)
+                    .header(HttpHeaders.RETRY_AFTER, "2")
+                    .build();
+        }
+        if (index.isEmpty()) {
+            return ResponseEntity.unprocessableEntity().build();
+        }
 
-            log.info("Serving full file: {} (size: {} bytes)", videoFile.getName(), fileSize);
+        int keyframe = index.floorIndex(Math.round(timeSeconds * 1000));
+        long rangeStart = index.offsetAt(keyframe);
+        long nextOffset = index.nextOffsetAfter(keyframe);
+        long rangeEnd = (nextOffset > 0 ? nextOffset : descriptor.size()) - 1;
+
+        Map<String, Object> response = new LinkedHashMap<>();
+        response.put("jobId", jobId);
+        response.put("time", timeSeconds);
+        response.put("keyframeTime", index.timeMsAt(keyframe) / 1000.0);
+        if (keyframe + 1 < index.size()) {
+            response.put("nextKeyframeTime", index.timeMsAt(keyframe + 1) / 1000.0);
+        }
+        response.put("rangeStart", rangeStart);
+        response.put("rangeEnd", rangeEnd);
+        response.put("range", "bytes=" + rangeStart + "-" + rangeEnd);
+        response.put("fileSize", descriptor.size());
+        if (availability != null) {
+            // A growing file may be indexed only up to an earlier frontier
+            response.put("available", availability.contiguousFrom(rangeStart) > 0);
+            torrentService.reportPlaybackPosition(jobId, rangeStart, descriptor.bitrateKbps());
+        }
 
-            return ResponseEntity.ok()
-                    .headers(headers)
-                    .body(resource);
+        // Answers for a growing file change as the download (and its index) progresses
+        String cacheControl = descriptor.complete()
+                ? "public, max-age=" + streamingConfig.getDelivery().getCacheMaxAgeSeconds()
+                : "no-cache, no-store, must-revalidate";
+        return ResponseEntity.ok()
+                .header(HttpHeaders.CACHE_CONTROL, cacheControl)
+                .body(response);
+    }
 
-        } catch (IOException e) {
-            log.error("Error reading video file: {}", videoFile.getPath(), e);
-            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).build();
+    /**
+     * Computes how many seconds of a download in progress are playable from the start, based on
+     * its keyframe index and the contiguous download frontier. Never blocks on indexing.
+     *
+     * Called on the request thread by readiness polls, so it reads the file and its size from the
+     * running download instead of resolving a stream descriptor, which may run ffprobe.
+     *
+     * @param jobId The download job ID
+     * @return Playable seconds, or -1 if the download is not in progress or not indexed yet
+     */
+    public double getPlayableSeconds(UUID jobId) {
+        if (!keyframeIndexService.isEnabled()) {
+            return -1;
+        }
+        AvailabilityMap availability = getPartialAvailability(jobId);
+        String filePath = torrentService.getFilePath(jobId);
+        if (availability == null || filePath == null) {
+            return -1;
         }
+        // The modification time of a growing file does not matter for its index
+        return keyframeIndexService.getPlayableSeconds(Path.of(filePath), availability.getTotalLength(),
+                0, availability);
+    }
+
+    /**
+     * Handles a full file request (no Range header).
+     *
+     * For a download in progress the body follows the download frontier, waiting for each
+     * missing piece up to the configured availability timeout.
+     */
+    private ResponseEntity<Resource> handleFullRequest(StreamDescriptor descriptor, PositionalReader.Source source,
+                                                       AvailabilityMap availability) {
+        StreamingConfig.Delivery delivery = streamingConfig.getDelivery();
+        long fileSize = descriptor.size();
+        if (availability != null) {
+            torrentService.reportPlaybackPosition(descriptor.jobId(), 0, descriptor.bitrateKbps());
+        }
+        Resource resource = new FileRegionResource(descriptor.path(),
+                deliveryPacer.pace(source, descriptor.bitrateKbps(), fileSize), 0, fileSize,
+                delivery.getTransferSliceSize(), availability, delivery.getAvailabilityWaitTimeoutMs());
+
+        HttpHeaders headers = new HttpHeaders();
+        headers.setContentType(MediaType.parseMediaType(descriptor.contentType()));
+        headers.setContentLength(fileSize);
+        headers.set(HttpHeaders.ACCEPT_RANGES, "bytes");
+        applyCacheHeaders(headers, descriptor);
+
+        log.info("Serving full file: {} (size: {} bytes)", descriptor.path().getFileName(), fileSize);
+
+        return ResponseEntity.ok()
+                .headers(headers)
+                .body(resource);
     }
 
     /**
      * Handles a partial content request with Range header (RFC 7233).
+     *
+     * The body is a {@link FileRegionResource}, so the requested bytes are streamed from the
+     * file rather than loaded into memory. Ranges running to the end of the file are capped at
+     * the configured chunk size; players simply issue the next request when they need more.
+     *
+     * For a download in progress the range is trimmed to the bytes already on disk. If the first
+     * requested byte is past the download frontier, the request waits (bounded) for it to land
+     * and answers 503 with Retry-After if it does not. The range start is reported to the
+     * download as the playback position, so the torrent fetches from there first.
+     *
+     * Single-range bodies are paced by {@link DeliveryPacer}.
      */
-    private ResponseEntity<Resource> handleRangeRequest(File videoFile, String rangeHeader,
-                                                        long fileSize, String contentType) {
+    private ResponseEntity<Resource> handleRangeRequest(StreamDescriptor descriptor, PositionalReader.Source source,
+                                                        String rangeHeader, AvailabilityMap availability) {
         try {
-            // Parse range header
-            List<HttpRangeParser.Range> ranges = HttpRangeParser.parseRangeHeader(rangeHeader, fileSize);
+            StreamingConfig.Delivery delivery = streamingConfig.getDelivery();
+            long fileSize = descriptor.size();
 
-            if (ranges.isEmpty()) {
-                log.warn("Invalid or unsatisfiable range request: {}", rangeHeader);
+            // Parse range header; the single-range case stays on primitives
+            int maxRanges = delivery.getMaxRanges();
+            long[] bounds = rangeBounds(maxRanges);
+            int rangeCount = HttpRangeParser.parseRanges(rangeHeader, fileSize, bounds);
+
+            if (rangeCount == HttpRangeParser.TOO_MANY_RANGES) {
+                // Refuse requests with an excessive number of ranges (range amplification)
+                log.warn("Rejecting range request with more than {} ranges", maxRanges);
                 return ResponseEntity.status(HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE)
-                        .header(HttpHeaders.CONTENT_RANGE, "bytes */" + fileSize)
+                        .header(HttpHeaders.CONTENT_RANGE, HttpRangeParser.generateUnsatisfiedContentRangeHeader(fileSize))
                         .build();
             }
 
-            // For simplicity, we only support single range requests
-            // Multi-range requests would require multipart/byteranges response
-            if (ranges.size() > 1) {
-                log.warn("Multiple range requests not supported, using first range");
+            if (rangeCount == 0) {
+                log.warn("Invalid or unsatisfiable range request: {}", rangeHeader);
+                return ResponseEntity.status(HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE)
+                        .header(HttpHeaders.CONTENT_RANGE, HttpRangeParser.generateUnsatisfiedContentRangeHeader(fileSize))
+                        .build();
             }
 
-            HttpRangeParser.Range range = ranges.get(0);
-
-            // Read the requested range
-            byte[] data = readFileRange(videoFile, range.getStart(), range.getEnd());
+            if (rangeCount > 1) {
+                List<HttpRangeParser.Range> ranges = new ArrayList<>(rangeCount);
+                for (int i = 0; i < rangeCount; i++) {
+                    ranges.add(new HttpRangeParser.Range(bounds[2 * i], bounds[2 * i + 1]));
+                }
+                ranges = HttpRangeParser.coalesceRanges(ranges);
+                if (availability != null) {
+                    // Content-Length is committed up front, so parts must be on disk already
+                    List<HttpRangeParser.Range> available = trimToAvailable(ranges, availability, fileSize);
+                    ranges = available.isEmpty() ? ranges.subList(0, 1) : available;
+                }
+                if (ranges.size() > 1) {
+                    return handleMultiRangeRequest(descriptor, source, ranges, availability);
+                }
+                // A single part left is served as a plain 206 (which waits for its first byte)
+                bounds[0] = ranges.get(0).getStart();
+                bounds[1] = ranges.get(0).getEnd();
+            }
 
-            if (data == null) {
-                log.error("Failed to read file range: {}-{}", range.getStart(), range.getEnd());
-                return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).build();
+            long start = bounds[0];
+            long end = capOpenEndedRange(start, bounds[1], fileSize);
+
+            if (availability != null) {
+                // Where the player reads is where the download has to be
+                torrentService.reportPlaybackPosition(descriptor.jobId(), start, descriptor.bitrateKbps());
+                long available = availability.awaitAvailable(start, delivery.getAvailabilityWaitTimeoutMs());
+                if (available == 0) {
+                    log.info("Range {}-{} of {} not downloaded yet", start, end, descriptor.path().getFileName());
+                    return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE)
+                            .header(HttpHeaders.RETRY_AFTER, "1")
+                            .build();
+                }
+                end = Math.min(end, start + available - 1);
             }
+            long length = end - start + 1;
+
+            Resource resource = new FileRegionResource(descriptor.path(),
+                    deliveryPacer.pace(source, descriptor.bitrateKbps(), length), start, length,
+                    delivery.getTransferSliceSize(), availability, delivery.getAvailabilityWaitTimeoutMs());
 
             // Build response headers
             HttpHeaders headers = new HttpHeaders();
-            headers.setContentType(MediaType.parseMediaType(contentType));
-            headers.setContentLength(data.length);
+            headers.setContentType(MediaType.parseMediaType(descriptor.contentType()));
+            headers.setContentLength(length);
             headers.set(HttpHeaders.ACCEPT_RANGES, "bytes");
             headers.set(HttpHeaders.CONTENT_RANGE,
-                    HttpRangeParser.generateContentRangeHeader(range, fileSize));
-            headers.set(HttpHeaders.CACHE_CONTROL, "no-cache, no-store, must-revalidate");
+                    HttpRangeParser.generateContentRangeHeader(start, end, fileSize));
+            applyCacheHeaders(headers, descriptor);
 
             log.info("Serving partial content: {} bytes {}-{}/{} ({})",
-                    videoFile.getName(), range.getStart(), range.getEnd(), fileSize, data.length);
-
-            InputStreamResource resource = new InputStreamResource(
-                    new java.io.ByteArrayInputStream(data));
+                    descriptor.path().getFileName(), start, end, fileSize, length);
 
             return ResponseEntity.status(HttpStatus.PARTIAL_CONTENT)
                     .headers(headers)
@@ -175,37 +343,199 @@ public class VideoStreamingService {
     }
 
     /**
-     * Reads a specific byte range from a file.
+     * Returns this thread's array for {@link HttpRangeParser#parseRanges}, sized for maxRanges.
+     */
+    private long[] rangeBounds(int maxRanges) {
+        long[] bounds = rangeBounds.get();
+        if (bounds == null || bounds.length != 2 * maxRanges) {
+            bounds = new long[2 * maxRanges];
+            rangeBounds.set(bounds);
+        }
+        return bounds;
+    }
+
+    /**
+     * Handles a request for several ranges with a multipart/byteranges response (RFC 7233 section 4.1).
      *
-     * @param file The file to read from
-     * @param start Start position (inclusive)
-     * @param end End position (inclusive)
-     * @return Byte array containing the requested range, or null on error
+     * Ranges have already been coalesced, and for a download in progress trimmed to the bytes on
+     * disk; each part is streamed from the file in turn.
      */
-    private byte[] readFileRange(File file, long start, long end) {
-        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r")) {
-            long rangeLength = end - start + 1;
-
-            // Limit range length to prevent memory issues
-            if (rangeLength > Integer.MAX_VALUE) {
-                log.warn("Range too large: {} bytes, limiting to {}", rangeLength, Integer.MAX_VALUE);
-                rangeLength = Integer.MAX_VALUE;
-            }
+    private ResponseEntity<Resource> handleMultiRangeRequest(StreamDescriptor descriptor, PositionalReader.Source source,
+                                                             List<HttpRangeParser.Range> ranges,
+                                                             AvailabilityMap availability) {
+        StreamingConfig.Delivery delivery = streamingConfig.getDelivery();
+        long fileSize = descriptor.size();
+        String contentType = descriptor.contentType();
+
+        List<FileRegionResource> parts = new ArrayList<>(ranges.size());
+        for (HttpRangeParser.Range range : ranges) {
+            long end = capOpenEndedRange(range.getStart(), range.getEnd(), fileSize);
+            parts.add(new FileRegionResource(descriptor.path(), source, range.getStart(), end - range.getStart() + 1,
+                    delivery.getTransferSliceSize(), availability, delivery.getAvailabilityWaitTimeoutMs()));
+        }
+
+        String boundary = MimeTypeUtils.generateMultipartBoundaryString();
+        MultipartByteRangesResource resource =
+                new MultipartByteRangesResource(parts, boundary, contentType, fileSize);
+
+        HttpHeaders headers = new HttpHeaders();
+        headers.setContentType(MediaType.parseMediaType("multipart/byteranges; boundary=" + boundary));
+        headers.setContentLength(resource.contentLength());
+        headers.set(HttpHeaders.ACCEPT_RANGES, "bytes");
+        applyCacheHeaders(headers, descriptor);
+
+        log.info("Serving multipart/byteranges: {} ({} ranges, {} bytes)",
+                descriptor.path().getFileName(), parts.size(), resource.contentLength());
 
-            byte[] buffer = new byte[(int) rangeLength];
-            randomAccessFile.seek(start);
-            int bytesRead = randomAccessFile.read(buffer);
+        return ResponseEntity.status(HttpStatus.PARTIAL_CONTENT)
+                .headers(headers)
+                .body(resource);
+    }
 
-            if (bytesRead != rangeLength) {
-                log.warn("Expected to read {} bytes but read {}", rangeLength, bytesRead);
+    /**
+     * Trims ranges of a download in progress to the contiguous bytes already on disk from their
+     * start, dropping those whose first byte has not landed yet.
+     */
+    private List<HttpRangeParser.Range> trimToAvailable(List<HttpRangeParser.Range> ranges,
+                                                         AvailabilityMap availability, long fileSize) {
+        List<HttpRangeParser.Range> trimmed = new ArrayList<>(ranges.size());
+        for (HttpRangeParser.Range range : ranges) {
+            long available = availability.contiguousFrom(range.getStart());
+            if (available > 0) {
+                long end = capOpenEndedRange(range.getStart(), range.getEnd(), fileSize);
+                trimmed.add(new HttpRangeParser.Range(range.getStart(), Math.min(end, range.getStart() + available - 1)));
             }
+        }
+        return trimmed;
+    }
 
-            return buffer;
+    /**
+     * Sets caching headers: validators and a bounded max-age for completed files, no-store for
+     * files that are still growing (their bytes change until the download completes).
+     */
+    private void applyCacheHeaders(HttpHeaders headers, StreamDescriptor descriptor) {
+        if (descriptor.etag() == null) {
+            headers.set(HttpHeaders.CACHE_CONTROL, "no-cache, no-store, must-revalidate");
+            return;
+        }
+        CacheValidators.applyValidators(headers, descriptor.etag(), descriptor.lastModified());
+        headers.set(HttpHeaders.CACHE_CONTROL,
+                "public, max-age=" + streamingConfig.getDelivery().getCacheMaxAgeSeconds());
+    }
 
-        } catch (IOException e) {
-            log.error("Error reading file range {}-{}: {}", start, end, e.getMessage());
+    /**
+     * Limits a range that runs to the end of the file (e.g. "bytes=0-") to the configured
+     * chunk size. Bounded ranges are served as requested.
+     *
+     * @return The (possibly reduced) inclusive end of the range
+     */
+    private long capOpenEndedRange(long start, long end, long fileSize) {
+        long maxChunk = streamingConfig.getDelivery().getMaxRangeChunkSize();
+        if (maxChunk <= 0 || end != fileSize - 1 || end - start + 1 <= maxChunk) {
+            return end;
+        }
+        return start + maxChunk - 1;
+    }
+
+    /**
+     * Chooses where response bodies read the file from: the shared block cache, or the file's
+     * shared channel when the cache is disabled. Either way the response holds a lease on the
+     * channel in {@link FileHandleRegistry} while it is written. Downloads in progress are read
+     * from the torrent's write-back buffer first, where the pieces just behind the download
+     * frontier usually still are.
+     */
+    private PositionalReader.Source readerSource(StreamDescriptor descriptor, AvailabilityMap availability) {
+        PositionalReader.Source shared = fileHandleRegistry.source(descriptor.path());
+        if (availability != null) {
+            shared = torrentService.bufferedSource(descriptor.jobId(), shared);
+        }
+        if (!videoBlockCache.isEnabled()) {
+            return shared;
+        }
+        VideoBlockCache.FileKey fileKey = new VideoBlockCache.FileKey(descriptor.path(),
+                descriptor.size(), descriptor.lastModified());
+        return videoBlockCache.source(fileKey, availability, shared);
+    }
+
+    /**
+     * Resolves the file backing a job. Only called on a descriptor cache miss.
+     *
+     * @return The descriptor, or null if the job or its file does not exist
+     */
+    private StreamDescriptor resolveDescriptor(UUID jobId) {
+        // Find the download job
+        DownloadJob job = downloadJobRepository.findById(jobId)
+                .orElse(null);
+
+        if (job == null) {
+            log.warn("Download job not found: {}", jobId);
+            return null;
+        }
+
+        // Get file path
+        String filePath = getVideoFilePath(job);
+        if (filePath == null || filePath.isEmpty()) {
+            log.warn("File path not available for job: {}", jobId);
             return null;
         }
+
+        File videoFile = new File(filePath);
+        if (!videoFile.exists()) {
+            log.warn("Video file not found: {}", filePath);
+            return null;
+        }
+
+        // The job records its file once the download has finished, even while it converts
+        boolean complete = job.getStatus() == DownloadJob.DownloadStatus.COMPLETED || job.getFilePath() != null;
+        AvailabilityMap availability = complete ? null : torrentService.getAvailability(jobId);
+        if (!complete && availability == null) {
+            // Preallocated but not tracked (e.g. after a restart, before the download resumes)
+            log.debug("Download of job {} is not running, not serving its partial file", jobId);
+            return null;
+        }
+        long fileSize = availability != null ? availability.getTotalLength() : videoFile.length();
+
+        long lastModified = videoFile.lastModified();
+        String etag = complete ? CacheValidators.strongEtag(videoFile.toPath(), fileSize, lastModified) : null;
+
+        return new StreamDescriptor(jobId, videoFile.toPath(), fileSize, detectContentType(videoFile),
+                lastModified, complete, etag, resolveBitrateKbps(job, filePath, fileSize));
+    }
+
+    /**
+     * Determines the playback bitrate used for pacing: the stored CachedVideo bitrate if known,
+     * otherwise an FFprobe estimate, which is persisted on the CachedVideo for next time.
+     *
+     * @return The bitrate in kbps, or 0 if unknown
+     */
+    private int resolveBitrateKbps(DownloadJob job, String filePath, long fileSize) {
+        if (!deliveryPacer.isEnabled()) {
+            return 0;
+        }
+
+        CachedVideo cachedVideo = cachedVideoRepository.findByVideoId(job.getVideoId())
+                .filter(video -> filePath.equals(video.getFilePath()))
+                .orElse(null);
+        if (cachedVideo != null && cachedVideo.getBitrate() != null && cachedVideo.getBitrate() > 0) {
+            return cachedVideo.getBitrate();
+        }
+
+        int bitrateKbps = ffmpegService.estimateBitrateKbps(filePath, fileSize);
+        if (bitrateKbps > 0 && cachedVideo != null) {
+            cachedVideo.setBitrate(bitrateKbps);
+            cachedVideoRepository.save(cachedVideo);
+            log.debug("Stored estimated bitrate {} kbps for cached video {}", bitrateKbps, cachedVideo.getId());
+        }
+        return bitrateKbps;
+    }
+
+    /**
+     * Returns the availability map for a job whose file is still being downloaded, or null when
+     * the file is complete and can be served as-is.
+     */
+    private AvailabilityMap getPartialAvailability(UUID jobId) {
+        AvailabilityMap availability = torrentService.getAvailability(jobId);
+        return availability != null && !availability.isComplete() ? availability : null;
     }
 
     /**
@@ -0,0 +1,233 @@
+package com.hypertube.streaming.torrent;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Bencoding, the serialization format of .torrent files, tracker responses and extension
+ * messages.
+ *
+ * Decoded values are {@link Long} (integers), {@code byte[]} (strings, which are raw bytes and
+ * often not text), {@link List} and {@link Map} with String keys. Keys are decoded as ISO-8859-1,
+ * so they round-trip byte for byte and sort in the byte order the format requires.
+ */
+public final class Bencode {
+
+    private static final int MAX_DEPTH = 64;
+
+    private Bencode() {
+    }
+
+    /**
+     * Decodes a complete bencoded value.
+     *
+     * @throws IOException if the data is malformed or has trailing bytes
+     */
+    public static Object decode(byte[] data) throws IOException {
+        Decoder decoder = new Decoder(data, 0);
+        Object value = decoder.next();
+        if (decoder.position() != data.length) {
+            throw new IOException("Trailing data after bencoded value at " + decoder.position());
+        }
+        return value;
+    }
+
+    /**
+     * Encodes Long/Integer, byte[], String (as UTF-8), List and Map values.
+     */
+    public static byte[] encode(Object value) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        encode(value, out);
+        return out.toByteArray();
+    }
+
+    private static void encode(Object value, ByteArrayOutputStream out) {
+        if (value instanceof Long || value instanceof Integer) {
+            out.writeBytes(("i" + value + "e").getBytes(StandardCharsets.US_ASCII));
+        } else if (value instanceof byte[] bytes) {
+            out.writeBytes((bytes.length + ":").getBytes(StandardCharsets.US_ASCII));
+            out.writeBytes(bytes);
+        } else if (value instanceof String string) {
+            encode(string.getBytes(StandardCharsets.UTF_8), out);
+        } else if (value instanceof List<?> list) {
+            out.write('l');
+            for (Object item : list) {
+                encode(item, out);
+            }
+            out.write('e');
+        } else if (value instanceof Map<?, ?> map) {
+            out.write('d');
+            // Keys must appear in raw byte order
+            Map<String, Object> sorted = new TreeMap<>();
+            map.forEach((key, item) -> sorted.put((String) key, item));
+            for (Map.Entry<String, Object> entry : sorted.entrySet()) {
+                encode(entry.getKey().getBytes(StandardCharsets.ISO_8859_1), out);
+                encode(entry.getValue(), out);
+            }
+            out.write('e');
+        } else {
+            throw new IllegalArgumentException("Cannot bencode " + value);
+        }
+    }
+
+    /**
+     * Reads consecutive values from a buffer. Besides the values themselves, it records where
+     * the entries of the outermost dictionary start and end, which is how the exact bytes of
+     * a torrent's info dictionary (and so its info hash) are obtained.
+     */
+    public static final class Decoder {
+
+        private final byte[] data;
+        private int position;
+        private int depth;
+        private final Map<String, int[]> topLevelSpans = new HashMap<>();
+
+        public Decoder(byte[] data, int offset) {
+            this.data = data;
+            this.position = offset;
+        }
+
+        public int position() {
+            return position;
+        }
+
+        /**
+         * Returns the raw bytes of an entry of the outermost dictionary decoded so far.
+         *
+         * @return The encoded value, or null if the key was not present
+         */
+        public byte[] rawValue(String key) {
+            int[] span = topLevelSpans.get(key);
+            if (span == null) {
+                return null;
+            }
+            byte[] raw = new byte[span[1] - span[0]];
+            System.arraycopy(data, span[0], raw, 0, raw.length);
+            return raw;
+        }
+
+        public Object next() throws IOException {
+            if (position >= data.length) {
+                throw new IOException("Unexpected end of bencoded data");
+            }
+            if (depth >= MAX_DEPTH) {
+                throw new IOException("Bencoded data nested too deeply");
+            }
+            byte type = data[position];
+            if (type == 'i') {
+                position++;
+                long value = readNumber('e');
+                return value;
+            }
+            if (type == 'l') {
+                position++;
+                depth++;
+                List<Object> list = new ArrayList<>();
+                while (peek() != 'e') {
+                    list.add(next());
+                }
+                position++;
+                depth--;
+                return list;
+            }
+            if (type == 'd') {
+                position++;
+                depth++;
+                Map<String, Object> map = new TreeMap<>();
+                while (peek() != 'e') {
+                    String key = new String(readBytes(), StandardCharsets.ISO_8859_1);
+                    int start = position;
+                    map.put(key, next());
+                    if (depth == 1) {
+                        topLevelSpans.put(key, new int[]{start, position});
+                    }
+                }
+                position++;
+                depth--;
+                return map;
+            }
+            if (type >= '0' && type <= '9') {
+                return readBytes();
+            }
+            throw new IOException("Invalid bencode type '" + (char) type + "' at " + position);
+        }
+
+        private byte peek() throws IOException {
+            if (position >= data.length) {
+                throw new IOException("Unexpected end of bencoded data");
+            }
+            return data[position];
+        }
+
+        private byte[] readBytes() throws IOException {
+            if (peek() < '0' || peek() > '9') {
+                throw new IOException("Expected a string at " + position);
+            }
+            long length = readNumber(':');
+            if (length < 0 || length > data.length - position) {
+                throw new IOException("String length " + length + " exceeds the data at " + position);
+            }
+            byte[] bytes = new byte[(int) length];
+            System.arraycopy(data, position, bytes, 0, bytes.length);
+            position += bytes.length;
+            return bytes;
+        }
+
+        private long readNumber(char terminator) throws IOException {
+            int start = position;
+            while (peek() != terminator) {
+                position++;
+            }
+            String digits = new String(data, start, position - start, StandardCharsets.US_ASCII);
+            position++;
+            try {
+                return Long.parseLong(digits);
+            } catch (NumberFormatException e) {
+                throw new IOException("Invalid number '" + digits + "' at " + start);
+            }
+        }
+    }
+
+    // Typed accessors for decoded dictionaries; null when the key is missing or of another type
+
+    public static String getString(Map<String, Object> map, String key) {
+        Object value = map.get(key);
+        return value instanceof byte[] bytes ? new String(bytes, StandardCharsets.UTF_8) : null;
+    }
+
+    public static byte[] getBytes(Map<String, Object> map, String key) {
+        Object value = map.get(key);
+        return value instanceof byte[] bytes ? bytes : null;
+    }
+
+    public static Long getLong(Map<String, Object> map, String key) {
+        Object value = map.get(key);
+        return value instanceof Long number ? number : null;
+    }
+
+    @SuppressWarnings("unchecked")
+    public static List<Object> getList(Map<String, Object> map, String key) {
+        Object value = map.get(key);
+        return value instanceof List<?> list ? (List<Object>) list : null;
+    }
+
+    @SuppressWarnings("unchecked")
+    public static Map<String, Object> getMap(Map<String, Object> map, String key) {
+        Object value = map.get(key);
+        return value instanceof Map<?, ?> dictionary ? (Map<String, Object>) dictionary : null;
+    }
+
+    @SuppressWarnings("unchecked")
+    public static Map<String, Object> asMap(Object value) throws IOException {
+        if (value instanceof Map<?, ?> map) {
+            return (Map<String, Object>) map;
+        }
+        throw new IOException("Expected a bencoded dictionary");
+    }
+}
@@ -0,0 +1,131 @@
+package com.hypertube.streaming.torrent;
+
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * A magnet link: the info hash of a torrent plus optional display name, trackers (tr) and peer
+ * addresses (x.pe). The torrent's metadata is fetched from peers (BEP 9).
+ *
+ * @param infoHash The 20-byte info hash (xt=urn:btih:, hex or base32)
+ * @param name The display name, or null
+ * @param trackers Tracker URLs
+ * @param peers Peer addresses to try directly, unresolved
+ */
+public record MagnetLink(byte[] infoHash, String name, List<String> trackers, List<InetSocketAddress> peers) {
+
+    private static final String PREFIX = "magnet:?";
+    private static final String BTIH = "urn:btih:";
+    private static final String BASE32 = "ABCDEFGHIJKLMNOPQRSTUVWXYZ234567";
+
+    public static boolean isMagnet(String uri) {
+        return uri != null && uri.regionMatches(true, 0, PREFIX, 0, PREFIX.length());
+    }
+
+    /**
+     * Parses a magnet URI.
+     *
+     * @throws IllegalArgumentException if the URI is not a magnet link with a v1 info hash
+     */
+    public static MagnetLink parse(String uri) {
+        if (!isMagnet(uri)) {
+            throw new IllegalArgumentException("Not a magnet link: " + uri);
+        }
+        byte[] infoHash = null;
+        String name = null;
+        List<String> trackers = new ArrayList<>();
+        List<InetSocketAddress> peers = new ArrayList<>();
+
+        for (String parameter : uri.substring(PREFIX.length()).split("&")) {
+            int separator = parameter.indexOf('=');
+            if (separator <= 0) {
+                continue;
+            }
+            String key = parameter.substring(0, separator);
+            String value = URLDecoder.decode(parameter.substring(separator + 1), StandardCharsets.UTF_8);
+            // Multiple values may be numbered (xt.1, tr.2)
+            int dot = key.indexOf('.');
+            if (dot > 0 && !key.equals("x.pe")) {
+                key = key.substring(0, dot);
+            }
+            switch (key) {
+                case "xt" -> {
+                    if (value.regionMatches(true, 0, BTIH, 0, BTIH.length()) && infoHash == null) {
+                        infoHash = decodeInfoHash(value.substring(BTIH.length()));
+                    }
+                }
+                case "dn" -> name = value;
+                case "tr" -> trackers.add(value);
+                case "x.pe" -> {
+                    InetSocketAddress peer = parsePeer(value);
+                    if (peer != null) {
+                        peers.add(peer);
+                    }
+                }
+                default -> {
+                    // Other parameters (xl, ws, as, ...) are not used
+                }
+            }
+        }
+        if (infoHash == null) {
+            throw new IllegalArgumentException("Magnet link has no BitTorrent v1 info hash: " + uri);
+        }
+        return new MagnetLink(infoHash, name, List.copyOf(trackers), List.copyOf(peers));
+    }
+
+    public String getInfoHashHex() {
+        return HexFormat.of().formatHex(infoHash);
+    }
+
+    private static byte[] decodeInfoHash(String encoded) {
+        if (encoded.length() == 40) {
+            return HexFormat.of().parseHex(encoded);
+        }
+        if (encoded.length() == 32) {
+            return decodeBase32(encoded.toUpperCase(Locale.ROOT));
+        }
+        throw new IllegalArgumentException("Invalid info hash: " + encoded);
+    }
+
+    private static byte[] decodeBase32(String encoded) {
+        byte[] result = new byte[TorrentMetainfo.HASH_LENGTH];
+        long buffer = 0;
+        int bits = 0;
+        int index = 0;
+        for (char c : encoded.toCharArray()) {
+            int value = BASE32.indexOf(c);
+            if (value < 0) {
+                throw new IllegalArgumentException("Invalid base32 info hash: " + encoded);
+            }
+            buffer = (buffer << 5) | value;
+            bits += 5;
+            if (bits >= 8) {
+                bits -= 8;
+                result[index++] = (byte) (buffer >> bits);
+            }
+        }
+        return result;
+    }
+
+    private static InetSocketAddress parsePeer(String value) {
+        int colon = value.lastIndexOf(':');
+        if (colon <= 0) {
+            return null;
+        }
+        String host = value.substring(0, colon);
+        if (host.startsWith("[") && host.endsWith("]")) {
+            host = host.substring(1, host.length() - 1);
+        }
+        try {
+            int port = Integer.parseInt(value.substring(colon + 1));
+            return port > 0 && port < 65536 ? InetSocketAddress.createUnresolved(host, port) : null;
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,255 @@
+package com.hypertube.streaming.torrent;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * One connection of the peer wire protocol (BEP 3) with the extension protocol (BEP 10).
+ *
+ * Messages are read by a single thread per connection; sends are synchronized and may come
+ * from any thread. The protocol state fields are guarded by the owning {@link TorrentDownload}.
+ */
+final class PeerConnection implements Closeable {
+
+    static final int CHOKE = 0;
+    static final int UNCHOKE = 1;
+    static final int INTERESTED = 2;
+    static final int NOT_INTERESTED = 3;
+    static final int HAVE = 4;
+    static final int BITFIELD = 5;
+    static final int REQUEST = 6;
+    static final int PIECE = 7;
+    static final int CANCEL = 8;
+    static final int EXTENDED = 20;
+    static final int KEEP_ALIVE = -1;
+
+    private static final byte[] PROTOCOL = "BitTorrent protocol".getBytes(StandardCharsets.US_ASCII);
+    private static final int HANDSHAKE_LENGTH = 1 + 19 + 8 + 20 + 20;
+    private static final int MAX_MESSAGE_LENGTH = 2 * 1024 * 1024;
+    private static final int READ_TIMEOUT_MS = 180_000;
+
+    /**
+     * A received message; the payload excludes the length prefix and the message id.
+     */
+    record Message(int id, byte[] payload) {
+    }
+
+    /**
+     * The fixed-size handshake both sides send first.
+     */
+    record Handshake(byte[] infoHash, byte[] peerId, boolean supportsExtensions) {
+    }
+
+    private final Socket socket;
+    private final InetSocketAddress address;
+    private final Handshake handshake;
+    private final DataInputStream in;
+    private final DataOutputStream out;
+    private volatile long lastSentNanos = System.nanoTime();
+
+    // Protocol state, guarded by the owning TorrentDownload
+    boolean amChoking = true;
+    boolean amInterested;
+    boolean peerChoking = true;
+    boolean peerInterested;
+    BitSet has = new BitSet();
+    final List<PiecePicker.Block> requests = new ArrayList<>();
+    long lastBlockNanos = System.nanoTime();
+    boolean snubbed; // no block for a while; gets a single outstanding request
+    long downloadedBytes;
+    long rate; // download rate from this peer in bytes per second, averaged over a few seconds
+    long lastRateBytes;
+    int metadataExtensionId; // the peer's ut_metadata message id, 0 if unsupported
+    int metadataSize;
+
+    PeerConnection(Socket socket, Handshake handshake) throws IOException {
+        this.socket = socket;
+        this.address = (InetSocketAddress) socket.getRemoteSocketAddress();
+        this.handshake = handshake;
+        this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 64 * 1024));
+        this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 64 * 1024));
+        socket.setSoTimeout(READ_TIMEOUT_MS);
+    }
+
+    static void writeHandshake(OutputStream out, byte[] infoHash, byte[] peerId) throws IOException {
+        byte[] handshake = new byte[HANDSHAKE_LENGTH];
+        handshake[0] = (byte) PROTOCOL.length;
+        System.arraycopy(PROTOCOL, 0, handshake, 1, PROTOCOL.length);
+        handshake[1 + 19 + 5] = 0x10; // extension protocol
+        System.arraycopy(infoHash, 0, handshake, 1 + 19 + 8, 20);
+        System.arraycopy(peerId, 0, handshake, 1 + 19 + 8 + 20, 20);
+        out.write(handshake);
+        out.flush();
+    }
+
+    static Handshake readHandshake(InputStream in) throws IOException {
+        byte[] handshake = in.readNBytes(HANDSHAKE_LENGTH);
+        if (handshake.length != HANDSHAKE_LENGTH || handshake[0] != PROTOCOL.length
+                || !Arrays.equals(handshake, 1, 20, PROTOCOL, 0, PROTOCOL.length)) {
+            throw new IOException("Not a BitTorrent handshake");
+        }
+        return new Handshake(
+                Arrays.copyOfRange(handshake, 28, 48),
+                Arrays.copyOfRange(handshake, 48, 68),
+                (handshake[1 + 19 + 5] & 0x10) != 0);
+    }
+
+    InetSocketAddress getAddress() {
+        return address;
+    }
+
+    byte[] getPeerId() {
+        return handshake.peerId();
+    }
+
+    boolean supportsExtensions() {
+        return handshake.supportsExtensions();
+    }
+
+    long getLastSentNanos() {
+        return lastSentNanos;
+    }
+
+    /**
+     * Reads the next message, blocking until one arrives.
+     */
+    Message read() throws IOException {
+        int length = in.readInt();
+        if (length == 0) {
+            return new Message(KEEP_ALIVE, new byte[0]);
+        }
+        if (length < 0 || length > MAX_MESSAGE_LENGTH) {
+            throw new IOException("Invalid message length " + length);
+        }
+        int id = in.readUnsignedByte();
+        byte[] payload = new byte[length - 1];
+        in.readFully(payload);
+        return new Message(id, payload);
+    }
+
+    void send(int id) throws IOException {
+        send(id, new byte[0]);
+    }
+
+    synchronized void send(int id, byte[] payload) throws IOException {
+        writeMessage(id, payload, 0, payload.length);
+        out.flush();
+    }
+
+    synchronized void sendKeepAlive() throws IOException {
+        out.writeInt(0);
+        out.flush();
+        lastSentNanos = System.nanoTime();
+    }
+
+    void sendHave(int piece) throws IOException {
+        send(HAVE, intBytes(piece));
+    }
+
+    void sendBitfield(BitSet pieces, int pieceCount) throws IOException {
+        send(BITFIELD, toBitfield(pieces, pieceCount));
+    }
+
+    /**
+     * Sends several block requests in one write.
+     */
+    synchronized void sendRequests(List<PiecePicker.Block> blocks) throws IOException {
+        for (PiecePicker.Block block : blocks) {
+            writeMessage(REQUEST, blockBytes(block), 0, 12);
+        }
+        out.flush();
+    }
+
+    void sendCancel(PiecePicker.Block block) throws IOException {
+        send(CANCEL, blockBytes(block));
+    }
+
+    synchronized void sendPiece(int piece, int offset, byte[] data, int length) throws IOException {
+        out.writeInt(9 + length);
+        out.writeByte(PIECE);
+        out.writeInt(piece);
+        out.writeInt(offset);
+        out.write(data, 0, length);
+        out.flush();
+        lastSentNanos = System.nanoTime();
+    }
+
+    void sendExtended(int extensionId, byte[] payload) throws IOException {
+        byte[] message = new byte[payload.length + 1];
+        message[0] = (byte) extensionId;
+        System.arraycopy(payload, 0, message, 1, payload.length);
+        send(EXTENDED, message);
+    }
+
+    private void writeMessage(int id, byte[] payload, int offset, int length) throws IOException {
+        out.writeInt(1 + length);
+        out.writeByte(id);
+        out.write(payload, offset, length);
+        lastSentNanos = System.nanoTime();
+    }
+
+    @Override
+    public void close() {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // Already closed
+        }
+    }
+
+    static int readInt(byte[] bytes, int offset) {
+        return ((bytes[offset] & 0xFF) << 24) | ((bytes[offset + 1] & 0xFF) << 16)
+                | ((bytes[offset + 2] & 0xFF) << 8) | (bytes[offset + 3] & 0xFF);
+    }
+
+    private static byte[] intBytes(int value) {
+        return new byte[]{(byte) (value >>> 24), (byte) (value >>> 16), (byte) (value >>> 8), (byte) value};
+    }
+
+    private static byte[] blockBytes(PiecePicker.Block block) {
+        byte[] bytes = new byte[12];
+        System.arraycopy(intBytes(block.piece()), 0, bytes, 0, 4);
+        System.arraycopy(intBytes(block.offset()), 0, bytes, 4, 4);
+        System.arraycopy(intBytes(block.length()), 0, bytes, 8, 4);
+        return bytes;
+    }
+
+    /**
+     * Converts a wire bitfield (piece 0 in the high bit of the first byte) to a BitSet.
+     */
+    static BitSet fromBitfield(byte[] bitfield) {
+        BitSet pieces = new BitSet(bitfield.length * 8);
+        for (int i = 0; i < bitfield.length * 8; i++) {
+            if ((bitfield[i >> 3] & (0x80 >>> (i & 7))) != 0) {
+                pieces.set(i);
+            }
+        }
+        return pieces;
+    }
+
+    static byte[] toBitfield(BitSet pieces, int pieceCount) {
+        byte[] bitfield = new byte[(pieceCount + 7) / 8];
+        for (int i = pieces.nextSetBit(0); i >= 0 && i < pieceCount; i = pieces.nextSetBit(i + 1)) {
+            bitfield[i >> 3] |= (byte) (0x80 >>> (i & 7));
+        }
+        return bitfield;
+    }
+
+    @Override
+    public String toString() {
+        return address.toString();
+    }
+}
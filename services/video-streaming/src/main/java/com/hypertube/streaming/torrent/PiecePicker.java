@@ -0,0 +1,429 @@
+package com.hypertube.streaming.torrent;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Decides which blocks to request, streaming first.
+ *
+ * A player needs the container header (start of the file) and often its index (MP4 moov or
+ * Matroska cues, usually at the end) before it can play anything, and then the data in playback
+ * order from wherever it is playing. The order in which pieces are requested is therefore:
+ * 1. The first piece of the file and the pieces holding its last tail-priority-bytes
+ * 2. The deadline window: the pieces in the next deadline-window-bytes after the playhead, by
+ *    deadline (see {@link #setPlayhead})
+ * 3. The next readahead-bytes after the first missing piece at or after the playhead, in order
+ * 4. Anything else the peer has, rarest first, so peers without the pieces near the playhead
+ *    still contribute
+ * Groups 1 and 2 are only handed to peers allowed to take urgent pieces (the fast ones, see
+ * {@link #next}). Within groups 3 and 4, pieces already started are completed before new ones
+ * are started.
+ *
+ * Not thread-safe: guarded by the owning {@link TorrentDownload}.
+ */
+final class PiecePicker {
+
+    static final int BLOCK_SIZE = 16 * 1024;
+
+    /**
+     * A request unit: a slice of a piece, at most {@link #BLOCK_SIZE} bytes.
+     */
+    record Block(int piece, int offset, int length) {
+    }
+
+    private static final class PieceProgress {
+        private final BitSet requested = new BitSet();
+        private final BitSet claimed = new BitSet();
+        private final BitSet received = new BitSet();
+        private final int blockCount;
+
+        private PieceProgress(int blockCount) {
+            this.blockCount = blockCount;
+        }
+
+        private int nextFreeBlock() {
+            int block = requested.nextClearBit(0);
+            return block < blockCount ? block : -1;
+        }
+    }
+
+    private final TorrentMetainfo metainfo;
+    private final int firstPiece;
+    private final int lastPiece;
+    private final int tailStart;
+    private final int readaheadPieces;
+    private final int deadlinePieces;
+
+    private int playhead;
+    private long playheadOffset;
+    private long playheadNanos;
+    private long playbackBytesPerSecond;
+
+    private final BitSet have = new BitSet();
+    private final int[] availability;
+    private final Map<Integer, PieceProgress> inProgress = new TreeMap<>();
+
+    /**
+     * @param metainfo The torrent
+     * @param fileStart Start of the wanted range (the streamed file) in the torrent's byte space
+     * @param fileEnd End of the wanted range, exclusive
+     * @param tailPriorityBytes Bytes at the end of the file fetched right after the first piece
+     * @param readaheadBytes Size of the in-order window after the playhead
+     * @param deadlineWindowBytes Size of the window after the playhead whose pieces get deadlines
+     */
+    PiecePicker(TorrentMetainfo metainfo, long fileStart, long fileEnd, long tailPriorityBytes, long readaheadBytes,
+                long deadlineWindowBytes) {
+        this.metainfo = metainfo;
+        int pieceLength = metainfo.getPieceLength();
+        this.firstPiece = (int) (fileStart / pieceLength);
+        this.lastPiece = (int) (Math.max(fileStart, fileEnd - 1) / pieceLength);
+        this.tailStart = Math.max(firstPiece + 1,
+                (int) (Math.max(fileStart, fileEnd - tailPriorityBytes) / pieceLength));
+        this.readaheadPieces = (int) Math.max(1, readaheadBytes / pieceLength);
+        this.deadlinePieces = (int) Math.max(1, deadlineWindowBytes / pieceLength);
+        this.playhead = firstPiece;
+        this.playheadOffset = fileStart;
+        this.availability = new int[metainfo.getPieceCount()];
+    }
+
+    boolean isWanted(int piece) {
+        return piece >= firstPiece && piece <= lastPiece;
+    }
+
+    boolean hasPiece(int piece) {
+        return have.get(piece);
+    }
+
+    BitSet getHave() {
+        return (BitSet) have.clone();
+    }
+
+    /**
+     * Returns true once every piece of the wanted range is verified.
+     */
+    boolean isComplete() {
+        return frontier() > lastPiece;
+    }
+
+    /**
+     * Returns the first missing piece of the wanted range (past the last piece when complete).
+     */
+    int frontier() {
+        return have.nextClearBit(firstPiece);
+    }
+
+    /**
+     * Moves the playhead to where the player is reading. Pieces of the deadline window are due
+     * when playback at the given rate, starting now at the offset, reaches them.
+     *
+     * @param offset Read position in the torrent's byte space, within the wanted range
+     * @param nowNanos When the player read there ({@link System#nanoTime()})
+     * @param bytesPerSecond Playback rate; 0 if unknown (pieces then have no deadline)
+     * @return true if the playhead left the previous deadline window (a seek)
+     */
+    boolean setPlayhead(long offset, long nowNanos, long bytesPerSecond) {
+        int piece = (int) Math.min(lastPiece, Math.max(firstPiece, offset / metainfo.getPieceLength()));
+        boolean seek = piece < playhead || piece >= playhead + deadlinePieces;
+        playhead = piece;
+        playheadOffset = offset;
+        playheadNanos = nowNanos;
+        playbackBytesPerSecond = bytesPerSecond;
+        return seek;
+    }
+
+    int getPlayhead() {
+        return playhead;
+    }
+
+    /**
+     * Returns true for the first piece and the tail pieces.
+     */
+    boolean isPriorityPiece(int piece) {
+        return piece == firstPiece || isTailPiece(piece);
+    }
+
+    boolean isTailPiece(int piece) {
+        return piece >= tailStart && piece <= lastPiece;
+    }
+
+    boolean isDeadlinePiece(int piece) {
+        return piece >= playhead && piece < playhead + deadlinePieces && piece <= lastPiece;
+    }
+
+    /**
+     * Returns when playback reaches a piece ({@link System#nanoTime()} scale), or
+     * {@link Long#MAX_VALUE} if the piece is outside the deadline window or the playback rate is
+     * unknown.
+     */
+    long deadline(int piece) {
+        if (!isDeadlinePiece(piece) || playbackBytesPerSecond <= 0) {
+            return Long.MAX_VALUE;
+        }
+        long ahead = Math.max(0, metainfo.getPieceOffset(piece) - playheadOffset);
+        return playheadNanos + (long) (ahead * 1e9 / playbackBytesPerSecond);
+    }
+
+    /**
+     * Returns the blocks that are requested but not received of the started pieces that are due
+     * within the margin, soonest first: candidates for a duplicate request to another peer.
+     */
+    List<Block> atRiskBlocks(long nowNanos, long marginNanos) {
+        List<Block> blocks = new ArrayList<>();
+        for (Map.Entry<Integer, PieceProgress> entry : inProgress.entrySet()) {
+            int piece = entry.getKey();
+            if (deadline(piece) - nowNanos > marginNanos) {
+                continue;
+            }
+            PieceProgress progress = entry.getValue();
+            for (int i = progress.requested.nextSetBit(0); i >= 0; i = progress.requested.nextSetBit(i + 1)) {
+                if (!progress.received.get(i)) {
+                    blocks.add(block(piece, i));
+                }
+            }
+        }
+        return blocks;
+    }
+
+    void addPeer(BitSet pieces) {
+        for (int i = pieces.nextSetBit(0); i >= 0 && i < availability.length; i = pieces.nextSetBit(i + 1)) {
+            availability[i]++;
+        }
+    }
+
+    void removePeer(BitSet pieces) {
+        for (int i = pieces.nextSetBit(0); i >= 0 && i < availability.length; i = pieces.nextSetBit(i + 1)) {
+            availability[i] = Math.max(0, availability[i] - 1);
+        }
+    }
+
+    void peerHas(int piece) {
+        availability[piece]++;
+    }
+
+    /**
+     * Checks whether a peer has any wanted piece we are missing.
+     */
+    boolean isInteresting(BitSet peerPieces) {
+        for (int i = peerPieces.nextSetBit(firstPiece); i >= 0 && i <= lastPiece; i = peerPieces.nextSetBit(i + 1)) {
+            if (!have.get(i)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Picks the next block to request from a peer and marks it requested.
+     *
+     * @param peerPieces The pieces the peer has
+     * @param urgent true to hand out the priority and deadline pieces too (for fast peers)
+     * @return The block, or null if the peer has nothing we still need to request
+     */
+    Block next(BitSet peerPieces, boolean urgent) {
+        int piece = urgent ? pickUrgentPiece(peerPieces) : -1;
+        if (piece < 0) {
+            piece = pickStartedPiece(peerPieces);
+        }
+        if (piece < 0) {
+            piece = pickNewPiece(peerPieces);
+            if (piece < 0) {
+                return null;
+            }
+        }
+        PieceProgress progress = inProgress.computeIfAbsent(piece, key -> new PieceProgress(blockCount(key)));
+        int block = progress.nextFreeBlock();
+        progress.requested.set(block);
+        return block(piece, block);
+    }
+
+    /**
+     * Returns a requested block to the pool, e.g. after a choke or disconnect.
+     */
+    void release(Block block) {
+        PieceProgress progress = inProgress.get(block.piece());
+        if (progress != null) {
+            int index = block.offset() / BLOCK_SIZE;
+            if (!progress.received.get(index) && !progress.claimed.get(index)) {
+                progress.requested.clear(index);
+            }
+        }
+    }
+
+    /**
+     * Claims a received block for writing, if it still has to be written: its piece is in
+     * progress and the block has neither been received from nor claimed for another peer.
+     * A claimed piece cannot complete (nor be verified) until the claim is recorded with
+     * {@link #blockReceived}, so the bytes of a late duplicate are never copied anywhere.
+     *
+     * @return true if the caller now owns the block
+     */
+    boolean claim(Block block) {
+        PieceProgress progress = inProgress.get(block.piece());
+        if (progress == null || !isValid(block)) {
+            return false;
+        }
+        int index = block.offset() / BLOCK_SIZE;
+        if (progress.received.get(index) || progress.claimed.get(index)) {
+            return false;
+        }
+        progress.requested.set(index);
+        progress.claimed.set(index);
+        return true;
+    }
+
+    /**
+     * Checks that a block is still claimed, i.e. its piece has not left progress meanwhile
+     * (e.g. verified by a recheck).
+     */
+    boolean isClaimed(Block block) {
+        PieceProgress progress = inProgress.get(block.piece());
+        return progress != null && progress.claimed.get(block.offset() / BLOCK_SIZE);
+    }
+
+    /**
+     * Records a claimed block as written.
+     *
+     * @return true if this was the last missing block of the piece (which is now to be verified)
+     */
+    boolean blockReceived(Block block) {
+        PieceProgress progress = inProgress.get(block.piece());
+        if (progress == null) {
+            return false;
+        }
+        int index = block.offset() / BLOCK_SIZE;
+        if (!progress.claimed.get(index)) {
+            return false;
+        }
+        progress.claimed.clear(index);
+        progress.received.set(index);
+        return progress.received.cardinality() == progress.blockCount;
+    }
+
+    void pieceVerified(int piece) {
+        have.set(piece);
+        inProgress.remove(piece);
+    }
+
+    /**
+     * Discards the blocks of a piece that failed verification, so it is downloaded again.
+     */
+    void pieceFailed(int piece) {
+        inProgress.remove(piece);
+    }
+
+    /**
+     * Checks that a block has the offset and length the picker would request for it.
+     */
+    boolean isValid(Block block) {
+        if (block.piece() < 0 || block.piece() >= availability.length
+                || block.offset() < 0 || block.offset() % BLOCK_SIZE != 0) {
+            return false;
+        }
+        int index = block.offset() / BLOCK_SIZE;
+        return index < blockCount(block.piece()) && block(block.piece(), index).length() == block.length();
+    }
+
+    /**
+     * Picks the first priority piece, else the deadline piece due soonest, with a block left to
+     * request.
+     */
+    private int pickUrgentPiece(BitSet peerPieces) {
+        if (isRequestable(firstPiece, peerPieces)) {
+            return firstPiece;
+        }
+        for (int piece = tailStart; piece <= lastPiece; piece++) {
+            if (isRequestable(piece, peerPieces)) {
+                return piece;
+            }
+        }
+        int windowEnd = Math.min(lastPiece, playhead + deadlinePieces - 1);
+        for (int piece = playhead; piece <= windowEnd; piece++) {
+            if (isRequestable(piece, peerPieces)) {
+                return piece;
+            }
+        }
+        return -1;
+    }
+
+    private boolean isRequestable(int piece, BitSet peerPieces) {
+        if (!peerPieces.get(piece) || have.get(piece)) {
+            return false;
+        }
+        PieceProgress progress = inProgress.get(piece);
+        return progress == null || progress.nextFreeBlock() >= 0;
+    }
+
+    private int pickStartedPiece(BitSet peerPieces) {
+        int best = -1;
+        int bestRank = Integer.MAX_VALUE;
+        for (Map.Entry<Integer, PieceProgress> entry : inProgress.entrySet()) {
+            int piece = entry.getKey();
+            if (peerPieces.get(piece) && !isUrgent(piece) && entry.getValue().nextFreeBlock() >= 0) {
+                int rank = rank(piece);
+                if (rank < bestRank) {
+                    best = piece;
+                    bestRank = rank;
+                }
+            }
+        }
+        return best;
+    }
+
+    private int pickNewPiece(BitSet peerPieces) {
+        int start = readaheadStart();
+        int windowEnd = Math.min(lastPiece, start + readaheadPieces - 1);
+        for (int piece = start; piece <= windowEnd; piece++) {
+            if (isCandidate(piece, peerPieces)) {
+                return piece;
+            }
+        }
+
+        int rarest = -1;
+        for (int piece = peerPieces.nextSetBit(firstPiece); piece >= 0 && piece <= lastPiece;
+             piece = peerPieces.nextSetBit(piece + 1)) {
+            if (isCandidate(piece, peerPieces) && (rarest < 0 || availability[piece] < availability[rarest])) {
+                rarest = piece;
+            }
+        }
+        return rarest;
+    }
+
+    private boolean isCandidate(int piece, BitSet peerPieces) {
+        return peerPieces.get(piece) && !have.get(piece) && !inProgress.containsKey(piece) && !isUrgent(piece);
+    }
+
+    private boolean isUrgent(int piece) {
+        return isPriorityPiece(piece) || isDeadlinePiece(piece);
+    }
+
+    /**
+     * Returns the first missing piece at or after the playhead, or the frontier if everything
+     * from the playhead on is verified.
+     */
+    private int readaheadStart() {
+        int piece = have.nextClearBit(playhead);
+        return piece <= lastPiece ? piece : frontier();
+    }
+
+    /**
+     * Orders started pieces: the readahead window first, then the rest; lower piece indexes
+     * first within each group.
+     */
+    private int rank(int piece) {
+        int start = readaheadStart();
+        int group = piece >= start && piece < start + readaheadPieces ? 0 : 1;
+        return group * availability.length + piece;
+    }
+
+    private int blockCount(int piece) {
+        return (metainfo.getPieceSize(piece) + BLOCK_SIZE - 1) / BLOCK_SIZE;
+    }
+
+    private Block block(int piece, int index) {
+        int offset = index * BLOCK_SIZE;
+        return new Block(piece, offset, Math.min(BLOCK_SIZE, metainfo.getPieceSize(piece) - offset));
+    }
+}
@@ -0,0 +1,145 @@
+package com.hypertube.streaming.torrent;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Checks pieces against their SHA-1 hashes on a fixed pool of threads shared by the torrents of
+ * an engine, so hashing scales across cores and never runs on a peer's reading thread.
+ *
+ * The pool counts the downloaded pieces waiting for or being hashed; once that reaches the
+ * configured limit the verifier is {@link #isBehind() behind} and the torrents stop requesting
+ * new blocks until it catches up. Rechecks of pieces already on disk share the pool but not the
+ * count, so a torrent resuming from disk does not stall the downloads of the others.
+ */
+@Slf4j
+final class PieceVerifier implements Closeable {
+
+    /**
+     * Supplies the bytes of a piece: from memory or read from disk.
+     */
+    @FunctionalInterface
+    interface PieceData {
+        byte[] get() throws IOException;
+    }
+
+    /**
+     * A queued hash check; completed with false if the verifier closes before it runs.
+     */
+    private final class Check implements Runnable {
+        private final TorrentMetainfo metainfo;
+        private final int piece;
+        private final PieceData data;
+        private final boolean counted;
+        private final CompletableFuture<Boolean> result = new CompletableFuture<>();
+
+        private Check(TorrentMetainfo metainfo, int piece, PieceData data, boolean counted) {
+            this.metainfo = metainfo;
+            this.piece = piece;
+            this.data = data;
+            this.counted = counted;
+        }
+
+        private void done() {
+            if (counted) {
+                pending.decrementAndGet();
+            }
+        }
+
+        @Override
+        public void run() {
+            boolean valid;
+            try {
+                valid = metainfo.matchesPieceHash(piece, TorrentMetainfo.sha1(data.get()));
+            } catch (IOException e) {
+                log.debug("Cannot read piece {} of {}: {}", piece, metainfo.getName(), e.getMessage());
+                valid = false;
+            } finally {
+                done();
+            }
+            result.complete(valid);
+        }
+    }
+
+    private final ThreadPoolExecutor executor;
+    private final int maxPending;
+    private final AtomicInteger pending = new AtomicInteger();
+
+    /**
+     * @param threads Hashing threads, 0 for one per available processor
+     * @param maxPending Pieces queued or being hashed at which the verifier is behind
+     */
+    PieceVerifier(int threads, int maxPending) {
+        int poolSize = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+        AtomicInteger threadNumber = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(poolSize, poolSize, 0, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>(), runnable -> {
+                    Thread thread = new Thread(runnable, "torrent-verify-" + threadNumber.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        this.maxPending = Math.max(1, maxPending);
+    }
+
+    int getThreads() {
+        return executor.getCorePoolSize();
+    }
+
+    /**
+     * Returns true while more pieces are waiting to be hashed than the limit allows.
+     */
+    boolean isBehind() {
+        return pending.get() >= maxPending;
+    }
+
+    /**
+     * Hashes a piece on the pool.
+     *
+     * @return Completes with true if the data matches the piece's hash, false if it does not or
+     *         cannot be read
+     */
+    CompletableFuture<Boolean> verify(TorrentMetainfo metainfo, int piece, PieceData data) {
+        return submit(new Check(metainfo, piece, data, true));
+    }
+
+    /**
+     * Hashes a piece found on disk (resume or recheck) on the pool. Not counted against the
+     * limit: the caller bounds its own window, and downloads need not wait for it.
+     *
+     * @return Completes with true if the data matches the piece's hash, false if it does not or
+     *         cannot be read
+     */
+    CompletableFuture<Boolean> recheck(TorrentMetainfo metainfo, int piece, PieceData data) {
+        return submit(new Check(metainfo, piece, data, false));
+    }
+
+    private CompletableFuture<Boolean> submit(Check check) {
+        if (check.counted) {
+            pending.incrementAndGet();
+        }
+        try {
+            executor.execute(check);
+        } catch (RejectedExecutionException e) {
+            check.done();
+            check.result.complete(false);
+        }
+        return check.result;
+    }
+
+    @Override
+    public void close() {
+        for (Runnable queued : executor.shutdownNow()) {
+            Check check = (Check) queued;
+            check.done();
+            check.result.complete(false);
+        }
+    }
+}
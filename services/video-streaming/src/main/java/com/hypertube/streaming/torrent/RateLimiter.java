@@ -0,0 +1,47 @@
+package com.hypertube.streaming.torrent;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Token bucket shared by all peers of an engine, holding up to one second of traffic.
+ * Callers that overdraw it sleep until the debt is paid back.
+ */
+final class RateLimiter {
+
+    private final long bytesPerSecond;
+    private double available;
+    private long lastRefillNanos = System.nanoTime();
+
+    /**
+     * @param bytesPerSecond The rate, 0 or negative for unlimited
+     */
+    RateLimiter(long bytesPerSecond) {
+        this.bytesPerSecond = bytesPerSecond;
+        this.available = bytesPerSecond;
+    }
+
+    static RateLimiter ofKilobytes(int kilobytesPerSecond) {
+        return new RateLimiter(kilobytesPerSecond > 0 ? kilobytesPerSecond * 1024L : 0);
+    }
+
+    boolean isUnlimited() {
+        return bytesPerSecond <= 0;
+    }
+
+    void acquire(int bytes) throws InterruptedException {
+        if (isUnlimited()) {
+            return;
+        }
+        long waitNanos;
+        synchronized (this) {
+            long now = System.nanoTime();
+            available = Math.min(bytesPerSecond, available + (now - lastRefillNanos) * bytesPerSecond / 1e9);
+            lastRefillNanos = now;
+            available -= bytes;
+            waitNanos = available >= 0 ? 0 : (long) (-available * 1e9 / bytesPerSecond);
+        }
+        if (waitNanos > 0) {
+            TimeUnit.NANOSECONDS.sleep(waitNanos);
+        }
+    }
+}
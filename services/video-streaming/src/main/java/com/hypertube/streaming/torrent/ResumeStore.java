@@ -0,0 +1,274 @@
+package com.hypertube.streaming.torrent;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Fast-resume data of a download, so a restarted process continues where it stopped instead of
+ * rehashing or downloading everything again.
+ *
+ * Two files next to each other:
+ * - The checkpoint (bencoded, replaced atomically): the torrent source, the info dictionary and
+ *   trackers, the verified pieces, the file layout, known peers and transfer totals
+ * - A journal of pieces written to disk, appended as each piece is written
+ *
+ * A checkpoint records how far the journal went when it was taken. On resume the checkpoint's
+ * pieces are trusted (their data was forced to disk before the checkpoint was written), and only
+ * the pieces journaled after it are verified, since they may not have reached the disk.
+ */
+public final class ResumeStore implements Closeable {
+
+    private static final String JOURNAL_SUFFIX = ".journal";
+
+    /**
+     * Snapshot of a download, taken by {@link TorrentDownload} for a checkpoint.
+     */
+    record Checkpoint(byte[] infoBytes, List<String> trackers, BitSet pieces, List<String> fileLayout,
+                      List<InetSocketAddress> peers, long downloaded, long uploaded, long journalPosition) {
+    }
+
+    private final Path file;
+    private final Path journalFile;
+    private final String source;
+    private final Checkpoint checkpoint;
+    private FileChannel journal;
+    private boolean closed;
+
+    private ResumeStore(Path file, String source, Checkpoint checkpoint) {
+        this.file = file;
+        this.journalFile = journalPath(file);
+        this.source = source;
+        this.checkpoint = checkpoint;
+    }
+
+    /**
+     * Starts resume data for a new download. Nothing is written until the first checkpoint.
+     *
+     * @param file Path of the checkpoint file
+     * @param source The magnet link or .torrent URL the download was started from
+     */
+    public static ResumeStore create(Path file, String source) throws IOException {
+        Files.deleteIfExists(journalPath(file));
+        return new ResumeStore(file, source, null);
+    }
+
+    /**
+     * Reads the resume data of an interrupted download.
+     *
+     * @throws NoSuchFileException if no checkpoint was written
+     * @throws IOException if the checkpoint cannot be read or parsed
+     */
+    public static ResumeStore load(Path file) throws IOException {
+        Map<String, Object> root = Bencode.asMap(Bencode.decode(Files.readAllBytes(file)));
+        String source = Bencode.getString(root, "source");
+        if (source == null) {
+            throw new IOException("Resume data without source: " + file);
+        }
+        List<String> trackers = getStrings(root, "trackers");
+        List<String> layout = getStrings(root, "files");
+        List<InetSocketAddress> peers = new ArrayList<>();
+        for (String address : getStrings(root, "peers")) {
+            int colon = address.lastIndexOf(':');
+            try {
+                peers.add(InetSocketAddress.createUnresolved(address.substring(0, colon),
+                        Integer.parseInt(address.substring(colon + 1))));
+            } catch (RuntimeException e) {
+                // Skip a malformed address
+            }
+        }
+        byte[] pieces = Bencode.getBytes(root, "pieces");
+        Long downloaded = Bencode.getLong(root, "downloaded");
+        Long uploaded = Bencode.getLong(root, "uploaded");
+        Long journalPosition = Bencode.getLong(root, "journal position");
+        Checkpoint checkpoint = new Checkpoint(Bencode.getBytes(root, "info"), trackers,
+                pieces != null ? PeerConnection.fromBitfield(pieces) : new BitSet(), layout, peers,
+                downloaded != null ? downloaded : 0, uploaded != null ? uploaded : 0,
+                journalPosition != null ? journalPosition : 0);
+        return new ResumeStore(file, source, checkpoint);
+    }
+
+    /**
+     * Deletes the resume data of a download, if any.
+     */
+    public static void delete(Path file) throws IOException {
+        Files.deleteIfExists(file);
+        Files.deleteIfExists(journalPath(file));
+    }
+
+    public String getSource() {
+        return source;
+    }
+
+    /**
+     * Returns the info dictionary, or null if the metadata was not known at the last checkpoint.
+     */
+    public byte[] getInfoBytes() {
+        return checkpoint != null ? checkpoint.infoBytes() : null;
+    }
+
+    public List<String> getTrackers() {
+        return checkpoint != null ? checkpoint.trackers() : List.of();
+    }
+
+    /**
+     * Returns the loaded checkpoint, or null for a new download.
+     */
+    Checkpoint getCheckpoint() {
+        return checkpoint;
+    }
+
+    /**
+     * Returns the pieces journaled after the loaded checkpoint.
+     */
+    BitSet readJournalAfterCheckpoint() throws IOException {
+        BitSet pieces = new BitSet();
+        long position = checkpoint != null ? checkpoint.journalPosition() : 0;
+        byte[] entries;
+        try {
+            entries = Files.readAllBytes(journalFile);
+        } catch (NoSuchFileException e) {
+            return pieces;
+        }
+        // A torn last entry (crash while appending) is ignored
+        for (long offset = position; offset + 4 <= entries.length; offset += 4) {
+            int piece = PeerConnection.readInt(entries, (int) offset);
+            if (piece >= 0) {
+                pieces.set(piece);
+            }
+        }
+        return pieces;
+    }
+
+    /**
+     * Records that a piece has been written to disk.
+     */
+    synchronized void journalPiece(int piece) throws IOException {
+        if (closed) {
+            return; // after the final checkpoint: the piece is downloaded again on resume
+        }
+        ByteBuffer entry = ByteBuffer.allocate(4).putInt(piece).flip();
+        FileChannel channel = journal();
+        while (entry.hasRemaining()) {
+            channel.write(entry);
+        }
+    }
+
+    /**
+     * Returns the journal length, to be recorded in the next checkpoint.
+     */
+    synchronized long journalPosition() throws IOException {
+        return journal().size();
+    }
+
+    /**
+     * Writes a checkpoint, replacing the previous one atomically. The pieces it lists must be
+     * on disk already (forced), since they are not verified on resume.
+     */
+    synchronized void save(Checkpoint data) throws IOException {
+        Map<String, Object> root = new TreeMap<>();
+        root.put("source", source);
+        if (data.infoBytes() != null) {
+            root.put("info", data.infoBytes());
+        }
+        root.put("trackers", data.trackers());
+        root.put("pieces", PeerConnection.toBitfield(data.pieces(), data.pieces().length()));
+        root.put("files", data.fileLayout());
+        List<String> peers = new ArrayList<>();
+        for (InetSocketAddress peer : data.peers()) {
+            peers.add(peer.getHostString() + ":" + peer.getPort());
+        }
+        root.put("peers", peers);
+        root.put("downloaded", data.downloaded());
+        root.put("uploaded", data.uploaded());
+        root.put("journal position", data.journalPosition());
+        root.put("saved at", System.currentTimeMillis());
+
+        Files.createDirectories(file.toAbsolutePath().getParent());
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buffer = ByteBuffer.wrap(Bencode.encode(root));
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(true);
+        }
+        try {
+            Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+        }
+        if (journal != null) {
+            journal.force(false);
+        }
+    }
+
+    /**
+     * Closes and deletes the resume data, e.g. once the download is complete.
+     */
+    synchronized void discard() {
+        close();
+        try {
+            delete(file);
+        } catch (IOException e) {
+            // Overwritten or deleted with the job later
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        closed = true;
+        if (journal != null) {
+            try {
+                journal.close();
+            } catch (IOException e) {
+                // Nothing left to do with it
+            }
+            journal = null;
+        }
+    }
+
+    private FileChannel journal() throws IOException {
+        if (closed) {
+            throw new IOException("Resume data closed: " + file);
+        }
+        if (journal == null) {
+            Files.createDirectories(journalFile.toAbsolutePath().getParent());
+            journal = FileChannel.open(journalFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.APPEND);
+        }
+        return journal;
+    }
+
+    private static List<String> getStrings(Map<String, Object> map, String key) {
+        List<String> strings = new ArrayList<>();
+        List<Object> list = Bencode.getList(map, key);
+        if (list != null) {
+            for (Object value : list) {
+                if (value instanceof byte[] bytes) {
+                    strings.add(new String(bytes, StandardCharsets.UTF_8));
+                }
+            }
+        }
+        return strings;
+    }
+
+    private static Path journalPath(Path file) {
+        return file.resolveSibling(file.getFileName() + JOURNAL_SUFFIX);
+    }
+}
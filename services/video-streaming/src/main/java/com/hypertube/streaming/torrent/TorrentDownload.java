@@ -0,0 +1,1550 @@
+package com.hypertube.streaming.torrent;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * One torrent in a {@link TorrentEngine}: its peers, trackers, piece picker and files.
+ *
+ * The torrent's "streamed file" is the largest video file (the largest file if there is no
+ * video); only pieces overlapping it are downloaded, and progress, availability and completion
+ * refer to it. In seed mode the whole torrent is checked against existing data and served.
+ *
+ * Each peer connection has a reading thread; protocol state is guarded by this object's monitor,
+ * and network sends and disk I/O happen outside of it. Blocks are assembled in a
+ * {@link WriteBackBuffer}; completed pieces are hashed by the engine's {@link PieceVerifier} and
+ * written to disk whole. A piece is reported available and announced to peers only once it has
+ * verified and been written.
+ *
+ * Reads of the streamed file are reported with {@link #setPlaybackPosition}. The pieces just
+ * after that position get deadlines and are requested from the fastest peers first; a block of a
+ * piece that is about to miss its deadline is also requested from a second peer (endgame mode
+ * limited to those pieces), and the slower copy is cancelled when the first arrives.
+ *
+ * With a {@link ResumeStore}, each written piece is journaled and a checkpoint is saved
+ * periodically and on stop. A resumed download trusts the checkpoint's pieces and only verifies
+ * the pieces journaled after it; without one, existing data is checked in full.
+ */
+@Slf4j
+public final class TorrentDownload {
+
+    public enum State {
+        METADATA, CHECKING, DOWNLOADING, SEEDING, COMPLETED, FAILED, STOPPED
+    }
+
+    /**
+     * Receives the events of a download. Callbacks run on engine threads.
+     */
+    public interface Listener {
+
+        /**
+         * The metainfo is known (immediately for .torrent files, after the metadata exchange
+         * for magnet links) and the streamed file has been chosen.
+         */
+        void onMetadata(TorrentDownload download);
+
+        /**
+         * A byte range of the streamed file has been verified and written.
+         */
+        void onDataAvailable(TorrentDownload download, long start, long endExclusive);
+
+        /**
+         * Called every couple of seconds while the download is active.
+         */
+        void onProgress(TorrentDownload download);
+
+        /**
+         * The streamed file is complete. In seed mode the download keeps serving peers.
+         */
+        void onCompleted(TorrentDownload download);
+
+        void onFailed(TorrentDownload download, String message);
+    }
+
+    private static final int METADATA_PIECE_SIZE = 16 * 1024;
+    private static final int MAX_METADATA_SIZE = 16 * 1024 * 1024;
+    private static final int LOCAL_METADATA_EXTENSION_ID = 1;
+    private static final int MAX_REQUEST_LENGTH = 128 * 1024;
+    private static final int CONNECT_TIMEOUT_MS = 10_000;
+    private static final int HANDSHAKE_TIMEOUT_MS = 15_000;
+    private static final long SNUB_NANOS = TimeUnit.SECONDS.toNanos(60);
+    private static final long KEEP_ALIVE_NANOS = TimeUnit.SECONDS.toNanos(90);
+    private static final long PROGRESS_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(2);
+    private static final long METADATA_RETRY_NANOS = TimeUnit.SECONDS.toNanos(5);
+    private static final int MIN_ANNOUNCE_SECONDS = 60;
+    private static final int DEFAULT_ANNOUNCE_SECONDS = 1800;
+    private static final int ANNOUNCE_RETRY_SECONDS = 120;
+    private static final Set<String> VIDEO_EXTENSIONS = Set.of(
+            "mp4", "mkv", "avi", "mov", "webm", "m4v", "wmv", "flv", "ts", "mpg", "mpeg");
+
+    private final TorrentEngine engine;
+    private final byte[] infoHash;
+    private final List<String> trackers;
+    private final Path directory;
+    private final boolean seed;
+    private final Listener listener;
+    private final ResumeStore resume;
+
+    private volatile State state;
+    private volatile TorrentMetainfo metainfo;
+    private volatile TorrentStorage storage;
+    private volatile WriteBackBuffer writeBack;
+    private PiecePicker picker;
+    private volatile int fileIndex = -1;
+    private long fileStart;
+    private long fileEnd;
+
+    private byte[] metadata;
+    private BitSet metadataReceived;
+    private long lastMetadataRequestNanos;
+
+    private final Map<InetSocketAddress, PeerConnection> peers = new HashMap<>();
+    private final Set<InetSocketAddress> knownPeers = new HashSet<>();
+    private final List<InetSocketAddress> candidates = new ArrayList<>();
+    private int connecting;
+
+    private final Map<String, Long> nextAnnounceNanos = new LinkedHashMap<>();
+    private final Set<String> announcedTrackers = new HashSet<>();
+    private boolean announcing;
+
+    private final AtomicLong downloadedBytes = new AtomicLong();
+    private final AtomicLong uploadedBytes = new AtomicLong();
+    private final AtomicLong verifiedFileBytes = new AtomicLong();
+    private long lastRateBytes;
+    private long lastRateNanos = System.nanoTime();
+    private volatile long downloadRate;
+    private long lastProgressNanos;
+    private long lastCheckpointNanos = System.nanoTime();
+    private boolean checkpointing;
+    private long fastPeerRate;
+
+    TorrentDownload(TorrentEngine engine, byte[] infoHash, TorrentMetainfo metainfo, List<String> trackers,
+                    List<InetSocketAddress> initialPeers, Path directory, boolean seed, Listener listener,
+                    ResumeStore resume) {
+        this.engine = engine;
+        this.infoHash = infoHash.clone();
+        this.metainfo = metainfo;
+        this.trackers = List.copyOf(trackers);
+        this.directory = directory;
+        this.seed = seed;
+        this.listener = listener;
+        this.resume = resume;
+        this.state = metainfo != null ? State.CHECKING : State.METADATA;
+        long now = System.nanoTime();
+        for (String tracker : this.trackers) {
+            nextAnnounceNanos.put(tracker, now);
+        }
+        addPeers(initialPeers);
+        ResumeStore.Checkpoint checkpoint = resume != null ? resume.getCheckpoint() : null;
+        if (checkpoint != null) {
+            addPeers(checkpoint.peers());
+            downloadedBytes.set(checkpoint.downloaded());
+            uploadedBytes.set(checkpoint.uploaded());
+            lastRateBytes = checkpoint.downloaded();
+        }
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    public String getInfoHashHex() {
+        return HexFormat.of().formatHex(infoHash);
+    }
+
+    byte[] getInfoHashBytes() {
+        return infoHash;
+    }
+
+    /**
+     * Returns the metainfo, or null while it is still being fetched from peers.
+     */
+    public TorrentMetainfo getMetainfo() {
+        return metainfo;
+    }
+
+    /**
+     * Returns the path of the streamed file, or null before the metainfo is known.
+     */
+    public Path getFilePath() {
+        TorrentStorage currentStorage = storage;
+        int index = fileIndex;
+        return currentStorage != null && index >= 0 ? currentStorage.getPath(index) : null;
+    }
+
+    /**
+     * Returns the size of the streamed file, or -1 before the metainfo is known.
+     */
+    public long getFileLength() {
+        int index = fileIndex;
+        return index >= 0 ? metainfo.getFiles().get(index).length() : -1;
+    }
+
+    /**
+     * Returns the verified bytes of the streamed file.
+     */
+    public long getVerifiedBytes() {
+        return verifiedFileBytes.get();
+    }
+
+    /**
+     * Returns the download rate in bytes per second, averaged over the last few seconds.
+     */
+    public long getDownloadRate() {
+        return downloadRate;
+    }
+
+    public long getDownloadedBytes() {
+        return downloadedBytes.get();
+    }
+
+    public long getUploadedBytes() {
+        return uploadedBytes.get();
+    }
+
+    public synchronized int getPeerCount() {
+        return peers.size();
+    }
+
+    /**
+     * Copies bytes of the streamed file that are still held in memory (recently written pieces
+     * of the write-back buffer), sparing the disk read.
+     *
+     * @param fileOffset Position in the streamed file
+     * @param dst Receives at most the rest of the piece holding the position
+     * @return The number of bytes copied, 0 if they are not in memory
+     */
+    public int readBuffered(long fileOffset, ByteBuffer dst) {
+        WriteBackBuffer currentWriteBack = writeBack;
+        if (currentWriteBack == null || fileOffset < 0) {
+            return 0;
+        }
+        return currentWriteBack.read(fileStart + fileOffset, fileEnd, dst);
+    }
+
+    /**
+     * Drops one recently written piece from memory to make room in the engine's buffer budget.
+     *
+     * @return false if this torrent holds none
+     */
+    boolean evictBuffered() {
+        WriteBackBuffer currentWriteBack = writeBack;
+        return currentWriteBack != null && currentWriteBack.evict();
+    }
+
+    /**
+     * Adds peer addresses to try, e.g. from a magnet link or a tracker.
+     */
+    public synchronized void addPeers(List<InetSocketAddress> addresses) {
+        for (InetSocketAddress address : addresses) {
+            InetSocketAddress key = InetSocketAddress.createUnresolved(address.getHostString(), address.getPort());
+            if (knownPeers.add(key)) {
+                candidates.add(key);
+            }
+        }
+    }
+
+    /**
+     * Reports where a player reads the streamed file, so the pieces it needs next are fetched
+     * first. Reads within the tail priority region (players probing for the container index)
+     * do not move the playhead. After a seek, outstanding requests for pieces that are no longer
+     * needed soon are cancelled so the peers' pipelines go to the new position.
+     *
+     * @param fileOffset Read position in the streamed file
+     * @param bytesPerSecond Playback rate of the video, 0 if unknown
+     */
+    public void setPlaybackPosition(long fileOffset, long bytesPerSecond) {
+        long now = System.nanoTime();
+        Map<PeerConnection, List<PiecePicker.Block>> cancels = new HashMap<>();
+        List<PeerConnection> connections;
+        synchronized (this) {
+            if (picker == null || state != State.DOWNLOADING || fileOffset < 0 || fileStart + fileOffset >= fileEnd) {
+                return;
+            }
+            long offset = fileStart + fileOffset;
+            int piece = (int) (offset / metainfo.getPieceLength());
+            if (picker.isTailPiece(piece) && piece != picker.getPlayhead()) {
+                return;
+            }
+            if (!picker.setPlayhead(offset, now, bytesPerSecond)) {
+                return;
+            }
+            log.debug("Torrent {}: playhead moved to piece {}", metainfo.getName(), piece);
+            connections = byRate(peers.values());
+            for (PeerConnection peer : connections) {
+                List<PiecePicker.Block> stale = new ArrayList<>();
+                for (PiecePicker.Block block : peer.requests) {
+                    if (!picker.isPriorityPiece(block.piece()) && !picker.isDeadlinePiece(block.piece())) {
+                        stale.add(block);
+                    }
+                }
+                if (!stale.isEmpty()) {
+                    peer.requests.removeAll(stale);
+                    stale.forEach(this::release);
+                    cancels.put(peer, stale);
+                }
+            }
+        }
+        sendCancels(cancels);
+        for (PeerConnection peer : connections) {
+            fillRequests(peer, true);
+        }
+    }
+
+    void start() {
+        if (trackers.isEmpty() && candidates.isEmpty()) {
+            // Trackerless magnets would need DHT
+            fail("Torrent has no trackers and no peers");
+            return;
+        }
+        if (resume != null && resume.getCheckpoint() == null) {
+            // The source and metadata are on disk before the first piece
+            engine.execute(this::saveCheckpoint);
+        }
+        if (metainfo != null) {
+            engine.execute(this::initialize);
+        }
+    }
+
+    /**
+     * Stops the download: closes connections and files and tells the trackers.
+     */
+    void stop() {
+        List<PeerConnection> connections;
+        boolean wasRunning;
+        synchronized (this) {
+            wasRunning = state == State.METADATA || state == State.DOWNLOADING;
+            if (state != State.COMPLETED && state != State.FAILED) {
+                state = State.STOPPED;
+            }
+            connections = new ArrayList<>(peers.values());
+        }
+        connections.forEach(PeerConnection::close);
+        if (resume != null) {
+            if (wasRunning) {
+                saveCheckpoint();
+            }
+            resume.close();
+        }
+        WriteBackBuffer currentWriteBack = writeBack;
+        if (currentWriteBack != null) {
+            currentWriteBack.close();
+        }
+        TorrentStorage currentStorage = storage;
+        if (currentStorage != null) {
+            currentStorage.close();
+        }
+        announceAll("stopped");
+    }
+
+    private boolean isActive() {
+        State current = state;
+        return current != State.COMPLETED && current != State.FAILED && current != State.STOPPED;
+    }
+
+    /**
+     * Chooses the streamed file, opens storage and checks data already on disk.
+     */
+    private void initialize() {
+        TorrentMetainfo info = metainfo;
+        int chosen = chooseFile(info);
+        TorrentMetainfo.FileEntry file = info.getFiles().get(chosen);
+        TorrentStorage newStorage = new TorrentStorage(info, directory);
+        long rangeStart = seed ? 0 : file.offset();
+        long rangeEnd = seed ? info.getTotalLength() : file.end();
+        PiecePicker newPicker = new PiecePicker(info, rangeStart, rangeEnd,
+                engine.getConfig().getTailPriorityBytes(), engine.getConfig().getReadaheadBytes(),
+                engine.getConfig().getDeadlineWindowBytes());
+
+        synchronized (this) {
+            if (!isActive()) {
+                return;
+            }
+            fileStart = file.offset();
+            fileEnd = file.end();
+            storage = newStorage;
+            writeBack = new WriteBackBuffer(engine, info);
+            picker = newPicker;
+            fileIndex = chosen;
+            state = State.CHECKING;
+            for (PeerConnection peer : peers.values()) {
+                trimToPieceCount(peer);
+                picker.addPeer(peer.has);
+            }
+        }
+        log.info("Torrent {} ({}): streaming {} ({} MB, {} pieces of {} KB)", info.getName(), getInfoHashHex(),
+                file.displayPath(), file.length() / (1024 * 1024), info.getPieceCount(), info.getPieceLength() / 1024);
+        listener.onMetadata(this);
+
+        int existing = resume != null
+                ? restoreData(info, newStorage, rangeStart, rangeEnd)
+                : checkPieces(info, newStorage, pieceRange(info, rangeStart, rangeEnd));
+        if (existing > 0) {
+            log.info("Torrent {}: {} pieces already on disk", info.getName(), existing);
+        }
+        try {
+            newStorage.allocate(rangeStart, rangeEnd);
+        } catch (IOException e) {
+            if (isActive()) {
+                fail("Cannot allocate " + getFilePath() + ": " + e.getMessage());
+            }
+            return;
+        }
+
+        List<PeerConnection> connections;
+        boolean complete;
+        synchronized (this) {
+            if (!isActive()) {
+                return;
+            }
+            state = State.DOWNLOADING;
+            complete = picker.isComplete();
+            connections = new ArrayList<>(peers.values());
+        }
+        BitSet have = newPicker.getHave();
+        for (PeerConnection peer : connections) {
+            try {
+                if (!have.isEmpty()) {
+                    peer.sendBitfield(have, info.getPieceCount());
+                }
+            } catch (IOException e) {
+                peer.close();
+            }
+            updateInterest(peer);
+            fillRequests(peer);
+        }
+        if (complete) {
+            complete();
+        }
+    }
+
+    private static BitSet pieceRange(TorrentMetainfo info, long rangeStart, long rangeEnd) {
+        BitSet pieces = new BitSet();
+        pieces.set((int) (rangeStart / info.getPieceLength()),
+                (int) (Math.max(rangeStart, rangeEnd - 1) / info.getPieceLength()) + 1);
+        return pieces;
+    }
+
+    /**
+     * Restores the pieces of an interrupted download from its resume data: the checkpoint's
+     * pieces are taken as they are, and only the pieces written after the checkpoint are
+     * verified. Falls back to a full check if the files on disk do not match the checkpoint.
+     *
+     * @return The number of pieces found complete
+     */
+    private int restoreData(TorrentMetainfo info, TorrentStorage currentStorage, long rangeStart, long rangeEnd) {
+        BitSet range = pieceRange(info, rangeStart, rangeEnd);
+        ResumeStore.Checkpoint checkpoint = resume.getCheckpoint();
+        BitSet trusted = checkpoint != null ? (BitSet) checkpoint.pieces().clone() : new BitSet();
+        if (!trusted.isEmpty() && !checkpoint.fileLayout().equals(fileLayout(info, currentStorage))) {
+            log.warn("Torrent {}: files differ from the resume data, checking all data", info.getName());
+            return checkPieces(info, currentStorage, range);
+        }
+        BitSet written;
+        try {
+            written = resume.readJournalAfterCheckpoint();
+        } catch (IOException e) {
+            log.warn("Torrent {}: cannot read the resume journal, checking all data: {}", info.getName(), e.getMessage());
+            return checkPieces(info, currentStorage, range);
+        }
+        trusted.and(range);
+        written.and(range);
+        written.andNot(trusted);
+
+        int found = 0;
+        for (int piece = trusted.nextSetBit(0); piece >= 0 && isActive(); piece = trusted.nextSetBit(piece + 1)) {
+            if (currentStorage.isAllocated(info.getPieceOffset(piece), info.getPieceSize(piece))) {
+                synchronized (this) {
+                    picker.pieceVerified(piece);
+                }
+                notifyAvailable(piece);
+                found++;
+            }
+        }
+        int verified = checkPieces(info, currentStorage, written);
+        if (checkpoint == null && written.isEmpty()) {
+            return found; // a new download
+        }
+        log.info("Torrent {}: resumed with {} checkpointed pieces, {} of {} later pieces verified",
+                info.getName(), found, verified, written.cardinality());
+        return found + verified;
+    }
+
+    /**
+     * Returns the torrent's files as stored: relative path and size, to detect a changed
+     * layout on resume.
+     */
+    private List<String> fileLayout(TorrentMetainfo info, TorrentStorage currentStorage) {
+        List<String> layout = new ArrayList<>();
+        for (int i = 0; i < info.getFiles().size(); i++) {
+            layout.add(info.getFiles().get(i).length() + " " + directory.relativize(currentStorage.getPath(i)));
+        }
+        return layout;
+    }
+
+    /**
+     * Verifies pieces whose files exist with their final size, e.g. after a crash, on the
+     * verifier's threads. Pieces are read and hashed in parallel within a sliding window and
+     * taken in order, so the verified prefix is reported as it grows. The window does not count
+     * against the verifier's backlog limit, which would stop block requests of every torrent.
+     *
+     * @return The number of pieces found complete
+     */
+    private int checkPieces(TorrentMetainfo info, TorrentStorage currentStorage, BitSet pieces) {
+        PieceVerifier verifier = engine.getVerifier();
+        int window = 2 * verifier.getThreads();
+        Deque<Map.Entry<Integer, CompletableFuture<Boolean>>> checks = new ArrayDeque<>();
+        int found = 0;
+        int piece = pieces.nextSetBit(0);
+        while ((piece >= 0 || !checks.isEmpty()) && isActive()) {
+            if (piece >= 0 && checks.size() < window) {
+                int current = piece;
+                piece = pieces.nextSetBit(piece + 1);
+                if (currentStorage.isAllocated(info.getPieceOffset(current), info.getPieceSize(current))) {
+                    checks.add(Map.entry(current, verifier.recheck(info, current,
+                            () -> readPiece(info, currentStorage, current))));
+                }
+                continue;
+            }
+            Map.Entry<Integer, CompletableFuture<Boolean>> check = checks.poll();
+            if (check.getValue().join()) {
+                synchronized (this) {
+                    picker.pieceVerified(check.getKey());
+                }
+                notifyAvailable(check.getKey());
+                found++;
+            }
+        }
+        return found;
+    }
+
+    private static int chooseFile(TorrentMetainfo info) {
+        int best = -1;
+        boolean bestIsVideo = false;
+        List<TorrentMetainfo.FileEntry> files = info.getFiles();
+        for (int i = 0; i < files.size(); i++) {
+            TorrentMetainfo.FileEntry file = files.get(i);
+            String name = file.path().get(file.path().size() - 1).toLowerCase(Locale.ROOT);
+            int dot = name.lastIndexOf('.');
+            boolean video = dot >= 0 && VIDEO_EXTENSIONS.contains(name.substring(dot + 1));
+            if (best < 0 || (video && !bestIsVideo)
+                    || (video == bestIsVideo && file.length() > files.get(best).length())) {
+                best = i;
+                bestIsVideo = video;
+            }
+        }
+        return best;
+    }
+
+    private void complete() {
+        synchronized (this) {
+            if (!isActive() || state == State.SEEDING) {
+                return;
+            }
+            state = seed ? State.SEEDING : State.COMPLETED;
+        }
+        try {
+            storage.flush();
+        } catch (IOException e) {
+            log.warn("Failed to flush {}: {}", getFilePath(), e.getMessage());
+        }
+        log.info("Torrent {} complete: {} ({} MB downloaded, {} MB uploaded)", metainfo.getName(), getFilePath(),
+                downloadedBytes.get() / (1024 * 1024), uploadedBytes.get() / (1024 * 1024));
+        if (seed) {
+            announceAll("completed");
+        } else {
+            engine.remove(this);
+        }
+        if (resume != null) {
+            resume.discard();
+        }
+        engine.execute(() -> listener.onCompleted(this));
+    }
+
+    private void fail(String message) {
+        synchronized (this) {
+            if (!isActive()) {
+                return;
+            }
+            state = State.FAILED;
+        }
+        log.warn("Torrent {} failed: {}", getInfoHashHex(), message);
+        engine.remove(this);
+        engine.execute(() -> listener.onFailed(this, message));
+    }
+
+    /**
+     * Runs once a second on the engine's scheduler.
+     */
+    void tick() {
+        if (!isActive()) {
+            return;
+        }
+        long now = System.nanoTime();
+        announceIfDue(now);
+        connectToCandidates();
+
+        List<PeerConnection> toChoke = new ArrayList<>();
+        List<PeerConnection> toUnchoke = new ArrayList<>();
+        List<PeerConnection> connections;
+        boolean requestMetadata = false;
+        synchronized (this) {
+            updatePeerRates(now);
+            connections = byRate(peers.values());
+            int unchoked = 0;
+            for (PeerConnection peer : connections) {
+                if (!peer.requests.isEmpty() && now - peer.lastBlockNanos > SNUB_NANOS) {
+                    log.debug("Peer {} snubbed us, releasing {} requests", peer, peer.requests.size());
+                    releaseRequests(peer);
+                    peer.snubbed = true;
+                }
+                if (!peer.amChoking) {
+                    if (peer.peerInterested) {
+                        unchoked++;
+                    } else {
+                        peer.amChoking = true;
+                        toChoke.add(peer);
+                    }
+                }
+            }
+            // Upload slots go to interested peers in connection order
+            for (PeerConnection peer : peers.values()) {
+                if (unchoked >= engine.getConfig().getUploadSlots() || picker == null) {
+                    break;
+                }
+                if (peer.amChoking && peer.peerInterested && !toChoke.contains(peer)) {
+                    peer.amChoking = false;
+                    toUnchoke.add(peer);
+                    unchoked++;
+                }
+            }
+            if (metainfo == null && metadata == null) {
+                // Start over (e.g. after metadata that did not match the info hash)
+                connections.stream()
+                        .filter(peer -> peer.metadataExtensionId > 0 && peer.metadataSize > 0)
+                        .findFirst()
+                        .ifPresent(peer -> {
+                            metadata = new byte[peer.metadataSize];
+                            metadataReceived = new BitSet();
+                        });
+            }
+            if (metainfo == null && metadata != null && now - lastMetadataRequestNanos > METADATA_RETRY_NANOS) {
+                lastMetadataRequestNanos = now;
+                requestMetadata = true;
+            }
+        }
+
+        for (PeerConnection peer : connections) {
+            try {
+                if (toChoke.contains(peer)) {
+                    peer.send(PeerConnection.CHOKE);
+                } else if (toUnchoke.contains(peer)) {
+                    peer.send(PeerConnection.UNCHOKE);
+                } else if (now - peer.getLastSentNanos() > KEEP_ALIVE_NANOS) {
+                    peer.sendKeepAlive();
+                }
+                if (requestMetadata) {
+                    requestMetadata(peer);
+                }
+            } catch (IOException e) {
+                peer.close();
+            }
+            // Fastest first: urgent pieces go to the peers that deliver them soonest
+            fillRequests(peer, true);
+        }
+        requestAtRiskBlocks(now);
+
+        updateRate(now);
+        if (now - lastProgressNanos >= PROGRESS_INTERVAL_NANOS && state == State.DOWNLOADING) {
+            lastProgressNanos = now;
+            engine.execute(() -> listener.onProgress(this));
+        }
+        if (resume != null && (state == State.DOWNLOADING || state == State.METADATA)
+                && now - lastCheckpointNanos >= TimeUnit.SECONDS.toNanos(engine.getConfig().getResumeSaveIntervalSeconds())) {
+            lastCheckpointNanos = now;
+            engine.execute(this::saveCheckpoint);
+        }
+    }
+
+    /**
+     * Saves a checkpoint of the resume data. The pieces it lists are forced to disk first,
+     * since a resumed download does not verify them.
+     */
+    private void saveCheckpoint() {
+        TorrentMetainfo info;
+        TorrentStorage currentStorage;
+        BitSet have;
+        List<InetSocketAddress> addresses;
+        try {
+            // Taken before the pieces: pieces journaled in between are verified again on resume
+            long journalPosition = resume.journalPosition();
+            synchronized (this) {
+                boolean restored = picker != null && state != State.CHECKING;
+                if (checkpointing || (!restored && resume.getCheckpoint() != null)) {
+                    return; // the loaded checkpoint stands until its pieces are restored
+                }
+                checkpointing = true;
+                info = metainfo;
+                currentStorage = storage;
+                have = restored ? picker.getHave() : new BitSet();
+                addresses = new ArrayList<>(knownPeers);
+            }
+            try {
+                if (!have.isEmpty()) {
+                    currentStorage.flush();
+                }
+                resume.save(new ResumeStore.Checkpoint(info != null ? info.getInfoBytes() : null, trackers, have,
+                        currentStorage != null ? fileLayout(info, currentStorage) : List.of(), addresses,
+                        downloadedBytes.get(), uploadedBytes.get(), journalPosition));
+            } finally {
+                synchronized (this) {
+                    checkpointing = false;
+                }
+            }
+        } catch (IOException e) {
+            log.warn("Cannot save resume data of torrent {}: {}", getInfoHashHex(), e.getMessage());
+        }
+    }
+
+    /**
+     * Updates the per-peer download rates and the rate from which a peer counts as fast (the
+     * median of the peers we are downloading from).
+     */
+    private void updatePeerRates(long now) {
+        double seconds = (now - lastRateNanos) / 1e9;
+        if (seconds <= 0) {
+            return;
+        }
+        List<Long> rates = new ArrayList<>();
+        for (PeerConnection peer : peers.values()) {
+            long instant = (long) ((peer.downloadedBytes - peer.lastRateBytes) / seconds);
+            peer.rate = (long) (peer.rate * 0.7 + instant * 0.3);
+            peer.lastRateBytes = peer.downloadedBytes;
+            if (!peer.peerChoking) {
+                rates.add(peer.rate);
+            }
+        }
+        rates.sort(null);
+        fastPeerRate = rates.isEmpty() ? 0 : rates.get(rates.size() / 2);
+    }
+
+    private static List<PeerConnection> byRate(Collection<PeerConnection> connections) {
+        List<PeerConnection> sorted = new ArrayList<>(connections);
+        sorted.sort(Comparator.comparingLong((PeerConnection peer) -> peer.rate).reversed());
+        return sorted;
+    }
+
+    /**
+     * Requests the outstanding blocks of pieces about to miss their deadline from a second
+     * peer: the fastest unchoked peer that has the piece, is not already asked for the block and
+     * has room in its pipeline.
+     */
+    private void requestAtRiskBlocks(long now) {
+        Map<PeerConnection, List<PiecePicker.Block>> duplicates = new HashMap<>();
+        synchronized (this) {
+            if (picker == null || state != State.DOWNLOADING) {
+                return;
+            }
+            List<PiecePicker.Block> blocks = picker.atRiskBlocks(now,
+                    TimeUnit.MILLISECONDS.toNanos(engine.getConfig().getDeadlineMarginMs()));
+            if (blocks.isEmpty()) {
+                return;
+            }
+            List<PeerConnection> connections = byRate(peers.values());
+            int depth = engine.getConfig().getRequestPipelineDepth();
+            for (PiecePicker.Block block : blocks) {
+                if (requesters(block) > 1) {
+                    continue;
+                }
+                for (PeerConnection peer : connections) {
+                    if (!peer.peerChoking && !peer.snubbed && peer.has.get(block.piece())
+                            && !peer.requests.contains(block) && peer.requests.size() < depth + depth / 2) {
+                        peer.requests.add(block);
+                        duplicates.computeIfAbsent(peer, key -> new ArrayList<>()).add(block);
+                        break;
+                    }
+                }
+            }
+        }
+        duplicates.forEach((peer, blocks) -> {
+            log.trace("Requesting {} blocks near their deadline from {} as well", blocks.size(), peer);
+            try {
+                peer.sendRequests(blocks);
+            } catch (IOException e) {
+                peer.close();
+            }
+        });
+    }
+
+    private int requesters(PiecePicker.Block block) {
+        int count = 0;
+        for (PeerConnection peer : peers.values()) {
+            if (peer.requests.contains(block)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Returns a block to the picker unless another peer is still asked for it.
+     */
+    private void release(PiecePicker.Block block) {
+        if (requesters(block) == 0) {
+            picker.release(block);
+        }
+    }
+
+    private void releaseRequests(PeerConnection peer) {
+        List<PiecePicker.Block> released = new ArrayList<>(peer.requests);
+        peer.requests.clear();
+        if (picker != null) {
+            released.forEach(this::release);
+        }
+    }
+
+    private static void sendCancels(Map<PeerConnection, List<PiecePicker.Block>> cancels) {
+        cancels.forEach((peer, blocks) -> {
+            try {
+                for (PiecePicker.Block block : blocks) {
+                    peer.sendCancel(block);
+                }
+            } catch (IOException e) {
+                peer.close();
+            }
+        });
+    }
+
+    private void updateRate(long now) {
+        long bytes = downloadedBytes.get();
+        double seconds = (now - lastRateNanos) / 1e9;
+        if (seconds > 0) {
+            long instant = (long) ((bytes - lastRateBytes) / seconds);
+            downloadRate = downloadRate == 0 ? instant : (long) (downloadRate * 0.7 + instant * 0.3);
+        }
+        lastRateBytes = bytes;
+        lastRateNanos = now;
+    }
+
+    private void announceIfDue(long now) {
+        List<String> due = new ArrayList<>();
+        synchronized (this) {
+            if (announcing) {
+                return;
+            }
+            nextAnnounceNanos.forEach((tracker, next) -> {
+                if (now >= next) {
+                    due.add(tracker);
+                }
+            });
+            if (due.isEmpty()) {
+                return;
+            }
+            announcing = true;
+        }
+        engine.execute(() -> {
+            try {
+                for (String tracker : due) {
+                    announce(tracker);
+                }
+            } finally {
+                synchronized (this) {
+                    announcing = false;
+                }
+            }
+        });
+    }
+
+    private void announce(String tracker) {
+        String event;
+        synchronized (this) {
+            event = announcedTrackers.contains(tracker) ? null : "started";
+        }
+        int nextSeconds;
+        try {
+            TrackerClient.Response response = engine.getTrackerClient().announce(tracker, announceFor(event));
+            addPeers(response.peers());
+            synchronized (this) {
+                announcedTrackers.add(tracker);
+            }
+            nextSeconds = Math.max(MIN_ANNOUNCE_SECONDS,
+                    response.intervalSeconds() > 0 ? response.intervalSeconds() : DEFAULT_ANNOUNCE_SECONDS);
+            log.debug("Tracker {} returned {} peers for {}", tracker, response.peers().size(), getInfoHashHex());
+        } catch (IOException e) {
+            log.debug("Announce to {} failed: {}", tracker, e.getMessage());
+            nextSeconds = ANNOUNCE_RETRY_SECONDS;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        synchronized (this) {
+            nextAnnounceNanos.put(tracker, System.nanoTime() + TimeUnit.SECONDS.toNanos(nextSeconds));
+        }
+    }
+
+    /**
+     * Sends an event to every tracker that was told about this download, in the background.
+     */
+    private void announceAll(String event) {
+        List<String> announced;
+        synchronized (this) {
+            announced = new ArrayList<>(announcedTrackers);
+        }
+        if (announced.isEmpty()) {
+            return;
+        }
+        TrackerClient.Announce announce = announceFor(event);
+        engine.execute(() -> {
+            for (String tracker : announced) {
+                try {
+                    engine.getTrackerClient().announce(tracker, announce);
+                } catch (IOException e) {
+                    log.debug("Announce '{}' to {} failed: {}", event, tracker, e.getMessage());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        });
+    }
+
+    private TrackerClient.Announce announceFor(String event) {
+        long left;
+        if (metainfo == null) {
+            left = METADATA_PIECE_SIZE; // unknown, but not a seed
+        } else if (seed) {
+            left = 0;
+        } else {
+            left = Math.max(0, metainfo.getFiles().get(Math.max(0, fileIndex)).length() - verifiedFileBytes.get());
+        }
+        return new TrackerClient.Announce(infoHash, engine.getPeerId(), engine.getPort(),
+                uploadedBytes.get(), downloadedBytes.get(), left, event);
+    }
+
+    private void connectToCandidates() {
+        List<InetSocketAddress> toConnect = new ArrayList<>();
+        synchronized (this) {
+            int slots = engine.getConfig().getMaxPeersPerTorrent() - peers.size() - connecting;
+            while (slots > 0 && !candidates.isEmpty()) {
+                toConnect.add(candidates.remove(0));
+                slots--;
+            }
+            connecting += toConnect.size();
+        }
+        for (InetSocketAddress address : toConnect) {
+            engine.execute(() -> connect(address));
+        }
+    }
+
+    private void connect(InetSocketAddress address) {
+        if (!engine.reserveConnection()) {
+            // Try again once connections free up
+            synchronized (this) {
+                connecting--;
+                candidates.add(address);
+            }
+            return;
+        }
+        try {
+            PeerConnection peer = handshake(address);
+            if (peer != null) {
+                run(peer, address);
+            }
+        } finally {
+            engine.releaseConnection();
+        }
+    }
+
+    private PeerConnection handshake(InetSocketAddress address) {
+        Socket socket = new Socket();
+        PeerConnection peer = null;
+        try {
+            if (isActive()) {
+                socket.connect(new InetSocketAddress(address.getHostString(), address.getPort()), CONNECT_TIMEOUT_MS);
+                socket.setSoTimeout(HANDSHAKE_TIMEOUT_MS);
+                PeerConnection.writeHandshake(socket.getOutputStream(), infoHash, engine.getPeerId());
+                PeerConnection.Handshake handshake = PeerConnection.readHandshake(socket.getInputStream());
+                if (Arrays.equals(handshake.infoHash(), infoHash)
+                        && !Arrays.equals(handshake.peerId(), engine.getPeerId())) {
+                    peer = new PeerConnection(socket, handshake);
+                }
+            }
+        } catch (IOException e) {
+            log.trace("Connection to {} failed: {}", address, e.getMessage());
+        } finally {
+            synchronized (this) {
+                connecting--;
+                if (peer == null) {
+                    knownPeers.remove(address); // a later announce may offer it again
+                }
+            }
+            if (peer == null) {
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    // Never connected
+                }
+            }
+        }
+        return peer;
+    }
+
+    /**
+     * Serves a handshaken connection until it closes. Blocks the calling thread.
+     *
+     * @param key The address the peer is registered under
+     */
+    void run(PeerConnection peer, InetSocketAddress key) {
+        TorrentMetainfo info;
+        BitSet have;
+        synchronized (this) {
+            if (!isActive() || peers.containsKey(key)
+                    || peers.size() >= engine.getConfig().getMaxPeersPerTorrent()) {
+                peer.close();
+                return;
+            }
+            peers.put(key, peer);
+            info = state == State.DOWNLOADING || state == State.SEEDING ? metainfo : null;
+            have = info != null ? picker.getHave() : null;
+        }
+        try {
+            if (peer.supportsExtensions()) {
+                sendExtendedHandshake(peer);
+            }
+            if (have != null && !have.isEmpty()) {
+                peer.sendBitfield(have, info.getPieceCount());
+            }
+            while (isActive()) {
+                handle(peer, peer.read());
+            }
+        } catch (IOException e) {
+            log.trace("Peer {} disconnected: {}", peer, e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            peer.close();
+            synchronized (this) {
+                peers.remove(key);
+                knownPeers.remove(key);
+                releaseRequests(peer);
+                if (picker != null) {
+                    picker.removePeer(peer.has);
+                }
+            }
+        }
+    }
+
+    private void handle(PeerConnection peer, PeerConnection.Message message) throws IOException, InterruptedException {
+        byte[] payload = message.payload();
+        switch (message.id()) {
+            case PeerConnection.KEEP_ALIVE -> {
+                // Nothing to do
+            }
+            case PeerConnection.CHOKE -> {
+                synchronized (this) {
+                    peer.peerChoking = true;
+                    releaseRequests(peer);
+                }
+            }
+            case PeerConnection.UNCHOKE -> {
+                synchronized (this) {
+                    peer.peerChoking = false;
+                }
+                fillRequests(peer);
+            }
+            case PeerConnection.INTERESTED -> {
+                synchronized (this) {
+                    peer.peerInterested = true;
+                }
+            }
+            case PeerConnection.NOT_INTERESTED -> {
+                synchronized (this) {
+                    peer.peerInterested = false;
+                }
+            }
+            case PeerConnection.HAVE -> {
+                requireLength(payload, 4);
+                int piece = PeerConnection.readInt(payload, 0);
+                synchronized (this) {
+                    int limit = metainfo != null ? metainfo.getPieceCount() : MAX_METADATA_SIZE;
+                    if (piece < 0 || piece >= limit) {
+                        throw new IOException("Invalid piece index " + piece);
+                    }
+                    if (!peer.has.get(piece)) {
+                        peer.has.set(piece);
+                        if (picker != null) {
+                            picker.peerHas(piece);
+                        }
+                    }
+                }
+                updateInterest(peer);
+                fillRequests(peer);
+            }
+            case PeerConnection.BITFIELD -> {
+                synchronized (this) {
+                    if (picker != null) {
+                        picker.removePeer(peer.has);
+                    }
+                    peer.has = PeerConnection.fromBitfield(payload);
+                    if (picker != null) {
+                        trimToPieceCount(peer);
+                        picker.addPeer(peer.has);
+                    }
+                }
+                updateInterest(peer);
+                fillRequests(peer);
+            }
+            case PeerConnection.REQUEST -> {
+                requireLength(payload, 12);
+                serveBlock(peer, PeerConnection.readInt(payload, 0), PeerConnection.readInt(payload, 4),
+                        PeerConnection.readInt(payload, 8));
+            }
+            case PeerConnection.PIECE -> {
+                requireLength(payload, 8);
+                receiveBlock(peer, new PiecePicker.Block(PeerConnection.readInt(payload, 0),
+                        PeerConnection.readInt(payload, 4), payload.length - 8), payload);
+            }
+            case PeerConnection.EXTENDED -> {
+                requireLength(payload, 1);
+                if (payload[0] == 0) {
+                    receiveExtendedHandshake(peer, payload);
+                } else if (payload[0] == LOCAL_METADATA_EXTENSION_ID) {
+                    receiveMetadataMessage(peer, payload);
+                }
+            }
+            default -> {
+                // CANCEL (requests are served immediately), PORT (no DHT) and unknown messages
+            }
+        }
+    }
+
+    private static void requireLength(byte[] payload, int length) throws IOException {
+        if (payload.length < length) {
+            throw new IOException("Truncated message");
+        }
+    }
+
+    private void trimToPieceCount(PeerConnection peer) {
+        int count = metainfo.getPieceCount();
+        if (peer.has.length() > count) {
+            peer.has.clear(count, peer.has.length());
+        }
+    }
+
+    private void updateInterest(PeerConnection peer) {
+        boolean interested;
+        synchronized (this) {
+            interested = picker != null && state == State.DOWNLOADING && picker.isInteresting(peer.has);
+            if (interested == peer.amInterested) {
+                return;
+            }
+            peer.amInterested = interested;
+        }
+        try {
+            peer.send(interested ? PeerConnection.INTERESTED : PeerConnection.NOT_INTERESTED);
+        } catch (IOException e) {
+            peer.close();
+        }
+    }
+
+    private void fillRequests(PeerConnection peer) {
+        fillRequests(peer, false);
+    }
+
+    /**
+     * Tops up a peer's request pipeline.
+     *
+     * @param urgent true to hand out priority and deadline pieces even if the peer is not fast
+     */
+    private void fillRequests(PeerConnection peer, boolean urgent) {
+        List<PiecePicker.Block> blocks = new ArrayList<>();
+        synchronized (this) {
+            if (picker == null || state != State.DOWNLOADING || peer.peerChoking) {
+                return;
+            }
+            if (engine.getVerifier().isBehind()) {
+                return; // picked up again once hashing catches up
+            }
+            int depth = peer.snubbed ? 1 : engine.getConfig().getRequestPipelineDepth();
+            boolean takesUrgent = urgent || (!peer.snubbed && peer.rate >= fastPeerRate);
+            while (peer.requests.size() < depth) {
+                PiecePicker.Block block = picker.next(peer.has, takesUrgent);
+                if (block == null) {
+                    break;
+                }
+                peer.requests.add(block);
+                blocks.add(block);
+            }
+        }
+        if (!blocks.isEmpty()) {
+            try {
+                peer.sendRequests(blocks);
+            } catch (IOException e) {
+                peer.close();
+            }
+        }
+    }
+
+    private void receiveBlock(PeerConnection peer, PiecePicker.Block block, byte[] payload)
+            throws IOException, InterruptedException {
+        engine.getDownloadLimiter().acquire(block.length());
+        downloadedBytes.addAndGet(block.length());
+        Map<PeerConnection, List<PiecePicker.Block>> cancels = new HashMap<>();
+        WriteBackBuffer currentWriteBack = null;
+        byte[] assembly = null;
+        boolean started = false;
+        synchronized (this) {
+            peer.requests.remove(block);
+            peer.lastBlockNanos = System.nanoTime();
+            peer.downloadedBytes += block.length();
+            peer.snubbed = false;
+            // Claimed together with the buffer lookup: a duplicate of a block already written
+            // (or of a piece being verified) must neither allocate a buffer nor copy into one
+            if (picker == null || state != State.DOWNLOADING || !picker.claim(block)) {
+                block = null;
+            } else {
+                // Another peer may have been asked for it too (deadline endgame)
+                for (PeerConnection other : peers.values()) {
+                    if (other.requests.remove(block)) {
+                        cancels.put(other, List.of(block));
+                    }
+                }
+                currentWriteBack = writeBack;
+                assembly = currentWriteBack.getAssembled(block.piece());
+                started = assembly != null || currentWriteBack.isStarted(block.piece());
+            }
+        }
+        sendCancels(cancels);
+        if (block == null) {
+            fillRequests(peer);
+            return;
+        }
+
+        if (!started) {
+            // First block of the piece; memory is reserved outside the lock
+            boolean reserved = currentWriteBack.reserve(block.piece());
+            synchronized (this) {
+                if (picker != null && picker.isClaimed(block)) {
+                    assembly = currentWriteBack.start(block.piece(), reserved);
+                } else {
+                    if (reserved) {
+                        currentWriteBack.unreserve(block.piece());
+                    }
+                    block = null;
+                }
+            }
+            if (block == null) {
+                fillRequests(peer);
+                return;
+            }
+        }
+
+        if (assembly != null) {
+            System.arraycopy(payload, 8, assembly, block.offset(), block.length());
+        } else {
+            TorrentMetainfo info = metainfo;
+            try {
+                storage.write(info.getPieceOffset(block.piece()) + block.offset(), payload, 8, block.length());
+            } catch (IOException e) {
+                fail("Cannot write " + getFilePath() + ": " + e.getMessage());
+                return;
+            }
+        }
+        boolean pieceComplete;
+        synchronized (this) {
+            pieceComplete = picker != null && picker.blockReceived(block);
+        }
+        if (pieceComplete) {
+            verifyPiece(block.piece());
+        }
+        fillRequests(peer);
+    }
+
+    /**
+     * Hands a piece whose blocks have all been received to the verifier.
+     */
+    private void verifyPiece(int piece) {
+        TorrentMetainfo info = metainfo;
+        byte[] assembled = writeBack.getAssembled(piece);
+        TorrentStorage currentStorage = storage;
+        PieceVerifier.PieceData data = assembled != null
+                ? () -> assembled
+                : () -> readPiece(info, currentStorage, piece);
+        engine.getVerifier().verify(info, piece, data)
+                .thenAcceptAsync(valid -> pieceChecked(piece, valid), engine::execute);
+    }
+
+    private static byte[] readPiece(TorrentMetainfo info, TorrentStorage storage, int piece) throws IOException {
+        byte[] data = new byte[info.getPieceSize(piece)];
+        storage.read(info.getPieceOffset(piece), data, 0, data.length);
+        return data;
+    }
+
+    /**
+     * Writes a verified piece to disk (in one positional write per file it spans) before it is
+     * reported, so readers of the file never see a piece that is only in memory.
+     */
+    private void pieceChecked(int piece, boolean valid) {
+        TorrentMetainfo info = metainfo;
+        WriteBackBuffer currentWriteBack = writeBack;
+        if (valid) {
+            byte[] assembled = currentWriteBack.getAssembled(piece);
+            if (assembled != null) {
+                try {
+                    storage.write(info.getPieceOffset(piece), assembled, 0, assembled.length);
+                } catch (IOException e) {
+                    currentWriteBack.discard(piece);
+                    if (isActive()) {
+                        fail("Cannot write " + getFilePath() + ": " + e.getMessage());
+                    }
+                    return;
+                }
+            }
+            currentWriteBack.written(piece);
+            if (resume != null) {
+                try {
+                    resume.journalPiece(piece);
+                } catch (IOException e) {
+                    log.debug("Cannot journal piece {} of {}: {}", piece, info.getName(), e.getMessage());
+                }
+            }
+        } else {
+            currentWriteBack.discard(piece);
+        }
+
+        boolean complete;
+        List<PeerConnection> connections;
+        synchronized (this) {
+            if (state != State.DOWNLOADING) {
+                return;
+            }
+            if (valid) {
+                picker.pieceVerified(piece);
+            } else {
+                picker.pieceFailed(piece);
+            }
+            complete = picker.isComplete();
+            connections = new ArrayList<>(peers.values());
+        }
+        if (!valid) {
+            log.warn("Piece {} of {} failed hash check, downloading it again", piece, info.getName());
+            connections.forEach(this::fillRequests);
+            return;
+        }
+
+        notifyAvailable(piece);
+        for (PeerConnection peer : connections) {
+            try {
+                peer.sendHave(piece);
+            } catch (IOException e) {
+                peer.close();
+            }
+            updateInterest(peer);
+            fillRequests(peer);
+        }
+        if (complete) {
+            complete();
+        }
+    }
+
+    /**
+     * Reports the part of a verified piece that lies in the streamed file.
+     */
+    private void notifyAvailable(int piece) {
+        TorrentMetainfo info = metainfo;
+        long start = Math.max(fileStart, info.getPieceOffset(piece));
+        long end = Math.min(fileEnd, info.getPieceOffset(piece) + info.getPieceSize(piece));
+        if (end > start) {
+            verifiedFileBytes.addAndGet(end - start);
+            listener.onDataAvailable(this, start - fileStart, end - fileStart);
+        }
+    }
+
+    private void serveBlock(PeerConnection peer, int piece, int offset, int length)
+            throws IOException, InterruptedException {
+        TorrentMetainfo info;
+        synchronized (this) {
+            info = metainfo;
+            if (peer.amChoking || picker == null || piece < 0 || piece >= info.getPieceCount()
+                    || !picker.hasPiece(piece)) {
+                return;
+            }
+        }
+        if (length <= 0 || length > MAX_REQUEST_LENGTH || offset < 0
+                || (long) offset + length > info.getPieceSize(piece)) {
+            throw new IOException("Invalid request " + piece + "/" + offset + "/" + length);
+        }
+        byte[] data = new byte[length];
+        long position = info.getPieceOffset(piece) + offset;
+        int buffered = writeBack.read(position, position + length, ByteBuffer.wrap(data));
+        if (buffered < length) {
+            storage.read(position + buffered, data, buffered, length - buffered);
+        }
+        engine.getUploadLimiter().acquire(length);
+        peer.sendPiece(piece, offset, data, length);
+        uploadedBytes.addAndGet(length);
+    }
+
+    private void sendExtendedHandshake(PeerConnection peer) throws IOException {
+        Map<String, Object> handshake = new HashMap<>();
+        handshake.put("m", Map.of("ut_metadata", LOCAL_METADATA_EXTENSION_ID));
+        handshake.put("v", "Hypertube");
+        handshake.put("reqq", 250);
+        if (engine.getPort() > 0) {
+            handshake.put("p", engine.getPort());
+        }
+        TorrentMetainfo info = metainfo;
+        if (info != null) {
+            handshake.put("metadata_size", info.getInfoBytes().length);
+        }
+        peer.sendExtended(0, Bencode.encode(handshake));
+    }
+
+    private void receiveExtendedHandshake(PeerConnection peer, byte[] payload) throws IOException {
+        Map<String, Object> handshake = Bencode.asMap(new Bencode.Decoder(payload, 1).next());
+        Map<String, Object> extensions = Bencode.getMap(handshake, "m");
+        Long metadataId = extensions != null ? Bencode.getLong(extensions, "ut_metadata") : null;
+        Long metadataSize = Bencode.getLong(handshake, "metadata_size");
+        boolean request = false;
+        synchronized (this) {
+            peer.metadataExtensionId = metadataId != null && metadataId > 0 && metadataId < 256
+                    ? metadataId.intValue() : 0;
+            if (metadataSize != null && metadataSize > 0 && metadataSize <= MAX_METADATA_SIZE) {
+                peer.metadataSize = metadataSize.intValue();
+            }
+            if (metainfo == null && peer.metadataExtensionId > 0 && peer.metadataSize > 0) {
+                if (metadata == null) {
+                    metadata = new byte[peer.metadataSize];
+                    metadataReceived = new BitSet();
+                    lastMetadataRequestNanos = System.nanoTime();
+                }
+                request = metadata.length == peer.metadataSize;
+            }
+        }
+        if (request) {
+            requestMetadata(peer);
+        }
+    }
+
+    private void requestMetadata(PeerConnection peer) throws IOException {
+        List<Integer> missing = new ArrayList<>();
+        synchronized (this) {
+            if (metainfo != null || metadata == null || peer.metadataExtensionId == 0
+                    || peer.metadataSize != metadata.length) {
+                return;
+            }
+            int pieces = (metadata.length + METADATA_PIECE_SIZE - 1) / METADATA_PIECE_SIZE;
+            for (int i = metadataReceived.nextClearBit(0); i < pieces; i = metadataReceived.nextClearBit(i + 1)) {
+                missing.add(i);
+            }
+        }
+        for (int piece : missing) {
+            peer.sendExtended(peer.metadataExtensionId, Bencode.encode(Map.of("msg_type", 0, "piece", piece)));
+        }
+    }
+
+    private void receiveMetadataMessage(PeerConnection peer, byte[] payload) throws IOException {
+        Bencode.Decoder decoder = new Bencode.Decoder(payload, 1);
+        Map<String, Object> header = Bencode.asMap(decoder.next());
+        Long type = Bencode.getLong(header, "msg_type");
+        Long piece = Bencode.getLong(header, "piece");
+        if (type == null || piece == null || piece < 0) {
+            return;
+        }
+
+        if (type == 0) {
+            TorrentMetainfo info = metainfo;
+            if (peer.metadataExtensionId == 0) {
+                return;
+            }
+            if (info == null || piece * METADATA_PIECE_SIZE >= info.getInfoBytes().length) {
+                peer.sendExtended(peer.metadataExtensionId, Bencode.encode(Map.of("msg_type", 2, "piece", piece)));
+                return;
+            }
+            byte[] infoBytes = info.getInfoBytes();
+            int start = (int) (piece * METADATA_PIECE_SIZE);
+            int length = Math.min(METADATA_PIECE_SIZE, infoBytes.length - start);
+            byte[] dataHeader = Bencode.encode(Map.of("msg_type", 1, "piece", piece, "total_size", infoBytes.length));
+            byte[] message = Arrays.copyOf(dataHeader, dataHeader.length + length);
+            System.arraycopy(infoBytes, start, message, dataHeader.length, length);
+            peer.sendExtended(peer.metadataExtensionId, message);
+            return;
+        }
+
+        if (type != 1) {
+            return; // reject
+        }
+        byte[] completed = null;
+        synchronized (this) {
+            if (metainfo != null || metadata == null) {
+                return;
+            }
+            int start = (int) Math.min(Integer.MAX_VALUE, piece * METADATA_PIECE_SIZE);
+            int length = payload.length - decoder.position();
+            int expected = Math.min(METADATA_PIECE_SIZE, metadata.length - start);
+            if (start >= metadata.length || length != expected) {
+                return;
+            }
+            System.arraycopy(payload, decoder.position(), metadata, start, length);
+            metadataReceived.set(piece.intValue());
+            int pieces = (metadata.length + METADATA_PIECE_SIZE - 1) / METADATA_PIECE_SIZE;
+            if (metadataReceived.cardinality() == pieces) {
+                completed = metadata;
+                metadata = null;
+                metadataReceived = null;
+            }
+        }
+        if (completed != null) {
+            acceptMetadata(completed);
+        }
+    }
+
+    private void acceptMetadata(byte[] infoBytes) {
+        if (!Arrays.equals(TorrentMetainfo.sha1(infoBytes), infoHash)) {
+            log.warn("Metadata for {} does not match the info hash, fetching it again", getInfoHashHex());
+            return;
+        }
+        try {
+            TorrentMetainfo info = TorrentMetainfo.fromInfo(infoBytes, trackers);
+            synchronized (this) {
+                if (metainfo != null) {
+                    return;
+                }
+                metainfo = info;
+            }
+            log.info("Received metadata for {}: {}", getInfoHashHex(), info.getName());
+            engine.execute(this::initialize);
+        } catch (IOException e) {
+            fail("Invalid torrent metadata: " + e.getMessage());
+        }
+    }
+
+    @Override
+    public String toString() {
+        TorrentMetainfo info = metainfo;
+        return info != null ? info.getName() : getInfoHashHex();
+    }
+}
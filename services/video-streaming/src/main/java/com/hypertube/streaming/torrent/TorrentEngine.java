@@ -0,0 +1,338 @@
+package com.hypertube.streaming.torrent;
+
+import com.hypertube.streaming.config.StreamingConfig;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A pure-Java BitTorrent client: listens for peers, runs the torrents added to it and enforces
+ * the connection and rate limits of streaming.torrent.
+ *
+ * Features:
+ * - Peer wire protocol with pipelined block requests, choking and seeding of verified pieces
+ * - .torrent files and magnet links (metadata from peers via ut_metadata)
+ * - HTTP and UDP trackers
+ * - Streaming-first piece picking (see {@link PiecePicker})
+ * - Piece hashing on a shared pool of threads (see {@link PieceVerifier})
+ * - Write-back buffering of pieces within a memory budget shared by all torrents (see
+ *   {@link WriteBackBuffer})
+ *
+ * Peer discovery is tracker-based; DHT is not implemented, so trackerless magnet links need
+ * peer addresses (x.pe). Engines do not depend on Spring and several can run in one JVM, which
+ * is how a local seeder, tracker and downloader are run against each other end to end.
+ */
+@Slf4j
+public class TorrentEngine implements Closeable {
+
+    private static final String CLIENT_PREFIX = "-HT0100-";
+    private static final int HANDSHAKE_TIMEOUT_MS = 15_000;
+
+    private final StreamingConfig.Torrent config;
+    private final byte[] peerId;
+    private final TrackerClient trackerClient = new TrackerClient();
+    private final RateLimiter downloadLimiter;
+    private final RateLimiter uploadLimiter;
+    private final List<TorrentDownload> downloads = new CopyOnWriteArrayList<>();
+    private final AtomicInteger connections = new AtomicInteger();
+    private final AtomicLong bufferedBytes = new AtomicLong();
+    private final PieceVerifier verifier;
+    private final ExecutorService executor;
+    private final ScheduledExecutorService scheduler;
+
+    private ServerSocket serverSocket;
+    private volatile boolean closed;
+
+    public TorrentEngine(StreamingConfig.Torrent config) {
+        this.config = config;
+        this.peerId = Arrays.copyOf(CLIENT_PREFIX.getBytes(StandardCharsets.US_ASCII), 20);
+        byte[] random = new byte[20 - CLIENT_PREFIX.length()];
+        new SecureRandom().nextBytes(random);
+        for (int i = 0; i < random.length; i++) {
+            peerId[CLIENT_PREFIX.length() + i] = (byte) ('a' + (random[i] & 0xFF) % 26);
+        }
+        this.downloadLimiter = RateLimiter.ofKilobytes(config.getMaxDownloadSpeed());
+        this.uploadLimiter = RateLimiter.ofKilobytes(config.getMaxUploadSpeed());
+        this.verifier = new PieceVerifier(config.getVerifyThreads(), config.getMaxPendingVerifications());
+
+        AtomicInteger threadNumber = new AtomicInteger();
+        this.executor = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "torrent-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "torrent-scheduler");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Opens the listening port (the first free one of the configured range, else any free
+     * port) and starts the periodic work of the torrents.
+     */
+    public synchronized void start() {
+        for (int port = config.getPortRangeStart(); port <= config.getPortRangeEnd() && serverSocket == null; port++) {
+            try {
+                serverSocket = new ServerSocket(port);
+            } catch (IOException e) {
+                log.debug("Port {} unavailable: {}", port, e.getMessage());
+            }
+        }
+        if (serverSocket == null) {
+            try {
+                serverSocket = new ServerSocket(0);
+                log.warn("No free port in {}-{}, listening on {}", config.getPortRangeStart(),
+                        config.getPortRangeEnd(), serverSocket.getLocalPort());
+            } catch (IOException e) {
+                log.warn("Cannot listen for incoming peers: {}", e.getMessage());
+            }
+        }
+        if (serverSocket != null) {
+            ServerSocket listening = serverSocket;
+            Thread acceptor = new Thread(() -> accept(listening), "torrent-listener");
+            acceptor.setDaemon(true);
+            acceptor.start();
+        }
+        if (config.isDhtEnabled()) {
+            log.info("DHT is not supported; peers are found through trackers and magnet peer addresses");
+        }
+        scheduler.scheduleWithFixedDelay(this::tick, 1, 1, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Adds a torrent from a .torrent file.
+     *
+     * @param metainfo The parsed .torrent file
+     * @param directory Directory the torrent's files are stored in
+     * @param seed true to check existing data and keep serving it after completion
+     * @param listener Receives the download's events
+     */
+    public TorrentDownload add(TorrentMetainfo metainfo, Path directory, boolean seed,
+                               TorrentDownload.Listener listener) {
+        return add(new TorrentDownload(this, metainfo.getInfoHash(), metainfo, metainfo.getTrackers(),
+                List.of(), directory, seed, listener, null));
+    }
+
+    /**
+     * Adds a torrent from a .torrent file, with fast-resume data.
+     *
+     * @param resume Resume data: new, or loaded to continue an interrupted download
+     */
+    public TorrentDownload add(TorrentMetainfo metainfo, Path directory, ResumeStore resume,
+                               TorrentDownload.Listener listener) {
+        return add(new TorrentDownload(this, metainfo.getInfoHash(), metainfo, metainfo.getTrackers(),
+                List.of(), directory, false, listener, resume));
+    }
+
+    /**
+     * Adds a torrent from a magnet link; the metadata is fetched from peers first.
+     */
+    public TorrentDownload add(MagnetLink magnet, Path directory, TorrentDownload.Listener listener) {
+        return add(magnet, directory, null, listener);
+    }
+
+    /**
+     * Adds a torrent from a magnet link, with fast-resume data.
+     *
+     * @param resume Resume data: new, or loaded to continue an interrupted download; null for none
+     */
+    public TorrentDownload add(MagnetLink magnet, Path directory, ResumeStore resume,
+                               TorrentDownload.Listener listener) {
+        return add(new TorrentDownload(this, magnet.infoHash(), null, magnet.trackers(),
+                magnet.peers(), directory, false, listener, resume));
+    }
+
+    private TorrentDownload add(TorrentDownload download) {
+        if (closed) {
+            throw new IllegalStateException("Torrent engine is closed");
+        }
+        downloads.add(download);
+        download.start();
+        return download;
+    }
+
+    /**
+     * Stops a torrent and removes it from the engine.
+     */
+    public void remove(TorrentDownload download) {
+        if (downloads.remove(download)) {
+            download.stop();
+        }
+    }
+
+    public int getPort() {
+        ServerSocket listening = serverSocket;
+        return listening != null ? listening.getLocalPort() : 0;
+    }
+
+    public int getConnectionCount() {
+        return connections.get();
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        synchronized (this) {
+            if (serverSocket != null) {
+                try {
+                    serverSocket.close();
+                } catch (IOException e) {
+                    // Closing anyway
+                }
+            }
+        }
+        for (TorrentDownload download : downloads) {
+            remove(download);
+        }
+        scheduler.shutdownNow();
+        verifier.close();
+        executor.shutdown();
+        try {
+            // Lets the "stopped" announces go out
+            if (!executor.awaitTermination(2, TimeUnit.SECONDS)) {
+                executor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    StreamingConfig.Torrent getConfig() {
+        return config;
+    }
+
+    byte[] getPeerId() {
+        return peerId;
+    }
+
+    TrackerClient getTrackerClient() {
+        return trackerClient;
+    }
+
+    RateLimiter getDownloadLimiter() {
+        return downloadLimiter;
+    }
+
+    RateLimiter getUploadLimiter() {
+        return uploadLimiter;
+    }
+
+    PieceVerifier getVerifier() {
+        return verifier;
+    }
+
+    /**
+     * Reserves memory for a piece buffer within streaming.torrent.piece-buffer-bytes, evicting
+     * pieces already written to disk from the torrents' buffers if needed.
+     *
+     * @return false if the budget is used up by pieces still being assembled
+     */
+    boolean reserveBuffer(int bytes) {
+        while (bufferedBytes.addAndGet(bytes) > config.getPieceBufferBytes()) {
+            bufferedBytes.addAndGet(-bytes);
+            if (downloads.stream().noneMatch(TorrentDownload::evictBuffered)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    void releaseBuffer(int bytes) {
+        bufferedBytes.addAndGet(-bytes);
+    }
+
+    void execute(Runnable task) {
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException e) {
+            log.debug("Engine closed, dropping task");
+        }
+    }
+
+    boolean reserveConnection() {
+        if (connections.incrementAndGet() > config.getMaxConnections()) {
+            connections.decrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    void releaseConnection() {
+        connections.decrementAndGet();
+    }
+
+    private void tick() {
+        for (TorrentDownload download : downloads) {
+            try {
+                download.tick();
+            } catch (RuntimeException e) {
+                log.error("Periodic work of torrent {} failed", download, e);
+            }
+        }
+    }
+
+    private void accept(ServerSocket listening) {
+        while (!closed) {
+            try {
+                Socket socket = listening.accept();
+                execute(() -> handleIncoming(socket));
+            } catch (IOException e) {
+                if (!closed) {
+                    log.warn("Accepting peer connections failed: {}", e.getMessage());
+                }
+            }
+        }
+    }
+
+    private void handleIncoming(Socket socket) {
+        boolean reserved = false;
+        try {
+            socket.setSoTimeout(HANDSHAKE_TIMEOUT_MS);
+            PeerConnection.Handshake handshake = PeerConnection.readHandshake(socket.getInputStream());
+            TorrentDownload download = downloads.stream()
+                    .filter(candidate -> Arrays.equals(candidate.getInfoHashBytes(), handshake.infoHash()))
+                    .findFirst()
+                    .orElse(null);
+            if (download == null || Arrays.equals(handshake.peerId(), peerId) || !reserveConnection()) {
+                socket.close();
+                return;
+            }
+            reserved = true;
+            PeerConnection.writeHandshake(socket.getOutputStream(), handshake.infoHash(), peerId);
+            InetSocketAddress remote = (InetSocketAddress) socket.getRemoteSocketAddress();
+            download.run(new PeerConnection(socket, handshake),
+                    InetSocketAddress.createUnresolved(remote.getAddress().getHostAddress(), remote.getPort()));
+        } catch (IOException e) {
+            log.trace("Incoming connection failed: {}", e.getMessage());
+            try {
+                socket.close();
+            } catch (IOException closeError) {
+                // Already gone
+            }
+        } finally {
+            if (reserved) {
+                releaseConnection();
+            }
+        }
+    }
+}
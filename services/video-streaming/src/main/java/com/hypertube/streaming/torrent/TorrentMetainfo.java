@@ -0,0 +1,245 @@
+package com.hypertube.streaming.torrent;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HexFormat;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The contents of a .torrent file (BitTorrent v1): the info dictionary describing pieces and
+ * files, plus the trackers to announce to.
+ *
+ * Files are laid out back to back in one byte space; pieces are fixed-size slices of it (the
+ * last one shorter) identified by their SHA-1. For a magnet link the info dictionary is fetched
+ * from peers and parsed with {@link #fromInfo}.
+ */
+public final class TorrentMetainfo {
+
+    public static final int HASH_LENGTH = 20;
+
+    private final byte[] infoHash;
+    private final byte[] infoBytes;
+    private final String name;
+    private final int pieceLength;
+    private final byte[] pieceHashes;
+    private final List<FileEntry> files;
+    private final long totalLength;
+    private final boolean multiFile;
+    private final List<String> trackers;
+
+    /**
+     * A file of the torrent.
+     *
+     * @param path Path components below the torrent's directory (just the name for single-file torrents)
+     * @param length Size in bytes
+     * @param offset Position of the file's first byte in the torrent's byte space
+     */
+    public record FileEntry(List<String> path, long length, long offset) {
+
+        public long end() {
+            return offset + length;
+        }
+
+        public String displayPath() {
+            return String.join("/", path);
+        }
+    }
+
+    private TorrentMetainfo(byte[] infoHash, byte[] infoBytes, String name, int pieceLength,
+                            byte[] pieceHashes, List<FileEntry> files, long totalLength, boolean multiFile,
+                            List<String> trackers) {
+        this.infoHash = infoHash;
+        this.infoBytes = infoBytes;
+        this.name = name;
+        this.pieceLength = pieceLength;
+        this.pieceHashes = pieceHashes;
+        this.files = files;
+        this.totalLength = totalLength;
+        this.multiFile = multiFile;
+        this.trackers = trackers;
+    }
+
+    /**
+     * Parses a .torrent file.
+     *
+     * @throws IOException if the file is not a valid v1 torrent
+     */
+    public static TorrentMetainfo parse(byte[] torrentFile) throws IOException {
+        Bencode.Decoder decoder = new Bencode.Decoder(torrentFile, 0);
+        Map<String, Object> root = Bencode.asMap(decoder.next());
+        byte[] info = decoder.rawValue("info");
+        if (info == null) {
+            throw new IOException("Torrent has no info dictionary");
+        }
+
+        Set<String> trackers = new LinkedHashSet<>();
+        List<Object> tiers = Bencode.getList(root, "announce-list");
+        if (tiers != null) {
+            for (Object tier : tiers) {
+                if (tier instanceof List<?> urls) {
+                    for (Object url : urls) {
+                        if (url instanceof byte[] bytes) {
+                            trackers.add(new String(bytes, StandardCharsets.UTF_8));
+                        }
+                    }
+                }
+            }
+        }
+        String announce = Bencode.getString(root, "announce");
+        if (announce != null) {
+            trackers.add(announce);
+        }
+        return fromInfo(info, new ArrayList<>(trackers));
+    }
+
+    /**
+     * Parses a bencoded info dictionary, as received from peers for a magnet link.
+     *
+     * @param infoBytes The exact bytes of the info dictionary (their SHA-1 is the info hash)
+     * @param trackers Tracker URLs to announce to
+     * @throws IOException if the dictionary is not a valid v1 info dictionary
+     */
+    public static TorrentMetainfo fromInfo(byte[] infoBytes, List<String> trackers) throws IOException {
+        Map<String, Object> info = Bencode.asMap(Bencode.decode(infoBytes));
+
+        String name = Bencode.getString(info, "name.utf-8");
+        if (name == null) {
+            name = Bencode.getString(info, "name");
+        }
+        Long pieceLength = Bencode.getLong(info, "piece length");
+        byte[] pieces = Bencode.getBytes(info, "pieces");
+        if (name == null || pieceLength == null || pieces == null) {
+            throw new IOException("Info dictionary lacks name, piece length or pieces (v2-only torrents are not supported)");
+        }
+        if (pieceLength <= 0 || pieceLength > 64L * 1024 * 1024 || pieces.length % HASH_LENGTH != 0) {
+            throw new IOException("Invalid piece layout: piece length " + pieceLength + ", " + pieces.length + " hash bytes");
+        }
+
+        List<FileEntry> files = new ArrayList<>();
+        long offset = 0;
+        List<Object> fileList = Bencode.getList(info, "files");
+        if (fileList != null) {
+            for (Object item : fileList) {
+                Map<String, Object> file = Bencode.asMap(item);
+                Long length = Bencode.getLong(file, "length");
+                List<Object> path = Bencode.getList(file, "path.utf-8");
+                if (path == null) {
+                    path = Bencode.getList(file, "path");
+                }
+                if (length == null || length < 0 || path == null || path.isEmpty()) {
+                    throw new IOException("Invalid file entry in " + name);
+                }
+                List<String> components = new ArrayList<>();
+                for (Object component : path) {
+                    if (!(component instanceof byte[] bytes)) {
+                        throw new IOException("Invalid path component in " + name);
+                    }
+                    components.add(new String(bytes, StandardCharsets.UTF_8));
+                }
+                files.add(new FileEntry(Collections.unmodifiableList(components), length, offset));
+                offset += length;
+            }
+            if (files.isEmpty()) {
+                throw new IOException(name + " has an empty file list");
+            }
+        } else {
+            Long length = Bencode.getLong(info, "length");
+            if (length == null || length < 0) {
+                throw new IOException("Info dictionary has neither length nor files");
+            }
+            files.add(new FileEntry(List.of(name), length, 0));
+            offset = length;
+        }
+
+        long expectedPieces = (offset + pieceLength - 1) / pieceLength;
+        if (expectedPieces != pieces.length / HASH_LENGTH) {
+            throw new IOException(name + " has " + pieces.length / HASH_LENGTH + " piece hashes for "
+                    + expectedPieces + " pieces");
+        }
+
+        return new TorrentMetainfo(sha1(infoBytes), infoBytes, name, pieceLength.intValue(), pieces,
+                Collections.unmodifiableList(files), offset, fileList != null, List.copyOf(trackers));
+    }
+
+    static byte[] sha1(byte[] data) {
+        try {
+            return MessageDigest.getInstance("SHA-1").digest(data);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-1 not available", e);
+        }
+    }
+
+    public byte[] getInfoHash() {
+        return infoHash.clone();
+    }
+
+    public String getInfoHashHex() {
+        return HexFormat.of().formatHex(infoHash);
+    }
+
+    /**
+     * Returns the bencoded info dictionary, as served to peers that fetch metadata.
+     */
+    public byte[] getInfoBytes() {
+        return infoBytes;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getPieceLength() {
+        return pieceLength;
+    }
+
+    public int getPieceCount() {
+        return pieceHashes.length / HASH_LENGTH;
+    }
+
+    /**
+     * Returns the size of a piece; only the last one may be shorter than the piece length.
+     */
+    public int getPieceSize(int piece) {
+        long start = (long) piece * pieceLength;
+        return (int) Math.min(pieceLength, totalLength - start);
+    }
+
+    public long getPieceOffset(int piece) {
+        return (long) piece * pieceLength;
+    }
+
+    /**
+     * Checks a SHA-1 digest against the expected hash of a piece.
+     */
+    public boolean matchesPieceHash(int piece, byte[] digest) {
+        return digest.length == HASH_LENGTH && Arrays.equals(
+                pieceHashes, piece * HASH_LENGTH, (piece + 1) * HASH_LENGTH, digest, 0, HASH_LENGTH);
+    }
+
+    public List<FileEntry> getFiles() {
+        return files;
+    }
+
+    /**
+     * Multi-file torrents are stored in a directory named after the torrent.
+     */
+    public boolean isMultiFile() {
+        return multiFile;
+    }
+
+    public long getTotalLength() {
+        return totalLength;
+    }
+
+    public List<String> getTrackers() {
+        return trackers;
+    }
+}
@@ -0,0 +1,200 @@
+package com.hypertube.streaming.torrent;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Maps the torrent's byte space onto its files below a download directory.
+ *
+ * Files are allocated at their final size before the download starts (sparsely: Java has no
+ * portable fallocate), so readers of a partially downloaded file see its real length and pieces
+ * are written in place. Path components from the metainfo are sanitized; a torrent cannot write
+ * outside its directory.
+ */
+final class TorrentStorage implements Closeable {
+
+    private final TorrentMetainfo metainfo;
+    private final List<Path> paths = new ArrayList<>();
+    private final FileChannel[] channels;
+    private boolean closed;
+
+    TorrentStorage(TorrentMetainfo metainfo, Path directory) {
+        this.metainfo = metainfo;
+        Path root = metainfo.isMultiFile() ? directory.resolve(sanitize(metainfo.getName())) : directory;
+        for (TorrentMetainfo.FileEntry file : metainfo.getFiles()) {
+            Path path = root;
+            for (String component : file.path()) {
+                path = path.resolve(sanitize(component));
+            }
+            paths.add(path);
+        }
+        this.channels = new FileChannel[paths.size()];
+    }
+
+    Path getPath(int fileIndex) {
+        return paths.get(fileIndex);
+    }
+
+    /**
+     * Checks whether a file exists with its final size.
+     */
+    boolean isAllocated(int fileIndex) {
+        try {
+            Path path = paths.get(fileIndex);
+            return Files.isRegularFile(path) && Files.size(path) == metainfo.getFiles().get(fileIndex).length();
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Checks whether every file overlapping a range exists with its final size.
+     */
+    boolean isAllocated(long offset, int length) {
+        List<TorrentMetainfo.FileEntry> files = metainfo.getFiles();
+        for (int i = fileIndexAt(offset); i < files.size() && files.get(i).offset() < offset + length; i++) {
+            if (files.get(i).length() > 0 && !isAllocated(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Creates the files overlapping a range at their final size.
+     */
+    void allocate(long start, long end) throws IOException {
+        List<TorrentMetainfo.FileEntry> files = metainfo.getFiles();
+        for (int i = fileIndexAt(start); i < files.size() && files.get(i).offset() < end; i++) {
+            if (files.get(i).length() > 0) {
+                channel(i);
+            }
+        }
+    }
+
+    void write(long offset, byte[] data, int dataOffset, int length) throws IOException {
+        List<TorrentMetainfo.FileEntry> files = metainfo.getFiles();
+        long end = offset + length;
+        for (int i = fileIndexAt(offset); i < files.size() && files.get(i).offset() < end; i++) {
+            TorrentMetainfo.FileEntry file = files.get(i);
+            long start = Math.max(offset, file.offset());
+            long stop = Math.min(end, file.end());
+            if (stop <= start) {
+                continue;
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(data, dataOffset + (int) (start - offset), (int) (stop - start));
+            FileChannel channel = channel(i);
+            long position = start - file.offset();
+            while (buffer.hasRemaining()) {
+                position += channel.write(buffer, position);
+            }
+        }
+    }
+
+    /**
+     * Reads a range of the torrent's byte space.
+     *
+     * @throws IOException if a file is missing or shorter than the range
+     */
+    void read(long offset, byte[] data, int dataOffset, int length) throws IOException {
+        List<TorrentMetainfo.FileEntry> files = metainfo.getFiles();
+        long end = offset + length;
+        for (int i = fileIndexAt(offset); i < files.size() && files.get(i).offset() < end; i++) {
+            TorrentMetainfo.FileEntry file = files.get(i);
+            long start = Math.max(offset, file.offset());
+            long stop = Math.min(end, file.end());
+            if (stop <= start) {
+                continue;
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(data, dataOffset + (int) (start - offset), (int) (stop - start));
+            FileChannel channel = channel(i);
+            long position = start - file.offset();
+            while (buffer.hasRemaining()) {
+                int read = channel.read(buffer, position);
+                if (read < 0) {
+                    throw new IOException("Unexpected end of " + paths.get(i));
+                }
+                position += read;
+            }
+        }
+    }
+
+    /**
+     * Forces written data of all open files to disk.
+     */
+    synchronized void flush() throws IOException {
+        for (FileChannel channel : channels) {
+            if (channel != null) {
+                channel.force(false);
+            }
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        closed = true;
+        for (int i = 0; i < channels.length; i++) {
+            if (channels[i] != null) {
+                try {
+                    channels[i].close();
+                } catch (IOException e) {
+                    // Nothing left to do with it
+                }
+                channels[i] = null;
+            }
+        }
+    }
+
+    private synchronized FileChannel channel(int fileIndex) throws IOException {
+        if (closed) {
+            throw new IOException("Storage of " + metainfo.getName() + " is closed");
+        }
+        FileChannel channel = channels[fileIndex];
+        if (channel == null) {
+            Path path = paths.get(fileIndex);
+            Files.createDirectories(path.toAbsolutePath().getParent());
+            channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            long length = metainfo.getFiles().get(fileIndex).length();
+            if (channel.size() < length) {
+                // Sparse: only the last byte is written
+                channel.write(ByteBuffer.wrap(new byte[1]), length - 1);
+            }
+            channels[fileIndex] = channel;
+        }
+        return channel;
+    }
+
+    /**
+     * Returns the last file starting at or before an offset: the file holding the byte, as
+     * zero-length files before it share its offset.
+     */
+    private int fileIndexAt(long offset) {
+        List<TorrentMetainfo.FileEntry> files = metainfo.getFiles();
+        int low = 0;
+        int high = files.size() - 1;
+        while (low < high) {
+            int middle = (low + high + 1) >>> 1;
+            if (files.get(middle).offset() <= offset) {
+                low = middle;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return low;
+    }
+
+    private static String sanitize(String component) {
+        String sanitized = component.replaceAll("[/\\\\\u0000:]", "_").trim();
+        if (sanitized.isEmpty() || sanitized.equals(".") || sanitized.equals("..")) {
+            return "_";
+        }
+        return sanitized;
+    }
+}
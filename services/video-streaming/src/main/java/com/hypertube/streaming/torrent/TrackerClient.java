@@ -0,0 +1,219 @@
+package com.hypertube.streaming.torrent;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Announces to HTTP(S) trackers (BEP 3, compact peer lists per BEP 23) and UDP trackers (BEP 15).
+ */
+final class TrackerClient {
+
+    private static final Duration TIMEOUT = Duration.ofSeconds(15);
+    private static final int UDP_ATTEMPTS = 3;
+    private static final int UDP_TIMEOUT_MS = 5000;
+    private static final long UDP_PROTOCOL_ID = 0x41727101980L;
+    private static final int NUM_WANT = 50;
+
+    private final HttpClient httpClient = HttpClient.newBuilder()
+            .connectTimeout(TIMEOUT)
+            .followRedirects(HttpClient.Redirect.NORMAL)
+            .build();
+
+    /**
+     * Announce parameters.
+     *
+     * @param event "started", "completed", "stopped" or null for a regular announce
+     */
+    record Announce(byte[] infoHash, byte[] peerId, int port, long uploaded, long downloaded, long left,
+                    String event) {
+    }
+
+    /**
+     * @param intervalSeconds Seconds until the next regular announce
+     * @param peers Peer addresses returned by the tracker
+     */
+    record Response(int intervalSeconds, List<InetSocketAddress> peers) {
+    }
+
+    Response announce(String url, Announce announce) throws IOException, InterruptedException {
+        String scheme = URI.create(url).getScheme();
+        if (scheme == null) {
+            throw new IOException("Invalid tracker URL " + url);
+        }
+        return switch (scheme.toLowerCase(Locale.ROOT)) {
+            case "http", "https" -> announceHttp(url, announce);
+            case "udp" -> announceUdp(URI.create(url), announce);
+            default -> throw new IOException("Unsupported tracker protocol " + scheme);
+        };
+    }
+
+    private Response announceHttp(String url, Announce announce) throws IOException, InterruptedException {
+        StringBuilder query = new StringBuilder(url)
+                .append(url.indexOf('?') >= 0 ? '&' : '?')
+                .append("info_hash=").append(percentEncode(announce.infoHash()))
+                .append("&peer_id=").append(percentEncode(announce.peerId()))
+                .append("&port=").append(announce.port())
+                .append("&uploaded=").append(announce.uploaded())
+                .append("&downloaded=").append(announce.downloaded())
+                .append("&left=").append(announce.left())
+                .append("&compact=1&numwant=").append(NUM_WANT);
+        if (announce.event() != null) {
+            query.append("&event=").append(announce.event());
+        }
+
+        HttpRequest request = HttpRequest.newBuilder(URI.create(query.toString()))
+                .timeout(TIMEOUT)
+                .GET()
+                .build();
+        HttpResponse<byte[]> response = httpClient.send(request, HttpResponse.BodyHandlers.ofByteArray());
+        if (response.statusCode() != 200) {
+            throw new IOException("Tracker returned HTTP " + response.statusCode());
+        }
+
+        Map<String, Object> body = Bencode.asMap(Bencode.decode(response.body()));
+        String failure = Bencode.getString(body, "failure reason");
+        if (failure != null) {
+            throw new IOException("Tracker failure: " + failure);
+        }
+        Long interval = Bencode.getLong(body, "interval");
+
+        List<InetSocketAddress> peers = new ArrayList<>();
+        Object peerList = body.get("peers");
+        if (peerList instanceof byte[] compact) {
+            parseCompact(compact, 4, peers);
+        } else if (peerList instanceof List<?> dictionaries) {
+            for (Object item : dictionaries) {
+                Map<String, Object> peer = Bencode.asMap(item);
+                String ip = Bencode.getString(peer, "ip");
+                Long port = Bencode.getLong(peer, "port");
+                if (ip != null && port != null && port > 0 && port < 65536) {
+                    peers.add(InetSocketAddress.createUnresolved(ip, port.intValue()));
+                }
+            }
+        }
+        byte[] peers6 = Bencode.getBytes(body, "peers6");
+        if (peers6 != null) {
+            parseCompact(peers6, 16, peers);
+        }
+        return new Response(interval != null ? interval.intValue() : 0, peers);
+    }
+
+    private Response announceUdp(URI uri, Announce announce) throws IOException {
+        if (uri.getHost() == null || uri.getPort() <= 0) {
+            throw new IOException("Invalid UDP tracker " + uri);
+        }
+        InetSocketAddress tracker = new InetSocketAddress(uri.getHost(), uri.getPort());
+        if (tracker.isUnresolved()) {
+            throw new IOException("Unknown tracker host " + uri.getHost());
+        }
+        try (DatagramSocket socket = new DatagramSocket()) {
+            socket.setSoTimeout(UDP_TIMEOUT_MS);
+
+            int transaction = ThreadLocalRandom.current().nextInt();
+            ByteBuffer connect = ByteBuffer.allocate(16)
+                    .putLong(UDP_PROTOCOL_ID).putInt(0).putInt(transaction);
+            ByteBuffer reply = exchange(socket, tracker, connect.array(), transaction, 0, 16);
+            long connectionId = reply.getLong(8);
+
+            transaction = ThreadLocalRandom.current().nextInt();
+            ByteBuffer request = ByteBuffer.allocate(98)
+                    .putLong(connectionId).putInt(1).putInt(transaction)
+                    .put(announce.infoHash()).put(announce.peerId())
+                    .putLong(announce.downloaded()).putLong(announce.left()).putLong(announce.uploaded())
+                    .putInt(udpEvent(announce.event()))
+                    .putInt(0) // IP: the sender's
+                    .putInt(ThreadLocalRandom.current().nextInt())
+                    .putInt(NUM_WANT)
+                    .putShort((short) announce.port());
+            reply = exchange(socket, tracker, request.array(), transaction, 1, 20);
+
+            int interval = reply.getInt(8);
+            List<InetSocketAddress> peers = new ArrayList<>();
+            byte[] compact = new byte[reply.limit() - 20];
+            reply.get(20, compact);
+            parseCompact(compact, tracker.getAddress().getAddress().length, peers);
+            return new Response(interval, peers);
+        }
+    }
+
+    private ByteBuffer exchange(DatagramSocket socket, InetSocketAddress tracker, byte[] request,
+                                int transaction, int action, int minLength) throws IOException {
+        byte[] buffer = new byte[2048];
+        for (int attempt = 0; attempt < UDP_ATTEMPTS; attempt++) {
+            socket.send(new DatagramPacket(request, request.length, tracker));
+            DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+            try {
+                socket.receive(packet);
+            } catch (SocketTimeoutException e) {
+                continue;
+            }
+            ByteBuffer reply = ByteBuffer.wrap(buffer, 0, packet.getLength()).slice();
+            if (reply.limit() < 8 || reply.getInt(4) != transaction) {
+                continue;
+            }
+            if (reply.getInt(0) == 3) {
+                throw new IOException("Tracker error: " + new String(buffer, 8, packet.getLength() - 8,
+                        StandardCharsets.UTF_8));
+            }
+            if (reply.getInt(0) == action && reply.limit() >= minLength) {
+                return reply;
+            }
+        }
+        throw new IOException("No response from UDP tracker " + tracker);
+    }
+
+    private static int udpEvent(String event) {
+        if (event == null) {
+            return 0;
+        }
+        return switch (event) {
+            case "completed" -> 1;
+            case "started" -> 2;
+            case "stopped" -> 3;
+            default -> 0;
+        };
+    }
+
+    private static void parseCompact(byte[] compact, int addressLength, List<InetSocketAddress> peers)
+            throws IOException {
+        int entryLength = addressLength + 2;
+        for (int i = 0; i + entryLength <= compact.length; i += entryLength) {
+            byte[] address = new byte[addressLength];
+            System.arraycopy(compact, i, address, 0, addressLength);
+            int port = ((compact[i + addressLength] & 0xFF) << 8) | (compact[i + addressLength + 1] & 0xFF);
+            if (port > 0) {
+                peers.add(new InetSocketAddress(InetAddress.getByAddress(address), port));
+            }
+        }
+    }
+
+    private static String percentEncode(byte[] bytes) {
+        StringBuilder encoded = new StringBuilder(bytes.length * 3);
+        for (byte b : bytes) {
+            char c = (char) (b & 0xFF);
+            if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')
+                    || c == '-' || c == '_' || c == '.' || c == '~') {
+                encoded.append(c);
+            } else {
+                encoded.append('%').append(String.format("%02X", (int) c));
+            }
+        }
+        return encoded.toString();
+    }
+}
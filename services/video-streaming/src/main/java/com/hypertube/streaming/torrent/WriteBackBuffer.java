@@ -0,0 +1,178 @@
+package com.hypertube.streaming.torrent;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Piece-level write-back buffer of one torrent.
+ *
+ * Blocks are assembled in memory and a piece goes to disk in one positional write once it has
+ * verified, instead of a write per 16 KB block in arrival order. Written pieces stay in memory
+ * (least recently used first out) so the player reading right behind the download, and peers
+ * asking for fresh pieces, are served without touching the disk.
+ *
+ * Memory comes from the engine's piece-buffer-bytes budget, which evicts written pieces of any
+ * torrent when it runs short. A piece started while nothing can be evicted is written through:
+ * its blocks go to disk as they arrive and it is verified by reading it back.
+ */
+final class WriteBackBuffer {
+
+    private final TorrentEngine engine;
+    private final TorrentMetainfo metainfo;
+
+    private final Map<Integer, byte[]> assembling = new HashMap<>();
+    private final Set<Integer> writeThrough = new HashSet<>();
+    private final LinkedHashMap<Integer, byte[]> written = new LinkedHashMap<>(16, 0.75f, true);
+    private boolean closed;
+
+    WriteBackBuffer(TorrentEngine engine, TorrentMetainfo metainfo) {
+        this.engine = engine;
+        this.metainfo = metainfo;
+    }
+
+    /**
+     * Returns the buffer a piece is assembled in.
+     *
+     * @return The buffer, or null if the piece is written through or not started yet
+     */
+    synchronized byte[] getAssembled(int piece) {
+        return assembling.get(piece);
+    }
+
+    /**
+     * Checks whether a piece has a buffer or is written through (a closed buffer starts nothing
+     * and writes every piece through).
+     */
+    synchronized boolean isStarted(int piece) {
+        return closed || assembling.containsKey(piece) || writeThrough.contains(piece);
+    }
+
+    /**
+     * Reserves memory for assembling a piece; the result goes to {@link #start}. Called without
+     * holding any lock: the engine may evict from other torrents' buffers.
+     */
+    boolean reserve(int piece) {
+        return engine.reserveBuffer(metainfo.getPieceSize(piece));
+    }
+
+    /**
+     * Gives back a reservation that was not passed to {@link #start}.
+     */
+    void unreserve(int piece) {
+        engine.releaseBuffer(metainfo.getPieceSize(piece));
+    }
+
+    /**
+     * Starts a piece on its first block: assembled in memory if memory was reserved, written
+     * through otherwise. If it has been started meanwhile the reservation is given back.
+     *
+     * The owner must have checked, under its own lock, that the piece is still in progress:
+     * a buffer allocated for a piece that was already written would never be released.
+     *
+     * @return The buffer, or null if the piece is written through
+     */
+    synchronized byte[] start(int piece, boolean reserved) {
+        if (isStarted(piece)) {
+            if (reserved) {
+                engine.releaseBuffer(metainfo.getPieceSize(piece));
+            }
+            return assembling.get(piece);
+        }
+        if (!reserved) {
+            writeThrough.add(piece);
+            return null;
+        }
+        byte[] buffer = new byte[metainfo.getPieceSize(piece)];
+        assembling.put(piece, buffer);
+        return buffer;
+    }
+
+    /**
+     * Keeps a piece that has verified and been written for reads.
+     */
+    synchronized void written(int piece) {
+        writeThrough.remove(piece);
+        byte[] buffer = assembling.remove(piece);
+        if (buffer != null) {
+            if (closed) {
+                engine.releaseBuffer(buffer.length);
+            } else {
+                written.put(piece, buffer);
+            }
+        }
+    }
+
+    /**
+     * Drops a piece that failed verification.
+     */
+    synchronized void discard(int piece) {
+        writeThrough.remove(piece);
+        byte[] buffer = assembling.remove(piece);
+        if (buffer != null) {
+            engine.releaseBuffer(buffer.length);
+        }
+    }
+
+    /**
+     * Drops the least recently used written piece.
+     *
+     * @return false if there was none
+     */
+    synchronized boolean evict() {
+        Iterator<byte[]> buffers = written.values().iterator();
+        if (!buffers.hasNext()) {
+            return false;
+        }
+        engine.releaseBuffer(buffers.next().length);
+        buffers.remove();
+        return true;
+    }
+
+    /**
+     * Copies bytes of a written piece from memory.
+     *
+     * @param offset Position in the torrent's byte space
+     * @param end End of the readable range, exclusive
+     * @param dst Receives at most the rest of the piece holding offset
+     * @return The number of bytes copied, 0 if the piece is not in memory
+     */
+    int read(long offset, long end, ByteBuffer dst) {
+        int piece = (int) (offset / metainfo.getPieceLength());
+        byte[] buffer;
+        synchronized (this) {
+            buffer = written.get(piece);
+        }
+        if (buffer == null) {
+            return 0;
+        }
+        // Written pieces are never modified, so they are copied outside the lock
+        int start = (int) (offset - metainfo.getPieceOffset(piece));
+        int length = (int) Math.min(dst.remaining(), Math.min(buffer.length - start, end - offset));
+        if (length <= 0) {
+            return 0;
+        }
+        dst.put(buffer, start, length);
+        return length;
+    }
+
+    /**
+     * Releases all memory; later pieces are not buffered.
+     */
+    synchronized void close() {
+        closed = true;
+        for (byte[] buffer : assembling.values()) {
+            engine.releaseBuffer(buffer.length);
+        }
+        for (byte[] buffer : written.values()) {
+            engine.releaseBuffer(buffer.length);
+        }
+        assembling.clear();
+        written.clear();
+        writeThrough.clear();
+    }
+}
@@ -0,0 +1,124 @@
+package com.hypertube.streaming.util;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tracks which byte ranges of a file that is still being downloaded are already on disk.
+ *
+ * The download layer marks ranges as they land (typically whole verified pieces); the streaming
+ * layer asks how many contiguous bytes are readable from a given offset and can block, with a
+ * timeout, until the data it needs arrives. Ranges are kept merged, so lookups stay cheap even
+ * for torrents with thousands of pieces.
+ *
+ * A download that stops before completing {@link #abandon() abandons} its map, so readers waiting
+ * for bytes that will never arrive give up at once.
+ */
+public class AvailabilityMap {
+
+    private final long totalLength;
+
+    // start (inclusive) -> end (exclusive), non-overlapping and non-adjacent
+    private final TreeMap<Long, Long> ranges = new TreeMap<>();
+    private long availableBytes;
+    private boolean abandoned;
+
+    public AvailabilityMap(long totalLength) {
+        this.totalLength = totalLength;
+    }
+
+    public long getTotalLength() {
+        return totalLength;
+    }
+
+    /**
+     * Marks [start, endExclusive) as present on disk and wakes up any waiting readers.
+     */
+    public synchronized void markAvailable(long start, long endExclusive) {
+        start = Math.max(0, start);
+        endExclusive = Math.min(totalLength, endExclusive);
+        if (endExclusive <= start) {
+            return;
+        }
+
+        Map.Entry<Long, Long> floor = ranges.floorEntry(start);
+        if (floor != null && floor.getValue() >= start) {
+            start = floor.getKey();
+            endExclusive = Math.max(endExclusive, floor.getValue());
+            availableBytes -= floor.getValue() - floor.getKey();
+            ranges.remove(floor.getKey());
+        }
+
+        Map.Entry<Long, Long> next = ranges.ceilingEntry(start);
+        while (next != null && next.getKey() <= endExclusive) {
+            endExclusive = Math.max(endExclusive, next.getValue());
+            availableBytes -= next.getValue() - next.getKey();
+            ranges.remove(next.getKey());
+            next = ranges.ceilingEntry(start);
+        }
+
+        ranges.put(start, endExclusive);
+        availableBytes += endExclusive - start;
+        notifyAll();
+    }
+
+    /**
+     * Returns the number of contiguous bytes readable starting at the given offset (0 if the
+     * byte at offset has not been downloaded yet).
+     */
+    public synchronized long contiguousFrom(long offset) {
+        Map.Entry<Long, Long> floor = ranges.floorEntry(offset);
+        if (floor == null || floor.getValue() <= offset) {
+            return 0;
+        }
+        return floor.getValue() - offset;
+    }
+
+    /**
+     * Waits until the byte at offset is available or the timeout elapses.
+     *
+     * @return The number of contiguous bytes readable from offset, or 0 on timeout or if the
+     *         map was abandoned
+     */
+    public synchronized long awaitAvailable(long offset, long timeoutMillis) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        long available = contiguousFrom(offset);
+        while (available == 0 && offset < totalLength && !abandoned) {
+            long remainingMillis = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+            if (remainingMillis <= 0) {
+                return 0;
+            }
+            wait(remainingMillis);
+            available = contiguousFrom(offset);
+        }
+        return available;
+    }
+
+    /**
+     * Returns the number of contiguous bytes available from the start of the file.
+     */
+    public long getContiguousPrefix() {
+        return contiguousFrom(0);
+    }
+
+    public synchronized long getAvailableBytes() {
+        return availableBytes;
+    }
+
+    public synchronized boolean isComplete() {
+        return availableBytes >= totalLength;
+    }
+
+    /**
+     * Marks the download as stopped: no more ranges will arrive, and waiting readers are woken.
+     */
+    public synchronized void abandon() {
+        abandoned = true;
+        notifyAll();
+    }
+
+    public synchronized boolean isAbandoned() {
+        return abandoned;
+    }
+}
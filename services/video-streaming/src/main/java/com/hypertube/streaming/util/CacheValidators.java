@@ -0,0 +1,114 @@
+package com.hypertube.streaming.util;
+
+import org.springframework.http.HttpHeaders;
+
+import java.nio.file.Path;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.List;
+
+/**
+ * HTTP validators and conditional request evaluation (RFC 7232) for file responses.
+ *
+ * Supports:
+ * - Strong ETags derived from file identity (path), size and modification time
+ * - If-None-Match / If-Modified-Since evaluation for 304 Not Modified
+ * - If-Range validation, so a resumed range is only served if the file did not change
+ */
+public final class CacheValidators {
+
+    private CacheValidators() {
+    }
+
+    /**
+     * Builds a strong entity tag for a file version.
+     *
+     * @param path The file path
+     * @param size The file size in bytes
+     * @param lastModified The modification time in epoch milliseconds
+     * @return The quoted ETag value
+     */
+    public static String strongEtag(Path path, long size, long lastModified) {
+        return "\"" + Integer.toHexString(path.toAbsolutePath().normalize().hashCode())
+                + "-" + Long.toHexString(size)
+                + "-" + Long.toHexString(lastModified) + "\"";
+    }
+
+    /**
+     * Evaluates If-None-Match (or, in its absence, If-Modified-Since) against the current
+     * validators of a resource.
+     *
+     * @param request The request headers
+     * @param etag The current strong ETag
+     * @param lastModified The modification time in epoch milliseconds
+     * @return true if the client's copy is current and 304 Not Modified should be sent
+     */
+    public static boolean isNotModified(HttpHeaders request, String etag, long lastModified) {
+        List<String> ifNoneMatch = request.getIfNoneMatch();
+        if (!ifNoneMatch.isEmpty()) {
+            // If-None-Match takes precedence and uses the weak comparison
+            for (String candidate : ifNoneMatch) {
+                if ("*".equals(candidate) || weakEquals(candidate, etag)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        long ifModifiedSince = request.getIfModifiedSince();
+        return ifModifiedSince != -1 && truncateToSeconds(lastModified) <= ifModifiedSince;
+    }
+
+    /**
+     * Evaluates an If-Range header. A Range request is only honored if the validator still
+     * matches; otherwise the whole representation must be sent.
+     *
+     * @param ifRange The If-Range header value (may be null)
+     * @param etag The current strong ETag, or null if the resource has none
+     * @param lastModified The modification time in epoch milliseconds
+     * @return true if the Range header should be honored
+     */
+    public static boolean ifRangeMatches(String ifRange, String etag, long lastModified) {
+        if (ifRange == null || ifRange.isBlank()) {
+            return true;
+        }
+        if (etag == null) {
+            return false;
+        }
+
+        String value = ifRange.trim();
+        if (value.startsWith("\"") || value.startsWith("W/")) {
+            // Strong comparison: weak tags never match
+            return value.equals(etag);
+        }
+
+        try {
+            long date = ZonedDateTime.parse(value, DateTimeFormatter.RFC_1123_DATE_TIME)
+                    .toInstant().toEpochMilli();
+            return date == truncateToSeconds(lastModified);
+        } catch (DateTimeParseException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Sets ETag and Last-Modified on a response.
+     */
+    public static void applyValidators(HttpHeaders response, String etag, long lastModified) {
+        response.setETag(etag);
+        response.setLastModified(truncateToSeconds(lastModified));
+    }
+
+    private static boolean weakEquals(String candidate, String etag) {
+        return stripWeak(candidate).equals(stripWeak(etag));
+    }
+
+    private static String stripWeak(String tag) {
+        return tag.startsWith("W/") ? tag.substring(2) : tag;
+    }
+
+    private static long truncateToSeconds(long millis) {
+        return millis / 1000 * 1000;
+    }
+}
@@ -0,0 +1,213 @@
+package com.hypertube.streaming.util;
+
+import org.springframework.core.io.AbstractResource;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+
+/**
+ * Resource exposing a single byte region of a file without buffering it on the heap.
+ *
+ * Reads are positional on a {@link java.nio.channels.FileChannel}, so memory per stream stays constant
+ * regardless of the region size. When the response is written through
+ * {@link InputStream#transferTo(OutputStream)} (as Spring's ResourceHttpMessageConverter does),
+ * the region is copied slice by slice with {@link java.nio.channels.FileChannel#transferTo} into a
+ * channel wrapping the servlet output stream. The servlet API exposes no file channel to send to,
+ * so this is a buffered channel copy (the JDK goes through a small transfer buffer), not a
+ * kernel-level transfer; what it saves is a heap buffer sized to the region.
+ *
+ * A file that ends before the region does (e.g. truncated underneath us) fails the read with an
+ * IOException rather than ending the stream early, so the container aborts the connection instead
+ * of completing a response shorter than its Content-Length.
+ *
+ * Where the bytes come from is decided by the {@link PositionalReader.Source}: a dedicated
+ * channel by default, or the shared block cache when hot segments should be served from memory.
+ *
+ * For files that are still downloading an {@link AvailabilityMap} can be supplied: reads then
+ * only touch bytes that are already on disk and block (up to the given timeout) at the download
+ * frontier instead of returning zeros from a sparse file.
+ */
+public class FileRegionResource extends AbstractResource {
+
+    private final Path path;
+    private final PositionalReader.Source source;
+    private final long position;
+    private final long count;
+    private final int transferSliceSize;
+    private final AvailabilityMap availability;
+    private final long availabilityTimeoutMillis;
+
+    /**
+     * @param path The file to read from
+     * @param position Offset of the first byte of the region
+     * @param count Number of bytes in the region
+     * @param transferSliceSize Maximum number of bytes handed to a single transferTo call
+     */
+    public FileRegionResource(Path path, long position, long count, int transferSliceSize) {
+        this(path, PositionalReader.direct(path), position, count, transferSliceSize, null, 0);
+    }
+
+    /**
+     * @param path The file to read from
+     * @param source Opens the reader used to fetch the region's bytes
+     * @param position Offset of the first byte of the region
+     * @param count Number of bytes in the region
+     * @param transferSliceSize Maximum number of bytes handed to a single transferTo call
+     * @param availability Downloaded ranges of a growing file, or null for a complete file
+     * @param availabilityTimeoutMillis How long a read may wait for missing bytes
+     */
+    public FileRegionResource(Path path, PositionalReader.Source source, long position, long count,
+                              int transferSliceSize, AvailabilityMap availability,
+                              long availabilityTimeoutMillis) {
+        this.path = path;
+        this.source = source;
+        this.position = position;
+        this.count = count;
+        this.transferSliceSize = transferSliceSize;
+        this.availability = availability;
+        this.availabilityTimeoutMillis = availabilityTimeoutMillis;
+    }
+
+    public long getPosition() {
+        return position;
+    }
+
+    /**
+     * Lower bound of the time writing the region takes, when its source is paced.
+     */
+    public long getMinTransferMillis() {
+        return source.minReadMillis(count);
+    }
+
+    @Override
+    public boolean exists() {
+        return path.toFile().exists();
+    }
+
+    @Override
+    public long contentLength() {
+        return count;
+    }
+
+    @Override
+    public String getFilename() {
+        return path.getFileName().toString();
+    }
+
+    @Override
+    public String getDescription() {
+        return "file region [" + path + ", " + position + "+" + count + "]";
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        return new RegionInputStream(source.open());
+    }
+
+    /**
+     * InputStream over [position, position + count) backed by positional reads.
+     */
+    private class RegionInputStream extends InputStream {
+
+        private final PositionalReader reader;
+        private long offset;
+
+        private RegionInputStream(PositionalReader reader) {
+            this.reader = reader;
+            this.offset = position;
+        }
+
+        private long remaining() {
+            return position + count - offset;
+        }
+
+        /**
+         * Returns how many bytes may be read at the current offset, waiting for the download
+         * frontier if needed.
+         */
+        private long readable(long wanted) throws IOException {
+            if (availability == null) {
+                return wanted;
+            }
+            try {
+                long available = availability.awaitAvailable(offset, availabilityTimeoutMillis);
+                if (available == 0) {
+                    throw new IOException(availability.isAbandoned()
+                            ? "Download stopped before byte " + offset + " of " + path
+                            : "Timed out waiting for byte " + offset + " of " + path);
+                }
+                return Math.min(wanted, available);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for download data", e);
+            }
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] single = new byte[1];
+            return read(single, 0, 1) == -1 ? -1 : single[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            long remaining = remaining();
+            if (remaining <= 0) {
+                return -1;
+            }
+            if (len == 0) {
+                return 0;
+            }
+            int toRead = (int) readable(Math.min(len, remaining));
+            int read = reader.read(ByteBuffer.wrap(b, off, toRead), offset);
+            if (read <= 0) {
+                throw truncated();
+            }
+            offset += read;
+            return read;
+        }
+
+        @Override
+        public long skip(long n) {
+            long skipped = Math.max(0, Math.min(n, remaining()));
+            offset += skipped;
+            return skipped;
+        }
+
+        @Override
+        public int available() {
+            return (int) Math.min(Integer.MAX_VALUE, Math.max(0, remaining()));
+        }
+
+        @Override
+        public long transferTo(OutputStream out) throws IOException {
+            WritableByteChannel target = Channels.newChannel(out);
+            long transferred = 0;
+            while (remaining() > 0) {
+                long slice = readable(Math.min(transferSliceSize, remaining()));
+                long written = reader.transferTo(offset, slice, target);
+                if (written <= 0) {
+                    throw truncated();
+                }
+                offset += written;
+                transferred += written;
+            }
+            return transferred;
+        }
+
+        private IOException truncated() {
+            return new IOException("File ended at byte " + offset + " of " + path + ", "
+                    + remaining() + " bytes before the end of the region");
+        }
+
+        @Override
+        public void close() throws IOException {
+            reader.close();
+        }
+    }
+}
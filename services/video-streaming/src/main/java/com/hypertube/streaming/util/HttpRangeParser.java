@@ -4,9 +4,8 @@ import lombok.Data;
 import lombok.extern.slf4j.Slf4j;
 
 import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.List;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 /**
  * Utility class for parsing HTTP Range headers according to RFC 7233.
@@ -16,12 +15,19 @@ import java.util.regex.Pattern;
  * - Open-ended range: "bytes=1024-"
  * - Suffix range: "bytes=-500"
  * - Multiple ranges: "bytes=0-1023,2048-4095"
+ *
+ * Parsing is a hand-written single pass over the header; {@link #parseRanges} writes into a
+ * caller-supplied array so the common single-range request allocates nothing.
  */
 @Slf4j
 public class HttpRangeParser {
 
-    private static final Pattern RANGE_PATTERN = Pattern.compile("^bytes=(.+)$");
-    private static final Pattern RANGE_SPEC_PATTERN = Pattern.compile("(\\d*)-(\\d*)");
+    /**
+     * Returned by {@link #parseRanges} when the header holds more ranges than the caller accepts.
+     */
+    public static final int TOO_MANY_RANGES = -1;
+
+    private static final String BYTES_UNIT = "bytes=";
 
     /**
      * Represents a byte range with start and end positions.
@@ -49,72 +55,172 @@ public class HttpRangeParser {
      */
     public static List<Range> parseRangeHeader(String rangeHeader, long fileSize) {
         List<Range> ranges = new ArrayList<>();
+        parse(rangeHeader, fileSize, null, ranges);
+        return ranges;
+    }
 
-        if (rangeHeader == null || rangeHeader.isEmpty()) {
-            return ranges;
+    /**
+     * Allocation-free variant of {@link #parseRangeHeader} for the per-request hot path.
+     *
+     * Satisfiable ranges are written to {@code bounds} as (start, end) pairs in header order:
+     * {@code bounds[2 * i]} is the start and {@code bounds[2 * i + 1]} the inclusive end of range i.
+     * The capacity of the array (length / 2) is the maximum number of ranges accepted.
+     *
+     * @param rangeHeader The Range header value (e.g., "bytes=0-1023")
+     * @param fileSize The total size of the file
+     * @param bounds Output array receiving start/end pairs
+     * @return The number of ranges parsed (0 if the header is invalid or unsatisfiable),
+     *         or {@link #TOO_MANY_RANGES} if the header holds more ranges than bounds can take
+     */
+    public static int parseRanges(String rangeHeader, long fileSize, long[] bounds) {
+        return parse(rangeHeader, fileSize, bounds, null);
+    }
+
+    /**
+     * Single-pass parser shared by both entry points. Exactly one of bounds/out is non-null.
+     *
+     * Mirrors the grammar the previous regex-based parser accepted: the trimmed header must be
+     * "bytes=" followed by comma-separated specs of the form {@code digits? "-" digits?}, each
+     * optionally surrounded by whitespace. Invalid or unsatisfiable specs are skipped. Numbers
+     * too large for a long make their spec invalid.
+     */
+    private static int parse(String header, long fileSize, long[] bounds, List<Range> out) {
+        if (header == null || header.isEmpty()) {
+            return 0;
         }
 
-        Matcher matcher = RANGE_PATTERN.matcher(rangeHeader.trim());
-        if (!matcher.matches()) {
-            log.warn("Invalid Range header format: {}", rangeHeader);
-            return ranges;
+        // Equivalent of header.trim() without allocating
+        int from = 0;
+        int to = header.length();
+        while (from < to && header.charAt(from) <= ' ') {
+            from++;
+        }
+        while (to > from && header.charAt(to - 1) <= ' ') {
+            to--;
         }
 
-        String rangeSpec = matcher.group(1);
-        String[] rangeSpecs = rangeSpec.split(",");
+        if (!isBytesUnit(header, from, to)) {
+            log.warn("Invalid Range header format: {}", header);
+            return 0;
+        }
+
+        int count = 0;
+        int pos = from + BYTES_UNIT.length();
+        while (pos <= to) {
+            int specEnd = header.indexOf(',', pos);
+            if (specEnd == -1 || specEnd > to) {
+                specEnd = to;
+            }
+
+            int i = pos;
+            int j = specEnd;
+            pos = specEnd + 1;
+            while (i < j && header.charAt(i) <= ' ') {
+                i++;
+            }
+            while (j > i && header.charAt(j - 1) <= ' ') {
+                j--;
+            }
+            if (i == j) {
+                continue;
+            }
 
-        for (String spec : rangeSpecs) {
-            Matcher specMatcher = RANGE_SPEC_PATTERN.matcher(spec.trim());
-            if (!specMatcher.matches()) {
-                log.warn("Invalid range specification: {}", spec);
+            // first-byte-pos
+            long first = 0;
+            int firstDigits = 0;
+            while (i < j && isDigit(header.charAt(i))) {
+                first = accumulate(first, header.charAt(i));
+                firstDigits++;
+                i++;
+            }
+            if (i == j || header.charAt(i) != '-' || first < 0) {
+                log.warn("Invalid range specification in header: {}", header);
                 continue;
             }
+            i++;
 
-            String startStr = specMatcher.group(1);
-            String endStr = specMatcher.group(2);
+            // last-byte-pos (or suffix length)
+            long last = 0;
+            int lastDigits = 0;
+            while (i < j && isDigit(header.charAt(i))) {
+                last = accumulate(last, header.charAt(i));
+                lastDigits++;
+                i++;
+            }
+            if (i != j || last < 0 || (firstDigits == 0 && lastDigits == 0)) {
+                log.warn("Invalid range specification in header: {}", header);
+                continue;
+            }
 
             long start;
             long end;
-
-            if (startStr.isEmpty() && !endStr.isEmpty()) {
+            if (firstDigits == 0) {
                 // Suffix range: bytes=-500 (last 500 bytes)
-                long suffixLength = Long.parseLong(endStr);
-                start = Math.max(0, fileSize - suffixLength);
+                start = Math.max(0, fileSize - last);
                 end = fileSize - 1;
-            } else if (!startStr.isEmpty() && endStr.isEmpty()) {
+            } else if (lastDigits == 0) {
                 // Open-ended range: bytes=1024- (from 1024 to end)
-                start = Long.parseLong(startStr);
+                start = first;
                 end = fileSize - 1;
-            } else if (!startStr.isEmpty() && !endStr.isEmpty()) {
-                // Normal range: bytes=0-1023
-                start = Long.parseLong(startStr);
-                end = Long.parseLong(endStr);
             } else {
-                // Invalid: bytes=-
-                log.warn("Invalid range specification (both empty): {}", spec);
-                continue;
+                // Normal range: bytes=0-1023
+                start = first;
+                end = last;
             }
 
-            // Validate range bounds
-            if (start < 0 || start >= fileSize) {
-                log.warn("Range start {} is out of bounds for file size {}", start, fileSize);
+            // Validate range bounds and clamp end to the file size
+            if (start >= fileSize) {
                 continue;
             }
-
-            // Adjust end to file size if needed
             end = Math.min(end, fileSize - 1);
-
             if (end < start) {
-                log.warn("Range end {} is before start {} for spec: {}", end, start, spec);
                 continue;
             }
 
-            Range range = new Range(start, end);
-            ranges.add(range);
-            log.debug("Parsed range: {}-{} (length: {})", start, end, range.getLength());
+            if (out != null) {
+                out.add(new Range(start, end));
+            } else {
+                if (2 * count + 1 >= bounds.length) {
+                    return TOO_MANY_RANGES;
+                }
+                bounds[2 * count] = start;
+                bounds[2 * count + 1] = end;
+            }
+            count++;
+        }
+
+        return count;
+    }
+
+    /**
+     * Checks that header[from, to) is "bytes=" followed by at least one character and no line
+     * terminators (what the former {@code ^bytes=(.+)$} pattern matched).
+     */
+    private static boolean isBytesUnit(String header, int from, int to) {
+        if (to - from <= BYTES_UNIT.length() || !header.startsWith(BYTES_UNIT, from)) {
+            return false;
+        }
+        for (int i = from + BYTES_UNIT.length(); i < to; i++) {
+            char c = header.charAt(i);
+            if (c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029') {
+                return false;
+            }
         }
+        return true;
+    }
 
-        return ranges;
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    /**
+     * Appends a decimal digit, returning -1 once the value no longer fits in a long.
+     */
+    private static long accumulate(long value, char digit) {
+        if (value < 0 || value > (Long.MAX_VALUE - (digit - '0')) / 10) {
+            return -1;
+        }
+        return value * 10 + (digit - '0');
     }
 
     /**
@@ -128,7 +234,8 @@ public class HttpRangeParser {
             return false;
         }
 
-        return RANGE_PATTERN.matcher(rangeHeader.trim()).matches();
+        String trimmed = rangeHeader.trim();
+        return isBytesUnit(trimmed, 0, trimmed.length());
     }
 
     /**
@@ -139,7 +246,67 @@ public class HttpRangeParser {
      * @return Content-Range header value (e.g., "bytes 0-1023/2048")
      */
     public static String generateContentRangeHeader(Range range, long fileSize) {
-        return String.format("bytes %d-%d/%d", range.getStart(), range.getEnd(), fileSize);
+        return generateContentRangeHeader(range.getStart(), range.getEnd(), fileSize);
+    }
+
+    /**
+     * Generates a Content-Range header value for a single range given as start/end offsets.
+     *
+     * @param start First byte served (inclusive)
+     * @param end Last byte served (inclusive)
+     * @param fileSize The total file size
+     * @return Content-Range header value (e.g., "bytes 0-1023/2048")
+     */
+    public static String generateContentRangeHeader(long start, long end, long fileSize) {
+        // 6 ("bytes ") + 2 separators + up to 3 x 19 digits
+        return new StringBuilder(65)
+                .append("bytes ")
+                .append(start)
+                .append('-')
+                .append(end)
+                .append('/')
+                .append(fileSize)
+                .toString();
+    }
+
+    /**
+     * Generates the Content-Range header value sent with a 416 response.
+     *
+     * @param fileSize The total file size
+     * @return Content-Range header value (e.g., "bytes *&#47;2048")
+     */
+    public static String generateUnsatisfiedContentRangeHeader(long fileSize) {
+        return "bytes */" + fileSize;
+    }
+
+    /**
+     * Merges overlapping and adjacent ranges (RFC 7233 section 4.1 allows a server to coalesce
+     * them). The result is ordered by start offset.
+     *
+     * @param ranges The parsed, valid ranges
+     * @return Non-overlapping, non-adjacent ranges covering the same bytes
+     */
+    public static List<Range> coalesceRanges(List<Range> ranges) {
+        if (ranges.size() < 2) {
+            return ranges;
+        }
+
+        List<Range> sorted = new ArrayList<>(ranges);
+        sorted.sort(Comparator.comparingLong(Range::getStart));
+
+        List<Range> coalesced = new ArrayList<>();
+        Range current = sorted.get(0);
+        for (int i = 1; i < sorted.size(); i++) {
+            Range next = sorted.get(i);
+            if (next.getStart() <= current.getEnd() + 1) {
+                current = new Range(current.getStart(), Math.max(current.getEnd(), next.getEnd()));
+            } else {
+                coalesced.add(current);
+                current = next;
+            }
+        }
+        coalesced.add(current);
+        return coalesced;
     }
 
     /**
@@ -0,0 +1,220 @@
+package com.hypertube.streaming.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+
+/**
+ * Keyframe positions of a video file: presentation time to byte offset.
+ *
+ * Entries are sorted by time. Times are in milliseconds from the start of the presentation,
+ * offsets are positions of the keyframe packets in the file as reported by the demuxer.
+ *
+ * The on-disk form is a small header identifying the source file version (size and modification
+ * time) followed by zigzag varint deltas of time and offset, a few bytes per keyframe, so the
+ * index of a two-hour film is typically under 10 KB.
+ */
+public final class KeyframeIndex {
+
+    private static final int MAGIC = 0x48544b49; // "HTKI"
+    private static final int VERSION = 1;
+
+    private final long[] timesMs;
+    private final long[] offsets;
+
+    /**
+     * @param timesMs Keyframe times in milliseconds, ascending
+     * @param offsets Byte offsets of the keyframes, same length as timesMs
+     */
+    public KeyframeIndex(long[] timesMs, long[] offsets) {
+        if (timesMs.length != offsets.length) {
+            throw new IllegalArgumentException("times and offsets differ in length");
+        }
+        this.timesMs = timesMs;
+        this.offsets = offsets;
+    }
+
+    public int size() {
+        return timesMs.length;
+    }
+
+    public boolean isEmpty() {
+        return timesMs.length == 0;
+    }
+
+    public long timeMsAt(int index) {
+        return timesMs[index];
+    }
+
+    public long offsetAt(int index) {
+        return offsets[index];
+    }
+
+    /**
+     * Finds the last keyframe at or before a time.
+     *
+     * @param timeMs Playback time in milliseconds
+     * @return The entry index, 0 for times before the first keyframe, -1 if the index is empty
+     */
+    public int floorIndex(long timeMs) {
+        if (timesMs.length == 0) {
+            return -1;
+        }
+        int found = Arrays.binarySearch(timesMs, timeMs);
+        if (found >= 0) {
+            // Equal timestamps are possible (e.g. rounding); take the first
+            while (found > 0 && timesMs[found - 1] == timeMs) {
+                found--;
+            }
+            return found;
+        }
+        return Math.max(0, -found - 2);
+    }
+
+    /**
+     * Returns the byte offset at which the data following a keyframe's GOP starts: the smallest
+     * keyframe offset greater than the keyframe's own offset.
+     *
+     * @return The offset, or -1 if the keyframe is the last one in the file
+     */
+    public long nextOffsetAfter(int index) {
+        long offset = offsets[index];
+        long next = -1;
+        for (int i = index + 1; i < offsets.length; i++) {
+            if (offsets[i] > offset) {
+                next = offsets[i];
+                break;
+            }
+        }
+        return next;
+    }
+
+    /**
+     * Computes how much of the presentation can be played when the first frontier bytes of the
+     * file are on disk: everything before the earliest keyframe that starts at or beyond the
+     * frontier. If every indexed keyframe lies below the frontier, the time of the last keyframe
+     * is returned (its GOP may still be incomplete).
+     *
+     * @param frontier Number of contiguous bytes on disk from the start of the file
+     * @return Playable milliseconds from the start
+     */
+    public long playableMs(long frontier) {
+        if (timesMs.length == 0) {
+            return 0;
+        }
+        // Entries are in time order; offsets are nearly always ascending too, but muxers may
+        // reorder slightly, so take the earliest keyframe beyond the frontier by time
+        for (int i = 0; i < timesMs.length; i++) {
+            if (offsets[i] >= frontier) {
+                return timesMs[i];
+            }
+        }
+        return timesMs[timesMs.length - 1];
+    }
+
+    /**
+     * Writes the index for a file version. The file is written next to the target and renamed,
+     * so readers never see a partial index.
+     *
+     * @param target The index file
+     * @param sourceSize Size of the indexed video file
+     * @param sourceLastModified Modification time of the indexed video file (epoch ms)
+     */
+    public void write(Path target, long sourceSize, long sourceLastModified) throws IOException {
+        Path temp = target.resolveSibling(target.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(Files.newOutputStream(temp)))) {
+            out.writeInt(MAGIC);
+            out.writeByte(VERSION);
+            out.writeLong(sourceSize);
+            out.writeLong(sourceLastModified);
+            writeVarint(out, timesMs.length);
+            long previousTime = 0;
+            long previousOffset = 0;
+            for (int i = 0; i < timesMs.length; i++) {
+                writeVarint(out, zigzag(timesMs[i] - previousTime));
+                writeVarint(out, zigzag(offsets[i] - previousOffset));
+                previousTime = timesMs[i];
+                previousOffset = offsets[i];
+            }
+        }
+        Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Reads an index written by {@link #write}.
+     *
+     * @param source The index file
+     * @param sourceSize Current size of the video file
+     * @param sourceLastModified Current modification time of the video file (epoch ms)
+     * @return The index, or null if the file is missing, corrupt or belongs to another file version
+     */
+    public static KeyframeIndex read(Path source, long sourceSize, long sourceLastModified) {
+        if (!Files.isRegularFile(source)) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(source)))) {
+            if (in.readInt() != MAGIC || in.readUnsignedByte() != VERSION
+                    || in.readLong() != sourceSize || in.readLong() != sourceLastModified) {
+                return null;
+            }
+            long count = readVarint(in);
+            if (count < 0 || count > Integer.MAX_VALUE - 8) {
+                return null;
+            }
+            long[] times = new long[(int) count];
+            long[] offsets = new long[(int) count];
+            long time = 0;
+            long offset = 0;
+            for (int i = 0; i < count; i++) {
+                time += unzigzag(readVarint(in));
+                offset += unzigzag(readVarint(in));
+                times[i] = time;
+                offsets[i] = offset;
+            }
+            return new KeyframeIndex(times, offsets);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private static void writeVarint(OutputStream out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    private static long readVarint(InputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.read();
+            if (b < 0) {
+                throw new EOFException();
+            }
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+}
@@ -0,0 +1,366 @@
+package com.hypertube.streaming.util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * MP4 "faststart": moves the moov box (the sample tables) in front of the media data.
+ *
+ * Players need the moov before they can decode anything. When it sits at the end of the file,
+ * as written by most encoders that do not do a second pass, a browser has to fetch the tail of
+ * the file first, and nothing is playable during a download until the very last bytes arrive.
+ *
+ * The rewrite copies the top-level boxes in order, inserting the moov before the first mdat,
+ * and patches every chunk offset table (stco/co64) by the distance the media data moved. A stco
+ * whose offsets no longer fit in 32 bits is widened to co64 (and the enclosing boxes grow).
+ * Box payloads are copied with {@link FileChannel#transferTo} and offset tables are patched in
+ * fixed-size blocks, so memory use does not depend on the file or moov size.
+ *
+ * Fragmented MP4s (moof) are left alone: their moov is at the front already and fragments
+ * carry their own offsets.
+ */
+public final class Mp4Faststart {
+
+    // Boxes on the path from moov to the chunk offset tables
+    private static final Set<String> CONTAINERS = Set.of("moov", "trak", "mdia", "minf", "stbl");
+
+    private static final int COPY_BLOCK_ENTRIES = 8192;
+    private static final long UINT32_MAX = 0xFFFFFFFFL;
+
+    private Mp4Faststart() {
+    }
+
+    /**
+     * A box header and, for containers on the way to the offset tables, its children.
+     */
+    private static final class Box {
+        private final String type;
+        private final long start;
+        private final long size;
+        private final int headerSize;
+        private final List<Box> children = new ArrayList<>();
+        private long entries; // stco/co64 entry count
+        private boolean widen; // stco to be rewritten as co64
+
+        private Box(String type, long start, long size, int headerSize) {
+            this.type = type;
+            this.start = start;
+            this.size = size;
+            this.headerSize = headerSize;
+        }
+
+        private long end() {
+            return start + size;
+        }
+
+        private long newSize() {
+            if (type.equals("stco")) {
+                return widen ? size + 4 * entries : size;
+            }
+            long growth = 0;
+            for (Box child : children) {
+                growth += child.newSize() - child.size;
+            }
+            return size + growth;
+        }
+    }
+
+    /**
+     * Checks whether an MP4 file has its moov after the media data.
+     *
+     * @param file The MP4 (or MOV/M4V) file
+     * @return true if relocating the moov would make the file playable from the start
+     */
+    public static boolean needsFaststart(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            List<Box> boxes = readBoxes(channel, 0, channel.size());
+            return findMoovAfterMdat(boxes) != null;
+        }
+    }
+
+    /**
+     * Writes a copy of an MP4 file with the moov moved in front of the media data.
+     *
+     * @param input The MP4 file with a trailing moov
+     * @param output The file to write (created or truncated)
+     * @throws IOException if the file cannot be read or written, or is not a relocatable MP4
+     */
+    public static void relocate(Path input, Path output) throws IOException {
+        relocate(input, output, UINT32_MAX);
+    }
+
+    /**
+     * As {@link #relocate(Path, Path)}, widening an stco once a shifted offset exceeds
+     * maxStcoOffset. Tests lower the limit, since they cannot cheaply write files past 4 GB.
+     */
+    static void relocate(Path input, Path output, long maxStcoOffset) throws IOException {
+        try (FileChannel in = FileChannel.open(input, StandardOpenOption.READ);
+             FileChannel out = FileChannel.open(output, StandardOpenOption.CREATE,
+                     StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+
+            List<Box> boxes = readBoxes(in, 0, in.size());
+            Box[] moovAndMdat = findMoovAfterMdat(boxes);
+            if (moovAndMdat == null) {
+                throw new IOException("No moov after the media data in " + input);
+            }
+            Box moov = moovAndMdat[0];
+            Box firstMdat = moovAndMdat[1];
+            readTree(in, moov);
+
+            List<Box> tables = new ArrayList<>();
+            collectOffsetTables(moov, tables);
+
+            // Widening a table grows the moov, which moves the media data further; repeat until
+            // no further table overflows (at most once per table)
+            boolean changed = true;
+            while (changed) {
+                changed = false;
+                OffsetShift shift = OffsetShift.of(firstMdat, moov);
+                for (Box table : tables) {
+                    if (table.type.equals("stco") && !table.widen && overflows(in, table, shift, maxStcoOffset)) {
+                        table.widen = true;
+                        changed = true;
+                    }
+                }
+            }
+            OffsetShift shift = OffsetShift.of(firstMdat, moov);
+
+            for (Box box : boxes) {
+                if (box == moov) {
+                    continue;
+                }
+                if (box == firstMdat) {
+                    writeBox(in, out, moov, shift);
+                }
+                copy(in, out, box.start, box.size);
+            }
+            out.force(false);
+        }
+    }
+
+    /**
+     * Maps an offset in the input to the same byte in the output.
+     */
+    private record OffsetShift(long mdatStart, long moovStart, long moovEnd, long moovGrowth, long newMoovSize) {
+
+        private static OffsetShift of(Box firstMdat, Box moov) {
+            long newMoovSize = moov.newSize();
+            return new OffsetShift(firstMdat.start, moov.start, moov.end(), newMoovSize - moov.size, newMoovSize);
+        }
+
+        private long apply(long offset) {
+            if (offset >= mdatStart && offset < moovStart) {
+                return offset + newMoovSize; // between the first mdat and the old moov
+            }
+            if (offset >= moovEnd) {
+                return offset + moovGrowth; // after the old moov
+            }
+            return offset; // before the first mdat
+        }
+    }
+
+    private static Box[] findMoovAfterMdat(List<Box> boxes) {
+        Box moov = null;
+        Box firstMdat = null;
+        for (Box box : boxes) {
+            switch (box.type) {
+                case "moof":
+                    return null;
+                case "moov":
+                    if (moov != null) {
+                        return null;
+                    }
+                    moov = box;
+                    break;
+                case "mdat":
+                    if (firstMdat == null) {
+                        firstMdat = box;
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+        if (moov == null || firstMdat == null || moov.start < firstMdat.start) {
+            return null;
+        }
+        return new Box[]{moov, firstMdat};
+    }
+
+    /**
+     * Reads the headers of consecutive boxes in [start, end).
+     */
+    private static List<Box> readBoxes(FileChannel channel, long start, long end) throws IOException {
+        List<Box> boxes = new ArrayList<>();
+        ByteBuffer header = ByteBuffer.allocate(16);
+        long position = start;
+        while (position + 8 <= end) {
+            header.clear().limit(8);
+            readFully(channel, header, position);
+            long size = Integer.toUnsignedLong(header.getInt(0));
+            String type = new String(header.array(), 4, 4, StandardCharsets.ISO_8859_1);
+            int headerSize = 8;
+            if (size == 1) {
+                header.clear().limit(8);
+                readFully(channel, header, position + 8);
+                size = header.getLong(0);
+                headerSize = 16;
+            } else if (size == 0) {
+                size = end - position; // extends to the end of the file
+            }
+            if (size < headerSize || position + size > end) {
+                throw new IOException("Malformed " + type + " box at " + position);
+            }
+            boxes.add(new Box(type, position, size, headerSize));
+            position += size;
+        }
+        return boxes;
+    }
+
+    private static void readTree(FileChannel channel, Box box) throws IOException {
+        if (CONTAINERS.contains(box.type)) {
+            for (Box child : readBoxes(channel, box.start + box.headerSize, box.end())) {
+                box.children.add(child);
+                readTree(channel, child);
+            }
+        } else if (box.type.equals("stco") || box.type.equals("co64")) {
+            ByteBuffer count = ByteBuffer.allocate(4);
+            readFully(channel, count, box.start + box.headerSize + 4); // after version and flags
+            box.entries = Integer.toUnsignedLong(count.getInt(0));
+            long entrySize = box.type.equals("stco") ? 4 : 8;
+            if (box.headerSize + 8 + box.entries * entrySize > box.size) {
+                throw new IOException("Malformed " + box.type + " box at " + box.start);
+            }
+        }
+    }
+
+    private static void collectOffsetTables(Box box, List<Box> tables) {
+        if (box.type.equals("stco") || box.type.equals("co64")) {
+            tables.add(box);
+        }
+        for (Box child : box.children) {
+            collectOffsetTables(child, tables);
+        }
+    }
+
+    private static boolean overflows(FileChannel channel, Box table, OffsetShift shift, long maxOffset)
+            throws IOException {
+        ByteBuffer block = ByteBuffer.allocate(COPY_BLOCK_ENTRIES * 4);
+        long position = table.start + table.headerSize + 8;
+        long remaining = table.entries;
+        while (remaining > 0) {
+            int count = (int) Math.min(remaining, COPY_BLOCK_ENTRIES);
+            block.clear().limit(count * 4);
+            readFully(channel, block, position);
+            for (int i = 0; i < count; i++) {
+                if (shift.apply(Integer.toUnsignedLong(block.getInt(i * 4))) > maxOffset) {
+                    return true;
+                }
+            }
+            position += count * 4L;
+            remaining -= count;
+        }
+        return false;
+    }
+
+    private static void writeBox(FileChannel in, FileChannel out, Box box, OffsetShift shift) throws IOException {
+        if (CONTAINERS.contains(box.type)) {
+            writeHeader(out, box.type, box.newSize(), box.headerSize);
+            for (Box child : box.children) {
+                writeBox(in, out, child, shift);
+            }
+        } else if (box.type.equals("stco") || box.type.equals("co64")) {
+            writeOffsetTable(in, out, box, shift);
+        } else {
+            copy(in, out, box.start, box.size);
+        }
+    }
+
+    private static void writeOffsetTable(FileChannel in, FileChannel out, Box table, OffsetShift shift)
+            throws IOException {
+        boolean wide = table.type.equals("co64");
+        boolean widen = table.widen;
+        writeHeader(out, widen ? "co64" : table.type, table.newSize(), table.headerSize);
+        // Version, flags and entry count are unchanged
+        copy(in, out, table.start + table.headerSize, 8);
+
+        int inEntrySize = wide ? 8 : 4;
+        int outEntrySize = wide || widen ? 8 : 4;
+        ByteBuffer source = ByteBuffer.allocate(COPY_BLOCK_ENTRIES * inEntrySize);
+        ByteBuffer target = ByteBuffer.allocate(COPY_BLOCK_ENTRIES * outEntrySize);
+        long position = table.start + table.headerSize + 8;
+        long remaining = table.entries;
+        while (remaining > 0) {
+            int count = (int) Math.min(remaining, COPY_BLOCK_ENTRIES);
+            source.clear().limit(count * inEntrySize);
+            readFully(in, source, position);
+            target.clear();
+            for (int i = 0; i < count; i++) {
+                long offset = wide ? source.getLong(i * 8) : Integer.toUnsignedLong(source.getInt(i * 4));
+                long shifted = shift.apply(offset);
+                if (outEntrySize == 8) {
+                    target.putLong(shifted);
+                } else {
+                    target.putInt((int) shifted);
+                }
+            }
+            target.flip();
+            writeFully(out, target);
+            position += (long) count * inEntrySize;
+            remaining -= count;
+        }
+
+        // Anything after the entries (not expected, but preserved)
+        long tail = table.end() - position;
+        if (tail > 0) {
+            copy(in, out, position, tail);
+        }
+    }
+
+    private static void writeHeader(FileChannel out, String type, long size, int headerSize) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(16);
+        if (headerSize == 16 || size > UINT32_MAX) {
+            if (headerSize != 16) {
+                throw new IOException(type + " box grew beyond 4 GB");
+            }
+            header.putInt(1).put(type.getBytes(StandardCharsets.ISO_8859_1)).putLong(size);
+        } else {
+            header.putInt((int) size).put(type.getBytes(StandardCharsets.ISO_8859_1));
+        }
+        header.flip();
+        writeFully(out, header);
+    }
+
+    private static void copy(FileChannel in, FileChannel out, long position, long count) throws IOException {
+        long done = 0;
+        while (done < count) {
+            long transferred = in.transferTo(position + done, count - done, out);
+            if (transferred <= 0) {
+                throw new IOException("Unexpected end of file at " + (position + done));
+            }
+            done += transferred;
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position + buffer.position());
+            if (read < 0) {
+                throw new IOException("Unexpected end of file at " + (position + buffer.position()));
+            }
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+}
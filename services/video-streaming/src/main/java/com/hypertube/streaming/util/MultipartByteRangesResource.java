@@ -0,0 +1,153 @@
+package com.hypertube.streaming.util;
+
+import org.springframework.core.io.AbstractResource;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Resource producing a multipart/byteranges body (RFC 7233 section 4.1) for several ranges of
+ * one file.
+ *
+ * Parts are streamed one after the other: each boundary and part header is a few dozen bytes,
+ * and each part body is a {@link FileRegionResource}, so nothing proportional to the range
+ * sizes is ever held in memory. The exact content length is computed up front so the response
+ * can carry a Content-Length header.
+ */
+public class MultipartByteRangesResource extends AbstractResource {
+
+    private final List<byte[]> partHeaders = new ArrayList<>();
+    private final List<FileRegionResource> partBodies = new ArrayList<>();
+    private final byte[] closingBoundary;
+    private final long contentLength;
+
+    /**
+     * @param parts The file regions to send, in order
+     * @param boundary The multipart boundary (must match the response Content-Type)
+     * @param contentType The media type of the underlying file
+     * @param fileSize The total file size, used in each part's Content-Range
+     */
+    public MultipartByteRangesResource(List<FileRegionResource> parts, String boundary,
+                                       String contentType, long fileSize) {
+        long length = 0;
+        for (int i = 0; i < parts.size(); i++) {
+            FileRegionResource part = parts.get(i);
+            HttpRangeParser.Range range = new HttpRangeParser.Range(part.getPosition(),
+                    part.getPosition() + part.contentLength() - 1);
+
+            String header = (i == 0 ? "" : "\r\n") + "--" + boundary + "\r\n"
+                    + "Content-Type: " + contentType + "\r\n"
+                    + "Content-Range: " + HttpRangeParser.generateContentRangeHeader(range, fileSize) + "\r\n"
+                    + "\r\n";
+            byte[] headerBytes = header.getBytes(StandardCharsets.US_ASCII);
+
+            partHeaders.add(headerBytes);
+            partBodies.add(part);
+            length += headerBytes.length + part.contentLength();
+        }
+        this.closingBoundary = ("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.US_ASCII);
+        this.contentLength = length + closingBoundary.length;
+    }
+
+    @Override
+    public long contentLength() {
+        return contentLength;
+    }
+
+    @Override
+    public String getDescription() {
+        return "multipart/byteranges [" + partBodies.size() + " parts]";
+    }
+
+    @Override
+    public InputStream getInputStream() {
+        return new MultipartInputStream();
+    }
+
+    /**
+     * Walks the parts lazily, opening each file region only when its turn comes.
+     */
+    private class MultipartInputStream extends InputStream {
+
+        private int partIndex;
+        private byte[] header = partHeaders.isEmpty() ? closingBoundary : partHeaders.get(0);
+        private int headerOffset;
+        private InputStream body;
+        private boolean finished;
+
+        @Override
+        public int read() throws IOException {
+            byte[] single = new byte[1];
+            return read(single, 0, 1) == -1 ? -1 : single[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            while (!finished) {
+                if (header != null) {
+                    if (headerOffset < header.length) {
+                        int n = Math.min(len, header.length - headerOffset);
+                        System.arraycopy(header, headerOffset, b, off, n);
+                        headerOffset += n;
+                        return n;
+                    }
+                    header = null;
+                    if (partIndex >= partBodies.size()) {
+                        finished = true;
+                        break;
+                    }
+                    body = partBodies.get(partIndex).getInputStream();
+                }
+
+                int n = body.read(b, off, len);
+                if (n != -1) {
+                    return n;
+                }
+                advance();
+            }
+            return -1;
+        }
+
+        @Override
+        public long transferTo(OutputStream out) throws IOException {
+            long transferred = 0;
+            while (!finished) {
+                if (header != null) {
+                    out.write(header, headerOffset, header.length - headerOffset);
+                    transferred += header.length - headerOffset;
+                    headerOffset = header.length;
+                    header = null;
+                    if (partIndex >= partBodies.size()) {
+                        finished = true;
+                        break;
+                    }
+                    body = partBodies.get(partIndex).getInputStream();
+                }
+                transferred += body.transferTo(out);
+                advance();
+            }
+            return transferred;
+        }
+
+        private void advance() throws IOException {
+            body.close();
+            body = null;
+            partIndex++;
+            header = partIndex < partHeaders.size() ? partHeaders.get(partIndex) : closingBoundary;
+            headerOffset = 0;
+        }
+
+        @Override
+        public void close() throws IOException {
+            finished = true;
+            if (body != null) {
+                body.close();
+                body = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package com.hypertube.streaming.util;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Thread-safe positional read access to a video file, as used by {@link FileRegionResource}.
+ *
+ * Implementations decide where the bytes come from: straight from a {@link FileChannel}, or
+ * through the shared block cache. Closing the reader releases whatever it holds.
+ */
+public interface PositionalReader extends Closeable {
+
+    /**
+     * Reads bytes starting at the given file position into dst.
+     *
+     * @return The number of bytes read, or -1 at end of file
+     */
+    int read(ByteBuffer dst, long position) throws IOException;
+
+    /**
+     * Writes up to count bytes starting at the given file position to target.
+     *
+     * @return The number of bytes written (0 or less at end of file)
+     */
+    long transferTo(long position, long count, WritableByteChannel target) throws IOException;
+
+    /**
+     * Opens a reader for one response. Invoked lazily when the body is actually written.
+     */
+    @FunctionalInterface
+    interface Source {
+        PositionalReader open() throws IOException;
+
+        /**
+         * Lower bound of the time reading count bytes takes, for sources that deliberately slow
+         * reads down (0 otherwise).
+         */
+        default long minReadMillis(long count) {
+            return 0;
+        }
+    }
+
+    /**
+     * Source reading directly from the file through a dedicated {@link FileChannel}.
+     */
+    static Source direct(Path path) {
+        return () -> of(FileChannel.open(path, StandardOpenOption.READ));
+    }
+
+    /**
+     * Wraps a channel; closing the reader closes the channel.
+     */
+    static PositionalReader of(FileChannel channel) {
+        return new PositionalReader() {
+            @Override
+            public int read(ByteBuffer dst, long position) throws IOException {
+                return channel.read(dst, position);
+            }
+
+            @Override
+            public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+                return channel.transferTo(position, count, target);
+            }
+
+            @Override
+            public void close() throws IOException {
+                channel.close();
+            }
+        };
+    }
+}
@@ -1,20 +1,47 @@
 package com.hypertube.streaming.worker;
 
+import com.hypertube.streaming.config.StreamingConfig;
 import com.hypertube.streaming.dto.ConversionMessage;
 import com.hypertube.streaming.entity.DownloadJob;
 import com.hypertube.streaming.repository.DownloadJobRepository;
+import com.hypertube.streaming.service.AbrLadderService;
+import com.hypertube.streaming.service.ConversionProgressUpdater;
 import com.hypertube.streaming.service.FFmpegService;
+import com.hypertube.streaming.service.MediaAnalysisService;
+import com.hypertube.streaming.service.Mp4FaststartService;
+import com.hypertube.streaming.service.SegmentedTranscodeService;
+import com.hypertube.streaming.service.StreamDescriptorCache;
+import com.hypertube.streaming.service.TranscodeScheduler;
+import com.hypertube.streaming.service.TrickplayService;
+import io.micrometer.core.instrument.MeterRegistry;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.amqp.rabbit.annotation.RabbitListener;
 import org.springframework.stereotype.Component;
-import org.springframework.transaction.annotation.Transactional;
 
+import java.nio.file.Path;
 import java.time.LocalDateTime;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 
 /**
  * Worker that processes video conversion jobs from the RabbitMQ queue.
- * Converts non-browser-compatible video formats to MP4 using FFmpeg.
+ * Converts non-browser-compatible video formats to MP4 using FFmpeg, or packages them as
+ * HLS when the conversion output mode is "hls" (the original file stays the job's file).
+ *
+ * Each job is analyzed with FFprobe first and converted with the cheapest strategy (remux,
+ * audio-only transcode or full transcode); the strategy and elapsed time are stored on the job.
+ * Long full transcodes to MP4 are split into chunks encoded in parallel (see
+ * {@link SegmentedTranscodeService}). Encoder threads are granted by the {@link TranscodeScheduler},
+ * which orders waiting conversions by viewer demand; the listener takes more conversions from the
+ * queue than can run (streaming.conversion.listener-concurrency) so there is something to order.
+ * While FFmpeg runs, the job's progress and ETA reflect the conversion (see
+ * {@link ConversionProgressUpdater}). With HLS output and streaming.abr.enabled, a ladder of
+ * renditions and a master playlist are produced instead (see {@link AbrLadderService}).
+ * MP4s with a trailing moov are not converted but rewritten with the moov in front (see
+ * {@link Mp4FaststartService}).
+ *
+ * Metrics: streaming.conversion.duration (tagged by strategy and output)
  */
 @Component
 @RequiredArgsConstructor
@@ -22,15 +49,28 @@ import java.time.LocalDateTime;
 public class ConversionWorker {
 
     private final DownloadJobRepository downloadJobRepository;
+    private final AbrLadderService abrLadderService;
     private final FFmpegService ffmpegService;
+    private final MediaAnalysisService mediaAnalysisService;
+    private final Mp4FaststartService mp4FaststartService;
+    private final SegmentedTranscodeService segmentedTranscodeService;
+    private final TranscodeScheduler transcodeScheduler;
+    private final ConversionProgressUpdater conversionProgressUpdater;
+    private final TrickplayService trickplayService;
+    private final StreamDescriptorCache streamDescriptorCache;
+    private final StreamingConfig streamingConfig;
+    private final MeterRegistry meterRegistry;
 
     /**
      * Listens to the conversion queue and processes conversion job messages.
      *
+     * Not transactional: a conversion may wait for encoder threads and then run for a long
+     * time, and its status changes (CONVERTING first) must be visible while it does.
+     *
      * @param message The conversion job message containing file paths and job details
      */
-    @RabbitListener(queues = "${rabbitmq.queues.conversion}")
-    @Transactional
+    @RabbitListener(queues = "${rabbitmq.queues.conversion}",
+            concurrency = "${streaming.conversion.listener-concurrency:16}")
     public void processConversionJob(ConversionMessage message) {
         log.info("Received conversion job for job ID: {}", message.getJobId());
         log.info("Input file: {}", message.getInputFilePath());
@@ -42,60 +82,126 @@ public class ConversionWorker {
                     .orElseThrow(() -> new IllegalArgumentException(
                             "Download job not found: " + message.getJobId()));
 
-            // Check if FFmpeg is available
-            if (!ffmpegService.isFFmpegAvailable()) {
-                throw new RuntimeException("FFmpeg is not available on this system");
-            }
+            // MP4s are served as-is, unless the moov is at the end: that is fixed without FFmpeg
+            boolean faststart = !ffmpegService.needsConversion(message.getInputFilePath())
+                    && mp4FaststartService.needsFaststart(message.getInputFilePath());
 
             // Check if conversion is needed
-            if (!ffmpegService.needsConversion(message.getInputFilePath())) {
+            if (!faststart && !ffmpegService.needsConversion(message.getInputFilePath())) {
                 log.info("File {} does not need conversion, skipping", message.getInputFilePath());
                 job.setStatus(DownloadJob.DownloadStatus.COMPLETED);
                 job.setUpdatedAt(LocalDateTime.now());
                 downloadJobRepository.save(job);
+                streamDescriptorCache.invalidate(job.getId());
                 return;
             }
 
-            // Update job status to CONVERTING
+            // Check if FFmpeg is available
+            if (!faststart && !ffmpegService.isFFmpegAvailable()) {
+                throw new RuntimeException("FFmpeg is not available on this system");
+            }
+
+            // Update job status to CONVERTING; progress and ETA now describe the conversion
             job.setStatus(DownloadJob.DownloadStatus.CONVERTING);
+            job.setProgress(0);
+            job.setEtaSeconds(null);
             job.setUpdatedAt(LocalDateTime.now());
             downloadJobRepository.save(job);
 
             log.info("Starting conversion for job: {}", job.getId());
 
+            boolean hls = !faststart && ffmpegService.isHlsOutput();
+
             // Generate output path
-            String outputPath = message.getOutputFilePath() != null
-                    ? message.getOutputFilePath()
-                    : ffmpegService.generateOutputPath(message.getInputFilePath());
+            String outputPath;
+            if (hls) {
+                outputPath = ffmpegService.generateHlsOutputDirectory(job.getId()).toString();
+            } else {
+                outputPath = message.getOutputFilePath() != null
+                        ? message.getOutputFilePath()
+                        : ffmpegService.generateOutputPath(message.getInputFilePath());
+            }
 
-            log.info("Output file: {}", outputPath);
+            log.info("Output {}: {}", hls ? "directory" : "file", outputPath);
+
+            // Pick the cheapest path: stream copy when the codecs are already browser-compatible
+            long startNanos = System.nanoTime();
+            DownloadJob.ConversionStrategy strategy = faststart
+                    ? DownloadJob.ConversionStrategy.FASTSTART
+                    : mediaAnalysisService.chooseStrategy(message.getInputFilePath());
+
+            long durationSeconds = faststart ? 0 : ffmpegService.getVideoDuration(message.getInputFilePath());
+            Consumer<FFmpegService.Progress> progressListener =
+                    conversionProgressUpdater.listener(job.getId(), durationSeconds);
+
+            // Perform conversion; HLS playlists are served while segments are being produced
+            boolean success;
+            if (faststart) {
+                // Sequential I/O only, no encoder threads needed
+                success = mp4FaststartService.relocate(message.getInputFilePath(), outputPath);
+            } else if (hls && abrLadderService.isEnabled()) {
+                // Renditions take their encoder threads from the scheduler one by one
+                success = abrLadderService.transcode(job.getId(), job.getVideoId(), message.getInputFilePath(),
+                        Path.of(outputPath), strategy, durationSeconds, progressListener);
+            } else if (!hls && segmentedTranscodeService.shouldSegment(durationSeconds, strategy)) {
+                // Chunks take their encoder threads from the scheduler one by one
+                success = segmentedTranscodeService.transcode(job.getId(), job.getVideoId(),
+                        message.getInputFilePath(), outputPath, durationSeconds, progressListener);
+            } else {
+                // Stream copies barely use the CPU but still take one thread of the budget
+                int threads = strategy == DownloadJob.ConversionStrategy.FULL_TRANSCODE
+                        ? streamingConfig.getConversion().getThreadsPerConversion()
+                        : 1;
+                try (TranscodeScheduler.Grant grant = transcodeScheduler.acquire(job.getId(), job.getVideoId(), threads)) {
+                    success = hls
+                            ? ffmpegService.convertToHls(message.getInputFilePath(), Path.of(outputPath),
+                                    strategy, grant.preset(), grant.threads(), progressListener)
+                            : ffmpegService.convertToMp4(message.getInputFilePath(), outputPath,
+                                    strategy, grant.preset(), grant.threads(), progressListener);
+                }
+            }
+            conversionProgressUpdater.discard(job.getId());
 
-            // Perform conversion
-            boolean success = ffmpegService.convertToMp4(message.getInputFilePath(), outputPath);
+            long elapsedNanos = System.nanoTime() - startNanos;
+            job.setConversionStrategy(strategy);
+            job.setConversionDurationMs(TimeUnit.NANOSECONDS.toMillis(elapsedNanos));
+            meterRegistry.timer("streaming.conversion.duration",
+                            "strategy", strategy.name(),
+                            "output", hls ? "hls" : "mp4",
+                            "outcome", success ? "success" : "failure")
+                    .record(elapsedNanos, TimeUnit.NANOSECONDS);
 
             if (success) {
                 // Update job with converted file path
                 job.setStatus(DownloadJob.DownloadStatus.COMPLETED);
-                job.setFilePath(outputPath);
+                if (!hls) {
+                    job.setFilePath(outputPath);
+                }
                 job.setProgress(100);
+                job.setEtaSeconds(0);
                 job.setCompletedAt(LocalDateTime.now());
                 job.setUpdatedAt(LocalDateTime.now());
                 downloadJobRepository.save(job);
+                streamDescriptorCache.invalidate(job.getId());
+                trickplayService.schedule(job.getId());
 
-                log.info("Conversion completed successfully for job: {}", job.getId());
+                log.info("Conversion completed successfully for job: {} ({} in {} ms)",
+                        job.getId(), strategy, job.getConversionDurationMs());
                 log.info("Converted file available at: {}", outputPath);
             } else {
-                throw new RuntimeException("FFmpeg conversion failed");
+                throw new RuntimeException(faststart ? "Faststart rewrite failed" : "FFmpeg conversion failed");
             }
 
         } catch (Exception e) {
             log.error("Error processing conversion job: {}", message.getJobId(), e);
+            conversionProgressUpdater.discard(message.getJobId());
 
             if (job != null) {
                 job.setStatus(DownloadJob.DownloadStatus.FAILED);
                 job.setErrorMessage("Conversion failed: " + e.getMessage());
                 job.setUpdatedAt(LocalDateTime.now());
                 downloadJobRepository.save(job);
+                streamDescriptorCache.invalidate(job.getId());
             }
         }
     }
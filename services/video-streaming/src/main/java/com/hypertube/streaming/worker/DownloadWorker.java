@@ -4,33 +4,50 @@ import com.hypertube.streaming.dto.ConversionMessage;
 import com.hypertube.streaming.dto.DownloadMessage;
 import com.hypertube.streaming.entity.DownloadJob;
 import com.hypertube.streaming.repository.DownloadJobRepository;
+import com.hypertube.streaming.service.DownloadLeaseService;
 import com.hypertube.streaming.service.FFmpegService;
+import com.hypertube.streaming.service.LiveTranscodeService;
+import com.hypertube.streaming.service.Mp4FaststartService;
+import com.hypertube.streaming.service.StreamDescriptorCache;
 import com.hypertube.streaming.service.TorrentService;
+import com.hypertube.streaming.service.TrickplayService;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.amqp.rabbit.annotation.RabbitListener;
 import org.springframework.amqp.rabbit.core.RabbitTemplate;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Component;
 import org.springframework.transaction.annotation.Transactional;
 
 import java.time.LocalDateTime;
+import java.util.Set;
 import java.util.UUID;
 
 /**
  * Worker that processes video download jobs from the RabbitMQ queue.
  * Handles torrent downloads with progressive streaming support.
- * Automatically triggers conversion for non-browser-compatible formats.
+ * Automatically triggers conversion for non-browser-compatible formats, live while the
+ * download is running when live transcoding is enabled.
  */
 @Component
 @RequiredArgsConstructor
 @Slf4j
 public class DownloadWorker {
 
+    private static final long ABANDONED_SCAN_INTERVAL_MS = 60000;
+
     private final DownloadJobRepository downloadJobRepository;
     private final TorrentService torrentService;
     private final FFmpegService ffmpegService;
+    private final Mp4FaststartService mp4FaststartService;
     private final RabbitTemplate rabbitTemplate;
+    private final StreamDescriptorCache streamDescriptorCache;
+    private final LiveTranscodeService liveTranscodeService;
+    private final TrickplayService trickplayService;
+    private final DownloadLeaseService downloadLeaseService;
 
     @Value("${rabbitmq.queues.conversion}")
     private String conversionQueue;
@@ -53,6 +70,13 @@ public class DownloadWorker {
                     .orElseThrow(() -> new IllegalArgumentException(
                             "Download job not found: " + message.getJobId()));
 
+            // A redelivered message must not start a job again, here or on another instance
+            if (!downloadLeaseService.claimQueued(job.getId())) {
+                log.warn("Download job {} is no longer pending or is leased to another instance, ignoring message",
+                        job.getId());
+                return;
+            }
+
             // Update job status to DOWNLOADING
             job.setStatus(DownloadJob.DownloadStatus.DOWNLOADING);
             job.setUpdatedAt(LocalDateTime.now());
@@ -66,7 +90,7 @@ public class DownloadWorker {
                     message.getVideoId(),
                     message.getTorrentId(),
                     message.getMagnetLink() != null ? message.getMagnetLink() : message.getTorrentUrl(),
-                    this::updateJobProgress
+                    downloadCallback()
             );
 
             log.info("Successfully started download for job: {}", job.getId());
@@ -83,6 +107,54 @@ public class DownloadWorker {
         }
     }
 
+    /**
+     * Continues the downloads a restart interrupted from their fast-resume data: this
+     * instance's own at startup, and later those of instances that stopped renewing their
+     * leases. Each job is claimed first, so jobs running on other instances are never touched;
+     * claimed jobs that cannot be resumed are marked failed rather than left downloading forever.
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    @Scheduled(fixedDelay = ABANDONED_SCAN_INTERVAL_MS, initialDelay = ABANDONED_SCAN_INTERVAL_MS)
+    public void resumeInterruptedDownloads() {
+        Set<UUID> running = torrentService.getRunningJobIds();
+        for (DownloadJob job : downloadLeaseService.findInterrupted()) {
+            if (job.getFilePath() != null || running.contains(job.getId())) {
+                continue; // downloaded and waiting for its conversion, or running here
+            }
+            if (!downloadLeaseService.claimInterrupted(job.getId())) {
+                continue; // taken by another instance meanwhile
+            }
+            if (torrentService.getRunningJobIds().contains(job.getId())) {
+                continue; // claimed from the queue and started here after the snapshot above
+            }
+            if (!torrentService.resumeDownload(job.getId(), downloadCallback())) {
+                markJobFailed(job.getId(), "Download interrupted by a restart and cannot be resumed");
+            }
+        }
+    }
+
+    /**
+     * Routes the events of a running download to the job update methods below.
+     */
+    private TorrentService.ProgressCallback downloadCallback() {
+        return new TorrentService.ProgressCallback() {
+            @Override
+            public void onProgress(UUID jobId, int progress, long downloadSpeed, int etaSeconds) {
+                updateJobProgress(jobId, progress, downloadSpeed, etaSeconds);
+            }
+
+            @Override
+            public void onCompleted(UUID jobId, String filePath) {
+                markJobCompleted(jobId, filePath);
+            }
+
+            @Override
+            public void onFailed(UUID jobId, String errorMessage) {
+                markJobFailed(jobId, errorMessage);
+            }
+        };
+    }
+
     /**
      * Callback method to update job progress during download.
      *
@@ -100,6 +172,9 @@ public class DownloadWorker {
                 job.setUpdatedAt(LocalDateTime.now());
                 downloadJobRepository.save(job);
             });
+
+            // Non-browser formats start converting as soon as the head of the file is on disk
+            liveTranscodeService.startIfEligible(jobId);
         } catch (Exception e) {
             log.error("Error updating job progress for job: {}", jobId, e);
         }
@@ -113,37 +188,54 @@ public class DownloadWorker {
      */
     public void markJobCompleted(UUID jobId, String filePath) {
         try {
-            downloadJobRepository.findById(jobId).ifPresent(job -> {
-                job.setFilePath(filePath);
-                job.setProgress(100);
-                job.setUpdatedAt(LocalDateTime.now());
+            liveTranscodeService.completeDownload(jobId, liveState ->
+                    downloadJobRepository.findById(jobId).ifPresent(job -> {
+                        job.setFilePath(filePath);
+                        job.setProgress(100);
+                        job.setUpdatedAt(LocalDateTime.now());
 
-                // Check if video needs format conversion
-                if (ffmpegService.needsConversion(filePath)) {
-                    log.info("Video {} needs conversion, sending to conversion queue", filePath);
-
-                    // Send conversion message
-                    ConversionMessage conversionMessage = ConversionMessage.builder()
-                            .jobId(jobId)
-                            .videoId(job.getVideoId())
-                            .inputFilePath(filePath)
-                            .outputFilePath(ffmpegService.generateOutputPath(filePath))
-                            .build();
-
-                    rabbitTemplate.convertAndSend(conversionQueue, conversionMessage);
-
-                    // Status will be updated by ConversionWorker
-                    job.setStatus(DownloadJob.DownloadStatus.DOWNLOADING);
-                    log.info("Conversion job queued for: {}", jobId);
-                } else {
-                    // No conversion needed, mark as completed
-                    job.setStatus(DownloadJob.DownloadStatus.COMPLETED);
-                    job.setCompletedAt(LocalDateTime.now());
-                    log.info("Download job completed (no conversion needed): {}", jobId);
-                }
+                        if (liveState == LiveTranscodeService.State.RUNNING) {
+                            // LiveTranscodeService completes the job when FFmpeg catches up
+                            job.setStatus(DownloadJob.DownloadStatus.CONVERTING);
+                            log.info("Download finished, live transcode still running for: {}", jobId);
+                        } else if (liveState == LiveTranscodeService.State.COMPLETED) {
+                            LiveTranscodeService.Status live = liveTranscodeService.getStatus(jobId);
+                            job.setStatus(DownloadJob.DownloadStatus.COMPLETED);
+                            job.setConversionStrategy(live.strategy());
+                            job.setConversionDurationMs(live.elapsedMs());
+                            job.setCompletedAt(LocalDateTime.now());
+                            log.info("Download job completed (converted live): {}", jobId);
+                        } else if (ffmpegService.needsConversion(filePath)
+                                || mp4FaststartService.needsFaststart(filePath)) {
+                            // Check if video needs format conversion (or a faststart rewrite of an MP4)
+                            log.info("Video {} needs conversion, sending to conversion queue", filePath);
 
-                downloadJobRepository.save(job);
-            });
+                            // Send conversion message
+                            ConversionMessage conversionMessage = ConversionMessage.builder()
+                                    .jobId(jobId)
+                                    .videoId(job.getVideoId())
+                                    .inputFilePath(filePath)
+                                    .outputFilePath(ffmpegService.generateOutputPath(filePath))
+                                    .build();
+
+                            rabbitTemplate.convertAndSend(conversionQueue, conversionMessage);
+
+                            // Status will be updated by ConversionWorker
+                            job.setStatus(DownloadJob.DownloadStatus.DOWNLOADING);
+                            log.info("Conversion job queued for: {}", jobId);
+                        } else {
+                            // No conversion needed, mark as completed
+                            job.setStatus(DownloadJob.DownloadStatus.COMPLETED);
+                            job.setCompletedAt(LocalDateTime.now());
+                            log.info("Download job completed (no conversion needed): {}", jobId);
+                        }
+
+                        downloadJobRepository.save(job);
+                        streamDescriptorCache.invalidate(jobId);
+                        if (job.getStatus() == DownloadJob.DownloadStatus.COMPLETED) {
+                            trickplayService.schedule(jobId);
+                        }
+                    }));
         } catch (Exception e) {
             log.error("Error marking job as completed: {}", jobId, e);
         }
@@ -162,6 +254,7 @@ public class DownloadWorker {
                 job.setErrorMessage(errorMessage);
                 job.setUpdatedAt(LocalDateTime.now());
                 downloadJobRepository.save(job);
+                streamDescriptorCache.invalidate(jobId);
                 log.error("Download job failed: {} - {}", jobId, errorMessage);
             });
         } catch (Exception e) {
@@ -0,0 +1,5 @@
+-- Conversion decision and timing per download job
+
+ALTER TABLE download_jobs
+    ADD COLUMN conversion_strategy VARCHAR(20), -- remux, audio_transcode, full_transcode
+    ADD COLUMN conversion_duration_ms BIGINT; -- wall-clock time of the conversion
@@ -0,0 +1,7 @@
+-- Ownership of running downloads across service instances
+
+ALTER TABLE download_jobs
+    ADD COLUMN owner_instance VARCHAR(255), -- instance running the download
+    ADD COLUMN lease_expires_at TIMESTAMP; -- renewed by the owner while it runs; others may take over after it
+
+CREATE INDEX idx_download_jobs_owner_instance ON download_jobs(owner_instance);
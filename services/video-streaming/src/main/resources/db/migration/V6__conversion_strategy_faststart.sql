@@ -0,0 +1,3 @@
+-- Faststart conversions (MP4 served as-is after moving its moov atom to the front)
+
+COMMENT ON COLUMN download_jobs.conversion_strategy IS 'faststart, remux, audio_transcode, full_transcode';
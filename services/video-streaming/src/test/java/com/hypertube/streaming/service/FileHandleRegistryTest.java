@@ -0,0 +1,55 @@
+package com.hypertube.streaming.service;
+
+import com.hypertube.streaming.config.StreamingConfig;
+import com.hypertube.streaming.util.PositionalReader;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class FileHandleRegistryTest {
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void interruptedReaderDoesNotBreakOtherLeases() throws Exception {
+        Path file = directory.resolve("movie.mp4");
+        Files.write(file, new byte[]{1, 2, 3, 4, 5, 6, 7, 8});
+        FileHandleRegistry registry = new FileHandleRegistry(new StreamingConfig(), new SimpleMeterRegistry());
+
+        try (PositionalReader cancelled = registry.acquire(file); PositionalReader watching = registry.acquire(file)) {
+            // A cancelled async body: its thread is interrupted while reading, closing the channel
+            AtomicReference<Throwable> failure = new AtomicReference<>();
+            Thread reader = new Thread(() -> {
+                Thread.currentThread().interrupt();
+                try {
+                    cancelled.read(ByteBuffer.allocate(4), 0);
+                } catch (Throwable e) {
+                    failure.set(e);
+                }
+            });
+            reader.start();
+            reader.join();
+            assertThat(failure.get()).isInstanceOf(ClosedByInterruptException.class);
+
+            ByteBuffer buffer = ByteBuffer.allocate(4);
+            assertThat(watching.read(buffer, 4)).isEqualTo(4);
+            assertThat(buffer.array()).containsExactly(5, 6, 7, 8);
+
+            try (PositionalReader next = registry.acquire(file)) {
+                assertThat(next.read(ByteBuffer.allocate(8), 0)).isEqualTo(8);
+            }
+        } finally {
+            registry.closeAll();
+        }
+        assertThat(registry.getOpenHandles()).isZero();
+    }
+}
@@ -0,0 +1,108 @@
+package com.hypertube.streaming.torrent;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class BencodeTest {
+
+    @Test
+    void decodesAllTypes() throws IOException {
+        Map<String, Object> value = Bencode.asMap(Bencode.decode(ascii("d3:inti-42e4:listl1:ai7ee3:str4:spame")));
+
+        assertThat(Bencode.getLong(value, "int")).isEqualTo(-42L);
+        assertThat(Bencode.getString(value, "str")).isEqualTo("spam");
+        List<Object> list = Bencode.getList(value, "list");
+        assertThat(list).hasSize(2);
+        assertThat((byte[]) list.get(0)).isEqualTo(ascii("a"));
+        assertThat(list.get(1)).isEqualTo(7L);
+        assertThat(Bencode.getMap(value, "str")).isNull(); // typed accessors do not convert
+    }
+
+    @Test
+    void encodesDictionaryKeysInByteOrder() {
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("zeta", 1);
+        map.put("Alpha", "x");
+        map.put("alpha", List.of(2L, new byte[]{0, (byte) 0xFF}));
+
+        byte[] encoded = Bencode.encode(map);
+
+        byte[] expected = concat(ascii("d5:Alpha1:x5:alphali2e2:"), new byte[]{0, (byte) 0xFF}, ascii("e4:zetai1ee"));
+        assertThat(encoded).isEqualTo(expected);
+    }
+
+    @Test
+    void roundTripsBinaryStrings() throws IOException {
+        byte[] binary = new byte[256];
+        for (int i = 0; i < binary.length; i++) {
+            binary[i] = (byte) i;
+        }
+        byte[] encoded = Bencode.encode(Map.of("pieces", binary, "length", 1L << 40));
+
+        Map<String, Object> decoded = Bencode.asMap(Bencode.decode(encoded));
+
+        assertThat(Bencode.getBytes(decoded, "pieces")).isEqualTo(binary);
+        assertThat(Bencode.getLong(decoded, "length")).isEqualTo(1L << 40);
+        assertThat(Bencode.encode(decoded)).isEqualTo(encoded);
+    }
+
+    @Test
+    void recordsRawBytesOfTopLevelEntries() throws IOException {
+        // Keys out of order: the raw bytes must be kept as they are, not re-encoded
+        byte[] data = ascii("d4:infod4:name1:x6:lengthi3ee8:announce3:urle");
+        Bencode.Decoder decoder = new Bencode.Decoder(data, 0);
+        decoder.next();
+
+        assertThat(decoder.rawValue("info")).isEqualTo(ascii("d4:name1:x6:lengthi3ee"));
+        assertThat(decoder.rawValue("announce")).isEqualTo(ascii("3:url"));
+        assertThat(decoder.rawValue("missing")).isNull();
+        assertThat(decoder.position()).isEqualTo(data.length);
+    }
+
+    @Test
+    void rejectsMalformedData() {
+        assertThatThrownBy(() -> Bencode.decode(ascii("i12"))).isInstanceOf(IOException.class);
+        assertThatThrownBy(() -> Bencode.decode(ascii("i1xe"))).isInstanceOf(IOException.class);
+        assertThatThrownBy(() -> Bencode.decode(ascii("5:abc"))).isInstanceOf(IOException.class);
+        assertThatThrownBy(() -> Bencode.decode(ascii("-1:a"))).isInstanceOf(IOException.class);
+        assertThatThrownBy(() -> Bencode.decode(ascii("l1:a"))).isInstanceOf(IOException.class);
+        assertThatThrownBy(() -> Bencode.decode(ascii("di1e1:ae"))).isInstanceOf(IOException.class);
+        assertThatThrownBy(() -> Bencode.decode(ascii("x"))).isInstanceOf(IOException.class);
+        assertThatThrownBy(() -> Bencode.decode(ascii("i1ei2e"))).isInstanceOf(IOException.class);
+        assertThatThrownBy(() -> Bencode.asMap(Bencode.decode(ascii("le")))).isInstanceOf(IOException.class);
+    }
+
+    @Test
+    void limitsNesting() throws IOException {
+        assertThat(Bencode.decode(ascii("l".repeat(64) + "e".repeat(64)))).isInstanceOf(List.class);
+        assertThatThrownBy(() -> Bencode.decode(ascii("l".repeat(65) + "e".repeat(65))))
+                .isInstanceOf(IOException.class)
+                .hasMessageContaining("nested");
+    }
+
+    private static byte[] ascii(String value) {
+        return value.getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        int length = 0;
+        for (byte[] part : parts) {
+            length += part.length;
+        }
+        byte[] all = new byte[length];
+        int offset = 0;
+        for (byte[] part : parts) {
+            System.arraycopy(part, 0, all, offset, part.length);
+            offset += part.length;
+        }
+        return all;
+    }
+}
@@ -0,0 +1,186 @@
+package com.hypertube.streaming.torrent;
+
+import com.hypertube.streaming.torrent.PiecePicker.Block;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map;
+
+import static com.hypertube.streaming.torrent.PiecePicker.BLOCK_SIZE;
+import static org.assertj.core.api.Assertions.assertThat;
+
+class PiecePickerTest {
+
+    // Two blocks per piece; 20 pieces, the last one a single short block
+    private static final int PIECE_LENGTH = 2 * BLOCK_SIZE;
+    private static final int PIECES = 20;
+    private static final long LENGTH = (PIECES - 1L) * PIECE_LENGTH + 10_000;
+
+    private TorrentMetainfo metainfo;
+    private PiecePicker picker;
+    private BitSet all;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        metainfo = TorrentMetainfo.fromInfo(Bencode.encode(Map.of(
+                "name", "movie.mkv",
+                "piece length", PIECE_LENGTH,
+                "length", LENGTH,
+                "pieces", new byte[PIECES * TorrentMetainfo.HASH_LENGTH])), List.of());
+        // Tail: pieces 17-19; readahead: 4 pieces; deadline window: 2 pieces
+        picker = new PiecePicker(metainfo, 0, LENGTH, 2L * PIECE_LENGTH, 4L * PIECE_LENGTH, 2L * PIECE_LENGTH);
+        all = new BitSet();
+        all.set(0, PIECES);
+        picker.addPeer(all);
+    }
+
+    @Test
+    void urgentPeersGetFirstPieceThenTailThenDeadlineWindow() {
+        assertThat(pieces(next(9, true))).containsExactly(0, 0, 17, 17, 18, 18, 19, 1, 1);
+        assertThat(picker.isPriorityPiece(0)).isTrue();
+        assertThat(picker.isTailPiece(17)).isTrue();
+        assertThat(picker.isDeadlinePiece(1)).isTrue();
+        assertThat(picker.isDeadlinePiece(2)).isFalse();
+        // Urgent pieces exhausted: on to the readahead window
+        assertThat(picker.next(all, true).piece()).isEqualTo(2);
+    }
+
+    @Test
+    void otherPeersSkipUrgentPiecesAndFinishStartedPiecesFirst() {
+        assertThat(next(4, false)).containsExactly(
+                new Block(2, 0, BLOCK_SIZE), new Block(2, BLOCK_SIZE, BLOCK_SIZE),
+                new Block(3, 0, BLOCK_SIZE), new Block(3, BLOCK_SIZE, BLOCK_SIZE));
+    }
+
+    @Test
+    void picksRarestPieceOutsideReadaheadWindow() {
+        BitSet withoutNine = (BitSet) all.clone();
+        withoutNine.clear(9);
+        picker.addPeer(withoutNine);
+
+        // Readahead window 0-3, of which 0 and 1 are urgent; then piece 9, held by one peer only
+        assertThat(pieces(next(6, false))).containsExactly(2, 2, 3, 3, 9, 9);
+    }
+
+    @Test
+    void seekMovesDeadlineAndReadaheadWindows() {
+        assertThat(picker.setPlayhead(10L * PIECE_LENGTH, 0, 0)).isTrue();
+        assertThat(picker.setPlayhead(10L * PIECE_LENGTH + 100, 0, 0)).isFalse();
+        assertThat(picker.isDeadlinePiece(10)).isTrue();
+        assertThat(picker.isDeadlinePiece(1)).isFalse();
+
+        assertThat(picker.next(all, false).piece()).isEqualTo(12);
+
+        for (int piece : new int[]{0, 17, 18, 19}) {
+            picker.pieceVerified(piece);
+        }
+        assertThat(pieces(next(2, true))).containsExactly(10, 10);
+    }
+
+    @Test
+    void deadlinesFollowPlaybackRate() {
+        long now = 1_000_000_000L;
+        picker.setPlayhead(0, now, PIECE_LENGTH); // one piece per second
+        assertThat(picker.deadline(1)).isEqualTo(now + 1_000_000_000L);
+        assertThat(picker.deadline(5)).isEqualTo(Long.MAX_VALUE);
+
+        Block first = picker.next(all, true);
+        picker.next(all, true);
+        assertThat(picker.claim(first)).isTrue();
+        picker.blockReceived(first);
+
+        assertThat(picker.atRiskBlocks(now, 500_000_000L)).containsExactly(new Block(0, BLOCK_SIZE, BLOCK_SIZE));
+    }
+
+    @Test
+    void claimsEachBlockOnce() {
+        Block block = picker.next(all, true);
+        Block other = picker.next(all, true);
+
+        assertThat(picker.claim(block)).isTrue();
+        assertThat(picker.claim(block)).isFalse(); // duplicate from another peer
+        assertThat(picker.isClaimed(block)).isTrue();
+
+        // A claimed block stays with its writer
+        picker.release(block);
+        picker.release(other);
+        assertThat(picker.next(all, true)).isEqualTo(other);
+
+        assertThat(picker.blockReceived(other)).isFalse(); // not claimed
+        assertThat(picker.blockReceived(block)).isFalse();
+        assertThat(picker.claim(block)).isFalse(); // already received
+        assertThat(picker.claim(other)).isTrue();
+        assertThat(picker.blockReceived(other)).isTrue();
+    }
+
+    @Test
+    void rejectsBlocksOfPiecesNotInProgress() {
+        assertThat(picker.claim(new Block(5, 0, BLOCK_SIZE))).isFalse();
+
+        Block block = picker.next(all, true);
+        picker.pieceFailed(block.piece());
+        assertThat(picker.claim(block)).isFalse();
+        assertThat(picker.isClaimed(block)).isFalse();
+    }
+
+    @Test
+    void validatesBlockLayout() {
+        assertThat(picker.isValid(new Block(0, BLOCK_SIZE, BLOCK_SIZE))).isTrue();
+        assertThat(picker.isValid(new Block(19, 0, 10_000))).isTrue();
+        assertThat(picker.isValid(new Block(19, 0, BLOCK_SIZE))).isFalse();
+        assertThat(picker.isValid(new Block(19, BLOCK_SIZE, BLOCK_SIZE))).isFalse();
+        assertThat(picker.isValid(new Block(0, 100, BLOCK_SIZE))).isFalse();
+        assertThat(picker.isValid(new Block(PIECES, 0, BLOCK_SIZE))).isFalse();
+        assertThat(picker.isValid(new Block(-1, 0, BLOCK_SIZE))).isFalse();
+    }
+
+    @Test
+    void failedPieceIsRequestedAgain() {
+        List<Block> blocks = next(2, true);
+        for (Block block : blocks) {
+            picker.claim(block);
+            picker.blockReceived(block);
+        }
+
+        picker.pieceFailed(0);
+
+        assertThat(next(2, true)).isEqualTo(blocks);
+    }
+
+    @Test
+    void tracksCompletionOfWantedRange() {
+        // A file covering pieces 3-5 of the torrent
+        PiecePicker file = new PiecePicker(metainfo, 3L * PIECE_LENGTH + 5, 6L * PIECE_LENGTH, 0, PIECE_LENGTH,
+                PIECE_LENGTH);
+        BitSet outside = new BitSet();
+        outside.set(0, 3);
+        assertThat(file.isInteresting(outside)).isFalse();
+        assertThat(file.isInteresting(all)).isTrue();
+        assertThat(file.next(outside, true)).isNull();
+
+        assertThat(file.frontier()).isEqualTo(3);
+        file.pieceVerified(3);
+        file.pieceVerified(5);
+        assertThat(file.frontier()).isEqualTo(4);
+        assertThat(file.isComplete()).isFalse();
+        file.pieceVerified(4);
+        assertThat(file.isComplete()).isTrue();
+        assertThat(file.next(all, true)).isNull();
+    }
+
+    private List<Block> next(int count, boolean urgent) {
+        List<Block> blocks = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            blocks.add(picker.next(all, urgent));
+        }
+        return blocks;
+    }
+
+    private static List<Integer> pieces(List<Block> blocks) {
+        return blocks.stream().map(Block::piece).toList();
+    }
+}
@@ -0,0 +1,233 @@
+package com.hypertube.streaming.torrent;
+
+import com.hypertube.streaming.config.StreamingConfig;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Runs a seeder and a downloader engine against each other through an in-process HTTP tracker,
+ * on loopback.
+ */
+@Timeout(120)
+class TorrentEngineEndToEndTest {
+
+    private static final int PIECE_LENGTH = 64 * 1024;
+
+    @TempDir
+    Path seedDir;
+
+    @TempDir
+    Path downloadDir;
+
+    private HttpServer tracker;
+    private final Map<String, Set<Integer>> swarms = new ConcurrentHashMap<>();
+    private final List<TorrentEngine> engines = new ArrayList<>();
+
+    private String announceUrl;
+    private byte[] nfo;
+    private byte[] movie;
+    private byte[] torrentFile;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        tracker = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        tracker.createContext("/announce", this::announce);
+        tracker.start();
+        announceUrl = "http://127.0.0.1:" + tracker.getAddress().getPort() + "/announce";
+
+        // A multi-file torrent whose video does not start on a piece boundary
+        Random random = new Random(42);
+        nfo = new byte[1000];
+        movie = new byte[3 * 1024 * 1024 + 12_345];
+        random.nextBytes(nfo);
+        random.nextBytes(movie);
+        Path content = Files.createDirectories(seedDir.resolve("Movie"));
+        Files.write(content.resolve("readme.nfo"), nfo);
+        Files.write(content.resolve("movie.mkv"), movie);
+
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        data.write(nfo);
+        data.write(movie);
+        byte[] bytes = data.toByteArray();
+        ByteArrayOutputStream hashes = new ByteArrayOutputStream();
+        for (int offset = 0; offset < bytes.length; offset += PIECE_LENGTH) {
+            hashes.write(TorrentMetainfo.sha1(Arrays.copyOfRange(bytes, offset,
+                    Math.min(bytes.length, offset + PIECE_LENGTH))));
+        }
+        Map<String, Object> info = Map.of(
+                "name", "Movie",
+                "piece length", PIECE_LENGTH,
+                "pieces", hashes.toByteArray(),
+                "files", List.of(
+                        Map.of("length", nfo.length, "path", List.of("readme.nfo")),
+                        Map.of("length", movie.length, "path", List.of("movie.mkv"))));
+        torrentFile = Bencode.encode(Map.of("announce", announceUrl, "info", info));
+
+        StreamingConfig.Torrent seederConfig = new StreamingConfig.Torrent();
+        seederConfig.setMaxUploadSpeed(-1);
+        Result seeding = new Result();
+        engine(seederConfig).add(TorrentMetainfo.parse(torrentFile), seedDir, true, seeding);
+        seeding.await();
+    }
+
+    @AfterEach
+    void tearDown() {
+        engines.forEach(TorrentEngine::close);
+        tracker.stop(0);
+    }
+
+    @Test
+    void downloadsFromTorrentFile() throws Exception {
+        Result result = new Result();
+        TorrentDownload download = engine(downloaderConfig())
+                .add(TorrentMetainfo.parse(torrentFile), downloadDir, false, result);
+
+        result.await();
+
+        assertThat(download.getFilePath()).isEqualTo(downloadDir.resolve("Movie").resolve("movie.mkv"));
+        assertThat(Files.readAllBytes(download.getFilePath())).isEqualTo(movie);
+        assertThat(Files.readAllBytes(downloadDir.resolve("Movie").resolve("readme.nfo"))).isEqualTo(nfo);
+    }
+
+    @Test
+    void downloadsFromMagnetLink() throws Exception {
+        String infoHash = TorrentMetainfo.parse(torrentFile).getInfoHashHex();
+        MagnetLink magnet = MagnetLink.parse("magnet:?xt=urn:btih:" + infoHash + "&dn=Movie&tr="
+                + URLEncoder.encode(announceUrl, StandardCharsets.UTF_8));
+        Result result = new Result();
+        TorrentDownload download = engine(downloaderConfig()).add(magnet, downloadDir, result);
+
+        result.await();
+
+        assertThat(result.metadata).hasValue(1);
+        assertThat(Files.readAllBytes(download.getFilePath())).isEqualTo(movie);
+    }
+
+    @Test
+    void completesFromDiskAfterRestart() throws Exception {
+        Result first = new Result();
+        TorrentEngine downloader = engine(downloaderConfig());
+        downloader.add(TorrentMetainfo.parse(torrentFile), downloadDir, false, first);
+        first.await();
+        downloader.close();
+
+        // No seeder this time: everything has to come from the recheck
+        tracker.stop(0);
+        Result second = new Result();
+        TorrentDownload download = engine(downloaderConfig())
+                .add(TorrentMetainfo.parse(torrentFile), downloadDir, false, second);
+
+        second.await();
+
+        assertThat(Files.readAllBytes(download.getFilePath())).isEqualTo(movie);
+    }
+
+    private TorrentEngine engine(StreamingConfig.Torrent config) {
+        TorrentEngine engine = new TorrentEngine(config);
+        engines.add(engine);
+        engine.start();
+        return engine;
+    }
+
+    private static StreamingConfig.Torrent downloaderConfig() {
+        StreamingConfig.Torrent config = new StreamingConfig.Torrent();
+        config.setTailPriorityBytes(128 * 1024);
+        config.setReadaheadBytes(512 * 1024);
+        config.setPieceBufferBytes(256 * 1024);
+        return config;
+    }
+
+    /**
+     * A minimal tracker: every announce returns the other peers of the swarm (compact form,
+     * all on loopback) and joins the announcing peer to it, or removes it on "stopped".
+     */
+    private void announce(HttpExchange exchange) throws IOException {
+        Map<String, String> params = new HashMap<>();
+        for (String param : exchange.getRequestURI().getRawQuery().split("&")) {
+            int separator = param.indexOf('=');
+            params.put(param.substring(0, separator), param.substring(separator + 1));
+        }
+        int port = Integer.parseInt(params.get("port"));
+        Set<Integer> swarm = swarms.computeIfAbsent(params.get("info_hash"), key -> ConcurrentHashMap.newKeySet());
+
+        ByteArrayOutputStream peers = new ByteArrayOutputStream();
+        for (int peer : swarm) {
+            if (peer != port) {
+                peers.write(new byte[]{127, 0, 0, 1, (byte) (peer >> 8), (byte) peer});
+            }
+        }
+        if ("stopped".equals(params.get("event"))) {
+            swarm.remove(port);
+        } else {
+            swarm.add(port);
+        }
+
+        byte[] body = Bencode.encode(Map.of("interval", 60, "peers", peers.toByteArray()));
+        exchange.sendResponseHeaders(200, body.length);
+        exchange.getResponseBody().write(body);
+        exchange.close();
+    }
+
+    private static final class Result implements TorrentDownload.Listener {
+
+        private final CountDownLatch completed = new CountDownLatch(1);
+        private final AtomicReference<String> failure = new AtomicReference<>();
+        private final AtomicInteger metadata = new AtomicInteger();
+
+        void await() throws InterruptedException {
+            assertThat(completed.await(60, TimeUnit.SECONDS)).as("completed").isTrue();
+            assertThat(failure.get()).isNull();
+        }
+
+        @Override
+        public void onMetadata(TorrentDownload download) {
+            metadata.incrementAndGet();
+        }
+
+        @Override
+        public void onDataAvailable(TorrentDownload download, long start, long end) {
+        }
+
+        @Override
+        public void onProgress(TorrentDownload download) {
+        }
+
+        @Override
+        public void onCompleted(TorrentDownload download) {
+            completed.countDown();
+        }
+
+        @Override
+        public void onFailed(TorrentDownload download, String message) {
+            failure.set(message);
+            completed.countDown();
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package com.hypertube.streaming.torrent;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class TorrentMetainfoTest {
+
+    private static final int PIECE_LENGTH = 32 * 1024;
+
+    @Test
+    void parsesSingleFileTorrent() throws IOException {
+        Map<String, Object> info = info("movie.mkv", 100_000L);
+        byte[] torrent = Bencode.encode(Map.of("announce", "http://tracker.example/announce", "info", info));
+
+        TorrentMetainfo metainfo = TorrentMetainfo.parse(torrent);
+
+        assertThat(metainfo.getName()).isEqualTo("movie.mkv");
+        assertThat(metainfo.isMultiFile()).isFalse();
+        assertThat(metainfo.getTotalLength()).isEqualTo(100_000L);
+        assertThat(metainfo.getFiles()).containsExactly(
+                new TorrentMetainfo.FileEntry(List.of("movie.mkv"), 100_000L, 0));
+        assertThat(metainfo.getPieceCount()).isEqualTo(4);
+        assertThat(metainfo.getPieceSize(0)).isEqualTo(PIECE_LENGTH);
+        assertThat(metainfo.getPieceSize(3)).isEqualTo(100_000 - 3 * PIECE_LENGTH);
+        assertThat(metainfo.getPieceOffset(3)).isEqualTo(3L * PIECE_LENGTH);
+        assertThat(metainfo.getTrackers()).containsExactly("http://tracker.example/announce");
+    }
+
+    @Test
+    void parsesMultiFileTorrent() throws IOException {
+        Map<String, Object> info = new HashMap<>();
+        info.put("name", "Movie");
+        info.put("piece length", PIECE_LENGTH);
+        info.put("files", List.of(
+                Map.of("length", 1000, "path", List.of("readme.nfo")),
+                Map.of("length", 70_000, "path", List.of("video", "movie.mkv"))));
+        info.put("pieces", hashes(3));
+
+        TorrentMetainfo metainfo = TorrentMetainfo.parse(Bencode.encode(Map.of("info", info)));
+
+        assertThat(metainfo.isMultiFile()).isTrue();
+        assertThat(metainfo.getTotalLength()).isEqualTo(71_000L);
+        List<TorrentMetainfo.FileEntry> files = metainfo.getFiles();
+        assertThat(files).hasSize(2);
+        assertThat(files.get(1).displayPath()).isEqualTo("video/movie.mkv");
+        assertThat(files.get(1).offset()).isEqualTo(1000L);
+        assertThat(files.get(1).end()).isEqualTo(71_000L);
+        assertThat(metainfo.getTrackers()).isEmpty();
+    }
+
+    @Test
+    void collectsTrackersFromAnnounceListAndAnnounce() throws IOException {
+        byte[] torrent = Bencode.encode(Map.of(
+                "announce", "http://b.example/announce",
+                "announce-list", List.of(
+                        List.of("http://a.example/announce", "http://b.example/announce"),
+                        List.of("udp://c.example:80")),
+                "info", info("movie.mkv", 10L)));
+
+        TorrentMetainfo metainfo = TorrentMetainfo.parse(torrent);
+
+        assertThat(metainfo.getTrackers()).containsExactly(
+                "http://a.example/announce", "http://b.example/announce", "udp://c.example:80");
+    }
+
+    @Test
+    void hashesInfoDictionaryAsEncoded() throws IOException {
+        // Keys deliberately out of order: re-encoding the decoded dictionary would change the hash
+        byte[] piece = "x".repeat(TorrentMetainfo.HASH_LENGTH).getBytes(StandardCharsets.US_ASCII);
+        String infoText = "d4:name1:a6:lengthi5e12:piece lengthi16384e6:pieces20:"
+                + new String(piece, StandardCharsets.US_ASCII) + "e";
+        byte[] infoBytes = infoText.getBytes(StandardCharsets.US_ASCII);
+        byte[] torrent = ("d4:info" + infoText + "e").getBytes(StandardCharsets.US_ASCII);
+
+        TorrentMetainfo metainfo = TorrentMetainfo.parse(torrent);
+
+        assertThat(metainfo.getInfoBytes()).isEqualTo(infoBytes);
+        assertThat(metainfo.getInfoHash()).isEqualTo(TorrentMetainfo.sha1(infoBytes));
+        assertThat(metainfo.getInfoHash()).isNotEqualTo(TorrentMetainfo.sha1(Bencode.encode(Bencode.decode(infoBytes))));
+        assertThat(metainfo.getInfoHashHex()).hasSize(40);
+        assertThat(metainfo.matchesPieceHash(0, piece)).isTrue();
+        assertThat(metainfo.matchesPieceHash(0, new byte[TorrentMetainfo.HASH_LENGTH])).isFalse();
+    }
+
+    @Test
+    void rejectsInvalidTorrents() {
+        assertThatThrownBy(() -> TorrentMetainfo.parse(Bencode.encode(Map.of("announce", "http://a/"))))
+                .isInstanceOf(IOException.class);
+
+        Map<String, Object> noPieces = info("movie.mkv", 10L);
+        noPieces.remove("pieces");
+        assertThatThrownBy(() -> TorrentMetainfo.fromInfo(Bencode.encode(noPieces), List.of()))
+                .isInstanceOf(IOException.class);
+
+        Map<String, Object> wrongCount = info("movie.mkv", 10L);
+        wrongCount.put("pieces", hashes(2));
+        assertThatThrownBy(() -> TorrentMetainfo.fromInfo(Bencode.encode(wrongCount), List.of()))
+                .isInstanceOf(IOException.class)
+                .hasMessageContaining("piece hashes");
+
+        Map<String, Object> truncatedHash = info("movie.mkv", 10L);
+        truncatedHash.put("pieces", new byte[TorrentMetainfo.HASH_LENGTH - 1]);
+        assertThatThrownBy(() -> TorrentMetainfo.fromInfo(Bencode.encode(truncatedHash), List.of()))
+                .isInstanceOf(IOException.class);
+
+        Map<String, Object> badFile = info("Movie", 0L);
+        badFile.remove("length");
+        badFile.put("files", List.of(Map.of("length", 10, "path", List.of())));
+        assertThatThrownBy(() -> TorrentMetainfo.fromInfo(Bencode.encode(badFile), List.of()))
+                .isInstanceOf(IOException.class);
+    }
+
+    private static Map<String, Object> info(String name, long length) {
+        Map<String, Object> info = new HashMap<>();
+        info.put("name", name);
+        info.put("piece length", PIECE_LENGTH);
+        info.put("length", length);
+        info.put("pieces", hashes((int) ((length + PIECE_LENGTH - 1) / PIECE_LENGTH)));
+        return info;
+    }
+
+    private static byte[] hashes(int pieces) {
+        return new byte[pieces * TorrentMetainfo.HASH_LENGTH];
+    }
+}
@@ -0,0 +1,104 @@
+package com.hypertube.streaming.util;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares {@link HttpRangeParser} with the regex-based parser it replaced on a realistic mix of
+ * Range headers: mostly open-ended and bounded single ranges as players send them while seeking
+ * and buffering, some probes and suffix ranges, and a few multi-range requests.
+ *
+ * Run from the module directory after {@code mvn test-compile}:
+ * <pre>
+ * mvn -q dependency:build-classpath -Dmdep.outputFile=target/cp.txt
+ * java -cp target/test-classes:target/classes:$(cat target/cp.txt) \
+ *     com.hypertube.streaming.util.HttpRangeParserBenchmark
+ * </pre>
+ * Add {@code -prof gc} (through {@code org.openjdk.jmh.Main}) to see allocation per operation.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HttpRangeParserBenchmark {
+
+    private static final long FILE_SIZE = 4_700_000_000L;
+
+    private static final String[] HEADERS = {
+            "bytes=0-",
+            "bytes=0-",
+            "bytes=1048576-",
+            "bytes=734003200-",
+            "bytes=2147483648-",
+            "bytes=3221225472-3223322623",
+            "bytes=15728640-17825791",
+            "bytes=0-1",
+            "bytes=-65536",
+            "bytes=4699934464-",
+            "bytes=0-1023,4699999000-4699999999",
+            "bytes=0-65535, 1048576-1114111, 2097152-2162687",
+    };
+
+    private final long[] bounds = new long[2 * 16];
+    private int next;
+
+    @Setup(Level.Iteration)
+    public void reset() {
+        next = 0;
+    }
+
+    private String nextHeader() {
+        String header = HEADERS[next];
+        next = next + 1 == HEADERS.length ? 0 : next + 1;
+        return header;
+    }
+
+    @Benchmark
+    public void legacyParseRangeHeader(Blackhole blackhole) {
+        blackhole.consume(LegacyHttpRangeParser.parseRangeHeader(nextHeader(), FILE_SIZE));
+    }
+
+    @Benchmark
+    public void parseRangeHeader(Blackhole blackhole) {
+        blackhole.consume(HttpRangeParser.parseRangeHeader(nextHeader(), FILE_SIZE));
+    }
+
+    @Benchmark
+    public int parseRanges() {
+        return HttpRangeParser.parseRanges(nextHeader(), FILE_SIZE, bounds);
+    }
+
+    @Benchmark
+    public String legacyContentRange() {
+        return LegacyHttpRangeParser.generateContentRangeHeader(
+                new LegacyHttpRangeParser.Range(734003200L, 736100351L), FILE_SIZE);
+    }
+
+    @Benchmark
+    public String contentRange() {
+        return HttpRangeParser.generateContentRangeHeader(734003200L, 736100351L, FILE_SIZE);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(HttpRangeParserBenchmark.class.getSimpleName())
+                .build()).run();
+    }
+}
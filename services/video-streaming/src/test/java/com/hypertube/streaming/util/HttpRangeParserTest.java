@@ -0,0 +1,176 @@
+package com.hypertube.streaming.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatCode;
+
+class HttpRangeParserTest {
+
+    private static final long FILE_SIZE = 10_000;
+
+    @Test
+    void parsesSingleRanges() {
+        assertThat(parse("bytes=0-1023")).containsExactly(0L, 1023L);
+        assertThat(parse("bytes=1024-")).containsExactly(1024L, FILE_SIZE - 1);
+        assertThat(parse("bytes=-500")).containsExactly(FILE_SIZE - 500, FILE_SIZE - 1);
+        assertThat(parse("bytes=-20000")).containsExactly(0L, FILE_SIZE - 1);
+        assertThat(parse("  bytes= 5-9 ")).containsExactly(5L, 9L);
+    }
+
+    @Test
+    void clampsEndToFileSize() {
+        assertThat(parse("bytes=9000-20000")).containsExactly(9000L, FILE_SIZE - 1);
+    }
+
+    @Test
+    void skipsInvalidAndUnsatisfiableSpecs() {
+        assertThat(parse("bytes=0-1,abc,5-3,20000-,-,7-8")).containsExactly(0L, 1L, 7L, 8L);
+        assertThat(parse("bytes=")).isEmpty();
+        assertThat(parse("items=0-1")).isEmpty();
+        assertThat(parse("bytes=0-1\n")).containsExactly(0L, 1L); // trailing whitespace is trimmed
+        assertThat(parse("bytes=0-\n1")).isEmpty();
+        assertThat(parse(null)).isEmpty();
+    }
+
+    @Test
+    void overflowingNumbersInvalidateTheirSpec() {
+        assertThat(parse("bytes=99999999999999999999-,0-1")).containsExactly(0L, 1L);
+    }
+
+    @Test
+    void reportsTooManyRanges() {
+        long[] bounds = new long[4];
+        assertThat(HttpRangeParser.parseRanges("bytes=0-1,2-3", FILE_SIZE, bounds)).isEqualTo(2);
+        assertThat(HttpRangeParser.parseRanges("bytes=0-1,2-3,4-5", FILE_SIZE, bounds))
+                .isEqualTo(HttpRangeParser.TOO_MANY_RANGES);
+        // Invalid specs do not count against the limit
+        assertThat(HttpRangeParser.parseRanges("bytes=0-1,x,2-3", FILE_SIZE, bounds)).isEqualTo(2);
+    }
+
+    @Test
+    void formatsContentRange() {
+        assertThat(HttpRangeParser.generateContentRangeHeader(0, 1023, 2048)).isEqualTo("bytes 0-1023/2048");
+        assertThat(HttpRangeParser.generateUnsatisfiedContentRangeHeader(2048)).isEqualTo("bytes */2048");
+        Random random = new Random(7);
+        for (int i = 0; i < 10_000; i++) {
+            long start = random.nextLong() & Long.MAX_VALUE;
+            long end = random.nextLong() & Long.MAX_VALUE;
+            long size = random.nextLong() & Long.MAX_VALUE;
+            assertThat(HttpRangeParser.generateContentRangeHeader(start, end, size))
+                    .isEqualTo(LegacyHttpRangeParser.generateContentRangeHeader(
+                            new LegacyHttpRangeParser.Range(start, end), size));
+        }
+    }
+
+    /**
+     * Randomized headers built from the pieces the grammar is made of (and a few it is not),
+     * parsed by both implementations. The only intended difference: numbers too large for a
+     * long made the old parser throw, and now invalidate their spec.
+     */
+    @Test
+    void matchesLegacyParserOnRandomHeaders() {
+        Random random = new Random(20240229);
+        long[] bounds = new long[2 * 64];
+        int compared = 0;
+        for (int i = 0; i < 200_000; i++) {
+            String header = randomHeader(random);
+            long fileSize = random.nextInt(4) == 0 ? random.nextInt(10) : 1 + (random.nextLong() & 0xFFFFFFFFFL);
+
+            List<Long> expected;
+            try {
+                expected = flatten(LegacyHttpRangeParser.parseRangeHeader(header, fileSize));
+            } catch (NumberFormatException e) {
+                assertThatCode(() -> HttpRangeParser.parseRangeHeader(header, fileSize)).doesNotThrowAnyException();
+                continue;
+            }
+
+            assertThat(flattenRanges(HttpRangeParser.parseRangeHeader(header, fileSize)))
+                    .as("parseRangeHeader(\"%s\", %d)", header, fileSize)
+                    .isEqualTo(expected);
+
+            int count = HttpRangeParser.parseRanges(header, fileSize, bounds);
+            List<Long> fromBounds = new ArrayList<>();
+            for (int r = 0; r < 2 * count; r++) {
+                fromBounds.add(bounds[r]);
+            }
+            assertThat(fromBounds).as("parseRanges(\"%s\", %d)", header, fileSize).isEqualTo(expected);
+
+            assertThat(HttpRangeParser.isValidRangeHeader(header))
+                    .as("isValidRangeHeader(\"%s\")", header)
+                    .isEqualTo(LegacyHttpRangeParser.isValidRangeHeader(header));
+            compared++;
+        }
+        assertThat(compared).isGreaterThan(190_000);
+    }
+
+    private static List<Long> parse(String header) {
+        return flattenRanges(HttpRangeParser.parseRangeHeader(header, FILE_SIZE));
+    }
+
+    private static List<Long> flattenRanges(List<HttpRangeParser.Range> ranges) {
+        List<Long> flat = new ArrayList<>();
+        for (HttpRangeParser.Range range : ranges) {
+            flat.add(range.getStart());
+            flat.add(range.getEnd());
+        }
+        return flat;
+    }
+
+    private static List<Long> flatten(List<LegacyHttpRangeParser.Range> ranges) {
+        List<Long> flat = new ArrayList<>();
+        for (LegacyHttpRangeParser.Range range : ranges) {
+            flat.add(range.getStart());
+            flat.add(range.getEnd());
+        }
+        return flat;
+    }
+
+    private static String randomHeader(Random random) {
+        StringBuilder header = new StringBuilder();
+        header.append(pick(random, " ", "\t", "", "", "", ""));
+        header.append(pick(random, "bytes=", "bytes=", "bytes=", "bytes=", "Bytes=", "bytes =", "items=", "bytes"));
+        int specs = 1 + random.nextInt(random.nextInt(8) == 0 ? 70 : 4);
+        for (int s = 0; s < specs; s++) {
+            if (s > 0) {
+                header.append(pick(random, ",", ",", ",", ", ", ",,", " ,"));
+            }
+            header.append(pick(random, "", "", "", " ", "\t"));
+            header.append(randomNumber(random));
+            header.append(pick(random, "-", "-", "-", "-", "-", "--", "", "+"));
+            header.append(randomNumber(random));
+            header.append(pick(random, "", "", "", "", " ", "x", "\n", " "));
+        }
+        header.append(pick(random, "", "", "", " ", "\r\n", ","));
+        return header.toString();
+    }
+
+    private static String randomNumber(Random random) {
+        switch (random.nextInt(6)) {
+            case 0:
+                return "";
+            case 1:
+                // Beyond Long.MAX_VALUE now and then
+                StringBuilder digits = new StringBuilder();
+                int length = 1 + random.nextInt(22);
+                for (int i = 0; i < length; i++) {
+                    digits.append((char) ('0' + random.nextInt(10)));
+                }
+                return digits.toString();
+            case 2:
+                return Integer.toString(random.nextInt(16));
+            case 3:
+                return "0" + random.nextInt(1000);
+            default:
+                return Long.toString(random.nextLong() & 0xFFFFFFFFFL);
+        }
+    }
+
+    private static String pick(Random random, String... options) {
+        return options[random.nextInt(options.length)];
+    }
+}
@@ -0,0 +1,250 @@
+package com.hypertube.streaming.util;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.assertj.core.api.Assertions.tuple;
+
+class Mp4FaststartTest {
+
+    private static final Set<String> CONTAINERS = Set.of("moov", "trak", "mdia", "minf", "stbl");
+    private static final byte[] FTYP = box("ftyp", "isom".getBytes(StandardCharsets.ISO_8859_1), new byte[4]);
+
+    @TempDir
+    Path directory;
+
+    private final Random random = new Random(42);
+
+    @Test
+    void detectsMoovAfterMediaData() throws IOException {
+        byte[] mdat = mdat(100);
+        byte[] moov = moov(track(stco(FTYP.length + 8)));
+
+        assertThat(Mp4Faststart.needsFaststart(write("tail.mp4", FTYP, mdat, moov))).isTrue();
+        assertThat(Mp4Faststart.needsFaststart(write("front.mp4", FTYP, moov, mdat))).isFalse();
+        assertThat(Mp4Faststart.needsFaststart(write("audio.m4a", FTYP, moov))).isFalse();
+    }
+
+    @Test
+    void movesMoovInFrontAndShiftsOffsets() throws IOException {
+        // ftyp | mdat | free | mdat | moov | mdat
+        byte[] first = mdat(300);
+        byte[] free = box("free", new byte[20]);
+        byte[] second = mdat(100);
+        byte[] third = mdat(50);
+        long firstData = FTYP.length + 8;
+        long secondData = firstData + 300 + free.length + 8;
+        long moovStart = secondData + 100;
+        int moovSize = moov(track(stco(0, 0, 0)), track(stco(0, 0))).length;
+        long thirdData = moovStart + moovSize + 8;
+
+        long[] video = {firstData + 10, firstData + 200, thirdData + 5};
+        long[] audio = {secondData, thirdData + 40};
+        Path input = write("tail.mp4", FTYP, first, free, second, moov(track(stco(video)), track(stco(audio))), third);
+        Path output = directory.resolve("faststart.mp4");
+
+        Mp4Faststart.relocate(input, output);
+
+        byte[] in = Files.readAllBytes(input);
+        byte[] out = Files.readAllBytes(output);
+        assertThat(out).hasSameSizeAs(in);
+        assertThat(Mp4Faststart.needsFaststart(output)).isFalse();
+        assertThat(boxes(out, 0, out.length).stream().map(Box::type))
+                .containsExactly("ftyp", "moov", "mdat", "free", "mdat", "mdat");
+
+        // Data before the old moov moved by the moov size; data after it did not move
+        List<Box> tables = offsetTables(out);
+        assertThat(tables).extracting(Box::type).containsExactly("stco", "stco");
+        assertThat(entries(out, tables.get(0))).containsExactly(
+                video[0] + moovSize, video[1] + moovSize, video[2]);
+        assertThat(entries(out, tables.get(1))).containsExactly(secondData + moovSize, audio[1]);
+        assertSameBytes(in, video, out, entries(out, tables.get(0)));
+        assertSameBytes(in, audio, out, entries(out, tables.get(1)));
+    }
+
+    @Test
+    void widensOffsetTablesThatOverflow() throws IOException {
+        // ftyp | mdat | moov | mdat
+        byte[] first = mdat(200);
+        byte[] second = mdat(100);
+        long firstData = FTYP.length + 8;
+        long moovStart = firstData + 200;
+        int moovSize = moov(track(stco(0, 0, 0)), track(stco(0))).length;
+        long secondData = moovStart + moovSize + 8;
+
+        long[] video = {firstData + 100, firstData + 150, secondData + 10};
+        long[] audio = {firstData + 95};
+        Path input = write("tail.mp4", FTYP, first, moov(track(stco(video)), track(stco(audio))), second);
+        Path output = directory.resolve("faststart.mp4");
+
+        // The video table overflows once the moov moves in front; widening it (3 entries, +12
+        // bytes) pushes the audio table's offset over the limit too (+4 bytes)
+        long limit = firstData + 100 + moovSize - 1;
+        Mp4Faststart.relocate(input, output, limit);
+
+        byte[] in = Files.readAllBytes(input);
+        byte[] out = Files.readAllBytes(output);
+        long growth = 16;
+        assertThat(out.length).isEqualTo(in.length + growth);
+        assertThat(boxes(out, 0, out.length)).extracting(Box::type, Box::size)
+                .containsExactly(
+                        tuple("ftyp", FTYP.length),
+                        tuple("moov", (int) (moovSize + growth)),
+                        tuple("mdat", first.length),
+                        tuple("mdat", second.length));
+
+        List<Box> tables = offsetTables(out);
+        assertThat(tables).extracting(Box::type).containsExactly("co64", "co64");
+        assertThat(entries(out, tables.get(0))).containsExactly(
+                video[0] + moovSize + growth, video[1] + moovSize + growth, video[2] + growth);
+        assertThat(entries(out, tables.get(1))).containsExactly(audio[0] + moovSize + growth);
+        assertSameBytes(in, video, out, entries(out, tables.get(0)));
+        assertSameBytes(in, audio, out, entries(out, tables.get(1)));
+    }
+
+    @Test
+    void rejectsFragmentedAndMalformedFiles() throws IOException {
+        Path output = directory.resolve("faststart.mp4");
+
+        // Fragments carry their own offsets, even with a moov at the end
+        Path fragmented = write("fragmented.mp4", FTYP, box("moof", new byte[16]), mdat(100),
+                moov(track(stco(FTYP.length + 24 + 8))));
+        assertThat(Mp4Faststart.needsFaststart(fragmented)).isFalse();
+        assertThatThrownBy(() -> Mp4Faststart.relocate(fragmented, output))
+                .isInstanceOf(IOException.class)
+                .hasMessageContaining("No moov after the media data");
+
+        Path front = write("front.mp4", FTYP, moov(track(stco(0))), mdat(100));
+        assertThatThrownBy(() -> Mp4Faststart.relocate(front, output))
+                .isInstanceOf(IOException.class);
+
+        // An mdat claiming more bytes than the file has
+        byte[] truncated = mdat(100);
+        ByteBuffer.wrap(truncated).putInt(0, 1000);
+        Path overrun = write("overrun.mp4", FTYP, truncated, moov(track(stco(0))));
+        assertThatThrownBy(() -> Mp4Faststart.needsFaststart(overrun))
+                .isInstanceOf(IOException.class)
+                .hasMessageContaining("Malformed mdat");
+
+        // An stco whose entry count runs past the end of the box
+        byte[] table = stco(FTYP.length + 8);
+        ByteBuffer.wrap(table).putInt(12, 100);
+        Path badTable = write("table.mp4", FTYP, mdat(100), moov(track(table)));
+        assertThatThrownBy(() -> Mp4Faststart.relocate(badTable, output))
+                .isInstanceOf(IOException.class)
+                .hasMessageContaining("Malformed stco");
+    }
+
+    private Path write(String name, byte[]... boxes) throws IOException {
+        ByteArrayOutputStream file = new ByteArrayOutputStream();
+        for (byte[] box : boxes) {
+            file.writeBytes(box);
+        }
+        return Files.write(directory.resolve(name), file.toByteArray());
+    }
+
+    private byte[] mdat(int length) {
+        byte[] data = new byte[length];
+        random.nextBytes(data);
+        return box("mdat", data);
+    }
+
+    private static byte[] moov(byte[]... tracks) {
+        byte[][] children = Arrays.copyOf(new byte[][]{box("mvhd", new byte[20])}, tracks.length + 1);
+        System.arraycopy(tracks, 0, children, 1, tracks.length);
+        return box("moov", children);
+    }
+
+    private static byte[] track(byte[] offsetTable) {
+        return box("trak", box("tkhd", new byte[12]),
+                box("mdia", box("minf", box("stbl", box("stsz", new byte[12]), offsetTable))));
+    }
+
+    private static byte[] stco(long... offsets) {
+        ByteBuffer payload = ByteBuffer.allocate(8 + 4 * offsets.length).putInt(0).putInt(offsets.length);
+        for (long offset : offsets) {
+            payload.putInt((int) offset);
+        }
+        return box("stco", payload.array());
+    }
+
+    private static byte[] box(String type, byte[]... payloads) {
+        int size = 8 + Arrays.stream(payloads).mapToInt(payload -> payload.length).sum();
+        ByteBuffer box = ByteBuffer.allocate(size).putInt(size).put(type.getBytes(StandardCharsets.ISO_8859_1));
+        for (byte[] payload : payloads) {
+            box.put(payload);
+        }
+        return box.array();
+    }
+
+    private record Box(String type, int start, int size) {
+    }
+
+    /**
+     * Parses the boxes of [start, end), checking that they tile it exactly.
+     */
+    private static List<Box> boxes(byte[] file, int start, int end) {
+        List<Box> boxes = new ArrayList<>();
+        ByteBuffer buffer = ByteBuffer.wrap(file);
+        int position = start;
+        while (position < end) {
+            int size = buffer.getInt(position);
+            boxes.add(new Box(new String(file, position + 4, 4, StandardCharsets.ISO_8859_1), position, size));
+            position += size;
+        }
+        assertThat(position).as("boxes end with their parent").isEqualTo(end);
+        return boxes;
+    }
+
+    private static List<Box> offsetTables(byte[] file) {
+        List<Box> tables = new ArrayList<>();
+        collectOffsetTables(file, boxes(file, 0, file.length), tables);
+        return tables;
+    }
+
+    private static void collectOffsetTables(byte[] file, List<Box> boxes, List<Box> tables) {
+        for (Box box : boxes) {
+            if (CONTAINERS.contains(box.type())) {
+                collectOffsetTables(file, boxes(file, box.start() + 8, box.start() + box.size()), tables);
+            } else if (box.type().equals("stco") || box.type().equals("co64")) {
+                tables.add(box);
+            }
+        }
+    }
+
+    private static List<Long> entries(byte[] file, Box table) {
+        ByteBuffer buffer = ByteBuffer.wrap(file);
+        int count = buffer.getInt(table.start() + 12);
+        boolean wide = table.type().equals("co64");
+        assertThat(table.size()).isEqualTo(16 + count * (wide ? 8 : 4));
+        List<Long> entries = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            entries.add(wide
+                    ? buffer.getLong(table.start() + 16 + i * 8)
+                    : Integer.toUnsignedLong(buffer.getInt(table.start() + 16 + i * 4)));
+        }
+        return entries;
+    }
+
+    private static void assertSameBytes(byte[] in, long[] inOffsets, byte[] out, List<Long> outOffsets) {
+        for (int i = 0; i < inOffsets.length; i++) {
+            int from = (int) inOffsets[i];
+            int to = outOffsets.get(i).intValue();
+            assertThat(Arrays.copyOfRange(out, to, to + 4)).isEqualTo(Arrays.copyOfRange(in, from, from + 4));
+        }
+    }
+}